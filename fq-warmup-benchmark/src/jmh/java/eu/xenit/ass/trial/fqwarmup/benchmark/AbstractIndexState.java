@@ -0,0 +1,66 @@
+package eu.xenit.ass.trial.fqwarmup.benchmark;
+
+import java.io.IOException;
+
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Base class for benchmark states operating on a {@link SyntheticIndex synthetic index}. The index is created once per trial, while each
+ * benchmark invocation is handed a new searcher with empty caches to warm, just like after a commit.
+ */
+@State(Scope.Benchmark)
+public abstract class AbstractIndexState
+{
+
+    @Param({ "200000" })
+    public int documents;
+
+    @Param({ "20" })
+    public int types;
+
+    @Param({ "30" })
+    public int aspects;
+
+    @Param({ "100" })
+    public int propertyValues;
+
+    @Param({ "8" })
+    public int segments;
+
+    protected SyntheticIndex index;
+
+    protected RefCounted<SolrIndexSearcher> searcher;
+
+    @Setup(Level.Trial)
+    public void setupIndex() throws IOException
+    {
+        this.index = SyntheticIndex.create(this.documents, this.types, this.aspects, this.propertyValues, this.segments);
+    }
+
+    @Setup(Level.Invocation)
+    public void openSearcher()
+    {
+        this.searcher = this.index.openSearcher();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeSearcher()
+    {
+        this.searcher.decref();
+        this.searcher = null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownIndex() throws IOException
+    {
+        this.index.close();
+        this.index = null;
+    }
+}
@@ -0,0 +1,88 @@
+package eu.xenit.ass.trial.fqwarmup.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.util.NamedList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.xenit.ass.trial.fqwarmup.FilterQueryWarmupListener;
+
+/**
+ * Measures the wall time of a complete filter query warmup of a new searcher for the different warmup strategies supported by
+ * {@link FilterQueryWarmupListener}.
+ * <ul>
+ * <li>{@code bruteForce} - all filter queries in a single task, executed via the base query</li>
+ * <li>{@code perQuery} - one task per filter query, executed via the base query</li>
+ * <li>{@code batched} - filter queries grouped into cost-sized batches</li>
+ * <li>{@code direct} - filter queries warmed directly into the filter cache without a base query</li>
+ * <li>{@code segmentIncremental} - per-segment doc sets reused from the previous searcher - as the synthetic index does not change between
+ * invocations, this measures the best case of a commit without new segments</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(value = 1, jvmArgsAppend = "-Deu.xenit.ass.fqwarmup.maxThreads=8")
+public class FilterQueryWarmupBenchmark extends AbstractIndexState
+{
+
+    @Param({ "1", "2", "4", "8" })
+    public int threads;
+
+    @Param({ "bruteForce", "perQuery", "batched", "direct", "segmentIncremental" })
+    public String strategy;
+
+    @Param({ "100", "1000" })
+    public int listSize;
+
+    protected FilterQueryWarmupListener listener;
+
+    @Setup(Level.Trial)
+    public void setupListener() throws IOException
+    {
+        final NamedList<Object> args = new NamedList<>();
+        args.add("queryListFile", this.index.writeQueryListFile(this.index.generateFilterQueries(this.listSize)).toString());
+        args.add("baseRequestBody", "{}");
+        // bruteForce represents the original, single-threaded warmup
+        args.add("concurrentThreads", Integer.valueOf("bruteForce".equals(this.strategy) ? 1 : this.threads));
+        // a benchmark of a warmup that may be cut short by its deadline would not be meaningful
+        args.add("concurrentTimeout", Integer.valueOf(0));
+        switch (this.strategy)
+        {
+            case "bruteForce":
+            case "perQuery":
+                break;
+            case "batched":
+                args.add("batchTargetMillis", Integer.valueOf(20));
+                break;
+            case "direct":
+                args.add("directFilterWarmup", Boolean.TRUE);
+                break;
+            case "segmentIncremental":
+                args.add("segmentIncremental", Boolean.TRUE);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported strategy " + this.strategy);
+        }
+        this.listener = new FilterQueryWarmupListener(this.index.getCore());
+        this.listener.init(args);
+    }
+
+    @Benchmark
+    public int warmup()
+    {
+        this.listener.newSearcher(this.searcher.get(), null);
+        return this.searcher.get().getFilterCache().size();
+    }
+}
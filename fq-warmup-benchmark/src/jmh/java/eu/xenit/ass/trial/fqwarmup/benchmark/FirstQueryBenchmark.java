@@ -0,0 +1,116 @@
+package eu.xenit.ass.trial.fqwarmup.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SyntaxError;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.xenit.ass.trial.fqwarmup.FilterQueryWarmupListener;
+import eu.xenit.ass.trial.fqwarmup.SortWarmupListener;
+
+/**
+ * Measures the latency of the first user query against a new searcher, depending on which warmup listeners have been run on the searcher
+ * before it has been handed out. This is the latency the warmup listeners are meant to reduce and thus puts the warmup times measured by
+ * {@link FilterQueryWarmupBenchmark} and {@link SortWarmupBenchmark} into perspective.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class FirstQueryBenchmark extends AbstractIndexState
+{
+
+    @Param({ "none", "filters", "filtersAndSorts" })
+    public String warmup;
+
+    @Param({ "100" })
+    public int listSize;
+
+    protected FilterQueryWarmupListener filterListener;
+
+    protected SortWarmupListener sortListener;
+
+    protected Query query;
+
+    protected List<Query> filters;
+
+    protected Sort sort;
+
+    @Setup(Level.Trial)
+    public void setupQuery() throws IOException, SyntaxError
+    {
+        final List<String> filterQueries = this.index.generateFilterQueries(this.listSize);
+
+        final NamedList<Object> filterArgs = new NamedList<>();
+        filterArgs.add("queryListFile", this.index.writeQueryListFile(filterQueries).toString());
+        filterArgs.add("baseRequestBody", "{}");
+        filterArgs.add("concurrentTimeout", Integer.valueOf(0));
+        this.filterListener = new FilterQueryWarmupListener(this.index.getCore());
+        this.filterListener.init(filterArgs);
+
+        final NamedList<Object> sortArgs = new NamedList<>();
+        sortArgs.add("sorts", Arrays.asList("modified desc"));
+        sortArgs.add("baseRequestBody", "{}");
+        sortArgs.add("concurrentTimeout", Integer.valueOf(0));
+        this.sortListener = new SortWarmupListener(this.index.getCore());
+        this.sortListener.init(sortArgs);
+
+        // a typical user query combines some of the warmed filters with a warmed sort
+        final SolrQueryRequest req = new LocalSolrQueryRequest(this.index.getCore(), new NamedList<>());
+        try
+        {
+            this.query = QParser.getParser("ISNODE:T", req).getQuery();
+            this.filters = new ArrayList<>();
+            for (final String filterQuery : filterQueries.subList(0, Math.min(3, filterQueries.size())))
+            {
+                this.filters.add(QParser.getParser(filterQuery, req).getQuery());
+            }
+            this.sort = new Sort(new SortField("modified", SortField.Type.LONG, true));
+        }
+        finally
+        {
+            req.close();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void warmupSearcher()
+    {
+        if (!"none".equals(this.warmup))
+        {
+            this.filterListener.newSearcher(this.searcher.get(), null);
+        }
+        if ("filtersAndSorts".equals(this.warmup))
+        {
+            this.sortListener.newSearcher(this.searcher.get(), null);
+        }
+    }
+
+    @Benchmark
+    public DocList firstQuery() throws IOException
+    {
+        return this.searcher.get().getDocList(this.query, this.filters, this.sort, 0, 25, 0);
+    }
+}
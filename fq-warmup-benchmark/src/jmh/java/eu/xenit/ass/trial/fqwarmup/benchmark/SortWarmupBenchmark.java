@@ -0,0 +1,59 @@
+package eu.xenit.ass.trial.fqwarmup.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.util.NamedList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import eu.xenit.ass.trial.fqwarmup.SortWarmupListener;
+
+/**
+ * Measures the wall time of a complete sort warmup of a new searcher using {@link SortWarmupListener}, both via sorted searches and by
+ * loading the sort structures directly.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(value = 1, jvmArgsAppend = "-Deu.xenit.ass.fqwarmup.maxThreads=8")
+public class SortWarmupBenchmark extends AbstractIndexState
+{
+
+    @Param({ "1", "2", "4", "8" })
+    public int threads;
+
+    @Param({ "false", "true" })
+    public boolean directSortWarmup;
+
+    protected SortWarmupListener listener;
+
+    @Setup(Level.Trial)
+    public void setupListener()
+    {
+        final NamedList<Object> args = new NamedList<>();
+        args.add("baseQueries", Arrays.asList("ISNODE:T", "TYPE:type_0"));
+        args.add("sorts", Arrays.asList("name asc", "name desc", "created asc", "created desc", "modified asc", "modified desc"));
+        args.add("baseRequestBody", "{}");
+        args.add("concurrentThreads", Integer.valueOf(this.threads));
+        args.add("concurrentTimeout", Integer.valueOf(0));
+        args.add("directSortWarmup", Boolean.valueOf(this.directSortWarmup));
+        this.listener = new SortWarmupListener(this.index.getCore());
+        this.listener.init(args);
+    }
+
+    @Benchmark
+    public void warmup()
+    {
+        this.listener.newSearcher(this.searcher.get(), null);
+    }
+}
@@ -0,0 +1,263 @@
+package eu.xenit.ass.trial.fqwarmup.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+
+/**
+ * Instances of this class provide an embedded SOLR core with a synthetic index resembling the structure of an Alfresco index, i.e. nodes
+ * with a type, a set of aspects and a number of single-valued properties. The index is built with merges disabled so that it consists of
+ * exactly the requested number of segments.
+ */
+public class SyntheticIndex implements Closeable
+{
+
+    public static final String CORE_NAME = "benchmark";
+
+    public static final int PROPERTY_COUNT = 5;
+
+    protected static final long EPOCH = 1500000000000L;
+
+    protected static final long DAY = 86400000L;
+
+    protected static final int DAYS = 3650;
+
+    protected final Path home;
+
+    protected final CoreContainer container;
+
+    protected final SolrCore core;
+
+    protected final int types;
+
+    protected final int aspects;
+
+    protected final int propertyValues;
+
+    protected SyntheticIndex(final Path home, final int types, final int aspects, final int propertyValues)
+    {
+        this.home = home;
+        this.types = types;
+        this.aspects = aspects;
+        this.propertyValues = propertyValues;
+
+        this.container = new CoreContainer(home.toString());
+        this.container.load();
+        this.core = this.container.getCore(CORE_NAME);
+    }
+
+    /**
+     * Creates and populates a new synthetic index in a temporary directory.
+     *
+     * @param documents
+     *            the number of documents to index
+     * @param types
+     *            the number of distinct node types
+     * @param aspects
+     *            the number of distinct aspects
+     * @param propertyValues
+     *            the number of distinct values of each property
+     * @param segments
+     *            the number of segments to create
+     * @return the index
+     * @throws IOException
+     *             if the index cannot be created
+     */
+    public static SyntheticIndex create(final int documents, final int types, final int aspects, final int propertyValues,
+            final int segments) throws IOException
+    {
+        final Path home = Files.createTempDirectory("fq-warmup-benchmark");
+        writeConfiguration(home);
+
+        final SyntheticIndex index = new SyntheticIndex(home, types, aspects, propertyValues);
+        index.populate(documents, Math.max(1, segments));
+        return index;
+    }
+
+    protected static void writeConfiguration(final Path home) throws IOException
+    {
+        final Path conf = Files.createDirectories(home.resolve(CORE_NAME).resolve("conf"));
+        Files.write(home.resolve("solr.xml"), "<solr></solr>".getBytes(StandardCharsets.UTF_8));
+        Files.write(home.resolve(CORE_NAME).resolve("core.properties"), ("name=" + CORE_NAME).getBytes(StandardCharsets.UTF_8));
+        Files.write(conf.resolve("solrconfig.xml"), ("<config>"
+                + "<luceneMatchVersion>6.6.0</luceneMatchVersion>"
+                + "<schemaFactory class=\"ClassicIndexSchemaFactory\"/>"
+                + "<indexConfig><mergePolicyFactory class=\"org.apache.solr.index.NoMergePolicyFactory\"/></indexConfig>"
+                + "<updateHandler class=\"solr.DirectUpdateHandler2\"/>"
+                + "<query>"
+                + "<filterCache class=\"eu.xenit.ass.trial.fqwarmup.RankedFilterCache\" size=\"16384\" initialSize=\"1024\" autowarmCount=\"0\"/>"
+                + "<queryResultCache class=\"solr.LRUCache\" size=\"512\" initialSize=\"512\" autowarmCount=\"0\"/>"
+                + "</query>"
+                + "<requestHandler name=\"/select\" class=\"solr.SearchHandler\"/>"
+                + "</config>").getBytes(StandardCharsets.UTF_8));
+        Files.write(conf.resolve("schema.xml"), ("<schema name=\"benchmark\" version=\"1.6\">"
+                + "<fieldType name=\"string\" class=\"solr.StrField\" sortMissingLast=\"true\" docValues=\"true\"/>"
+                + "<fieldType name=\"long\" class=\"solr.TrieLongField\" precisionStep=\"8\" docValues=\"true\"/>"
+                + "<field name=\"id\" type=\"string\" indexed=\"true\" stored=\"true\" required=\"true\"/>"
+                + "<field name=\"_version_\" type=\"long\" indexed=\"true\" stored=\"true\"/>"
+                + "<field name=\"ISNODE\" type=\"string\" indexed=\"true\" stored=\"false\"/>"
+                + "<field name=\"TYPE\" type=\"string\" indexed=\"true\" stored=\"false\"/>"
+                + "<field name=\"ASPECT\" type=\"string\" indexed=\"true\" stored=\"false\" multiValued=\"true\"/>"
+                + "<field name=\"name\" type=\"string\" indexed=\"true\" stored=\"false\"/>"
+                + "<field name=\"created\" type=\"long\" indexed=\"true\" stored=\"false\"/>"
+                + "<field name=\"modified\" type=\"long\" indexed=\"true\" stored=\"false\"/>"
+                + "<dynamicField name=\"prop_*\" type=\"string\" indexed=\"true\" stored=\"false\"/>"
+                + "<uniqueKey>id</uniqueKey>"
+                + "</schema>").getBytes(StandardCharsets.UTF_8));
+    }
+
+    protected void populate(final int documents, final int segments) throws IOException
+    {
+        final Random random = new Random(42);
+        final EmbeddedSolrServer server = new EmbeddedSolrServer(this.container, CORE_NAME);
+        try
+        {
+            final int documentsPerSegment = (documents + segments - 1) / segments;
+            for (int segment = 0, doc = 0; segment < segments && doc < documents; segment++)
+            {
+                final List<SolrInputDocument> batch = new ArrayList<>();
+                for (int i = 0; i < documentsPerSegment && doc < documents; i++, doc++)
+                {
+                    batch.add(this.createDocument(doc, random));
+                }
+                server.add(batch);
+                // without merges, every commit yields exactly one additional segment
+                server.commit();
+            }
+        }
+        catch (final SolrServerException ssex)
+        {
+            throw new IOException("Failed to populate synthetic index", ssex);
+        }
+    }
+
+    protected SolrInputDocument createDocument(final int doc, final Random random)
+    {
+        final SolrInputDocument document = new SolrInputDocument();
+        document.addField("id", "node-" + doc);
+        document.addField("ISNODE", "T");
+        // skewed distribution, just like the content vs. folder vs. everything else distribution in Alfresco
+        document.addField("TYPE", "type_" + (int) (this.types * Math.pow(random.nextDouble(), 3)));
+        for (int aspect = 0; aspect < this.aspects; aspect++)
+        {
+            if (random.nextInt(aspect + 2) == 0)
+            {
+                document.addField("ASPECT", "aspect_" + aspect);
+            }
+        }
+        for (int property = 0; property < PROPERTY_COUNT; property++)
+        {
+            document.addField("prop_" + property, "value_" + random.nextInt(this.propertyValues));
+        }
+        document.addField("name", "document-" + Integer.toHexString(random.nextInt()));
+        final long created = EPOCH + random.nextInt(DAYS) * DAY;
+        document.addField("created", created);
+        document.addField("modified", created + random.nextInt(DAYS) * DAY);
+        return document;
+    }
+
+    /**
+     * Generates a list of filter queries of the kinds typically used by Alfresco - type, aspect and property filters, conjunctions of these
+     * and date ranges.
+     *
+     * @param count
+     *            the number of filter queries to generate
+     * @return the generated filter queries
+     */
+    public List<String> generateFilterQueries(final int count)
+    {
+        final Random random = new Random(count);
+        final List<String> filterQueries = new ArrayList<>();
+        while (filterQueries.size() < count)
+        {
+            final String filterQuery;
+            switch (filterQueries.size() % 5)
+            {
+                case 0:
+                    filterQuery = "TYPE:type_" + random.nextInt(this.types);
+                    break;
+                case 1:
+                    filterQuery = "ASPECT:aspect_" + random.nextInt(this.aspects);
+                    break;
+                case 2:
+                    filterQuery = "prop_" + random.nextInt(PROPERTY_COUNT) + ":value_" + random.nextInt(this.propertyValues);
+                    break;
+                case 3:
+                    filterQuery = "TYPE:type_" + random.nextInt(this.types) + " AND ASPECT:aspect_" + random.nextInt(this.aspects);
+                    break;
+                default:
+                    final long from = EPOCH + random.nextInt(DAYS) * DAY;
+                    filterQuery = "modified:[" + from + " TO " + (from + random.nextInt(365) * DAY) + "]";
+            }
+            if (!filterQueries.contains(filterQuery))
+            {
+                filterQueries.add(filterQuery);
+            }
+        }
+        return filterQueries;
+    }
+
+    /**
+     * Writes a list of filter queries to a query list file in the home directory of the index.
+     *
+     * @param filterQueries
+     *            the filter queries
+     * @return the path to the query list file
+     * @throws IOException
+     *             if the file cannot be written
+     */
+    public Path writeQueryListFile(final List<String> filterQueries) throws IOException
+    {
+        return Files.write(this.home.resolve("filterQueryList-" + filterQueries.size()), filterQueries, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Retrieves the core of the index.
+     *
+     * @return the core
+     */
+    public SolrCore getCore()
+    {
+        return this.core;
+    }
+
+    /**
+     * Opens a new searcher with empty caches, just like the searchers handed to warmup listeners after a commit.
+     *
+     * @return the reference to the new searcher - needs to be decremented by the caller
+     */
+    public RefCounted<SolrIndexSearcher> openSearcher()
+    {
+        return this.core.openNewSearcher(false, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException
+    {
+        this.core.close();
+        this.container.shutdown();
+
+        try (Stream<Path> paths = Files.walk(this.home))
+        {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class control the number of concurrent workers of a single warmup in an additive-increase / multiplicative-decrease
+ * fashion. In regular intervals, the latency and number of in-flight live requests of the core (see {@link LiveQueryMonitor}), the CPU load
+ * of the system and the throughput of the warmup itself are sampled. While live requests are affected - their latency exceeds a multiple of
+ * the baseline latency, more requests are in flight than there are processors, or the CPU is saturated while requests are being served -
+ * the number of workers is halved, down to a single worker. Otherwise, it is doubled until the first back-off and increased by one worker
+ * afterwards, up to the configured concurrency, unless the last increase reduced the throughput of the warmup. Without live requests, e.g.
+ * at night, the warmup thus runs with its full concurrency.
+ */
+public class AdaptiveConcurrency
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    protected static final long CONTROL_INTERVAL = 500;
+
+    protected static final long IDLE_CHECK_INTERVAL = 50;
+
+    // live requests may become this much slower than their baseline latency before the warmup backs off
+    protected static final double LATENCY_TOLERANCE = 2;
+
+    protected static final int MIN_LATENCY_SAMPLES = 3;
+
+    protected static final double MAX_CPU_LOAD = 0.9;
+
+    // weight of a new interval in the baseline latency
+    protected static final double BASELINE_WEIGHT = 0.2;
+
+    // drop in warmup throughput after an increase that indicates the workers are contending with each other
+    protected static final double THROUGHPUT_DROP = 0.1;
+
+    protected final LiveQueryMonitor monitor;
+
+    protected final int maxLimit;
+
+    protected final String description;
+
+    protected final WarmupMetrics metrics;
+
+    protected final AtomicInteger active = new AtomicInteger();
+
+    protected volatile int limit = 1;
+
+    protected boolean slowStart = true;
+
+    protected boolean increased;
+
+    protected double baselineNanos = Double.NaN;
+
+    protected double lastThroughput = Double.NaN;
+
+    protected long lastAdjustment = System.nanoTime();
+
+    protected long lastCompleted;
+
+    protected long lastTotalNanos;
+
+    protected int lastExecuted;
+
+    /**
+     * Creates a new controller for a single warmup.
+     *
+     * @param monitor
+     *            the monitor of the live requests of the core being warmed
+     * @param maxLimit
+     *            the maximum number of concurrent workers
+     * @param description
+     *            the description of the warmup for logging purposes
+     * @param metrics
+     *            the metrics to record changes of the number of workers in - may be {@code null}
+     */
+    public AdaptiveConcurrency(final LiveQueryMonitor monitor, final int maxLimit, final String description, final WarmupMetrics metrics)
+    {
+        this.monitor = monitor;
+        this.maxLimit = Math.max(1, maxLimit);
+        this.description = description;
+        this.metrics = metrics;
+
+        this.lastCompleted = monitor.getCompleted();
+        this.lastTotalNanos = monitor.getTotalNanos();
+        // the mean latency since the core was loaded serves as the baseline until the first interval with enough live requests
+        if (this.lastCompleted > 0)
+        {
+            this.baselineNanos = (double) this.lastTotalNanos / this.lastCompleted;
+        }
+    }
+
+    /**
+     * Retrieves the current maximum number of concurrent workers.
+     *
+     * @return the number of workers
+     */
+    public int getLimit()
+    {
+        return this.limit;
+    }
+
+    /**
+     * Retrieves the number of workers currently active.
+     *
+     * @return the number of active workers
+     */
+    public int getActive()
+    {
+        return this.active.get();
+    }
+
+    /**
+     * Records the start of a worker.
+     */
+    public void workerStarted()
+    {
+        this.active.incrementAndGet();
+    }
+
+    /**
+     * Records the end of a worker which has not been retired via {@link #tryRetire() tryRetire}.
+     */
+    public synchronized void workerFinished()
+    {
+        this.active.decrementAndGet();
+        this.notifyAll();
+    }
+
+    /**
+     * Checks whether a worker should stop as more workers are active than currently allowed, and records its end if so.
+     *
+     * @return {@code true} if the calling worker has been retired
+     */
+    public boolean tryRetire()
+    {
+        boolean retired = false;
+        int active = this.active.get();
+        while (!retired && active > this.limit)
+        {
+            retired = this.active.compareAndSet(active, active - 1);
+            active = this.active.get();
+        }
+        return retired;
+    }
+
+    /**
+     * Waits for a worker to finish or the next adjustment to become due.
+     *
+     * @param timeoutMillis
+     *            the maximum time to wait in milliseconds
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    public synchronized void await(final long timeoutMillis) throws InterruptedException
+    {
+        final long untilAdjustment = CONTROL_INTERVAL - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.lastAdjustment);
+        final long timeout = Math.min(timeoutMillis, untilAdjustment);
+        if (timeout > 0)
+        {
+            this.wait(timeout);
+        }
+    }
+
+    /**
+     * Waits for all workers to finish or retire.
+     *
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    public synchronized void awaitIdle() throws InterruptedException
+    {
+        while (this.active.get() > 0)
+        {
+            // retiring workers do not notify, so the number of active workers is checked periodically
+            this.wait(IDLE_CHECK_INTERVAL);
+        }
+    }
+
+    /**
+     * Adjusts the maximum number of concurrent workers if the control interval has passed since the last adjustment.
+     *
+     * @param executed
+     *            the total number of tasks executed by the warmup so far
+     */
+    public synchronized void adjust(final int executed)
+    {
+        final long now = System.nanoTime();
+        final long elapsed = now - this.lastAdjustment;
+        if (elapsed >= TimeUnit.MILLISECONDS.toNanos(CONTROL_INTERVAL))
+        {
+            final long completed = this.monitor.getCompleted();
+            final long totalNanos = this.monitor.getTotalNanos();
+            final long samples = completed - this.lastCompleted;
+            final int inFlight = this.monitor.getInFlight();
+            final double throughput = (double) (executed - this.lastExecuted) / elapsed;
+
+            String pressure = null;
+            if (samples >= MIN_LATENCY_SAMPLES)
+            {
+                final double meanNanos = (double) (totalNanos - this.lastTotalNanos) / samples;
+                if (!Double.isNaN(this.baselineNanos) && meanNanos > LATENCY_TOLERANCE * this.baselineNanos)
+                {
+                    pressure = "latency of live requests increased to " + Math.round(meanNanos / 1000000) + " ms";
+                }
+                else
+                {
+                    // only unaffected intervals feed into the baseline, so that it does not creep up under sustained pressure
+                    this.baselineNanos = Double.isNaN(this.baselineNanos) ? meanNanos
+                            : (1 - BASELINE_WEIGHT) * this.baselineNanos + BASELINE_WEIGHT * meanNanos;
+                }
+            }
+            if (pressure == null && inFlight > Runtime.getRuntime().availableProcessors())
+            {
+                pressure = inFlight + " live requests in flight";
+            }
+            // a saturated CPU is only a problem if there are live requests competing with the warmup
+            if (pressure == null && (samples > 0 || inFlight > 0))
+            {
+                final double cpuLoad = getCpuLoad();
+                if (cpuLoad > MAX_CPU_LOAD)
+                {
+                    pressure = "CPU load of " + Math.round(100 * cpuLoad) + "% while serving live requests";
+                }
+            }
+
+            final int previousLimit = this.limit;
+            if (pressure != null)
+            {
+                this.limit = Math.max(1, previousLimit / 2);
+                this.slowStart = false;
+            }
+            else if (this.increased && throughput < (1 - THROUGHPUT_DROP) * this.lastThroughput)
+            {
+                this.limit = Math.max(1, previousLimit - 1);
+                this.slowStart = false;
+            }
+            else
+            {
+                this.limit = Math.min(this.maxLimit, this.slowStart ? 2 * previousLimit : previousLimit + 1);
+            }
+            this.increased = this.limit > previousLimit;
+
+            if (this.limit != previousLimit)
+            {
+                LOGGER.debug("Changed concurrency of {} warmup from {} to {} workers{}", this.description, previousLimit, this.limit,
+                        pressure != null ? " due to " + pressure : "");
+                if (this.metrics != null)
+                {
+                    this.metrics.recordConcurrency(this.limit, this.limit < previousLimit && pressure != null);
+                }
+            }
+
+            this.lastAdjustment = now;
+            this.lastCompleted = completed;
+            this.lastTotalNanos = totalNanos;
+            this.lastExecuted = executed;
+            this.lastThroughput = throughput;
+        }
+    }
+
+    /**
+     * Determines the recent CPU load of the system.
+     *
+     * @return the CPU load between {@code 0} and {@code 1} or a negative value if it is not available
+     */
+    // getSystemCpuLoad is only deprecated as of Java 14 in favour of getCpuLoad, which does not exist in Java 8 targeted by this library
+    @SuppressWarnings("deprecation")
+    protected static double getCpuLoad()
+    {
+        final OperatingSystemMXBean operatingSystem = ManagementFactory.getOperatingSystemMXBean();
+        double cpuLoad = -1;
+        if (operatingSystem instanceof com.sun.management.OperatingSystemMXBean)
+        {
+            cpuLoad = ((com.sun.management.OperatingSystemMXBean) operatingSystem).getSystemCpuLoad();
+        }
+        if (cpuLoad < 0 && operatingSystem.getSystemLoadAverage() >= 0)
+        {
+            cpuLoad = operatingSystem.getSystemLoadAverage() / operatingSystem.getAvailableProcessors();
+        }
+        return cpuLoad;
+    }
+}
@@ -0,0 +1,261 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.noggit.JSONUtil;
+import org.noggit.ObjectBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class represent the set of authorities of a user as sent by Alfresco in the JSON body of a search request. Alfresco uses
+ * the same filter query ({@code {!afts}AUTHORITY_FILTER_FROM_JSON}) for all users, so the actual permission filter only results from parsing
+ * that filter query in the context of a request body with a specific authority set. Authority sets are kept in a canonical, order-independent
+ * key form so that they can be recorded and ranked via {@link WarmupStatistics}.
+ */
+public class AuthoritySet
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String DEFAULT_AUTHORITY_FILTER_QUERY = "{!afts}AUTHORITY_FILTER_FROM_JSON";
+
+    protected static final String AUTHORITIES = "authorities";
+
+    // request context key under which the Alfresco query parsers keep the parsed request body
+    protected static final String ALFRESCO_JSON = "ALFRESCO_JSON";
+
+    protected final List<String> authorities;
+
+    protected AuthoritySet(final Collection<String> authorities)
+    {
+        this.authorities = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(authorities)));
+    }
+
+    /**
+     * Parses an authority set from either its key form (a JSON array of authorities) or a comma-separated list of authorities, as used in
+     * configuration.
+     *
+     * @param authoritySet
+     *            the textual representation of the authority set
+     * @return the authority set or {@code null} if the representation does not contain any authorities
+     */
+    public static AuthoritySet parse(final String authoritySet)
+    {
+        final String trimmed = authoritySet.trim();
+        List<String> authorities = Collections.emptyList();
+        if (trimmed.startsWith("["))
+        {
+            try
+            {
+                final Object parsed = ObjectBuilder.fromJSON(trimmed);
+                if (parsed instanceof Collection<?>)
+                {
+                    authorities = toAuthorities((Collection<?>) parsed);
+                }
+            }
+            catch (final IOException | RuntimeException ex)
+            {
+                LOGGER.debug("Failed to parse authority set {}", authoritySet, ex);
+            }
+        }
+        else
+        {
+            authorities = toAuthorities(Arrays.asList(trimmed.split(",")));
+        }
+        return authorities.isEmpty() ? null : new AuthoritySet(authorities);
+    }
+
+    /**
+     * Extracts the authority set from the JSON body of a search request. Only request bodies which have already been parsed by the Alfresco
+     * query parsers or which can be read repeatedly are considered, as reading the body of a regular HTTP request would consume it before
+     * the request handler gets to it.
+     *
+     * @param req
+     *            the request
+     * @return the authority set or {@code null} if the request does not provide one
+     */
+    public static AuthoritySet fromRequest(final SolrQueryRequest req)
+    {
+        final String json = getRequestBody(req);
+        AuthoritySet authoritySet = null;
+        if (json != null && !json.trim().isEmpty())
+        {
+            try
+            {
+                final Object body = ObjectBuilder.fromJSON(json);
+                final Object authorities = body instanceof Map<?, ?> ? ((Map<?, ?>) body).get(AUTHORITIES) : null;
+                if (authorities instanceof Collection<?>)
+                {
+                    final List<String> validAuthorities = toAuthorities((Collection<?>) authorities);
+                    authoritySet = validAuthorities.isEmpty() ? null : new AuthoritySet(validAuthorities);
+                }
+            }
+            catch (final IOException | RuntimeException ex)
+            {
+                LOGGER.debug("Failed to parse request body for authorities", ex);
+            }
+        }
+        return authoritySet;
+    }
+
+    /**
+     * Retrieves the JSON body of a search request, if it has either already been parsed by the Alfresco query parsers or can be read
+     * repeatedly.
+     *
+     * @param req
+     *            the request
+     * @return the request body or {@code null} if the request does not provide a readable body
+     */
+    public static String getRequestBody(final SolrQueryRequest req)
+    {
+        String json = null;
+        final Object parsedBody = req.getContext().get(ALFRESCO_JSON);
+        if (parsedBody != null)
+        {
+            json = parsedBody.toString();
+        }
+        else if (req.getContentStreams() != null)
+        {
+            for (final ContentStream stream : req.getContentStreams())
+            {
+                if (json == null
+                        && (stream instanceof ContentStreamBase.StringStream || stream instanceof ContentStreamBase.ByteArrayStream))
+                {
+                    json = read(stream);
+                }
+            }
+        }
+        return json;
+    }
+
+    protected static String read(final ContentStream stream)
+    {
+        String content = null;
+        try (Reader reader = stream.getReader())
+        {
+            final StringBuilder sb = new StringBuilder();
+            final char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1)
+            {
+                sb.append(buffer, 0, read);
+            }
+            content = sb.toString();
+        }
+        catch (final IOException ioex)
+        {
+            LOGGER.debug("Failed to read request body", ioex);
+        }
+        return content;
+    }
+
+    protected static List<String> toAuthorities(final Collection<?> candidates)
+    {
+        return candidates.stream().filter(a -> a != null).map(a -> String.valueOf(a).trim()).filter(a -> !a.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Retrieves the authorities of this set.
+     *
+     * @return the authorities in canonical (sorted) order
+     */
+    public List<String> getAuthorities()
+    {
+        return this.authorities;
+    }
+
+    /**
+     * Retrieves the canonical key of this authority set, which is independent of the order in which the authorities have been provided.
+     *
+     * @return the key
+     */
+    public String getKey()
+    {
+        return JSONUtil.toJSON(this.authorities, -1);
+    }
+
+    /**
+     * Retrieves a short digest of the key of this authority set, which identifies it in logs, task descriptions and metrics without
+     * disclosing its authorities.
+     *
+     * @return the digest
+     */
+    public String getDigest()
+    {
+        return Digests.shortSha256(this.getKey());
+    }
+
+    /**
+     * Creates a request body for parsing the authority filter query of this authority set, based on the request body otherwise used for
+     * query parsing in warmup.
+     *
+     * @param baseRequestBody
+     *            the base request body - may be {@code null}
+     * @return the request body
+     */
+    @SuppressWarnings("unchecked")
+    public String toRequestBody(final String baseRequestBody)
+    {
+        Map<String, Object> body = new LinkedHashMap<>();
+        if (baseRequestBody != null && !baseRequestBody.trim().isEmpty())
+        {
+            try
+            {
+                final Object parsed = ObjectBuilder.fromJSON(baseRequestBody);
+                if (parsed instanceof Map<?, ?>)
+                {
+                    body = new LinkedHashMap<>((Map<String, Object>) parsed);
+                }
+            }
+            catch (final IOException | RuntimeException ex)
+            {
+                LOGGER.warn("Failed to parse base request body - using only authorities in request body for authority filter", ex);
+            }
+        }
+        body.put(AUTHORITIES, this.authorities);
+        return JSONUtil.toJSON(body, -1);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode()
+    {
+        return this.authorities.hashCode();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(final Object obj)
+    {
+        return obj instanceof AuthoritySet && ((AuthoritySet) obj).authorities.equals(this.authorities);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return this.getDigest() + " [" + this.authorities.size() + " authorities]";
+    }
+}
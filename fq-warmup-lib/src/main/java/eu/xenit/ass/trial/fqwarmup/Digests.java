@@ -0,0 +1,59 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This class provides the digests used to fingerprint configuration and to identify recorded entries which may contain personal data, e.g.
+ * authority sets or complete requests, in logs, task descriptions and metrics without disclosing their contents.
+ */
+public final class Digests
+{
+
+    protected static final int SHORT_DIGEST_LENGTH = 12;
+
+    private Digests()
+    {
+        // NO-OP
+    }
+
+    /**
+     * Computes the SHA-256 digest of a text.
+     *
+     * @param text
+     *            the text
+     * @return the digest in hexadecimal form
+     */
+    public static String sha256(final String text)
+    {
+        try
+        {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder hex = new StringBuilder();
+            for (final byte b : digest)
+            {
+                hex.append(String.format("%02x", Integer.valueOf(b & 0xff)));
+            }
+            return hex.toString();
+        }
+        catch (final NoSuchAlgorithmException nsaex)
+        {
+            // cannot happen as every JVM must support SHA-256
+            throw new IllegalStateException("SHA-256 is not supported", nsaex);
+        }
+    }
+
+    /**
+     * Computes a short form of the SHA-256 digest of a text, which is sufficient to tell entries apart and correlate them across log
+     * messages and metrics.
+     *
+     * @param text
+     *            the text
+     * @return the first {@value #SHORT_DIGEST_LENGTH} characters of the digest in hexadecimal form
+     */
+    public static String shortSha256(final String text)
+    {
+        return sha256(text).substring(0, SHORT_DIGEST_LENGTH);
+    }
+}
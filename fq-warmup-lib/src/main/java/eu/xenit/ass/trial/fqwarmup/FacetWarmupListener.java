@@ -0,0 +1,391 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.ContentStreamBase.ByteArrayStream;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SimpleFacets;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SyntaxError;
+import org.apache.solr.search.facet.UnInvertedField;
+import org.apache.solr.util.RefCounted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this listener support using configured facet fields and facet queries to pre-warm the faceting structures of a new SOLR
+ * searcher instance. Facets are computed via the regular SOLR faceting implementation over the documents matching a base query, so that
+ * the structures SOLR chooses for each field are loaded - the un-inverted fields of the field value cache, doc values, or (for facet
+ * queries, e.g. date ranges) the filter cache.
+ */
+public class FacetWarmupListener extends AbstractSolrEventListener
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    protected final ConcurrentMap<String, Long> facetCosts = new ConcurrentHashMap<>();
+
+    protected WarmupConfiguration configuration;
+
+    public FacetWarmupListener(final SolrCore core)
+    {
+        super(core);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void newSearcher(final SolrIndexSearcher newSearcher, final SolrIndexSearcher currentSearcher)
+    {
+        final long warmupStart = System.nanoTime();
+        final List<String> facetFields = this.getStringList("facetFields");
+        final List<String> facetQueries = this.getStringList("facetQueries");
+
+        if (facetFields.isEmpty() && facetQueries.isEmpty())
+        {
+            LOGGER.debug("Skipping facet warmup as neither facet fields nor facet queries have been configured");
+        }
+        else
+        {
+            final Integer concurrentThreads = this.getConcurrentThreads();
+            final Integer concurrentTimeout = (Integer) this.getArgs().get("concurrentTimeout");
+
+            LOGGER.debug("Starting facet warmup");
+            final List<Runnable> tasks = this.createTasks(newSearcher, facetFields, facetQueries);
+
+            final WarmupMetrics metrics = WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.FACET_WARMUP);
+            final Runnable completion = () -> {
+                metrics.recordWarmup(currentSearcher == null ? "firstSearcher" : "newSearcher", System.nanoTime() - warmupStart, -1, -1);
+                LOGGER.debug("Completed facet warmup");
+            };
+            if (Boolean.TRUE.equals(this.getArgs().get("backgroundWarmup")))
+            {
+                WarmupScheduler.getInstance().submit(this.getCore(), newSearcher, "facet", tasks, concurrentThreads.intValue(),
+                        concurrentTimeout, metrics, completion);
+            }
+            else
+            {
+                try
+                {
+                    WarmupScheduler.getInstance().execute(this.getCore(), newSearcher, "facet", tasks, concurrentThreads.intValue(),
+                            concurrentTimeout, metrics);
+                }
+                finally
+                {
+                    completion.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(@SuppressWarnings("rawtypes") final NamedList args)
+    {
+        super.init(args);
+
+        final String configurationFile = (String) args.get("configurationFile");
+        if (configurationFile != null && !configurationFile.trim().isEmpty())
+        {
+            this.configuration = WarmupConfiguration
+                    .getInstance(this.getCore(), WarmupConfiguration.resolveConfigurationFile(this.getCore(), configurationFile));
+            this.configuration.registerChangeListener(this.getCore(), WarmupMetrics.FACET_WARMUP, this::warmupChanges);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * If a warmup configuration file has been configured, its entries for facet warmup override the arguments from {@code solrconfig.xml}.
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public NamedList getArgs()
+    {
+        final NamedList args = super.getArgs();
+        return this.configuration != null ? this.configuration.getArgs(WarmupMetrics.FACET_WARMUP, args) : args;
+    }
+
+    protected void warmupChanges(final Map<String, Object> changes)
+    {
+        final Object changedFacetFields = changes.get("facetFields");
+        final Object changedFacetQueries = changes.get("facetQueries");
+        final RefCounted<SolrIndexSearcher> searcherRef = changedFacetFields instanceof Collection<?>
+                || changedFacetQueries instanceof Collection<?> ? this.getCore().getRegisteredSearcher() : null;
+        if (searcherRef != null)
+        {
+            try
+            {
+                final long warmupStart = System.nanoTime();
+                final SolrIndexSearcher searcher = searcherRef.get();
+                final List<Runnable> tasks = this.createTasks(searcher,
+                        changedFacetFields instanceof Collection<?>
+                                ? ((Collection<?>) changedFacetFields).stream().map(String::valueOf).collect(Collectors.toList())
+                                : Collections.<String> emptyList(),
+                        changedFacetQueries instanceof Collection<?>
+                                ? ((Collection<?>) changedFacetQueries).stream().map(String::valueOf).collect(Collectors.toList())
+                                : Collections.<String> emptyList());
+                LOGGER.info("Warming {} changed facets against current searcher {}", tasks.size(), searcher);
+
+                final WarmupMetrics metrics = WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.FACET_WARMUP);
+                // the current searcher is already serving requests, so there is no reason to make the caller wait for the warmup
+                WarmupScheduler.getInstance().submit(this.getCore(), searcher, "changed facet", tasks,
+                        this.getConcurrentThreads().intValue(), (Integer) this.getArgs().get("concurrentTimeout"), metrics,
+                        () -> metrics.recordWarmup("configurationChange", System.nanoTime() - warmupStart, -1, -1));
+            }
+            finally
+            {
+                searcherRef.decref();
+            }
+        }
+    }
+
+    protected List<String> getStringList(final String name)
+    {
+        final Object candidate = this.getArgs().get(name);
+        final List<String> values;
+        if (candidate instanceof Collection<?>)
+        {
+            values = ((Collection<?>) candidate).stream().map(String::valueOf).collect(Collectors.toList());
+        }
+        else if (candidate instanceof String && !((String) candidate).trim().isEmpty())
+        {
+            values = Collections.singletonList((String) candidate);
+        }
+        else
+        {
+            values = Collections.emptyList();
+        }
+        return values;
+    }
+
+    protected Integer getConcurrentThreads()
+    {
+        Integer concurrentThreads = (Integer) this.getArgs().get("concurrentThreads");
+        if (concurrentThreads == null || concurrentThreads.intValue() <= 0)
+        {
+            LOGGER.debug("Number of concurrent threads has not been properly configured - defaulting to 1");
+            concurrentThreads = Integer.valueOf(1);
+        }
+        return concurrentThreads;
+    }
+
+    protected List<Runnable> createTasks(final SolrIndexSearcher searcher, final List<String> facetFields, final List<String> facetQueries)
+    {
+        String baseQuery = (String) this.getArgs().get("baseQuery");
+        if (baseQuery == null || baseQuery.trim().isEmpty())
+        {
+            LOGGER.debug("Base query has not been properly configured - defaulting to ISNODE:T");
+            baseQuery = "ISNODE:T";
+        }
+        final String baseRequestBody = (String) this.getArgs().get("baseRequestBody");
+        final String facetMethod = (String) this.getArgs().get("facetMethod");
+
+        // the documents to facet on are only determined by the first task, so that a background warmup does not delay the new searcher
+        final Supplier<DocSet> baseDocSet = this.getBaseDocSet(searcher, baseRequestBody, baseQuery);
+
+        final List<Runnable> tasks = new ArrayList<>();
+        facetFields.forEach(field -> {
+            final ModifiableSolrParams params = new ModifiableSolrParams();
+            params.set(FacetParams.FACET_FIELD, field);
+            if (facetMethod != null)
+            {
+                params.set(FacetParams.FACET_METHOD, facetMethod);
+            }
+            this.addTask(tasks, "facet on " + field, () -> this.performFacet(searcher, baseRequestBody, baseDocSet, params));
+            if (Boolean.TRUE.equals(this.getArgs().get("uninvertedFieldWarmup")))
+            {
+                this.addTask(tasks, "uninverted " + field, () -> this.performUninvert(searcher, field));
+            }
+        });
+        facetQueries.forEach(query -> {
+            final ModifiableSolrParams params = new ModifiableSolrParams();
+            params.set(FacetParams.FACET_QUERY, query);
+            this.addTask(tasks, "facet on " + query, () -> this.performFacet(searcher, baseRequestBody, baseDocSet, params));
+        });
+        return tasks;
+    }
+
+    protected void addTask(final List<Runnable> tasks, final String description, final Runnable action)
+    {
+        final long cost = this.facetCosts.getOrDefault(description, Long.valueOf(0)).longValue();
+        // without any information on how often a facet is used, the time saved on live queries is at least the time spent here
+        tasks.add(new WarmupTask(description, cost, cost, () -> {
+            final long start = System.nanoTime();
+            action.run();
+            this.facetCosts.merge(description, Long.valueOf(System.nanoTime() - start), (previous, current) -> (previous + current) / 2);
+        }));
+    }
+
+    protected Supplier<DocSet> getBaseDocSet(final SolrIndexSearcher searcher, final String baseRequestBody, final String baseQuery)
+    {
+        final DocSet[] docSet = new DocSet[1];
+        return () -> {
+            synchronized (docSet)
+            {
+                if (docSet[0] == null)
+                {
+                    final WarmupMetrics metrics = WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.FACET_WARMUP);
+                    final SolrQueryRequest req = this.createRequest(searcher, baseRequestBody, new ModifiableSolrParams());
+                    try
+                    {
+                        final long parseStart = System.nanoTime();
+                        final Query query = QParser.getParser(baseQuery, req).getQuery();
+                        metrics.recordParse(System.nanoTime() - parseStart);
+                        docSet[0] = searcher.getDocSet(query);
+                    }
+                    catch (final SyntaxError serr)
+                    {
+                        metrics.recordSyntaxError();
+                        LOGGER.warn("Failed to parse facet warmup base query {} due to syntax error - faceting on all documents", baseQuery,
+                                serr);
+                        docSet[0] = this.getAllDocSet(searcher);
+                    }
+                    catch (final IOException ioex)
+                    {
+                        LOGGER.warn("Failed to execute facet warmup base query {} due to IO error - faceting on all documents", baseQuery,
+                                ioex);
+                        docSet[0] = this.getAllDocSet(searcher);
+                    }
+                }
+                return docSet[0];
+            }
+        };
+    }
+
+    protected DocSet getAllDocSet(final SolrIndexSearcher searcher)
+    {
+        try
+        {
+            return searcher.getLiveDocs();
+        }
+        catch (final IOException ioex)
+        {
+            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Failed to determine live documents", ioex);
+        }
+    }
+
+    protected void performFacet(final SolrIndexSearcher searcher, final String baseRequestBody, final Supplier<DocSet> baseDocSet,
+            final ModifiableSolrParams params)
+    {
+        params.set(FacetParams.FACET, true);
+        final SolrQueryRequest req = this.createRequest(searcher, baseRequestBody, params);
+        final WarmupMetrics metrics = WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.FACET_WARMUP);
+        try
+        {
+            // some facet methods (e.g. uif) delegate to the JSON facet implementation, which requires a response builder
+            final ResponseBuilder rb = new ResponseBuilder(req, new SolrQueryResponse(), Collections.<SearchComponent> emptyList());
+            final SimpleFacets facets = new SimpleFacets(req, baseDocSet.get(), params, rb);
+            if (params.get(FacetParams.FACET_FIELD) != null)
+            {
+                facets.getFacetFieldCounts();
+            }
+            else
+            {
+                facets.getFacetQueryCounts();
+            }
+        }
+        catch (final SyntaxError serr)
+        {
+            metrics.recordSyntaxError();
+            LOGGER.warn("Failed to warmup facet due to syntax error", serr);
+        }
+        catch (final IOException ioex)
+        {
+            LOGGER.warn("Failed to warmup facet due to IO error", ioex);
+        }
+        catch (final SolrException sex)
+        {
+            // e.g. unknown fields or fields that cannot be faceted on
+            LOGGER.warn("Failed to warmup facet {}", params, sex);
+        }
+    }
+
+    protected void performUninvert(final SolrIndexSearcher searcher, final String field)
+    {
+        final SchemaField schemaField = searcher.getSchema().getFieldOrNull(field);
+        // only the JSON facet API (method uif) uses un-inverted fields, and only for multi-valued fields without doc values
+        if (schemaField != null && schemaField.multiValued() && schemaField.indexed() && !schemaField.hasDocValues())
+        {
+            try
+            {
+                // the un-inverted field is cached in the field value cache of the searcher
+                UnInvertedField.getUnInvertedField(field, searcher);
+            }
+            catch (final IOException ioex)
+            {
+                LOGGER.warn("Failed to un-invert field {} due to IO error", field, ioex);
+            }
+            catch (final SolrException sex)
+            {
+                LOGGER.warn("Failed to un-invert field {}", field, sex);
+            }
+        }
+        else
+        {
+            LOGGER.debug("Not un-inverting field {} as it is not an indexed multi-valued field without doc values", field);
+        }
+    }
+
+    protected SolrQueryRequest createRequest(final SolrIndexSearcher searcher, final String baseRequestBody,
+            final ModifiableSolrParams params)
+    {
+        return new LocalSolrQueryRequest(this.getCore(), params)
+        {
+
+            {
+                if (baseRequestBody != null)
+                {
+                    this.streams = Arrays
+                            .asList(new ByteArrayStream(baseRequestBody.getBytes(StandardCharsets.UTF_8), baseRequestBody));
+                }
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public SolrIndexSearcher getSearcher()
+            {
+                return searcher;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+}
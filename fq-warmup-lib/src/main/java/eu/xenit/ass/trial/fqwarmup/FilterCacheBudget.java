@@ -0,0 +1,292 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.search.CacheConfig;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class guard a single filter query warmup against evicting entries from the filter cache and against exhausting the
+ * heap. Before each filter is computed, a reservation is made based on the estimated memory cost of its cache entry, which depends on
+ * whether SOLR will represent it as a sorted int set or a bit set over all documents. Reservations are rejected once the filter cache would
+ * exceed its configured size, so that lower priority filters are skipped instead of evicting entries warmed (or used) before. While the live
+ * heap usage - as measured after the last garbage collection - would exceed a threshold, reservations are delayed with an increasing backoff
+ * and eventually rejected.
+ */
+public class FilterCacheBudget
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final double DEFAULT_MAX_HEAP_USAGE = 0.85;
+
+    public static final long DEFAULT_MAX_HEAP_WAIT = 10000;
+
+    protected static final long MIN_BACKOFF = 50;
+
+    protected static final long MAX_BACKOFF = 1000;
+
+    // object headers and fields of the DocSet and its backing array
+    protected static final long DOC_SET_OVERHEAD = 64;
+
+    protected final SolrCache<Query, DocSet> filterCache;
+
+    protected final int capacity;
+
+    protected final int maxDoc;
+
+    protected final double maxHeapUsage;
+
+    protected final long maxHeapWait;
+
+    protected final WarmupMetrics metrics;
+
+    protected final AtomicInteger pendingEntries = new AtomicInteger();
+
+    protected final AtomicLong pendingBytes = new AtomicLong();
+
+    protected final AtomicLong warmedBytes = new AtomicLong();
+
+    protected volatile long lastLiveHeapUsage = -1;
+
+    protected volatile boolean capacityReached;
+
+    protected volatile boolean heapExhausted;
+
+    /**
+     * Creates a new budget for a warmup of the filter cache of a specific searcher.
+     *
+     * @param searcher
+     *            the searcher being warmed
+     * @param maxHeapUsage
+     *            the fraction of the maximum heap size the live heap usage may reach before warmup is slowed down
+     * @param maxHeapWait
+     *            the maximum time in milliseconds to wait for heap usage to drop below the threshold before a filter is skipped
+     * @param metrics
+     *            the metrics to record skipped filters in - may be {@code null}
+     */
+    public FilterCacheBudget(final SolrIndexSearcher searcher, final double maxHeapUsage, final long maxHeapWait, final WarmupMetrics metrics)
+    {
+        this.filterCache = searcher.getFilterCache();
+        this.capacity = getCapacity(searcher);
+        this.maxDoc = searcher.maxDoc();
+        this.maxHeapUsage = maxHeapUsage;
+        this.maxHeapWait = maxHeapWait;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Determines the configured capacity of the filter cache of a searcher.
+     *
+     * @param searcher
+     *            the searcher
+     * @return the maximum number of entries or {@code -1} if the capacity cannot be determined
+     */
+    public static int getCapacity(final SolrIndexSearcher searcher)
+    {
+        int capacity = -1;
+        final CacheConfig filterCacheConfig = searcher.getCore().getSolrConfig().filterCacheConfig;
+        final Object size = filterCacheConfig != null ? filterCacheConfig.toMap(new HashMap<>()).get("size") : null;
+        if (size != null)
+        {
+            try
+            {
+                capacity = Integer.parseInt(String.valueOf(size).trim());
+            }
+            catch (final NumberFormatException nfex)
+            {
+                LOGGER.debug("Failed to parse size {} of filter cache", size, nfex);
+            }
+        }
+        return capacity;
+    }
+
+    /**
+     * Estimates the memory cost of the filter cache entry of a filter.
+     *
+     * @param cardinality
+     *            the number of documents matching the filter or {@code -1} if unknown
+     * @return the estimated memory cost in bytes
+     */
+    public long estimateBytes(final int cardinality)
+    {
+        final long bitSetBytes = ((this.maxDoc + 63L) >>> 6) << 3;
+        // same threshold SOLR uses to decide between sorted int and bit set representations - unknown filters are assumed to be large
+        final boolean sortedInts = cardinality >= 0 && cardinality <= (this.maxDoc >> 6) + 5;
+        return DOC_SET_OVERHEAD + (sortedInts ? 4L * cardinality : bitSetBytes);
+    }
+
+    /**
+     * Reserves room in the filter cache and on the heap for the entry of a filter about to be computed, waiting if necessary for heap usage
+     * to drop. Each successful reservation must be followed by a call to {@link #release(long) release} once the filter has been computed.
+     *
+     * @param cardinality
+     *            the number of documents matching the filter in a previous warmup or {@code -1} if unknown
+     * @return the number of reserved bytes or {@code -1} if the filter should be skipped
+     */
+    public long reserve(final int cardinality)
+    {
+        long reserved = -1;
+        final int pendingEntries = this.pendingEntries.incrementAndGet();
+        if (this.capacity > 0 && this.filterCache != null && this.filterCache.size() + pendingEntries > this.capacity)
+        {
+            this.pendingEntries.decrementAndGet();
+            if (!this.capacityReached)
+            {
+                this.capacityReached = true;
+                LOGGER.info("Filter cache has reached its capacity of {} entries - skipping remaining filters to avoid evictions",
+                        this.capacity);
+            }
+            if (this.metrics != null)
+            {
+                this.metrics.recordCapacitySkip();
+            }
+        }
+        else
+        {
+            final long bytes = this.estimateBytes(cardinality);
+            if (this.awaitHeap(bytes))
+            {
+                this.pendingBytes.addAndGet(bytes);
+                reserved = bytes;
+            }
+            else
+            {
+                this.pendingEntries.decrementAndGet();
+            }
+        }
+        return reserved;
+    }
+
+    /**
+     * Checks whether the entry of a filter currently fits into the heap headroom, without reserving or waiting for it. This allows filters
+     * reserved before to be computed first, as their reservations only end once they have been computed.
+     *
+     * @param cardinality
+     *            the number of documents matching the filter in a previous warmup or {@code -1} if unknown
+     * @return {@code true} if a reservation would not need to wait for heap usage to drop, {@code false} otherwise
+     */
+    public boolean hasHeapRoom(final int cardinality)
+    {
+        return this.isHeapAvailable(this.estimateBytes(cardinality));
+    }
+
+    /**
+     * Releases a reservation made via {@link #reserve(int) reserve}.
+     *
+     * @param reserved
+     *            the number of reserved bytes
+     */
+    public void release(final long reserved)
+    {
+        if (reserved >= 0)
+        {
+            this.pendingBytes.addAndGet(-reserved);
+            this.warmedBytes.addAndGet(reserved);
+            this.pendingEntries.decrementAndGet();
+        }
+    }
+
+    /**
+     * Records memory allocated by a warmup beyond the reserved filter cache entries, e.g. cached segment matches, so that it is accounted
+     * for until the next garbage collection is reflected in the live heap usage.
+     *
+     * @param bytes
+     *            the number of allocated bytes
+     */
+    public void recordAllocation(final long bytes)
+    {
+        this.warmedBytes.addAndGet(bytes);
+    }
+
+    protected boolean awaitHeap(final long bytes)
+    {
+        final long start = System.nanoTime();
+        long backoff = MIN_BACKOFF;
+        boolean available = this.isHeapAvailable(bytes);
+        // once a wait has timed out, the remaining filters only check without waiting until heap usage drops again
+        while (!available && !this.heapExhausted && System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(this.maxHeapWait))
+        {
+            try
+            {
+                Thread.sleep(backoff);
+            }
+            catch (final InterruptedException iex)
+            {
+                // reset the interrupted flag and give up on this filter
+                Thread.currentThread().interrupt();
+                break;
+            }
+            backoff = Math.min(2 * backoff, MAX_BACKOFF);
+            available = this.isHeapAvailable(bytes);
+        }
+
+        final long waited = System.nanoTime() - start;
+        if (!available && !this.heapExhausted)
+        {
+            this.heapExhausted = true;
+            LOGGER.info("Heap usage remained above {}% of the maximum heap for {} ms - skipping filters until it drops",
+                    Math.round(100 * this.maxHeapUsage), TimeUnit.NANOSECONDS.toMillis(waited));
+        }
+        else if (available)
+        {
+            this.heapExhausted = false;
+        }
+        if (this.metrics != null && (!available || waited > TimeUnit.MILLISECONDS.toNanos(MIN_BACKOFF)))
+        {
+            this.metrics.recordHeapPressure(waited, !available);
+        }
+        return available;
+    }
+
+    protected boolean isHeapAvailable(final long bytes)
+    {
+        final long maxHeap = Runtime.getRuntime().maxMemory();
+        boolean available = true;
+        if (this.maxHeapUsage > 0 && this.maxHeapUsage < 1 && maxHeap != Long.MAX_VALUE)
+        {
+            final long liveHeapUsage = getLiveHeapUsage();
+            // entries warmed since the last garbage collection are not yet reflected in the live heap usage
+            if (liveHeapUsage != this.lastLiveHeapUsage)
+            {
+                this.lastLiveHeapUsage = liveHeapUsage;
+                this.warmedBytes.set(0);
+            }
+            available = liveHeapUsage + this.warmedBytes.get() + this.pendingBytes.get() + bytes <= this.maxHeapUsage * maxHeap;
+        }
+        return available;
+    }
+
+    /**
+     * Determines the usage of the heap after the last garbage collection, as the current usage includes garbage not yet collected and would
+     * constantly indicate heap pressure on a busy system.
+     *
+     * @return the live heap usage in bytes
+     */
+    protected static long getLiveHeapUsage()
+    {
+        long used = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid())
+            {
+                final MemoryUsage collectionUsage = pool.getCollectionUsage();
+                used += collectionUsage != null ? collectionUsage.getUsed() : pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+}
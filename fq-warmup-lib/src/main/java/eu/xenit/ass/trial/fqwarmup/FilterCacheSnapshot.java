@@ -0,0 +1,463 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.StringHelper;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.BitDocSet;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.QueryUtils;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SortedIntDocSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class persist the filter cache entries of known filter queries to a compressed snapshot file, so that they can be
+ * restored into the filter cache of the first searcher after a restart instead of being recomputed. A snapshot is only restored if the
+ * index consists of exactly the same segments (including deletions) as when it was written, and if the schema and the context for query
+ * parsing are unchanged. Each entry is only restored for a filter query which still parses to the same query, as e.g. {@code NOW} relative
+ * date ranges resolve to different queries over time. Instances are shared between all listeners configured with the same snapshot file.
+ */
+public class FilterCacheSnapshot
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final ConcurrentMap<Path, FilterCacheSnapshot> INSTANCES = new ConcurrentHashMap<>();
+
+    protected static final int FORMAT_VERSION = 2;
+
+    protected static final byte SORTED_INTS = 0;
+
+    protected static final byte BITS = 1;
+
+    protected final Path file;
+
+    protected final Set<SolrCore> writers = Collections.newSetFromMap(Collections.synchronizedMap(new WeakHashMap<>()));
+
+    protected FilterCacheSnapshot(final Path file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Retrieves the shared snapshot instance backed by a specific file.
+     *
+     * @param file
+     *            the snapshot file
+     * @return the snapshot instance
+     */
+    public static FilterCacheSnapshot getInstance(final Path file)
+    {
+        return INSTANCES.computeIfAbsent(file.toAbsolutePath().normalize(), FilterCacheSnapshot::new);
+    }
+
+    /**
+     * Claims the responsibility for writing this snapshot when a core is closed, so that only one of multiple listeners configured with the
+     * same snapshot file writes it.
+     *
+     * @param core
+     *            the core
+     * @return {@code true} if the caller is the first to claim the responsibility for the core, {@code false} otherwise
+     */
+    public boolean claimWriter(final SolrCore core)
+    {
+        return this.writers.add(core);
+    }
+
+    /**
+     * Writes the filter cache entries of a set of filter queries of a searcher to the snapshot file, replacing any previous snapshot.
+     *
+     * @param searcher
+     *            the searcher whose filter cache to snapshot
+     * @param parseContext
+     *            the context in which the filter queries have been parsed, e.g. the base request body
+     * @param filterQueries
+     *            the parsed filter queries, keyed by their textual representation
+     */
+    public synchronized void write(final SolrIndexSearcher searcher, final String parseContext, final Map<String, Query> filterQueries)
+    {
+        final List<String> segments = getSegmentIdentities(searcher);
+        final SolrCache<Query, DocSet> filterCache = searcher.getFilterCache();
+        if (segments == null || filterCache == null)
+        {
+            LOGGER.debug("Not writing filter cache snapshot as searcher {} does not consist of plain segments with a filter cache", searcher);
+        }
+        else
+        {
+            final long start = System.currentTimeMillis();
+            try
+            {
+                final Path parent = this.file.getParent();
+                if (parent != null)
+                {
+                    Files.createDirectories(parent);
+                }
+
+                final Path tempFile = Files.createTempFile(parent, this.file.getFileName().toString(), ".tmp");
+                int entries = 0;
+                try (DataOutputStream out = new DataOutputStream(
+                        new DeflaterOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))))
+                {
+                    writeHeader(out, searcher, parseContext, segments);
+
+                    final Map<String, Entry> snapshotEntries = new LinkedHashMap<>();
+                    filterQueries.forEach((filterQuery, filter) -> {
+                        final Query absFilter = QueryUtils.getAbs(filter);
+                        final DocSet docSet = filterCache.get(absFilter);
+                        if (docSet != null)
+                        {
+                            snapshotEntries.put(filterQuery, new Entry(absFilter.toString(), docSet));
+                        }
+                    });
+                    out.writeInt(snapshotEntries.size());
+                    for (final Map.Entry<String, Entry> snapshotEntry : snapshotEntries.entrySet())
+                    {
+                        writeString(out, snapshotEntry.getKey());
+                        writeString(out, snapshotEntry.getValue().getQuery());
+                        writeDocSet(out, snapshotEntry.getValue().getDocSet(), searcher.maxDoc());
+                    }
+                    entries = snapshotEntries.size();
+                }
+                Files.move(tempFile, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                LOGGER.info("Wrote filter cache snapshot of {} filter queries to {} in {} ms", entries, this.file,
+                        System.currentTimeMillis() - start);
+            }
+            catch (final IOException ioex)
+            {
+                LOGGER.warn("Error writing filter cache snapshot to {}", this.file, ioex);
+            }
+        }
+    }
+
+    /**
+     * Reads the filter cache entries from the snapshot file if it matches the index and context of a searcher.
+     *
+     * @param searcher
+     *            the searcher for which to read the snapshot
+     * @param parseContext
+     *            the context in which the filter queries will be parsed, e.g. the base request body
+     * @return the snapshot entries keyed by the textual representation of their filter queries - empty if there is no matching snapshot
+     */
+    public synchronized Map<String, Entry> read(final SolrIndexSearcher searcher, final String parseContext)
+    {
+        final Map<String, Entry> snapshotEntries = new LinkedHashMap<>();
+        final List<String> segments = getSegmentIdentities(searcher);
+        if (segments != null && Files.isRegularFile(this.file))
+        {
+            final long start = System.currentTimeMillis();
+            try (DataInputStream in = new DataInputStream(new InflaterInputStream(new BufferedInputStream(Files.newInputStream(this.file)))))
+            {
+                if (matchesHeader(in, searcher, parseContext, segments))
+                {
+                    final int entries = in.readInt();
+                    for (int i = 0; i < entries; i++)
+                    {
+                        final String filterQuery = readString(in);
+                        final String query = readString(in);
+                        snapshotEntries.put(filterQuery, new Entry(query, readDocSet(in, searcher.maxDoc())));
+                    }
+                    LOGGER.debug("Read filter cache snapshot of {} filter queries from {} in {} ms", snapshotEntries.size(), this.file,
+                            System.currentTimeMillis() - start);
+                }
+            }
+            catch (final IOException ioex)
+            {
+                snapshotEntries.clear();
+                LOGGER.warn("Error reading filter cache snapshot from {}", this.file, ioex);
+            }
+        }
+        return snapshotEntries;
+    }
+
+    protected static void writeHeader(final DataOutputStream out, final SolrIndexSearcher searcher, final String parseContext,
+            final List<String> segments) throws IOException
+    {
+        out.writeInt(FORMAT_VERSION);
+        writeString(out, WarmupCoordinator.getInstance().getSchemaFingerprint(searcher.getSchema()));
+        writeString(out, parseContext != null ? parseContext : "");
+        // only informational - segment identities are more precise, as the same commit may be opened with different deletions
+        out.writeLong(getCommitGeneration(searcher));
+        out.writeInt(segments.size());
+        for (final String segment : segments)
+        {
+            writeString(out, segment);
+        }
+    }
+
+    protected static boolean matchesHeader(final DataInputStream in, final SolrIndexSearcher searcher, final String parseContext,
+            final List<String> segments) throws IOException
+    {
+        boolean matches = false;
+        final int version = in.readInt();
+        if (version != FORMAT_VERSION)
+        {
+            LOGGER.debug("Not restoring filter cache snapshot with unsupported format version {}", version);
+        }
+        else if (!readString(in).equals(WarmupCoordinator.getInstance().getSchemaFingerprint(searcher.getSchema())))
+        {
+            LOGGER.debug("Not restoring filter cache snapshot as the schema has changed");
+        }
+        else if (!readString(in).equals(parseContext != null ? parseContext : ""))
+        {
+            LOGGER.debug("Not restoring filter cache snapshot as the base request body has changed");
+        }
+        else
+        {
+            final long generation = in.readLong();
+            final int segmentCount = in.readInt();
+            final List<String> snapshotSegments = new ArrayList<>(segmentCount);
+            for (int i = 0; i < segmentCount; i++)
+            {
+                snapshotSegments.add(readString(in));
+            }
+
+            matches = snapshotSegments.equals(segments);
+            if (matches)
+            {
+                LOGGER.debug("Filter cache snapshot of commit generation {} matches segments of searcher {}", generation, searcher);
+            }
+            else
+            {
+                LOGGER.info("Not restoring filter cache snapshot of commit generation {} as the index has changed to generation {}",
+                        generation, getCommitGeneration(searcher));
+            }
+        }
+        return matches;
+    }
+
+    protected static List<String> getSegmentIdentities(final SolrIndexSearcher searcher)
+    {
+        final List<String> segments = new ArrayList<>();
+        for (final LeafReaderContext leaf : searcher.getIndexReader().leaves())
+        {
+            final LeafReader reader = FilterLeafReader.unwrap(leaf.reader());
+            if (reader instanceof SegmentReader)
+            {
+                final SegmentCommitInfo info = ((SegmentReader) reader).getSegmentInfo();
+                // deletions not yet written by a near-real-time reader only show in the number of live documents
+                segments.add(String.join(":", info.info.name, StringHelper.idToString(info.info.getId()),
+                        Long.toString(info.getDelGen()), Long.toString(info.getDocValuesGen()), Integer.toString(reader.maxDoc()),
+                        Integer.toString(reader.numDocs())));
+            }
+            else
+            {
+                LOGGER.debug("Cannot identify segment of leaf reader {}", reader);
+                return null;
+            }
+        }
+        return segments;
+    }
+
+    protected static long getCommitGeneration(final SolrIndexSearcher searcher)
+    {
+        long generation = -1;
+        try
+        {
+            generation = searcher.getIndexReader().getIndexCommit().getGeneration();
+        }
+        catch (final IOException ioex)
+        {
+            LOGGER.debug("Failed to determine commit generation of searcher {}", searcher, ioex);
+        }
+        return generation;
+    }
+
+    protected static void writeDocSet(final DataOutputStream out, final DocSet docSet, final int maxDoc) throws IOException
+    {
+        final int size = docSet.size();
+        // same threshold SOLR uses to decide between sorted int and bit set representations
+        if (size <= (maxDoc >> 6) + 5)
+        {
+            final int[] docs = new int[size];
+            final DocIterator iterator = docSet.iterator();
+            for (int i = 0; i < size && iterator.hasNext(); i++)
+            {
+                docs[i] = iterator.nextDoc();
+            }
+            Arrays.sort(docs);
+
+            out.writeByte(SORTED_INTS);
+            out.writeInt(size);
+            int previous = 0;
+            for (final int doc : docs)
+            {
+                writeVInt(out, doc - previous);
+                previous = doc;
+            }
+        }
+        else
+        {
+            final FixedBitSet bits;
+            if (docSet instanceof BitDocSet)
+            {
+                bits = ((BitDocSet) docSet).getBits();
+            }
+            else
+            {
+                bits = new FixedBitSet(maxDoc);
+                final DocIterator iterator = docSet.iterator();
+                while (iterator.hasNext())
+                {
+                    bits.set(iterator.nextDoc());
+                }
+            }
+
+            out.writeByte(BITS);
+            out.writeInt(size);
+            final long[] words = bits.getBits();
+            final int wordCount = FixedBitSet.bits2words(maxDoc);
+            out.writeInt(wordCount);
+            for (int i = 0; i < wordCount; i++)
+            {
+                out.writeLong(i < words.length ? words[i] : 0);
+            }
+        }
+    }
+
+    protected static DocSet readDocSet(final DataInputStream in, final int maxDoc) throws IOException
+    {
+        final DocSet docSet;
+        final byte type = in.readByte();
+        final int size = in.readInt();
+        if (type == SORTED_INTS)
+        {
+            final int[] docs = new int[size];
+            int previous = 0;
+            for (int i = 0; i < size; i++)
+            {
+                previous += readVInt(in);
+                docs[i] = previous;
+            }
+            docSet = new SortedIntDocSet(docs);
+        }
+        else if (type == BITS)
+        {
+            final int wordCount = in.readInt();
+            if (wordCount != FixedBitSet.bits2words(maxDoc))
+            {
+                throw new IOException("Bit set of " + wordCount + " words does not match index of " + maxDoc + " documents");
+            }
+            final long[] words = new long[wordCount];
+            for (int i = 0; i < wordCount; i++)
+            {
+                words[i] = in.readLong();
+            }
+            docSet = new BitDocSet(new FixedBitSet(words, maxDoc), size);
+        }
+        else
+        {
+            throw new IOException("Unsupported doc set type " + type);
+        }
+        return docSet;
+    }
+
+    protected static void writeString(final DataOutputStream out, final String value) throws IOException
+    {
+        // unlike writeUTF, this is not limited to 64 KiB
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    protected static String readString(final DataInputStream in) throws IOException
+    {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    protected static void writeVInt(final DataOutputStream out, final int value) throws IOException
+    {
+        int remaining = value;
+        while ((remaining & ~0x7F) != 0)
+        {
+            out.writeByte((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte(remaining);
+    }
+
+    protected static int readVInt(final DataInputStream in) throws IOException
+    {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Instances of this class hold a single filter cache entry of a snapshot together with the query it has been cached for.
+     */
+    public static class Entry
+    {
+
+        protected final String query;
+
+        protected final DocSet docSet;
+
+        protected Entry(final String query, final DocSet docSet)
+        {
+            this.query = query;
+            this.docSet = docSet;
+        }
+
+        /**
+         * Retrieves the textual representation of the (positive) query the entry has been cached for.
+         *
+         * @return the query
+         */
+        public String getQuery()
+        {
+            return this.query;
+        }
+
+        /**
+         * Retrieves the cached matches of the query.
+         *
+         * @return the matches
+         */
+        public DocSet getDocSet()
+        {
+            return this.docSet;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this search component record the filter queries of all successful requests handled by the request handlers they are
+ * configured for, so that {@link FilterQueryWarmupListener} can pre-warm the filter query cache of a new SOLR searcher with the filter
+ * queries actually used by clients. Optionally, the authority sets of requests using the Alfresco permission filter are recorded as well,
+ * so that the permission filters of the most active authority sets can be pre-warmed. Also optionally, complete search requests are
+ * recorded, so that {@link RequestReplayListener} can pre-warm the query result and document caches by replaying the most valuable ones.
+ * Regardless of recording, the number and latency of live requests are tracked in the {@link LiveQueryMonitor} of the core.
+ */
+public class FilterQueryRecorderComponent extends SearchComponent implements SolrCoreAware
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    // marker of Alfresco filter queries which are resolved from the JSON body of a request
+    protected static final String FROM_JSON = "_FROM_JSON";
+
+    protected WarmupStatistics statistics;
+
+    protected String statisticsFile;
+
+    protected WarmupStatistics authoritySetStatistics;
+
+    protected String authoritySetStatisticsFile;
+
+    protected String authorityFilterQuery;
+
+    protected WarmupStatistics requestStatistics;
+
+    protected String requestStatisticsFile;
+
+    protected List<String> recordedParams;
+
+    protected int maxEntries;
+
+    protected long halfLife;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(@SuppressWarnings("rawtypes") final NamedList args)
+    {
+        super.init(args);
+
+        this.statisticsFile = (String) args.get("statisticsFile");
+        final Integer maxEntries = (Integer) args.get("maxEntries");
+        final Object halfLife = args.get("decayHalfLife");
+        this.authoritySetStatisticsFile = (String) args.get("authoritySetStatisticsFile");
+        final String authorityFilterQuery = (String) args.get("authorityFilterQuery");
+        this.authorityFilterQuery = authorityFilterQuery != null && !authorityFilterQuery.trim().isEmpty() ? authorityFilterQuery.trim()
+                : AuthoritySet.DEFAULT_AUTHORITY_FILTER_QUERY;
+        this.requestStatisticsFile = (String) args.get("requestStatisticsFile");
+        final Object recordedParams = args.get("recordedParams");
+        this.recordedParams = recordedParams instanceof Collection<?> && !((Collection<?>) recordedParams).isEmpty()
+                ? ((Collection<?>) recordedParams).stream().map(String::valueOf).map(String::trim).collect(Collectors.toList())
+                : RecordedRequest.DEFAULT_RECORDED_PARAMS;
+
+        this.maxEntries = maxEntries != null ? maxEntries.intValue() : WarmupStatistics.DEFAULT_MAX_ENTRIES;
+        this.halfLife = halfLife instanceof Number ? ((Number) halfLife).longValue() : WarmupStatistics.DEFAULT_HALF_LIFE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void inform(final SolrCore core)
+    {
+        if (this.statisticsFile == null || this.statisticsFile.trim().isEmpty())
+        {
+            LOGGER.warn("Statistics file has not been configured - filter queries will not be recorded");
+        }
+        else
+        {
+            final Path file = resolveStatisticsFile(core, this.statisticsFile);
+            this.statistics = WarmupStatistics.getInstance(core, file, this.maxEntries, this.halfLife);
+            LOGGER.debug("Recording filter queries to {}", file);
+
+            if (this.authoritySetStatisticsFile != null && !this.authoritySetStatisticsFile.trim().isEmpty())
+            {
+                final Path authoritySetFile = resolveStatisticsFile(core, this.authoritySetStatisticsFile);
+                this.authoritySetStatistics = WarmupStatistics.getInstance(core, authoritySetFile, this.maxEntries, this.halfLife);
+                LOGGER.debug("Recording authority sets of {} to {}", this.authorityFilterQuery, authoritySetFile);
+            }
+
+            if (this.requestStatisticsFile != null && !this.requestStatisticsFile.trim().isEmpty())
+            {
+                final Path requestFile = resolveStatisticsFile(core, this.requestStatisticsFile);
+                this.requestStatistics = WarmupStatistics.getInstance(core, requestFile, this.maxEntries, this.halfLife);
+                LOGGER.debug("Recording requests to {}", requestFile);
+            }
+
+            core.addCloseHook(new CloseHook()
+            {
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void preClose(final SolrCore core)
+                {
+                    FilterQueryRecorderComponent.this.statistics.persist();
+                    if (FilterQueryRecorderComponent.this.authoritySetStatistics != null)
+                    {
+                        FilterQueryRecorderComponent.this.authoritySetStatistics.persist();
+                    }
+                    if (FilterQueryRecorderComponent.this.requestStatistics != null)
+                    {
+                        FilterQueryRecorderComponent.this.requestStatistics.persist();
+                    }
+                }
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void postClose(final SolrCore core)
+                {
+                    // NO-OP
+                }
+            });
+        }
+    }
+
+    /**
+     * Resolves the path of a statistics file relative to the data directory of a core. As statistics files are written to, paths which
+     * would resolve to a file outside of the data directory are rejected.
+     *
+     * @param core
+     *            the core for which to resolve the file
+     * @param statisticsFile
+     *            the configured path of the file
+     * @return the resolved path
+     * @throws IllegalArgumentException
+     *             if the path does not resolve to a file within the data directory of the core
+     */
+    public static Path resolveStatisticsFile(final SolrCore core, final String statisticsFile)
+    {
+        final Path dataDir = Paths.get(core.getDataDir()).toAbsolutePath().normalize();
+        final Path path = dataDir.resolve(statisticsFile.trim()).normalize();
+        if (!path.startsWith(dataDir) || path.equals(dataDir))
+        {
+            throw new IllegalArgumentException("File " + statisticsFile + " does not resolve to a file within the data directory " + dataDir);
+        }
+        return path;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void prepare(final ResponseBuilder rb) throws IOException
+    {
+        // monitoring must never fail the live request it observes
+        try
+        {
+            // replayed requests would otherwise count as live traffic
+            if (!rb.req.getContext().containsKey(RecordedRequest.REPLAYED))
+            {
+                this.monitorRequest(rb);
+            }
+        }
+        catch (final RuntimeException rex)
+        {
+            LOGGER.warn("Error monitoring request", rex);
+        }
+    }
+
+    protected void monitorRequest(final ResponseBuilder rb)
+    {
+        // the request info is only cleared once the response has been written, so its close hooks see the full latency of the request
+        final SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+        if (requestInfo != null && requestInfo.getReq() == rb.req)
+        {
+            final LiveQueryMonitor monitor = LiveQueryMonitor.getInstance(rb.req.getCore());
+            final long start = System.nanoTime();
+            monitor.requestStarted();
+            requestInfo.addCloseHook(() -> monitor.requestCompleted(System.nanoTime() - start));
+        }
+    }
+
+    protected List<String> getRecordableFilterQueries(final ResponseBuilder rb)
+    {
+        final List<String> recordableFilterQueries = new ArrayList<>();
+        final String[] filterQueries = rb.req.getParams().getParams(CommonParams.FQ);
+        if (filterQueries != null)
+        {
+            for (final String filterQuery : filterQueries)
+            {
+                // filter queries depending on the request body (e.g. the permission filter) cannot be warmed from their text alone, and
+                // are covered by the authority set statistics instead
+                if (filterQuery != null && !filterQuery.trim().isEmpty() && !this.authorityFilterQuery.equals(filterQuery.trim())
+                        && !filterQuery.contains(FROM_JSON))
+                {
+                    recordableFilterQueries.add(filterQuery.trim());
+                }
+            }
+        }
+        return recordableFilterQueries;
+    }
+
+    protected AuthoritySet getAuthoritySet(final ResponseBuilder rb)
+    {
+        AuthoritySet authoritySet = null;
+        final String[] filterQueries = rb.req.getParams().getParams(CommonParams.FQ);
+        if (filterQueries != null && Arrays.stream(filterQueries).anyMatch(fq -> fq != null && this.authorityFilterQuery.equals(fq.trim())))
+        {
+            authoritySet = AuthoritySet.fromRequest(rb.req);
+            if (authoritySet == null)
+            {
+                LOGGER.trace("Request with authority filter does not provide a readable authority set");
+            }
+        }
+        return authoritySet;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void process(final ResponseBuilder rb) throws IOException
+    {
+        // recording must never fail the live request it observes
+        try
+        {
+            // replayed requests would otherwise keep reinforcing their own statistics
+            if (!rb.req.getContext().containsKey(RecordedRequest.REPLAYED))
+            {
+                // the body of Alfresco requests is only guaranteed to be readable once their queries have been parsed, which happens in
+                // the prepare phase of the query component following this (first) component
+                final List<String> filterQueries = this.statistics != null ? this.getRecordableFilterQueries(rb)
+                        : Collections.<String> emptyList();
+                final AuthoritySet authoritySet = this.authoritySetStatistics != null ? this.getAuthoritySet(rb) : null;
+                final RecordedRequest recordedRequest = this.requestStatistics != null
+                        ? RecordedRequest.fromRequest(rb.req, this.recordedParams)
+                        : null;
+
+                final Runnable recording = () -> {
+                    filterQueries.forEach(this.statistics::record);
+                    if (authoritySet != null)
+                    {
+                        this.authoritySetStatistics.record(authoritySet.getKey());
+                    }
+                    if (recordedRequest != null)
+                    {
+                        this.requestStatistics.record(recordedRequest.getKey());
+                    }
+                };
+
+                // only successful requests are recorded, as a failing filter query (e.g. on an undefined field) would otherwise be warmed
+                // - and fail - on every new searcher
+                final SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+                if (requestInfo != null && requestInfo.getReq() == rb.req)
+                {
+                    requestInfo.addCloseHook(() -> this.recordIfSuccessful(rb, recording));
+                }
+                else
+                {
+                    recording.run();
+                }
+            }
+        }
+        catch (final RuntimeException rex)
+        {
+            LOGGER.warn("Error recording filter queries, authority set or request", rex);
+        }
+    }
+
+    protected void recordIfSuccessful(final ResponseBuilder rb, final Runnable recording)
+    {
+        try
+        {
+            if (rb.rsp.getException() == null)
+            {
+                recording.run();
+            }
+            else
+            {
+                LOGGER.trace("Not recording failed request");
+            }
+        }
+        catch (final RuntimeException rex)
+        {
+            LOGGER.warn("Error recording filter queries, authority set or request", rex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDescription()
+    {
+        return "Records filter queries for use in filter query cache warmup";
+    }
+}
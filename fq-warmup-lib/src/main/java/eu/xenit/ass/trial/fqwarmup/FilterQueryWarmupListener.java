@@ -1,38 +1,44 @@
 package eu.xenit.ass.trial.fqwarmup;
 
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.lang.invoke.MethodHandles;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.apache.lucene.search.Query;
-import org.apache.solr.common.util.ContentStreamBase.ByteArrayStream;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.SolrCore;
-import org.apache.solr.request.LocalSolrQueryRequest;
-import org.apache.solr.request.SolrQueryRequest;
-import org.apache.solr.search.QParser;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.ExtendedQuery;
+import org.apache.solr.search.QueryUtils;
+import org.apache.solr.search.SolrCache;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.SyntaxError;
+import org.apache.solr.util.RefCounted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Instances of this listener support using an externally configured list of filter queries to pre-warm the filter query cache of a new SOLR
- * searcher instance.
+ * searcher instance. This list can be complemented by the most valuable filter queries learned from live traffic via
+ * {@link FilterQueryRecorderComponent}. If the filter cache is a {@link RankedFilterCache}, the hottest filters of the current searcher can be
+ * handed off to the new searcher without any query parsing instead. In addition, the permission filters of configured or the most frequently
+ * recorded Alfresco {@link AuthoritySet authority sets} can be pre-warmed, as these cannot be listed as plain filter queries. Optionally, the
+ * filter cache entries of all listed filter queries can be persisted as a {@link FilterCacheSnapshot snapshot} when the core is closed, and
+ * restored into the first searcher after a restart if the index has not changed in the meantime.
  *
  * @author Axel Faust
  */
@@ -41,6 +47,16 @@ public class FilterQueryWarmupListener extends AbstractSolrEventListener
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+    protected static final int DEFAULT_LEARNED_QUERY_COUNT = 200;
+
+    protected static final int DEFAULT_AUTHORITY_SET_COUNT = 100;
+
+    protected static final int MAX_DESCRIBED_FILTER_QUERY_LENGTH = 200;
+
+    protected WarmupConfiguration configuration;
+
+    protected FilterCacheSnapshot snapshot;
+
     public FilterQueryWarmupListener(final SolrCore core)
     {
         super(core);
@@ -52,163 +68,957 @@ public class FilterQueryWarmupListener extends AbstractSolrEventListener
     @Override
     public void newSearcher(final SolrIndexSearcher newSearcher, final SolrIndexSearcher currentSearcher)
     {
-        String baseQuery = (String) this.getArgs().get("baseQuery");
-        final String baseRequestBody = (String) this.getArgs().get("baseRequestBody");
-        Integer concurrentThreads = (Integer) this.getArgs().get("concurrentThreads");
+        final long warmupStart = System.nanoTime();
+        final Integer concurrentThreads = this.getConcurrentThreads();
         final Integer concurrentTimeout = (Integer) this.getArgs().get("concurrentTimeout");
 
+        final FilterQueryWarmupPlan plan = this.getPlan(newSearcher, false);
+
+        final WarmupStatistics statistics = this.getStatistics();
+        final RankedFilterCache<Query, DocSet> handoffCache = this.getHandoffCache(currentSearcher);
+        final boolean individualTasks = concurrentThreads.intValue() > 1 || this.isBackgroundWarmup();
+        // filter queries of a query list file which still needs to be parsed are warmed chunk by chunk while later chunks are being parsed,
+        // unless all of them are needed up front to restore a snapshot
+        final boolean streamListedQueries = !plan.isParsed() && individualTasks && !(currentSearcher == null && this.snapshot != null)
+                && (handoffCache == null || Boolean.TRUE.equals(this.getArgs().get("filterCacheHandoffListedQueries")));
+        if (!streamListedQueries)
+        {
+            plan.parse(newSearcher, concurrentThreads.intValue(), null);
+        }
+        final Map<String, Query> filterQueries = handoffCache != null
+                ? this.getHandoffFilterQueries(newSearcher, plan, statistics, handoffCache)
+                : this.getFilterQueries(newSearcher, plan, statistics);
+        if (currentSearcher == null && this.snapshot != null)
+        {
+            this.restoreSnapshot(newSearcher, filterQueries);
+        }
+
+        final WarmupStatistics authoritySetStatistics = this.getAuthoritySetStatistics();
+        final Map<String, Query> authorityFilters = this.getAuthorityFilters(newSearcher, plan, authoritySetStatistics);
+        if (handoffCache != null)
+        {
+            // permission filters of authority sets which have not been hot in the current searcher are still warmed, e.g. configured
+            // service accounts
+            final Set<Query> handedOffFilters = filterQueries.values().stream().map(QueryUtils::getAbs).collect(Collectors.toSet());
+            authorityFilters.values().removeIf(fq -> handedOffFilters.contains(QueryUtils.getAbs(fq)));
+        }
+
+        if (streamListedQueries || !filterQueries.isEmpty() || !authorityFilters.isEmpty())
+        {
+            LOGGER.debug("Starting filter query warmup");
+            final SegmentFilterCache segmentFilterCache = this.startSegmentIncrementalWarmup(newSearcher);
+            final FilterCacheBudget budget = this.createBudget(newSearcher);
+            final List<Runnable> tasks = this.createFilterQueryTasks(newSearcher, segmentFilterCache, budget, plan, statistics, handoffCache,
+                    filterQueries, individualTasks);
+            // permission filters are always computed directly as they differ only in the request body, not in the filter query
+            tasks.addAll(this.createAuthorityFilterTasks(newSearcher, segmentFilterCache, budget, plan, authoritySetStatistics,
+                    authorityFilters));
+            final WarmupScheduler.TaskSource listedQueryTasks = streamListedQueries
+                    ? listedTasks -> this.streamListedQueries(newSearcher, segmentFilterCache, budget, plan, statistics, handoffCache,
+                            filterQueries, listedTasks)
+                    : null;
+
+            this.runWarmup(newSearcher, currentSearcher, warmupStart, tasks, listedQueryTasks, concurrentThreads.intValue(),
+                    concurrentTimeout, () -> this.completeWarmup(newSearcher, segmentFilterCache, statistics, authoritySetStatistics));
+        }
+        else
+        {
+            LOGGER.debug("Skipping filter query warmup as no queries could be read from query list file, statistics or authority sets");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(@SuppressWarnings("rawtypes") final NamedList args)
+    {
+        super.init(args);
+
+        final String configurationFile = (String) args.get("configurationFile");
+        if (configurationFile != null && !configurationFile.trim().isEmpty())
+        {
+            this.configuration = WarmupConfiguration
+                    .getInstance(this.getCore(), WarmupConfiguration.resolveConfigurationFile(this.getCore(), configurationFile));
+            this.configuration.registerChangeListener(this.getCore(), WarmupMetrics.FILTER_QUERY_WARMUP, this::warmupChanges);
+        }
+
+        final String snapshotFile = (String) args.get("snapshotFile");
+        if (snapshotFile != null && !snapshotFile.trim().isEmpty())
+        {
+            this.snapshot = FilterCacheSnapshot
+                    .getInstance(FilterQueryRecorderComponent.resolveStatisticsFile(this.getCore(), snapshotFile));
+            // the firstSearcher and newSearcher listeners are usually configured identically, so only one of them needs to write
+            if (this.snapshot.claimWriter(this.getCore()))
+            {
+                this.getCore().addCloseHook(new CloseHook()
+                {
+
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public void preClose(final SolrCore core)
+                    {
+                        FilterQueryWarmupListener.this.writeSnapshot();
+                    }
+
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public void postClose(final SolrCore core)
+                    {
+                        // NO-OP
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * If a warmup configuration file has been configured, its entries for filter query warmup override the arguments from
+     * {@code solrconfig.xml}.
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public NamedList getArgs()
+    {
+        final NamedList args = super.getArgs();
+        return this.configuration != null ? this.configuration.getArgs(WarmupMetrics.FILTER_QUERY_WARMUP, args) : args;
+    }
+
+    protected void warmupChanges(final Map<String, Object> changes)
+    {
+        final Object changedFilterQueries = changes.get("filterQueries");
+        final Object changedAuthoritySets = changes.get("authoritySets");
+        final RefCounted<SolrIndexSearcher> searcherRef = changedFilterQueries instanceof Collection<?>
+                || changedAuthoritySets instanceof Collection<?> ? this.getCore().getRegisteredSearcher() : null;
+        if (searcherRef != null)
+        {
+            try
+            {
+                final long warmupStart = System.nanoTime();
+                final SolrIndexSearcher searcher = searcherRef.get();
+                final FilterQueryWarmupPlan plan = this.getPlan(searcher);
+                final WarmupStatistics statistics = this.getStatistics();
+                // the current searcher is serving requests, so evicting its hot entries would be particularly harmful
+                final FilterCacheBudget budget = this.createBudget(searcher);
+                final Map<String, Query> filterQueries = new LinkedHashMap<>();
+                if (changedFilterQueries instanceof Collection<?>)
+                {
+                    this.parseFilterQueries(searcher, plan,
+                            ((Collection<?>) changedFilterQueries).stream().map(String::valueOf).collect(Collectors.toList()), "configured",
+                            filterQueries);
+                }
+                final List<Runnable> tasks = filterQueries.entrySet().stream().<Runnable> map(fq -> {
+                    final Map<String, Query> filterQuery = Collections.singletonMap(fq.getKey(), fq.getValue());
+                    return this.createTask(plan, statistics, null, filterQuery,
+                            () -> this.performQuery(searcher, null, budget, plan, filterQuery));
+                }).collect(Collectors.toCollection(ArrayList::new));
+                if (changedAuthoritySets instanceof Collection<?>)
+                {
+                    final WarmupStatistics authoritySetStatistics = this.getAuthoritySetStatistics();
+                    final Map<String, Query> authorityFilters = new LinkedHashMap<>();
+                    this.parseAuthorityFilters(searcher, plan,
+                            ((Collection<?>) changedAuthoritySets).stream().map(String::valueOf).collect(Collectors.toList()), "configured",
+                            authorityFilters);
+                    tasks.addAll(this.createAuthorityFilterTasks(searcher, null, budget, plan, authoritySetStatistics, authorityFilters));
+                }
+                LOGGER.info("Warming {} changed filter queries against current searcher {}", tasks.size(), searcher);
+
+                final WarmupMetrics metrics = WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.FILTER_QUERY_WARMUP);
+                final SolrCache<Query, DocSet> filterCache = searcher.getFilterCache();
+                final int cacheSizeBefore = filterCache != null ? filterCache.size() : -1;
+                // the current searcher is already serving requests, so there is no reason to make the caller wait for the warmup
+                WarmupScheduler.getInstance().submit(this.getCore(), searcher, "changed filter query", tasks,
+                        this.getConcurrentThreads().intValue(), (Integer) this.getArgs().get("concurrentTimeout"), metrics,
+                        () -> metrics.recordWarmup("configurationChange", System.nanoTime() - warmupStart, cacheSizeBefore,
+                                filterCache != null ? filterCache.size() : -1));
+            }
+            finally
+            {
+                searcherRef.decref();
+            }
+        }
+    }
+
+    protected FilterQueryWarmupPlan getPlan(final SolrIndexSearcher searcher)
+    {
+        return this.getPlan(searcher, true);
+    }
+
+    protected FilterQueryWarmupPlan getPlan(final SolrIndexSearcher searcher, final boolean parse)
+    {
+        String baseQuery = (String) this.getArgs().get("baseQuery");
         if (baseQuery == null || baseQuery.trim().isEmpty())
         {
             LOGGER.debug("Base query has not been properly configured - defaulting to ISNODE:T");
             baseQuery = "ISNODE:T";
         }
 
+        final FilterQueryWarmupPlan plan = FilterQueryWarmupPlan.getPlan(this.getCore(), searcher,
+                (String) this.getArgs().get("queryListFile"), baseQuery, (String) this.getArgs().get("baseRequestBody"));
+        if (parse)
+        {
+            // the query list file is parsed with the same concurrency as it is warmed
+            plan.parse(searcher, this.getConcurrentThreads().intValue(), null);
+        }
+        return plan;
+    }
+
+    protected Integer getConcurrentThreads()
+    {
+        Integer concurrentThreads = (Integer) this.getArgs().get("concurrentThreads");
         if (concurrentThreads == null || concurrentThreads.intValue() <= 0)
         {
             LOGGER.debug("Number of concurrent threads has not been properly configured - defaulting to 1");
             concurrentThreads = Integer.valueOf(1);
         }
+        return concurrentThreads;
+    }
+
+    protected List<String> getConfiguredFilterQueries()
+    {
+        final Object filterQueries = this.getArgs().get("filterQueries");
+        return filterQueries instanceof Collection<?>
+                ? ((Collection<?>) filterQueries).stream().map(String::valueOf).collect(Collectors.toList())
+                : Collections.<String> emptyList();
+    }
+
+    protected Map<String, Query> getFilterQueries(final SolrIndexSearcher searcher, final FilterQueryWarmupPlan plan,
+            final WarmupStatistics statistics)
+    {
+        final Map<String, Query> filterQueries = new LinkedHashMap<>();
+        // explicitly configured filter queries go first, e.g. when they have been pushed during an incident
+        this.parseFilterQueries(searcher, plan, this.getConfiguredFilterQueries(), "configured", filterQueries);
+
+        if (statistics != null)
+        {
+            final Integer learnedQueryCount = (Integer) this.getArgs().get("learnedQueryCount");
+            final List<String> learnedFilterQueries = statistics.getTopEntries(
+                    learnedQueryCount != null && learnedQueryCount.intValue() > 0 ? learnedQueryCount.intValue() : DEFAULT_LEARNED_QUERY_COUNT);
+            // learned filter queries are ranked by value, so they go first in case the warmup does not complete
+            this.parseFilterQueries(searcher, plan, learnedFilterQueries, "learned", filterQueries);
+            plan.getFilterQueries().forEach(filterQueries::putIfAbsent);
+            LOGGER.debug("Merged {} learned filter queries with {} filter queries from query list file, resulting in {} distinct filter queries",
+                    learnedFilterQueries.size(), plan.getFilterQueries().size(), filterQueries.size());
+        }
+        else
+        {
+            plan.getFilterQueries().forEach(filterQueries::putIfAbsent);
+        }
+        return this.canonicalize(filterQueries);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected RankedFilterCache<Query, DocSet> getHandoffCache(final SolrIndexSearcher currentSearcher)
+    {
+        RankedFilterCache<Query, DocSet> handoffCache = null;
+        final Integer filterCacheHandoffCount = (Integer) this.getArgs().get("filterCacheHandoffCount");
+        if (currentSearcher != null && filterCacheHandoffCount != null && filterCacheHandoffCount.intValue() > 0)
+        {
+            final SolrCache<Query, DocSet> currentFilterCache = currentSearcher.getFilterCache();
+            if (currentFilterCache instanceof RankedFilterCache<?, ?>)
+            {
+                handoffCache = (RankedFilterCache<Query, DocSet>) currentFilterCache;
+            }
+            else
+            {
+                LOGGER.debug("Filter cache of current searcher does not track hits - falling back to warmup from filter query lists");
+            }
+        }
+        return handoffCache;
+    }
 
-        final String filePath = (String) this.getArgs().get("queryListFile");
-        final File file = Paths.get(filePath).toFile();
-        if (file.exists() && file.isFile())
+    protected Map<String, Query> getHandoffFilterQueries(final SolrIndexSearcher searcher, final FilterQueryWarmupPlan plan,
+            final WarmupStatistics statistics, final RankedFilterCache<Query, DocSet> handoffCache)
+    {
+        // configured filter queries may not (yet) be hot, e.g. when they have been pushed during an incident or are only used at specific
+        // times of the day, while learned and listed filter queries are only added on request as warming all of them again would take as
+        // long as a warmup without handoff
+        final boolean listedQueries = Boolean.TRUE.equals(this.getArgs().get("filterCacheHandoffListedQueries"));
+        final Map<String, Query> otherFilterQueries;
+        if (listedQueries)
         {
-            final Set<String> filterQueries = new LinkedHashSet<>();
+            otherFilterQueries = this.getFilterQueries(searcher, plan, statistics);
+        }
+        else
+        {
+            final Map<String, Query> configuredFilterQueries = new LinkedHashMap<>();
+            this.parseFilterQueries(searcher, plan, this.getConfiguredFilterQueries(), "configured", configuredFilterQueries);
+            otherFilterQueries = this.canonicalize(configuredFilterQueries);
+        }
 
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)))
+        // hot filters which are also configured, learned or listed keep their filter query, so that their statistics are updated
+        final Map<Query, String> otherKeys = new HashMap<>();
+        otherFilterQueries.forEach((filterQuery, filter) -> otherKeys.putIfAbsent(QueryUtils.getAbs(filter), filterQuery));
+        final Map<String, Query> filterQueries = new LinkedHashMap<>();
+        final Integer filterCacheHandoffCount = (Integer) this.getArgs().get("filterCacheHandoffCount");
+        for (final Query filter : handoffCache.getHottestKeys(filterCacheHandoffCount.intValue()))
+        {
+            final String filterQuery = otherKeys.remove(QueryUtils.getAbs(filter));
+            filterQueries.putIfAbsent(filterQuery != null ? filterQuery : String.valueOf(filter), filter);
+        }
+        final int hottestFilterCount = filterQueries.size();
+        otherFilterQueries.forEach((filterQuery, filter) -> {
+            if (otherKeys.containsKey(QueryUtils.getAbs(filter)))
             {
-                String line;
-                while ((line = br.readLine()) != null)
+                filterQueries.putIfAbsent(filterQuery, filter);
+            }
+        });
+        LOGGER.debug("Starting filter query warmup from {} hottest filters of current searcher and {} other {} filter queries",
+                hottestFilterCount, filterQueries.size() - hottestFilterCount, listedQueries ? "configured, learned and listed" : "configured");
+        return filterQueries;
+    }
+
+    protected Map<String, Query> canonicalize(final Map<String, Query> filterQueries)
+    {
+        // filter queries differing only in whitespace, clause order or quoting - or only in being negated - parse to equal queries and
+        // thus share the same filter cache entry, which only needs to be warmed once
+        final Map<Query, String> canonicalFilterQueries = new HashMap<>();
+        final Map<String, Query> distinctFilterQueries = new LinkedHashMap<>();
+        for (final Map.Entry<String, Query> filterQuery : filterQueries.entrySet())
+        {
+            final String canonicalFilterQuery = canonicalFilterQueries.putIfAbsent(QueryUtils.getAbs(filterQuery.getValue()),
+                    filterQuery.getKey());
+            if (canonicalFilterQuery == null)
+            {
+                distinctFilterQueries.put(filterQuery.getKey(), filterQuery.getValue());
+            }
+            else
+            {
+                LOGGER.debug("Skipping filter query {} as it results in the same cached filter as {}", filterQuery.getKey(),
+                        canonicalFilterQuery);
+            }
+        }
+
+        final int redundantFilterQueries = filterQueries.size() - distinctFilterQueries.size();
+        WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.FILTER_QUERY_WARMUP).recordRedundantQueries(redundantFilterQueries);
+        if (redundantFilterQueries > 0)
+        {
+            LOGGER.debug("Skipping {} redundant filter queries which result in the same cached filters as other filter queries",
+                    redundantFilterQueries);
+        }
+        return distinctFilterQueries;
+    }
+
+    protected void restoreSnapshot(final SolrIndexSearcher searcher, final Map<String, Query> filterQueries)
+    {
+        final SolrCache<Query, DocSet> filterCache = searcher.getFilterCache();
+        if (filterCache != null)
+        {
+            final long start = System.nanoTime();
+            final int cacheSizeBefore = filterCache.size();
+            final Map<String, FilterCacheSnapshot.Entry> snapshotEntries = this.snapshot.read(searcher,
+                    (String) this.getArgs().get("baseRequestBody"));
+            // the filter cache may have been configured with a smaller size since the snapshot was written
+            final int capacity = FilterCacheBudget.getCapacity(searcher);
+            int restored = 0;
+            for (final Map.Entry<String, FilterCacheSnapshot.Entry> snapshotEntry : snapshotEntries.entrySet())
+            {
+                // filter queries which are no longer configured, learned or listed are not worth the cache space
+                final Query filter = capacity <= 0 || filterCache.size() < capacity ? filterQueries.get(snapshotEntry.getKey()) : null;
+                if (filter != null)
                 {
-                    if (!line.trim().isEmpty())
+                    final Query absFilter = QueryUtils.getAbs(filter);
+                    // e.g. NOW relative date ranges parse to a different query than the one whose matches have been snapshot
+                    if (absFilter.toString().equals(snapshotEntry.getValue().getQuery()))
                     {
-                        filterQueries.add(line.trim());
+                        filterQueries.remove(snapshotEntry.getKey());
+                        filterCache.put(absFilter, snapshotEntry.getValue().getDocSet());
+                        restored++;
                     }
                     else
                     {
-                        LOGGER.trace("Skipping empty line");
+                        LOGGER.debug("Not restoring filter query {} from snapshot as it no longer parses to the same query",
+                                snapshotEntry.getKey());
                     }
                 }
-                LOGGER.debug("Read {} filter queries list from {}", filterQueries.size(), file);
             }
-            catch (final IOException ioex)
+            if (!snapshotEntries.isEmpty())
             {
-                LOGGER.warn("Error handling query list file", ioex);
+                WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.FILTER_QUERY_WARMUP).recordWarmup("snapshotRestore",
+                        System.nanoTime() - start, cacheSizeBefore, filterCache.size());
+                LOGGER.info("Restored {} of {} filter cache entries from snapshot - {} filter queries remain to be warmed", restored,
+                        snapshotEntries.size(), filterQueries.size());
             }
+        }
+    }
+
+    protected void writeSnapshot()
+    {
+        final RefCounted<SolrIndexSearcher> searcherRef = this.getCore().getRegisteredSearcher();
+        if (searcherRef != null)
+        {
+            try
+            {
+                final SolrIndexSearcher searcher = searcherRef.get();
+                final FilterQueryWarmupPlan plan = this.getPlan(searcher);
+                this.snapshot.write(searcher, (String) this.getArgs().get("baseRequestBody"),
+                        this.getFilterQueries(searcher, plan, this.getStatistics()));
+            }
+            finally
+            {
+                searcherRef.decref();
+            }
+        }
+    }
+
+    protected void parseFilterQueries(final SolrIndexSearcher searcher, final FilterQueryWarmupPlan plan, final List<String> filterQueries,
+            final String kind, final Map<String, Query> parsedFilterQueries)
+    {
+        for (final String filterQuery : filterQueries)
+        {
+            try
+            {
+                parsedFilterQueries.putIfAbsent(filterQuery, plan.getFilterQuery(searcher, filterQuery));
+            }
+            catch (final SyntaxError | RuntimeException ex)
+            {
+                // e.g. undefined fields are reported as SolrException instead of SyntaxError
+                LOGGER.debug("Failed to parse {} filter query {}", kind, filterQuery, ex);
+            }
+        }
+    }
+
+    protected WarmupStatistics getAuthoritySetStatistics()
+    {
+        final String authoritySetStatisticsFile = (String) this.getArgs().get("authoritySetStatisticsFile");
+        WarmupStatistics authoritySetStatistics = null;
+        if (authoritySetStatisticsFile != null && !authoritySetStatisticsFile.trim().isEmpty())
+        {
+            final Integer maxEntries = (Integer) this.getArgs().get("maxEntries");
+            final Object halfLife = this.getArgs().get("decayHalfLife");
+            authoritySetStatistics = WarmupStatistics.getInstance(this.getCore(),
+                    FilterQueryRecorderComponent.resolveStatisticsFile(this.getCore(), authoritySetStatisticsFile),
+                    maxEntries != null ? maxEntries.intValue() : WarmupStatistics.DEFAULT_MAX_ENTRIES,
+                    halfLife instanceof Number ? ((Number) halfLife).longValue() : WarmupStatistics.DEFAULT_HALF_LIFE);
+        }
+        return authoritySetStatistics;
+    }
+
+    protected Map<String, Query> getAuthorityFilters(final SolrIndexSearcher searcher, final FilterQueryWarmupPlan plan,
+            final WarmupStatistics authoritySetStatistics)
+    {
+        final Map<String, Query> authorityFilters = new LinkedHashMap<>();
 
-            if (!filterQueries.isEmpty())
+        final Object authoritySets = this.getArgs().get("authoritySets");
+        if (authoritySets instanceof Collection<?>)
+        {
+            this.parseAuthorityFilters(searcher, plan,
+                    ((Collection<?>) authoritySets).stream().map(String::valueOf).collect(Collectors.toList()), "configured",
+                    authorityFilters);
+        }
+
+        if (authoritySetStatistics != null)
+        {
+            final Integer authoritySetCount = (Integer) this.getArgs().get("authoritySetCount");
+            this.parseAuthorityFilters(searcher, plan, authoritySetStatistics.getTopEntries(
+                    authoritySetCount != null && authoritySetCount.intValue() > 0 ? authoritySetCount.intValue() : DEFAULT_AUTHORITY_SET_COUNT),
+                    "recorded", authorityFilters);
+        }
+
+        if (!authorityFilters.isEmpty())
+        {
+            LOGGER.debug("Derived {} permission filters from authority sets", authorityFilters.size());
+        }
+        return authorityFilters;
+    }
+
+    protected void parseAuthorityFilters(final SolrIndexSearcher searcher, final FilterQueryWarmupPlan plan, final List<String> authoritySets,
+            final String kind, final Map<String, Query> authorityFilters)
+    {
+        String authorityFilterQuery = (String) this.getArgs().get("authorityFilterQuery");
+        if (authorityFilterQuery == null || authorityFilterQuery.trim().isEmpty())
+        {
+            authorityFilterQuery = AuthoritySet.DEFAULT_AUTHORITY_FILTER_QUERY;
+        }
+
+        for (final String authoritySet : authoritySets)
+        {
+            final AuthoritySet parsedAuthoritySet = AuthoritySet.parse(authoritySet);
+            if (parsedAuthoritySet == null)
+            {
+                LOGGER.debug("Skipping {} authority set {} as it does not contain any authorities", kind, Digests.shortSha256(authoritySet));
+            }
+            else if (!authorityFilters.containsKey(parsedAuthoritySet.getKey()))
             {
-                LOGGER.debug("Starting filter query warmup");
                 try
                 {
-                    if (concurrentThreads.intValue() > 1)
+                    authorityFilters.put(parsedAuthoritySet.getKey(),
+                            plan.getAuthorityFilter(searcher, authorityFilterQuery.trim(), parsedAuthoritySet));
+                }
+                catch (final SyntaxError | RuntimeException ex)
+                {
+                    // e.g. an authorityFilterQuery using an undefined field is reported as SolrException instead of SyntaxError
+                    LOGGER.debug("Failed to parse authority filter for {} authority set {}", kind,
+                            Digests.shortSha256(parsedAuthoritySet.getKey()), ex);
+                }
+            }
+        }
+    }
+
+    protected List<Runnable> createFilterQueryTasks(final SolrIndexSearcher searcher, final SegmentFilterCache segmentFilterCache,
+            final FilterCacheBudget budget, final FilterQueryWarmupPlan plan, final WarmupStatistics statistics,
+            final RankedFilterCache<Query, DocSet> handoffCache, final Map<String, Query> filterQueries, final boolean individualTasks)
+    {
+        final Integer batchTargetMillis = (Integer) this.getArgs().get("batchTargetMillis");
+        final List<Runnable> tasks;
+        if (filterQueries.isEmpty())
+        {
+            tasks = new ArrayList<>();
+        }
+        else if (batchTargetMillis != null && batchTargetMillis.intValue() > 0)
+        {
+            tasks = this.createBatches(plan, filterQueries, TimeUnit.MILLISECONDS.toNanos(batchTargetMillis.intValue())).stream()
+                    .<Runnable> map(batch -> this.createTask(plan, statistics, handoffCache, batch,
+                            () -> this.performQuery(searcher, segmentFilterCache, budget, plan, batch)))
+                    .collect(Collectors.toCollection(ArrayList::new));
+            LOGGER.debug("Grouped {} filter queries into {} batches", filterQueries.size(), tasks.size());
+        }
+        else if (individualTasks)
+        {
+            tasks = filterQueries.entrySet().stream().<Runnable> map(fq -> {
+                final Map<String, Query> filterQuery = Collections.singletonMap(fq.getKey(), fq.getValue());
+                return this.createTask(plan, statistics, handoffCache, filterQuery,
+                        () -> this.performQuery(searcher, segmentFilterCache, budget, plan, filterQuery));
+            }).collect(Collectors.toCollection(ArrayList::new));
+        }
+        else
+        {
+            tasks = new ArrayList<>(Collections.singletonList(this.createTask(plan, statistics, handoffCache, filterQueries,
+                    () -> this.performQuery(searcher, segmentFilterCache, budget, plan, filterQueries))));
+        }
+        return tasks;
+    }
+
+    protected void streamListedQueries(final SolrIndexSearcher searcher, final SegmentFilterCache segmentFilterCache,
+            final FilterCacheBudget budget, final FilterQueryWarmupPlan plan, final WarmupStatistics statistics,
+            final RankedFilterCache<Query, DocSet> handoffCache, final Map<String, Query> filterQueries,
+            final Consumer<List<Runnable>> tasks)
+    {
+        // listed filter queries can only be checked against the ones parsed so far, as later chunks of the file are not yet known
+        final Set<Query> parsedFilters = filterQueries.values().stream().map(QueryUtils::getAbs).collect(Collectors.toSet());
+        final AtomicInteger redundantFilterQueries = new AtomicInteger();
+        plan.parse(searcher, this.getConcurrentThreads().intValue(), parsedChunk -> {
+            final Map<String, Query> listedFilterQueries = new LinkedHashMap<>();
+            parsedChunk.forEach((filterQuery, filter) -> {
+                if (parsedFilters.add(QueryUtils.getAbs(filter)))
+                {
+                    listedFilterQueries.put(filterQuery, filter);
+                }
+                else
+                {
+                    redundantFilterQueries.incrementAndGet();
+                }
+            });
+            if (!listedFilterQueries.isEmpty())
+            {
+                tasks.accept(this.createFilterQueryTasks(searcher, segmentFilterCache, budget, plan, statistics, handoffCache,
+                        listedFilterQueries, true));
+            }
+        });
+
+        WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.FILTER_QUERY_WARMUP).addRedundantQueries(redundantFilterQueries.get());
+        LOGGER.debug("Streamed {} listed filter queries into filter query warmup, skipping {} redundant filter queries",
+                plan.getFilterQueries().size() - redundantFilterQueries.get(), redundantFilterQueries.get());
+    }
+
+    protected List<Runnable> createAuthorityFilterTasks(final SolrIndexSearcher searcher, final SegmentFilterCache segmentFilterCache,
+            final FilterCacheBudget budget, final FilterQueryWarmupPlan plan, final WarmupStatistics authoritySetStatistics,
+            final Map<String, Query> authorityFilters)
+    {
+        return authorityFilters.entrySet().stream().<Runnable> map(af -> {
+            final Map<String, Query> authorityFilter = Collections.singletonMap(af.getKey(), af.getValue());
+            // authority sets identify users and groups so they are only described by their digest
+            final int cardinality = plan.getCardinality(af.getValue());
+            final String description = "permission filter of authority set " + Digests.shortSha256(af.getKey())
+                    + (cardinality >= 0 ? " [" + cardinality + " matches]" : "");
+            return this.createTask(plan, authoritySetStatistics, null, authorityFilter, description,
+                    () -> this.performAuthorityFilter(searcher, segmentFilterCache, budget, plan, authoritySetStatistics, af));
+        }).collect(Collectors.toList());
+    }
+
+    protected void completeWarmup(final SolrIndexSearcher newSearcher, final SegmentFilterCache segmentFilterCache,
+            final WarmupStatistics statistics, final WarmupStatistics authoritySetStatistics)
+    {
+        if (segmentFilterCache != null)
+        {
+            segmentFilterCache.finishWarmup(newSearcher);
+        }
+        LOGGER.debug("Completed filter query warmup");
+        if (statistics != null)
+        {
+            statistics.persist();
+        }
+        if (authoritySetStatistics != null)
+        {
+            authoritySetStatistics.persist();
+        }
+    }
+
+    protected boolean isBackgroundWarmup()
+    {
+        return Boolean.TRUE.equals(this.getArgs().get("backgroundWarmup"));
+    }
+
+    protected void runWarmup(final SolrIndexSearcher newSearcher, final SolrIndexSearcher currentSearcher, final long warmupStart,
+            final List<Runnable> tasks, final WarmupScheduler.TaskSource source, final int concurrentThreads,
+            final Integer concurrentTimeout, final Runnable completion)
+    {
+        final WarmupMetrics metrics = WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.FILTER_QUERY_WARMUP);
+        final SolrCache<Query, DocSet> filterCache = newSearcher.getFilterCache();
+        final int cacheSizeBefore = filterCache != null ? filterCache.size() : -1;
+        final Runnable metricsCompletion = () -> {
+            try
+            {
+                completion.run();
+            }
+            finally
+            {
+                metrics.recordWarmup(currentSearcher == null ? "firstSearcher" : "newSearcher", System.nanoTime() - warmupStart,
+                        cacheSizeBefore, filterCache != null ? filterCache.size() : -1);
+            }
+        };
+
+        if (this.isBackgroundWarmup())
+        {
+            // the new searcher is registered as soon as all listeners have returned
+            WarmupScheduler.getInstance().submit(this.getCore(), newSearcher, "filter query", tasks, concurrentThreads, concurrentTimeout,
+                    metrics, source, metricsCompletion);
+        }
+        else
+        {
+            try
+            {
+                WarmupScheduler.getInstance().execute(this.getCore(), newSearcher, "filter query", tasks, concurrentThreads,
+                        concurrentTimeout, metrics, source);
+            }
+            finally
+            {
+                metricsCompletion.run();
+            }
+        }
+    }
+
+    protected List<Map<String, Query>> createBatches(final FilterQueryWarmupPlan plan, final Map<String, Query> filterQueries,
+            final long batchTargetNanos)
+    {
+        final List<Map<String, Query>> batches = new ArrayList<>();
+        Map<String, Query> batch = new LinkedHashMap<>();
+        long batchCost = 0;
+        // batches preserve the order of filter queries so that the most valuable ones are still warmed first
+        for (final Map.Entry<String, Query> filterQuery : filterQueries.entrySet())
+        {
+            final long cost = plan.getEstimatedCost(filterQuery.getValue());
+            if (!batch.isEmpty() && batchCost + cost > batchTargetNanos)
+            {
+                batches.add(batch);
+                batch = new LinkedHashMap<>();
+                batchCost = 0;
+            }
+            batch.put(filterQuery.getKey(), filterQuery.getValue());
+            batchCost += cost;
+        }
+        if (!batch.isEmpty())
+        {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    protected WarmupTask createTask(final FilterQueryWarmupPlan plan, final WarmupStatistics statistics,
+            final RankedFilterCache<Query, DocSet> handoffCache, final Map<String, Query> filterQueries, final Runnable action)
+    {
+        final Map.Entry<String, Query> firstFilterQuery = filterQueries.entrySet().iterator().next();
+        String description = this.describe(plan, firstFilterQuery.getKey(), firstFilterQuery.getValue());
+        if (filterQueries.size() > 1)
+        {
+            description = "batch of " + filterQueries.size() + " filter queries starting with " + description;
+        }
+        return this.createTask(plan, statistics, handoffCache, filterQueries, description, action);
+    }
+
+    protected WarmupTask createTask(final FilterQueryWarmupPlan plan, final WarmupStatistics statistics,
+            final RankedFilterCache<Query, DocSet> handoffCache, final Map<String, Query> filterQueries, final String description,
+            final Runnable action)
+    {
+        long cost = 0;
+        double value = 0;
+        for (final Map.Entry<String, Query> filterQuery : filterQueries.entrySet())
+        {
+            // a warmed filter saves its execution time on every hit expected until the next searcher
+            final long filterCost = plan.getEstimatedCost(filterQuery.getValue());
+            cost += filterCost;
+            // hits on a filter handed off from the current searcher are expected to continue on the new searcher
+            final double hits = (statistics != null ? statistics.getFrequency(filterQuery.getKey()) : 0)
+                    + (handoffCache != null ? handoffCache.getRank(QueryUtils.getAbs(filterQuery.getValue())) : 0);
+            value += (1 + hits) * filterCost;
+        }
+        return new WarmupTask(description, cost, value, action);
+    }
+
+    protected String describe(final FilterQueryWarmupPlan plan, final String filterQuery, final Query filter)
+    {
+        // descriptions end up in logs and metrics, and filters handed off from the previous searcher may be expanded permission filters
+        final String shortFilterQuery = filterQuery.length() > MAX_DESCRIBED_FILTER_QUERY_LENGTH
+                ? filterQuery.substring(0, MAX_DESCRIBED_FILTER_QUERY_LENGTH) + "..."
+                : filterQuery;
+        final int cardinality = plan.getCardinality(filter);
+        return cardinality >= 0 ? shortFilterQuery + " [" + cardinality + " matches]" : shortFilterQuery;
+    }
+
+    protected WarmupStatistics getStatistics()
+    {
+        final String statisticsFile = (String) this.getArgs().get("statisticsFile");
+        WarmupStatistics statistics = null;
+        if (statisticsFile != null && !statisticsFile.trim().isEmpty())
+        {
+            final Integer maxEntries = (Integer) this.getArgs().get("maxEntries");
+            final Object halfLife = this.getArgs().get("decayHalfLife");
+            statistics = WarmupStatistics.getInstance(this.getCore(),
+                    FilterQueryRecorderComponent.resolveStatisticsFile(this.getCore(), statisticsFile),
+                    maxEntries != null ? maxEntries.intValue() : WarmupStatistics.DEFAULT_MAX_ENTRIES,
+                    halfLife instanceof Number ? ((Number) halfLife).longValue() : WarmupStatistics.DEFAULT_HALF_LIFE);
+        }
+        return statistics;
+    }
+
+    protected SegmentFilterCache startSegmentIncrementalWarmup(final SolrIndexSearcher newSearcher)
+    {
+        final Boolean segmentIncremental = (Boolean) this.getArgs().get("segmentIncremental");
+        SegmentFilterCache segmentFilterCache = null;
+        if (Boolean.TRUE.equals(segmentIncremental))
+        {
+            final Object segmentLocalQueryClasses = this.getArgs().get("segmentLocalQueryClasses");
+            segmentFilterCache = SegmentFilterCache.getInstance(this.getCore(),
+                    segmentLocalQueryClasses instanceof Collection<?>
+                            ? ((Collection<?>) segmentLocalQueryClasses).stream().map(String::valueOf).collect(Collectors.toList())
+                            : Collections.<String> emptyList());
+            segmentFilterCache.startWarmup(newSearcher);
+        }
+        return segmentFilterCache;
+    }
+
+    protected FilterCacheBudget createBudget(final SolrIndexSearcher searcher)
+    {
+        final Object maxHeapUsage = this.getArgs().get("maxHeapUsage");
+        final Object maxHeapWait = this.getArgs().get("maxHeapWait");
+        return new FilterCacheBudget(searcher,
+                maxHeapUsage instanceof Number ? ((Number) maxHeapUsage).doubleValue() : FilterCacheBudget.DEFAULT_MAX_HEAP_USAGE,
+                maxHeapWait instanceof Number ? ((Number) maxHeapWait).longValue() : FilterCacheBudget.DEFAULT_MAX_HEAP_WAIT,
+                WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.FILTER_QUERY_WARMUP));
+    }
+
+    protected void performAuthorityFilter(final SolrIndexSearcher searcher, final SegmentFilterCache segmentFilterCache,
+            final FilterCacheBudget budget, final FilterQueryWarmupPlan plan, final WarmupStatistics authoritySetStatistics,
+            final Map.Entry<String, Query> authorityFilter)
+    {
+        final long reserved = budget.reserve(plan.getCardinality(authorityFilter.getValue()));
+        if (reserved >= 0)
+        {
+            try
+            {
+                final long start = System.nanoTime();
+                final DocSet docSet;
+                if (segmentFilterCache != null)
+                {
+                    docSet = segmentFilterCache.cacheDocSet(searcher, authorityFilter.getValue(), budget);
+                }
+                else
+                {
+                    docSet = searcher.getDocSet(authorityFilter.getValue());
+                }
+                this.recordExecution(plan, authoritySetStatistics, authorityFilter, System.nanoTime() - start, docSet.size());
+            }
+            catch (final IOException ioex)
+            {
+                LOGGER.warn("Failed to warmup permission filter of authority set {} due to IO error",
+                        Digests.shortSha256(authorityFilter.getKey()), ioex);
+            }
+            finally
+            {
+                budget.release(reserved);
+            }
+        }
+    }
+
+    protected void performQuery(final SolrIndexSearcher searcher, final SegmentFilterCache segmentFilterCache,
+            final FilterCacheBudget budget, final FilterQueryWarmupPlan plan, final Map<String, Query> filterQueries)
+    {
+        final List<Long> reservations = new ArrayList<>();
+        try
+        {
+            final WarmupStatistics statistics = this.getStatistics();
+            if (segmentFilterCache != null)
+            {
+                // incremental warmup requires each filter to be computed individually
+                for (final Map.Entry<String, Query> filterQuery : filterQueries.entrySet())
+                {
+                    final long reserved = budget.reserve(plan.getCardinality(filterQuery.getValue()));
+                    if (reserved >= 0)
                     {
-                        final ExecutorService threadPool = Executors.newFixedThreadPool(concurrentThreads.intValue());
                         try
                         {
-                            final String baseQueryF = baseQuery;
-                            filterQueries.forEach(
-                                    fq -> threadPool.submit(() -> this.performQuery(newSearcher, baseRequestBody, baseQueryF, fq)));
+                            final long start = System.nanoTime();
+                            final DocSet docSet = segmentFilterCache.cacheDocSet(searcher, filterQuery.getValue(), budget);
+                            this.recordExecution(plan, statistics, filterQuery, System.nanoTime() - start, docSet.size());
                         }
                         finally
                         {
-                            threadPool.shutdown();
-
-                            final long timeout = concurrentTimeout == null || concurrentTimeout.intValue() < 0 ? 10000
-                                    : concurrentTimeout.longValue();
-                            LOGGER.debug("Waiting for termination of concurrent warmup threads");
+                            budget.release(reserved);
+                        }
+                    }
+                }
+            }
+            else if (Boolean.TRUE.equals(this.getArgs().get("directFilterWarmup")))
+            {
+                // getDocSet caches the result in the filter cache of the searcher without executing any base query
+                for (final Map.Entry<String, Query> filterQuery : filterQueries.entrySet())
+                {
+                    final Query absFilter = QueryUtils.getAbs(filterQuery.getValue());
+                    if (absFilter instanceof ExtendedQuery && !((ExtendedQuery) absFilter).getCache())
+                    {
+                        LOGGER.trace("Skipping filter query {} as it is not cached by SOLR", filterQuery.getKey());
+                    }
+                    else
+                    {
+                        final long reserved = budget.reserve(plan.getCardinality(filterQuery.getValue()));
+                        if (reserved >= 0)
+                        {
                             try
                             {
-                                if (threadPool.awaitTermination(timeout == 0 ? Long.MAX_VALUE : timeout, TimeUnit.MILLISECONDS))
-                                {
-                                    LOGGER.debug("All concurrent warmup threads completed in the allotted time");
-                                }
-                                else
-                                {
-                                    final List<Runnable> incompleteTasks = threadPool.shutdownNow();
-                                    LOGGER.warn(
-                                            "Concurrent filter query warmup threads did not complete in the allotted time, leaving {} warmup tasks uncompleted",
-                                            incompleteTasks.size());
-                                }
+                                final long start = System.nanoTime();
+                                final DocSet docSet = searcher.getDocSet(absFilter);
+                                this.recordExecution(plan, statistics, filterQuery, System.nanoTime() - start, docSet.size());
                             }
-                            catch (final InterruptedException iex)
+                            finally
                             {
-                                LOGGER.warn("Thread was interrupted waiting for concurrent filter query warmup threads");
-                                // reset the interrupted flag
-                                Thread.currentThread().interrupt();
+                                budget.release(reserved);
                             }
                         }
                     }
-                    else
+                }
+            }
+            else if (plan.getBaseQuery() != null)
+            {
+                // a batch only executes the filters which still fit into the budget - as filters are reserved one at a time, the filters
+                // reserved so far are executed before waiting for heap usage to drop, so that they do not hold each other off
+                final Map<String, Query> reservedFilterQueries = new LinkedHashMap<>();
+                for (final Map.Entry<String, Query> filterQuery : filterQueries.entrySet())
+                {
+                    final int cardinality = plan.getCardinality(filterQuery.getValue());
+                    if (!reservedFilterQueries.isEmpty() && !budget.hasHeapRoom(cardinality))
                     {
-                        this.performQuery(newSearcher, baseRequestBody, baseQuery, filterQueries.toArray(new String[0]));
+                        this.performBruteForceQuery(searcher, plan, statistics, reservedFilterQueries);
+                        reservedFilterQueries.clear();
+                        reservations.forEach(budget::release);
+                        reservations.clear();
+                    }
+
+                    final long reserved = budget.reserve(cardinality);
+                    if (reserved >= 0)
+                    {
+                        reservations.add(reserved);
+                        reservedFilterQueries.put(filterQuery.getKey(), filterQuery.getValue());
                     }
                 }
-                finally
+
+                if (!reservedFilterQueries.isEmpty())
                 {
-                    LOGGER.debug("Completed filter query warmup");
+                    this.performBruteForceQuery(searcher, plan, statistics, reservedFilterQueries);
                 }
             }
             else
             {
-                LOGGER.debug("Skipping filter query warmup as no queries could be read from {}", file);
+                LOGGER.warn("Failed to warmup filter query as base query could not be parsed");
             }
         }
-        else
+        catch (final IOException ioex)
+        {
+            LOGGER.warn("Failed to warmup filter query due to IO error", ioex);
+        }
+        finally
         {
-            LOGGER.warn("Not running filter query warmup as query list file parameter value {} does not point to a valid file", filePath);
+            reservations.forEach(budget::release);
         }
     }
 
-    protected void performQuery(final SolrIndexSearcher searcher, final String baseRequestBody, final String baseQuery,
-            final String... filterQueries)
+    protected void performBruteForceQuery(final SolrIndexSearcher searcher, final FilterQueryWarmupPlan plan,
+            final WarmupStatistics statistics, final Map<String, Query> filterQueries) throws IOException
     {
-        final SolrQueryRequest req = new LocalSolrQueryRequest(this.getCore(), Collections.emptyMap())
+        try
         {
+            // brute force warmup of all filters in one query - base query is parsed only once per plan
+            final long start = System.nanoTime();
+            searcher.getDocList(plan.getBaseQuery(), new ArrayList<>(filterQueries.values()), null, 0, 1, 0);
+            final long cost = System.nanoTime() - start;
 
+            if (filterQueries.size() == 1)
             {
-                this.streams = Arrays.asList(new ByteArrayStream(baseRequestBody.getBytes(StandardCharsets.UTF_8), baseRequestBody));
+                final Map.Entry<String, Query> filterQuery = filterQueries.entrySet().iterator().next();
+                this.recordExecution(plan, statistics, filterQuery, cost, this.getCachedCardinality(searcher, filterQuery.getValue()));
             }
-
-            /**
-             * {@inheritDoc}
-             */
-            @Override
-            public SolrIndexSearcher getSearcher()
+            else
             {
-                return searcher;
+                // attribute the cost of the batch proportionally to the previous estimates of its filter queries
+                final long estimatedCost = filterQueries.values().stream().mapToLong(plan::getEstimatedCost).sum();
+                filterQueries.values().forEach(fq -> plan.recordExecution(fq,
+                        (long) ((double) cost * plan.getEstimatedCost(fq) / Math.max(1, estimatedCost)),
+                        this.getCachedCardinality(searcher, fq)));
             }
-
-            /**
-             * {@inheritDoc}
-             */
-            @Override
-            public void close()
+        }
+        catch (final RuntimeException rex)
+        {
+            if (filterQueries.size() == 1)
             {
+                LOGGER.warn("Failed to warmup filter query {}", filterQueries.keySet().iterator().next(), rex);
             }
-        };
-
-        try
-        {
-            final QParser parser = QParser.getParser(baseQuery, req);
-            final Query baseLuceneQuery = parser.getQuery();
-            // brute force warmup in one massive query
-            final List<Query> luceneFilterQueries = new ArrayList<>();
-
-            for (final String filterQuery : filterQueries)
+            else
             {
-                luceneFilterQueries.add(QParser.getParser(filterQuery, req).getQuery());
+                // a single failing filter query must not prevent all others in the same query from being warmed - the filters executed
+                // before the failure are already cached and thus cheap to retry
+                LOGGER.debug("Failed to warmup batch of {} filter queries - retrying filter queries individually", filterQueries.size(),
+                        rex);
+                for (final Map.Entry<String, Query> filterQuery : filterQueries.entrySet())
+                {
+                    this.performBruteForceQuery(searcher, plan, statistics,
+                            Collections.singletonMap(filterQuery.getKey(), filterQuery.getValue()));
+                }
             }
+        }
+    }
 
-            searcher.getDocList(baseLuceneQuery, luceneFilterQueries, null, 0, 1, 0);
+    @SuppressWarnings("unchecked")
+    protected int getCachedCardinality(final SolrIndexSearcher searcher, final Query filter)
+    {
+        // the base query only returns the intersection of all filters, so their own cardinalities are taken from the filter cache - without
+        // counting a hit, which would distort the ranks used for handoff
+        final SolrCache<Query, DocSet> filterCache = searcher.getFilterCache();
+        final Query absFilter = QueryUtils.getAbs(filter);
+        final DocSet docSet;
+        if (filterCache instanceof RankedFilterCache<?, ?>)
+        {
+            docSet = ((RankedFilterCache<Query, DocSet>) filterCache).peek(absFilter);
         }
-        catch (final SyntaxError serr)
+        else
         {
-            LOGGER.warn("Failed to warmup filter query due to syntax error", serr);
+            docSet = filterCache != null ? filterCache.get(absFilter) : null;
         }
-        catch (final IOException ioex)
+        return docSet != null ? docSet.size() : -1;
+    }
+
+    protected void recordExecution(final FilterQueryWarmupPlan plan, final WarmupStatistics statistics,
+            final Map.Entry<String, Query> filterQuery, final long costNanos, final int cardinality)
+    {
+        plan.recordExecution(filterQuery.getValue(), costNanos, cardinality);
+        // cost can only be attributed to a filter query in the statistics when it has been executed on its own
+        if (statistics != null)
         {
-            LOGGER.warn("Failed to warmup filter query due to IO error", ioex);
+            statistics.recordCost(filterQuery.getKey(), TimeUnit.NANOSECONDS.toMillis(costNanos));
         }
     }
 }
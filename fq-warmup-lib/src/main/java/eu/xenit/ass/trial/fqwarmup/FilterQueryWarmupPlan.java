@@ -0,0 +1,705 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandles;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.util.ContentStreamBase.ByteArrayStream;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.search.QParser;
+import org.apache.solr.search.QueryUtils;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SyntaxError;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class hold the parsed base query and filter queries used by {@link FilterQueryWarmupListener}, so that the query list
+ * file does not need to be read and the queries do not need to be parsed on every new searcher. Plans are shared by all listeners of a core
+ * with the same configuration and are only rebuilt when the content of the query list file or the schema of the core changes. The parsed
+ * queries are shared with plans of other cores with an identical schema via the {@link WarmupCoordinator}. The query list file is streamed
+ * and parsed in chunks on the warmup threads while it is being read, skipping and reporting individual lines which cannot be parsed. Plans
+ * are only parsed on demand, so that a listener can warm the filter queries of each parsed chunk while later chunks are still being read.
+ */
+public class FilterQueryWarmupPlan
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final Map<SolrCore, ConcurrentMap<List<String>, FilterQueryWarmupPlan>> PLANS = Collections
+            .synchronizedMap(new WeakHashMap<>());
+
+    protected static final int MAX_ADDITIONAL_FILTER_QUERIES = 10000;
+
+    // number of lines of the query list file parsed by a single task
+    protected static final int PARSE_CHUNK_SIZE = 500;
+
+    public static final long DEFAULT_FILTER_QUERY_COST = 1000000;
+
+    protected final SolrCore core;
+
+    protected final IndexSchema schema;
+
+    protected final String baseRequestBody;
+
+    protected final Path queryListFile;
+
+    protected final List<Object> parseKey;
+
+    protected volatile long queryListFileSize;
+
+    protected volatile long queryListFileChecksum;
+
+    protected volatile long queryListFileLastModified;
+
+    protected volatile Query baseQuery;
+
+    protected volatile boolean parsed;
+
+    protected volatile Map<String, Query> filterQueries = Collections.emptyMap();
+
+    protected final ConcurrentMap<String, Query> additionalFilterQueries = new ConcurrentHashMap<>();
+
+    protected final ConcurrentMap<List<String>, Query> authorityFilters = new ConcurrentHashMap<>();
+
+    protected final ConcurrentMap<Query, FilterStatistics> filterStatistics = new ConcurrentHashMap<>();
+
+    protected FilterQueryWarmupPlan(final SolrCore core, final IndexSchema schema, final String baseRequestBody, final Path queryListFile,
+            final long queryListFileLastModified, final long queryListFileSize, final List<Object> parseKey)
+    {
+        this.core = core;
+        this.schema = schema;
+        this.baseRequestBody = baseRequestBody;
+        this.queryListFile = queryListFile;
+        this.queryListFileLastModified = queryListFileLastModified;
+        this.queryListFileSize = queryListFileSize;
+        this.parseKey = parseKey;
+    }
+
+    /**
+     * Retrieves the current, fully parsed warmup plan for a specific listener configuration, building or rebuilding it if necessary.
+     *
+     * @param core
+     *            the core of the listener
+     * @param searcher
+     *            the searcher being warmed
+     * @param queryListFile
+     *            the path to the query list file - may be {@code null}
+     * @param baseQuery
+     *            the base query to use in warmup
+     * @param baseRequestBody
+     *            the base request body providing the context for query parsing
+     * @param parseConcurrency
+     *            the maximum number of chunks of the query list file to parse concurrently while the file is being read - values lower than
+     *            {@code 2} cause the file to be parsed in the calling thread
+     * @return the current plan
+     */
+    public static FilterQueryWarmupPlan getPlan(final SolrCore core, final SolrIndexSearcher searcher, final String queryListFile,
+            final String baseQuery, final String baseRequestBody, final int parseConcurrency)
+    {
+        final FilterQueryWarmupPlan plan = getPlan(core, searcher, queryListFile, baseQuery, baseRequestBody);
+        plan.parse(searcher, parseConcurrency, null);
+        return plan;
+    }
+
+    /**
+     * Retrieves the current warmup plan for a specific listener configuration, building or rebuilding it if necessary. The filter queries of
+     * the query list file of the returned plan may not have been parsed yet, which is left to {@link #parse(SolrIndexSearcher, int, Consumer)}.
+     *
+     * @param core
+     *            the core of the listener
+     * @param searcher
+     *            the searcher being warmed
+     * @param queryListFile
+     *            the path to the query list file - may be {@code null}
+     * @param baseQuery
+     *            the base query to use in warmup
+     * @param baseRequestBody
+     *            the base request body providing the context for query parsing
+     * @return the current plan
+     */
+    public static FilterQueryWarmupPlan getPlan(final SolrCore core, final SolrIndexSearcher searcher, final String queryListFile,
+            final String baseQuery, final String baseRequestBody)
+    {
+        final ConcurrentMap<List<String>, FilterQueryWarmupPlan> plans = PLANS.computeIfAbsent(core, c -> new ConcurrentHashMap<>());
+        final List<String> key = Arrays.asList(queryListFile, baseQuery, baseRequestBody);
+
+        synchronized (plans)
+        {
+            FilterQueryWarmupPlan plan = plans.get(key);
+            if (plan == null || !plan.isCurrent(searcher.getSchema()))
+            {
+                final FilterQueryWarmupPlan previousPlan = plan;
+                plan = build(core, searcher, queryListFile, baseQuery, baseRequestBody);
+                if (previousPlan != null)
+                {
+                    // measured statistics do not depend on how or from which source a filter has been parsed
+                    plan.filterStatistics.putAll(previousPlan.filterStatistics);
+                }
+                plans.put(key, plan);
+            }
+            else
+            {
+                LOGGER.debug("Reusing filter query warmup plan with {} filter queries", plan.filterQueries.size());
+            }
+            return plan;
+        }
+    }
+
+    protected static FilterQueryWarmupPlan build(final SolrCore core, final SolrIndexSearcher searcher, final String queryListFile,
+            final String baseQuery, final String baseRequestBody)
+    {
+        Path file = null;
+        long lastModified = -1;
+        long size = 0;
+        if (queryListFile != null && !queryListFile.trim().isEmpty())
+        {
+            file = Paths.get(queryListFile);
+            if (Files.isRegularFile(file))
+            {
+                try
+                {
+                    lastModified = Files.getLastModifiedTime(file).toMillis();
+                    size = Files.size(file);
+                }
+                catch (final IOException ioex)
+                {
+                    LOGGER.warn("Error handling query list file", ioex);
+                }
+            }
+            else
+            {
+                LOGGER.warn("Not using query list file as parameter value {} does not point to a valid file", queryListFile);
+            }
+        }
+
+        // parsing only depends on the schema, the content of the query list file and the request context - as the file is parsed while it
+        // is being read, its version instead of its content identifies the queries
+        final FilterQueryWarmupPlan plan = new FilterQueryWarmupPlan(core, searcher.getSchema(), baseRequestBody, file, lastModified, size,
+                Arrays.asList(FilterQueryWarmupPlan.class, String.valueOf(lastModified != -1 ? file : null), Long.valueOf(lastModified),
+                        Long.valueOf(size), baseQuery, baseRequestBody));
+
+        // the base query is needed by the first filter queries warmed while the query list file is still being parsed
+        try
+        {
+            plan.baseQuery = QParser.getParser(baseQuery, plan.createRequest(searcher)).getQuery();
+        }
+        catch (final SyntaxError | RuntimeException ex)
+        {
+            WarmupMetrics.getInstance(core, WarmupMetrics.FILTER_QUERY_WARMUP).recordSyntaxError();
+            LOGGER.warn("Failed to parse base query {}", baseQuery, ex);
+        }
+        return plan;
+    }
+
+    /**
+     * Parses the filter queries of the query list file of this plan unless this has already been done, handing the parsed filter queries to
+     * a consumer as they become available.
+     *
+     * @param searcher
+     *            the searcher being warmed
+     * @param parseConcurrency
+     *            the maximum number of chunks of the query list file to parse concurrently while the file is being read - values lower than
+     *            {@code 2} cause the file to be parsed in the calling thread
+     * @param parsedChunks
+     *            the consumer of the parsed filter queries, which is called in the calling thread for each chunk in file order while the
+     *            file is parsed, or once with all filter queries if they have been parsed before or for another core - may be {@code null}
+     */
+    public void parse(final SolrIndexSearcher searcher, final int parseConcurrency, final Consumer<Map<String, Query>> parsedChunks)
+    {
+        final AtomicBoolean streamed = new AtomicBoolean();
+        synchronized (this)
+        {
+            if (!this.parsed)
+            {
+                final long start = System.currentTimeMillis();
+                final Path readFile = this.queryListFileLastModified != -1 ? this.queryListFile : null;
+                final ParsedQueries parsedQueries = WarmupCoordinator.getInstance().getSharedQueries(this.schema, this.parseKey, () -> {
+                    streamed.set(true);
+                    return this.parse(searcher, readFile, parseConcurrency, parsedChunks);
+                });
+                this.filterQueries = Collections.unmodifiableMap(new LinkedHashMap<>(parsedQueries.filterQueries));
+                this.queryListFileSize = parsedQueries.queryListFileSize;
+                this.queryListFileChecksum = parsedQueries.queryListFileChecksum;
+                this.parsed = true;
+
+                LOGGER.debug("Parsed {} filter queries of filter query warmup plan in {} ms", this.filterQueries.size(),
+                        System.currentTimeMillis() - start);
+            }
+        }
+
+        if (parsedChunks != null && !streamed.get() && !this.filterQueries.isEmpty())
+        {
+            parsedChunks.accept(this.filterQueries);
+        }
+    }
+
+    protected ParsedQueries parse(final SolrIndexSearcher searcher, final Path file, final int parseConcurrency,
+            final Consumer<Map<String, Query>> parsedChunks)
+    {
+        final ParsedQueries parsedQueries = new ParsedQueries();
+        if (file != null)
+        {
+            final CRC32 crc = new CRC32();
+            final Set<String> lines = new HashSet<>();
+            final Deque<FutureTask<Map<String, Query>>> chunks = new ArrayDeque<>();
+            final AtomicInteger failedLines = new AtomicInteger();
+            int lineNumber = 0;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+                    BufferedReader reader = new BufferedReader(
+                            new InputStreamReader(new CheckedInputStream(Channels.newInputStream(channel), crc), StandardCharsets.UTF_8)))
+            {
+                Map<Integer, String> chunk = new LinkedHashMap<>();
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    lineNumber++;
+                    final String filterQuery = line.trim();
+                    if (!filterQuery.isEmpty() && lines.add(filterQuery))
+                    {
+                        chunk.put(Integer.valueOf(lineNumber), filterQuery);
+                    }
+
+                    if (chunk.size() >= PARSE_CHUNK_SIZE)
+                    {
+                        this.submitChunk(searcher, chunk, failedLines, parseConcurrency, chunks, parsedQueries, parsedChunks);
+                        chunk = new LinkedHashMap<>();
+                    }
+                }
+                if (!chunk.isEmpty())
+                {
+                    this.submitChunk(searcher, chunk, failedLines, parseConcurrency, chunks, parsedQueries, parsedChunks);
+                }
+                parsedQueries.queryListFileSize = channel.position();
+            }
+            catch (final IOException ioex)
+            {
+                LOGGER.warn("Error reading query list file {} after {} lines", file, lineNumber, ioex);
+            }
+            while (!chunks.isEmpty())
+            {
+                this.collectChunk(chunks.removeFirst(), parsedQueries, parsedChunks);
+            }
+            parsedQueries.queryListFileChecksum = crc.getValue();
+
+            if (failedLines.get() > 0)
+            {
+                LOGGER.warn("Skipped {} of {} filter queries from query list file {} which could not be parsed", failedLines.get(),
+                        lines.size(), file);
+            }
+            LOGGER.debug("Read and parsed {} filter queries from {} lines of query list file {}", parsedQueries.filterQueries.size(),
+                    lineNumber, file);
+        }
+        return parsedQueries;
+    }
+
+    protected void submitChunk(final SolrIndexSearcher searcher, final Map<Integer, String> chunk, final AtomicInteger failedLines,
+            final int parseConcurrency, final Deque<FutureTask<Map<String, Query>>> chunks, final ParsedQueries parsedQueries,
+            final Consumer<Map<String, Query>> parsedChunks)
+    {
+        final FutureTask<Map<String, Query>> parse = new FutureTask<>(() -> this.parseChunk(searcher, chunk, failedLines));
+        chunks.addLast(parse);
+        if (parseConcurrency > 1)
+        {
+            WarmupScheduler.getInstance().executeAsync(parse);
+        }
+        // limits the number of lines read ahead of parsing, and preserves the order of the file when merging parsed chunks
+        while (chunks.size() >= Math.max(1, parseConcurrency))
+        {
+            this.collectChunk(chunks.removeFirst(), parsedQueries, parsedChunks);
+        }
+    }
+
+    protected void collectChunk(final FutureTask<Map<String, Query>> parse, final ParsedQueries parsedQueries,
+            final Consumer<Map<String, Query>> parsedChunks)
+    {
+        // parses the chunk in the reading thread if no warmup thread has picked it up yet, e.g. because all are busy warming other cores
+        parse.run();
+        try
+        {
+            // lines are only distinct within the file, so the filter queries are passed on once they have been merged
+            final Map<String, Query> parsedChunk = new LinkedHashMap<>();
+            parse.get().forEach((filterQuery, query) -> {
+                if (parsedQueries.filterQueries.putIfAbsent(filterQuery, query) == null)
+                {
+                    parsedChunk.put(filterQuery, query);
+                }
+            });
+            if (parsedChunks != null && !parsedChunk.isEmpty())
+            {
+                parsedChunks.accept(parsedChunk);
+            }
+        }
+        catch (final ExecutionException eex)
+        {
+            LOGGER.warn("Failed to parse chunk of query list file", eex.getCause());
+        }
+        catch (final InterruptedException iex)
+        {
+            // cannot happen as the task has been run in this thread if it had not been started before
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected Map<String, Query> parseChunk(final SolrIndexSearcher searcher, final Map<Integer, String> chunk,
+            final AtomicInteger failedLines)
+    {
+        final WarmupMetrics metrics = WarmupMetrics.getInstance(this.core, WarmupMetrics.FILTER_QUERY_WARMUP);
+        final SolrQueryRequest req = this.createRequest(searcher);
+        final Map<String, Query> filterQueries = new LinkedHashMap<>();
+        for (final Map.Entry<Integer, String> filterQuery : chunk.entrySet())
+        {
+            try
+            {
+                final long parseStart = System.nanoTime();
+                filterQueries.put(filterQuery.getValue(), QParser.getParser(filterQuery.getValue(), req).getQuery());
+                metrics.recordParse(System.nanoTime() - parseStart);
+            }
+            catch (final SyntaxError | RuntimeException ex)
+            {
+                // e.g. undefined fields are reported as SolrException instead of SyntaxError
+                metrics.recordSyntaxError();
+                failedLines.incrementAndGet();
+                LOGGER.warn("Failed to parse filter query {} in line {} of query list file {}: {}", filterQuery.getValue(),
+                        filterQuery.getKey(), this.queryListFile, ex.getMessage());
+                LOGGER.debug("Failed to parse filter query {}", filterQuery.getValue(), ex);
+            }
+        }
+        return filterQueries;
+    }
+
+    protected static long checksum(final Path file) throws IOException
+    {
+        final CRC32 crc = new CRC32();
+        try (InputStream in = new CheckedInputStream(Files.newInputStream(file), crc))
+        {
+            final byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1)
+            {
+                // only the checksum is of interest
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Creates a request to be used for parsing and executing warmup queries against a searcher.
+     *
+     * @param searcher
+     *            the searcher the request should be bound to
+     * @return the request
+     */
+    public SolrQueryRequest createRequest(final SolrIndexSearcher searcher)
+    {
+        return this.createRequest(searcher, this.baseRequestBody);
+    }
+
+    protected SolrQueryRequest createRequest(final SolrIndexSearcher searcher, final String requestBody)
+    {
+        return new LocalSolrQueryRequest(this.core, Collections.emptyMap())
+        {
+
+            {
+                if (requestBody != null)
+                {
+                    this.streams = Arrays.asList(new ByteArrayStream(requestBody.getBytes(StandardCharsets.UTF_8), requestBody));
+                }
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public SolrIndexSearcher getSearcher()
+            {
+                return searcher;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+
+    protected boolean isCurrent(final IndexSchema schema)
+    {
+        boolean current = schema == this.schema;
+        if (!current)
+        {
+            LOGGER.debug("Schema has changed - filter query warmup plan needs to be rebuilt");
+        }
+        else if (this.queryListFile != null && Files.isRegularFile(this.queryListFile))
+        {
+            try
+            {
+                final BasicFileAttributes attributes = Files.readAttributes(this.queryListFile, BasicFileAttributes.class);
+                final long lastModified = attributes.lastModifiedTime().toMillis();
+                if (lastModified != this.queryListFileLastModified || attributes.size() != this.queryListFileSize)
+                {
+                    // only a change in content requires a rebuild
+                    current = attributes.size() == this.queryListFileSize
+                            && checksum(this.queryListFile) == this.queryListFileChecksum;
+                    if (current)
+                    {
+                        this.queryListFileLastModified = lastModified;
+                    }
+                    else
+                    {
+                        LOGGER.debug("Query list file {} has changed - filter query warmup plan needs to be rebuilt", this.queryListFile);
+                    }
+                }
+            }
+            catch (final IOException ioex)
+            {
+                LOGGER.warn("Error checking query list file for changes", ioex);
+            }
+        }
+        else if (this.queryListFile != null)
+        {
+            // file has been removed
+            current = this.queryListFileLastModified == -1;
+        }
+        return current;
+    }
+
+    /**
+     * Retrieves the parsed base query.
+     *
+     * @return the base query or {@code null} if it could not be parsed
+     */
+    public Query getBaseQuery()
+    {
+        return this.baseQuery;
+    }
+
+    /**
+     * Checks whether the filter queries of the query list file of this plan have been parsed.
+     *
+     * @return {@code true} if the filter queries have been parsed, {@code false} otherwise
+     */
+    public boolean isParsed()
+    {
+        return this.parsed;
+    }
+
+    /**
+     * Retrieves the parsed filter queries from the query list file.
+     *
+     * @return the filter queries keyed by their textual representation, in file order - empty until the plan has been parsed
+     */
+    public Map<String, Query> getFilterQueries()
+    {
+        return this.filterQueries;
+    }
+
+    /**
+     * Retrieves the parsed representation of a filter query, parsing and remembering it if it is not contained in the query list file.
+     *
+     * @param searcher
+     *            the searcher being warmed
+     * @param filterQuery
+     *            the filter query
+     * @return the parsed filter query
+     * @throws SyntaxError
+     *             if the filter query cannot be parsed
+     */
+    public Query getFilterQuery(final SolrIndexSearcher searcher, final String filterQuery) throws SyntaxError
+    {
+        Query query = this.filterQueries.get(filterQuery);
+        if (query == null)
+        {
+            query = this.additionalFilterQueries.get(filterQuery);
+            if (query == null)
+            {
+                final WarmupMetrics metrics = WarmupMetrics.getInstance(this.core, WarmupMetrics.FILTER_QUERY_WARMUP);
+                final long parseStart = System.nanoTime();
+                try
+                {
+                    query = QParser.getParser(filterQuery, this.createRequest(searcher)).getQuery();
+                }
+                catch (final SyntaxError serr)
+                {
+                    metrics.recordSyntaxError();
+                    throw serr;
+                }
+                metrics.recordParse(System.nanoTime() - parseStart);
+                if (this.additionalFilterQueries.size() >= MAX_ADDITIONAL_FILTER_QUERIES)
+                {
+                    this.additionalFilterQueries.clear();
+                }
+                this.additionalFilterQueries.put(filterQuery, query);
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Retrieves the parsed permission filter of an authority set, parsing and remembering it if it has not been parsed before. The filter
+     * query is parsed in the context of the base request body extended with the authorities of the set, just like Alfresco provides them in
+     * search requests.
+     *
+     * @param searcher
+     *            the searcher being warmed
+     * @param authorityFilterQuery
+     *            the filter query which selects the authority filter, e.g. {@link AuthoritySet#DEFAULT_AUTHORITY_FILTER_QUERY}
+     * @param authoritySet
+     *            the authority set
+     * @return the parsed authority filter
+     * @throws SyntaxError
+     *             if the filter query cannot be parsed
+     */
+    public Query getAuthorityFilter(final SolrIndexSearcher searcher, final String authorityFilterQuery, final AuthoritySet authoritySet)
+            throws SyntaxError
+    {
+        final List<String> key = Arrays.asList(authorityFilterQuery, authoritySet.getKey());
+        Query query = this.authorityFilters.get(key);
+        if (query == null)
+        {
+            final WarmupMetrics metrics = WarmupMetrics.getInstance(this.core, WarmupMetrics.FILTER_QUERY_WARMUP);
+            final long parseStart = System.nanoTime();
+            try
+            {
+                query = QParser.getParser(authorityFilterQuery,
+                        this.createRequest(searcher, authoritySet.toRequestBody(this.baseRequestBody))).getQuery();
+            }
+            catch (final SyntaxError | RuntimeException ex)
+            {
+                metrics.recordSyntaxError();
+                throw ex;
+            }
+            metrics.recordParse(System.nanoTime() - parseStart);
+            if (this.authorityFilters.size() >= MAX_ADDITIONAL_FILTER_QUERIES)
+            {
+                this.authorityFilters.clear();
+            }
+            this.authorityFilters.put(key, query);
+        }
+        return query;
+    }
+
+    /**
+     * Retrieves the estimated cost of warming a filter, based on the costs measured in previous warmups.
+     *
+     * @param filter
+     *            the filter
+     * @return the estimated cost in nanoseconds
+     */
+    public long getEstimatedCost(final Query filter)
+    {
+        final FilterStatistics statistics = this.filterStatistics.get(QueryUtils.getAbs(filter));
+        return statistics != null ? statistics.costNanos : DEFAULT_FILTER_QUERY_COST;
+    }
+
+    /**
+     * Retrieves the number of documents matched by a filter in the last warmup.
+     *
+     * @param filter
+     *            the filter
+     * @return the number of matched documents or {@code -1} if unknown
+     */
+    public int getCardinality(final Query filter)
+    {
+        final FilterStatistics statistics = this.filterStatistics.get(QueryUtils.getAbs(filter));
+        return statistics != null ? statistics.cardinality : -1;
+    }
+
+    /**
+     * Records the execution of a filter in a warmup, smoothing the measured cost with previous measurements.
+     *
+     * @param filter
+     *            the filter
+     * @param costNanos
+     *            the measured cost in nanoseconds
+     * @param cardinality
+     *            the number of documents matched by the filter or {@code -1} if unknown
+     */
+    public void recordExecution(final Query filter, final long costNanos, final int cardinality)
+    {
+        final Query absFilter = QueryUtils.getAbs(filter);
+        FilterStatistics statistics = this.filterStatistics.get(absFilter);
+        if (statistics == null && this.filterStatistics.size() < this.filterQueries.size() + MAX_ADDITIONAL_FILTER_QUERIES)
+        {
+            statistics = this.filterStatistics.computeIfAbsent(absFilter, k -> new FilterStatistics(costNanos));
+        }
+
+        if (statistics != null)
+        {
+            statistics.record(costNanos, cardinality);
+        }
+    }
+
+    /**
+     * Instances of this class hold the result of parsing the query list file of a plan.
+     */
+    protected static class ParsedQueries
+    {
+
+        protected final Map<String, Query> filterQueries = new LinkedHashMap<>();
+
+        protected long queryListFileSize;
+
+        protected long queryListFileChecksum;
+    }
+
+    /**
+     * Instances of this class track the measured statistics of a single filter across warmups.
+     */
+    protected static class FilterStatistics
+    {
+
+        protected volatile long costNanos;
+
+        protected volatile int cardinality = -1;
+
+        protected FilterStatistics(final long costNanos)
+        {
+            this.costNanos = costNanos;
+        }
+
+        protected synchronized void record(final long costNanos, final int cardinality)
+        {
+            this.costNanos = (this.costNanos + costNanos) / 2;
+            if (cardinality >= 0)
+            {
+                this.cardinality = cardinality;
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.stream.Collectors;
+
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this listener prefetch the index files of a new SOLR searcher instance into the page cache of the operating system by reading
+ * them sequentially, so that subsequent query-level warmups (and the first user queries) do not have to fault in cold pages via random
+ * reads. This is primarily relevant for the first searcher after a restart, when the page cache is empty. Files are prefetched in order of
+ * their configured file extensions (term dictionaries first by default) and segment size, up to a configurable budget, and files which have
+ * already been prefetched for a previous searcher are skipped. As listeners are called in the order of their registration, this listener
+ * needs to be registered before all other warmup listeners.
+ */
+public class IndexPrefetchListener extends AbstractSolrEventListener
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    // term index and dictionary, compound files of small segments, postings, doc values, points and norms
+    protected static final List<String> DEFAULT_FILE_EXTENSIONS = Collections
+            .unmodifiableList(Arrays.asList("tip", "tim", "cfs", "doc", "dvm", "dvd", "dii", "dim", "nvm", "nvd"));
+
+    protected static final int DEFAULT_MAX_MEGABYTES = 1024;
+
+    protected static final int BUFFER_SIZE = 1 << 16;
+
+    protected static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    // estimate for cold, sequential reads until actual throughput has been measured
+    protected static final double DEFAULT_NANOS_PER_BYTE = 1000000000d / (100 * BYTES_PER_MEGABYTE);
+
+    protected static final Map<SolrCore, Set<String>> PREFETCHED_FILES = Collections.synchronizedMap(new WeakHashMap<>());
+
+    protected volatile double nanosPerByte = DEFAULT_NANOS_PER_BYTE;
+
+    protected WarmupConfiguration configuration;
+
+    public IndexPrefetchListener(final SolrCore core)
+    {
+        super(core);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void newSearcher(final SolrIndexSearcher newSearcher, final SolrIndexSearcher currentSearcher)
+    {
+        final long warmupStart = System.nanoTime();
+        final List<IndexFile> files = this.selectFiles(newSearcher);
+
+        if (files.isEmpty())
+        {
+            LOGGER.debug("Skipping index prefetch as no index files are left to prefetch");
+        }
+        else
+        {
+            final Integer concurrentThreads = this.getConcurrentThreads();
+            final Integer concurrentTimeout = (Integer) this.getArgs().get("concurrentTimeout");
+
+            LOGGER.debug("Starting prefetch of {} index files with {} bytes", files.size(),
+                    files.stream().mapToLong(file -> file.length).sum());
+            final Set<String> prefetchedFiles = PREFETCHED_FILES.computeIfAbsent(this.getCore(),
+                    c -> Collections.synchronizedSet(new HashSet<>()));
+            final int fileExtensions = this.getFileExtensions().size();
+            final List<Runnable> tasks = new ArrayList<>();
+            for (final IndexFile file : files)
+            {
+                final long cost = Math.max(1, (long) (file.length * this.nanosPerByte));
+                // the scheduler orders by value per cost, so the value only needs to reflect the priority of the file extension
+                tasks.add(new WarmupTask("prefetch of " + file.name + " [" + file.length + " bytes]", cost,
+                        (double) cost * (fileExtensions - file.extensionIndex), () -> {
+                    if (this.prefetch(file))
+                    {
+                        prefetchedFiles.add(file.name);
+                    }
+                }));
+            }
+
+            final WarmupMetrics metrics = WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.INDEX_PREFETCH);
+            try
+            {
+                // prefetching only makes sense if it completes before the query-level warmups, so it is never run in the background
+                WarmupScheduler.getInstance().execute(this.getCore(), newSearcher, "index prefetch", tasks, concurrentThreads.intValue(),
+                        concurrentTimeout, metrics);
+            }
+            finally
+            {
+                metrics.recordWarmup(currentSearcher == null ? "firstSearcher" : "newSearcher", System.nanoTime() - warmupStart, -1, -1);
+                LOGGER.debug("Completed index prefetch");
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(@SuppressWarnings("rawtypes") final NamedList args)
+    {
+        super.init(args);
+
+        final String configurationFile = (String) args.get("configurationFile");
+        if (configurationFile != null && !configurationFile.trim().isEmpty())
+        {
+            this.configuration = WarmupConfiguration
+                    .getInstance(this.getCore(), WarmupConfiguration.resolveConfigurationFile(this.getCore(), configurationFile));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * If a warmup configuration file has been configured, its entries for index prefetch override the arguments from
+     * {@code solrconfig.xml}.
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public NamedList getArgs()
+    {
+        final NamedList args = super.getArgs();
+        return this.configuration != null ? this.configuration.getArgs(WarmupMetrics.INDEX_PREFETCH, args) : args;
+    }
+
+    protected List<IndexFile> selectFiles(final SolrIndexSearcher searcher)
+    {
+        final List<String> fileExtensions = this.getFileExtensions();
+        final long budget = this.getBudget();
+
+        final Set<String> prefetchedFiles = PREFETCHED_FILES.computeIfAbsent(this.getCore(),
+                c -> Collections.synchronizedSet(new HashSet<>()));
+        final Set<String> currentFiles = new HashSet<>();
+        final List<IndexFile> candidates = new ArrayList<>();
+
+        // larger segments hold most of the documents, so their files are most valuable within each file extension
+        final List<LeafReaderContext> leaves = new ArrayList<>(searcher.getIndexReader().leaves());
+        leaves.sort(Comparator.comparingInt((final LeafReaderContext leaf) -> leaf.reader().maxDoc()).reversed());
+        for (final LeafReaderContext leaf : leaves)
+        {
+            final LeafReader reader = FilterLeafReader.unwrap(leaf.reader());
+            if (reader instanceof SegmentReader)
+            {
+                final SegmentReader segmentReader = (SegmentReader) reader;
+                final Directory directory = segmentReader.directory();
+                try
+                {
+                    for (final String file : segmentReader.getSegmentInfo().files())
+                    {
+                        currentFiles.add(file);
+                        final int extensionIndex = fileExtensions.indexOf(IndexFileNames.getExtension(file));
+                        if (extensionIndex != -1 && !prefetchedFiles.contains(file))
+                        {
+                            candidates.add(new IndexFile(directory, file, directory.fileLength(file), extensionIndex));
+                        }
+                    }
+                }
+                catch (final IOException ioex)
+                {
+                    LOGGER.warn("Failed to determine index files of segment {}", segmentReader.getSegmentName(), ioex);
+                }
+            }
+            else
+            {
+                LOGGER.debug("Not prefetching index files of {} as it is not a segment reader", reader);
+            }
+        }
+        // segment files are write-once, so files no longer in use will never be seen again
+        prefetchedFiles.retainAll(currentFiles);
+
+        // stable sort retains the segment size order within each file extension
+        candidates.sort(Comparator.comparingInt(file -> file.extensionIndex));
+        final List<IndexFile> files = new ArrayList<>();
+        long selectedBytes = 0;
+        for (final IndexFile candidate : candidates)
+        {
+            // smaller files further down the list may still fit into the remaining budget
+            if (selectedBytes + candidate.length <= budget)
+            {
+                files.add(candidate);
+                selectedBytes += candidate.length;
+            }
+        }
+        if (files.size() < candidates.size())
+        {
+            LOGGER.debug("Skipping prefetch of {} index files exceeding the budget of {} bytes", candidates.size() - files.size(), budget);
+        }
+        return files;
+    }
+
+    protected boolean prefetch(final IndexFile file)
+    {
+        boolean prefetched = false;
+        final long start = System.nanoTime();
+        try (IndexInput input = file.directory.openInput(file.name, IOContext.READONCE))
+        {
+            // sequential reads let the operating system read ahead instead of faulting in single pages
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = input.length();
+            while (remaining > 0)
+            {
+                final int read = (int) Math.min(buffer.length, remaining);
+                input.readBytes(buffer, 0, read);
+                remaining -= read;
+            }
+            prefetched = true;
+
+            if (file.length > BUFFER_SIZE)
+            {
+                this.nanosPerByte = (this.nanosPerByte + (double) (System.nanoTime() - start) / file.length) / 2;
+            }
+        }
+        catch (final IOException ioex)
+        {
+            // the file may have been deleted by a merge in the meantime
+            LOGGER.debug("Failed to prefetch index file {}", file.name, ioex);
+        }
+        return prefetched;
+    }
+
+    protected long getBudget()
+    {
+        final Integer maxMegabytes = (Integer) this.getArgs().get("maxMegabytes");
+        return (maxMegabytes != null && maxMegabytes.intValue() >= 0 ? maxMegabytes.intValue() : DEFAULT_MAX_MEGABYTES)
+                * BYTES_PER_MEGABYTE;
+    }
+
+    protected List<String> getFileExtensions()
+    {
+        final Object fileExtensions = this.getArgs().get("fileExtensions");
+        return fileExtensions instanceof Collection<?> && !((Collection<?>) fileExtensions).isEmpty()
+                ? ((Collection<?>) fileExtensions).stream().map(String::valueOf).map(String::trim).collect(Collectors.toList())
+                : DEFAULT_FILE_EXTENSIONS;
+    }
+
+    protected Integer getConcurrentThreads()
+    {
+        Integer concurrentThreads = (Integer) this.getArgs().get("concurrentThreads");
+        if (concurrentThreads == null || concurrentThreads.intValue() <= 0)
+        {
+            LOGGER.debug("Number of concurrent threads has not been properly configured - defaulting to 1");
+            concurrentThreads = Integer.valueOf(1);
+        }
+        return concurrentThreads;
+    }
+
+    /**
+     * Instances of this class represent a single index file selected for prefetching.
+     */
+    protected static class IndexFile
+    {
+
+        protected final Directory directory;
+
+        protected final String name;
+
+        protected final long length;
+
+        protected final int extensionIndex;
+
+        protected IndexFile(final Directory directory, final String name, final long length, final int extensionIndex)
+        {
+            this.directory = directory;
+            this.name = name;
+            this.length = length;
+            this.extensionIndex = extensionIndex;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.solr.core.SolrCore;
+
+/**
+ * Instances of this class track the live search requests of a single core, i.e. the number of requests currently in flight and the total
+ * number and latency of completed requests, as observed by {@link FilterQueryRecorderComponent}. Warmups use them to detect when user
+ * queries start to suffer from (or queue behind) a running warmup, see {@link AdaptiveConcurrency}.
+ */
+public class LiveQueryMonitor
+{
+
+    private static final Map<SolrCore, LiveQueryMonitor> INSTANCES = Collections.synchronizedMap(new WeakHashMap<>());
+
+    protected final AtomicInteger inFlight = new AtomicInteger();
+
+    protected final AtomicLong completed = new AtomicLong();
+
+    protected final AtomicLong totalNanos = new AtomicLong();
+
+    /**
+     * Retrieves the monitor of a core.
+     *
+     * @param core
+     *            the core
+     * @return the monitor
+     */
+    public static LiveQueryMonitor getInstance(final SolrCore core)
+    {
+        return INSTANCES.computeIfAbsent(core, c -> new LiveQueryMonitor());
+    }
+
+    /**
+     * Records the start of a live request.
+     */
+    public void requestStarted()
+    {
+        this.inFlight.incrementAndGet();
+    }
+
+    /**
+     * Records the completion of a live request previously recorded via {@link #requestStarted() requestStarted}.
+     *
+     * @param nanos
+     *            the latency of the request in nanoseconds
+     */
+    public void requestCompleted(final long nanos)
+    {
+        this.inFlight.decrementAndGet();
+        // the total is updated before the count, so that readers never see a count without its latency
+        this.totalNanos.addAndGet(nanos);
+        this.completed.incrementAndGet();
+    }
+
+    /**
+     * Retrieves the number of live requests currently in flight.
+     *
+     * @return the number of requests in flight
+     */
+    public int getInFlight()
+    {
+        return Math.max(0, this.inFlight.get());
+    }
+
+    /**
+     * Retrieves the number of live requests completed since the core was loaded.
+     *
+     * @return the number of completed requests
+     */
+    public long getCompleted()
+    {
+        return this.completed.get();
+    }
+
+    /**
+     * Retrieves the total latency of all live requests completed since the core was loaded.
+     *
+     * @return the total latency in nanoseconds
+     */
+    public long getTotalNanos()
+    {
+        return this.totalNanos.get();
+    }
+}
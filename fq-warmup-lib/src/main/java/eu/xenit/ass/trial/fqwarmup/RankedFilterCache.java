@@ -0,0 +1,210 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.FastLRUCache;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Instances of this cache behave just like the default {@link FastLRUCache} but additionally keep track of the number and recency of hits
+ * on each cache key. This allows {@link FilterQueryWarmupListener} to hand off the hottest entries of the filter cache of an outgoing
+ * searcher to a new searcher, instead of relying on the purely recency-based autowarming of SOLR.
+ *
+ * @param <K>
+ *            the type of the cache keys
+ * @param <V>
+ *            the type of the cache values
+ */
+public class RankedFilterCache<K, V> extends FastLRUCache<K, V>
+{
+
+    protected static final int DEFAULT_SIZE = 1024;
+
+    protected static final long DEFAULT_RANK_HALF_LIFE = 600000;
+
+    protected final ConcurrentMap<K, HitStatistics> hitStatistics = new ConcurrentHashMap<>();
+
+    protected int maxTrackedKeys;
+
+    protected long rankHalfLife;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object init(@SuppressWarnings("rawtypes") final Map args, final Object persistence, final CacheRegenerator regenerator)
+    {
+        final Object size = args.get("size");
+        final Object rankHalfLife = args.get("rankHalfLife");
+
+        // history is only kept for as many keys as the cache holds, so tracking does not add more than a small, bounded overhead per entry
+        this.maxTrackedKeys = Math.max(1, size != null ? Integer.parseInt(String.valueOf(size)) : DEFAULT_SIZE);
+        this.rankHalfLife = rankHalfLife != null ? Long.parseLong(String.valueOf(rankHalfLife)) : DEFAULT_RANK_HALF_LIFE;
+
+        return super.init(args, persistence, regenerator);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V get(final K key)
+    {
+        final V value = super.get(key);
+        if (value != null)
+        {
+            final long now = System.currentTimeMillis();
+            this.hitStatistics.computeIfAbsent(key, k -> new HitStatistics(now)).hit(now, this.rankHalfLife);
+        }
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public V put(final K key, final V value)
+    {
+        final long now = System.currentTimeMillis();
+        this.hitStatistics.computeIfAbsent(key, k -> new HitStatistics(now));
+        // the new key has not had any chance to be hit yet, so it must not be the first to be pruned
+        this.pruneIfNecessary(key);
+        return super.put(key, value);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    public void warm(final SolrIndexSearcher searcher, final SolrCache old)
+    {
+        super.warm(searcher, old);
+
+        // carry over the history so that ranks are not limited to the (potentially very short) lifetime of a single searcher
+        if (old instanceof RankedFilterCache<?, ?>)
+        {
+            ((RankedFilterCache<K, V>) old).hitStatistics.forEach(this.hitStatistics::putIfAbsent);
+            this.pruneIfNecessary(null);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear()
+    {
+        super.clear();
+        this.hitStatistics.clear();
+    }
+
+    /**
+     * Retrieves a cached value without counting it as a hit, e.g. to inspect an entry that has just been warmed.
+     *
+     * @param key
+     *            the cache key
+     * @return the cached value or {@code null} if the key is not cached
+     */
+    public V peek(final K key)
+    {
+        return super.get(key);
+    }
+
+    /**
+     * Retrieves the cache keys with the highest rank, defined as the number of hits decayed by the time since the last hit.
+     *
+     * @param count
+     *            the maximum number of keys to retrieve
+     * @return the keys in descending order of rank
+     */
+    public List<K> getHottestKeys(final int count)
+    {
+        final List<Map.Entry<K, Double>> ranks = this.snapshotRanks(System.currentTimeMillis());
+        ranks.sort(Map.Entry.<K, Double> comparingByValue().reversed());
+        return ranks.stream().limit(count).map(Map.Entry::getKey).collect(Collectors.toList());
+    }
+
+    /**
+     * Retrieves the rank of a cache key, defined as the number of hits decayed by the time since the last hit.
+     *
+     * @param key
+     *            the cache key
+     * @return the rank or {@code 0} if no hits are tracked for the key
+     */
+    public double getRank(final K key)
+    {
+        final HitStatistics statistics = this.hitStatistics.get(key);
+        return statistics != null ? statistics.rank(System.currentTimeMillis(), this.rankHalfLife) : 0;
+    }
+
+    protected List<Map.Entry<K, Double>> snapshotRanks(final long now)
+    {
+        // ranks change with every hit of a concurrent request, so they are captured once instead of being evaluated while sorting
+        final List<Map.Entry<K, Double>> ranks = new ArrayList<>(this.hitStatistics.size());
+        this.hitStatistics.forEach(
+                (key, statistics) -> ranks.add(new AbstractMap.SimpleImmutableEntry<>(key, statistics.rank(now, this.rankHalfLife))));
+        return ranks;
+    }
+
+    protected void pruneIfNecessary(final K retainedKey)
+    {
+        if (this.hitStatistics.size() > this.maxTrackedKeys)
+        {
+            synchronized (this.hitStatistics)
+            {
+                if (this.hitStatistics.size() > this.maxTrackedKeys)
+                {
+                    // prune some more to avoid pruning on every new key
+                    final int excess = this.hitStatistics.size() - (this.maxTrackedKeys - this.maxTrackedKeys / 4);
+                    final List<Map.Entry<K, Double>> lowestRanked = this.snapshotRanks(System.currentTimeMillis());
+                    lowestRanked.removeIf(e -> e.getKey().equals(retainedKey));
+                    lowestRanked.sort(Map.Entry.comparingByValue());
+                    lowestRanked.subList(0, Math.min(excess, lowestRanked.size())).forEach(e -> this.hitStatistics.remove(e.getKey()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Instances of this class track the hits on a single cache key.
+     */
+    protected static class HitStatistics
+    {
+
+        protected double hits;
+
+        protected long lastHit;
+
+        protected HitStatistics(final long created)
+        {
+            this.lastHit = created;
+        }
+
+        protected synchronized void hit(final long now, final long halfLife)
+        {
+            this.hits = this.hits * this.decay(now, halfLife) + 1;
+            this.lastHit = now;
+        }
+
+        protected synchronized double rank(final long now, final long halfLife)
+        {
+            // entries without hits are still ranked by recency of insertion
+            return (this.hits + 0.01) * this.decay(now, halfLife);
+        }
+
+        protected double decay(final long now, final long halfLife)
+        {
+            final long age = Math.max(0, now - this.lastHit);
+            return Math.pow(0.5, (double) age / halfLife);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.noggit.JSONUtil;
+import org.noggit.ObjectBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class represent a search request as recorded by {@link FilterQueryRecorderComponent} for replay by
+ * {@link RequestReplayListener}. Only the parameters which determine the cache entries a request hits - query, filter queries, sort,
+ * paging and field list - are recorded, together with the (Alfresco) JSON body of the request. Recorded requests are kept in a canonical
+ * key form, so that requests differing only in the order of their filter queries or the formatting of their body are recorded and ranked
+ * as one via {@link WarmupStatistics}.
+ */
+public class RecordedRequest
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final List<String> DEFAULT_RECORDED_PARAMS = Collections.unmodifiableList(Arrays.asList(CommonParams.Q, "defType",
+            CommonParams.DF, "q.op", CommonParams.FQ, CommonParams.SORT, CommonParams.START, CommonParams.ROWS, CommonParams.FL));
+
+    // request context key marking requests replayed by RequestReplayListener, so that they are not recorded again
+    public static final String REPLAYED = "eu.xenit.ass.fqwarmup.replayed";
+
+    protected static final String HANDLER = "handler";
+
+    protected static final String PARAMS = "params";
+
+    protected static final String BODY = "body";
+
+    protected final String handler;
+
+    protected final Map<String, List<String>> params;
+
+    protected final Object body;
+
+    protected RecordedRequest(final String handler, final Map<String, List<String>> params, final Object body)
+    {
+        this.handler = handler;
+        this.params = Collections.unmodifiableMap(new TreeMap<>(params));
+        this.body = body;
+    }
+
+    /**
+     * Records the relevant parts of a search request.
+     *
+     * @param req
+     *            the request
+     * @param recordedParams
+     *            the names of the parameters to record
+     * @return the recorded request or {@code null} if the request does not have a query
+     */
+    public static RecordedRequest fromRequest(final SolrQueryRequest req, final Collection<String> recordedParams)
+    {
+        RecordedRequest recordedRequest = null;
+        if (req.getParams().get(CommonParams.Q) != null)
+        {
+            final Map<String, List<String>> params = new TreeMap<>();
+            for (final String param : recordedParams)
+            {
+                final String[] values = req.getParams().getParams(param);
+                if (values != null && values.length > 0)
+                {
+                    final List<String> valueList = new ArrayList<>(Arrays.asList(values));
+                    // the order of filter queries does not affect the result or the cache entries
+                    if (CommonParams.FQ.equals(param))
+                    {
+                        Collections.sort(valueList);
+                    }
+                    params.put(param, valueList);
+                }
+            }
+
+            final Object path = req.getContext().get(CommonParams.PATH);
+            recordedRequest = new RecordedRequest(path instanceof String ? (String) path : null, params,
+                    parseBody(AuthoritySet.getRequestBody(req)));
+        }
+        return recordedRequest;
+    }
+
+    /**
+     * Parses a recorded request from its key form.
+     *
+     * @param key
+     *            the key form of the recorded request
+     * @return the recorded request or {@code null} if the key cannot be parsed
+     */
+    public static RecordedRequest parse(final String key)
+    {
+        RecordedRequest recordedRequest = null;
+        try
+        {
+            final Object parsed = ObjectBuilder.fromJSON(key);
+            if (parsed instanceof Map<?, ?> && ((Map<?, ?>) parsed).get(PARAMS) instanceof Map<?, ?>)
+            {
+                final Map<?, ?> map = (Map<?, ?>) parsed;
+                final Map<String, List<String>> params = new TreeMap<>();
+                ((Map<?, ?>) map.get(PARAMS)).forEach((name, values) -> {
+                    final List<String> valueList = new ArrayList<>();
+                    if (values instanceof Collection<?>)
+                    {
+                        ((Collection<?>) values).forEach(value -> valueList.add(String.valueOf(value)));
+                    }
+                    else if (values != null)
+                    {
+                        valueList.add(String.valueOf(values));
+                    }
+                    params.put(String.valueOf(name), valueList);
+                });
+                final Object handler = map.get(HANDLER);
+                recordedRequest = new RecordedRequest(handler instanceof String ? (String) handler : null, params, map.get(BODY));
+            }
+        }
+        catch (final IOException | RuntimeException ex)
+        {
+            LOGGER.debug("Failed to parse recorded request {}", key, ex);
+        }
+        return recordedRequest;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static Object parseBody(final String json)
+    {
+        Object body = null;
+        if (json != null && !json.trim().isEmpty())
+        {
+            try
+            {
+                body = ObjectBuilder.fromJSON(json);
+                // the order of properties is irrelevant to the (Alfresco) query parsers
+                if (body instanceof Map<?, ?>)
+                {
+                    body = new TreeMap<>((Map<String, Object>) body);
+                }
+            }
+            catch (final IOException | RuntimeException ex)
+            {
+                LOGGER.debug("Failed to parse request body for recording", ex);
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Retrieves the path of the request handler which handled the recorded request.
+     *
+     * @return the path of the request handler or {@code null} if it is unknown, e.g. for requests not received via HTTP
+     */
+    public String getHandler()
+    {
+        return this.handler;
+    }
+
+    /**
+     * Creates the parameters for replaying the recorded request.
+     *
+     * @return the parameters
+     */
+    public ModifiableSolrParams toParams()
+    {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        this.params.forEach((name, values) -> params.set(name, values.toArray(new String[0])));
+        return params;
+    }
+
+    /**
+     * Retrieves the JSON body for replaying the recorded request.
+     *
+     * @return the JSON body or {@code null} if the recorded request did not have a body
+     */
+    public String getBody()
+    {
+        return this.body != null ? JSONUtil.toJSON(this.body, -1) : null;
+    }
+
+    /**
+     * Retrieves the canonical key of this recorded request, which is a single line of JSON.
+     *
+     * @return the key
+     */
+    public String getKey()
+    {
+        final Map<String, Object> map = new LinkedHashMap<>();
+        if (this.handler != null)
+        {
+            map.put(HANDLER, this.handler);
+        }
+        map.put(PARAMS, this.params);
+        if (this.body != null)
+        {
+            map.put(BODY, this.body);
+        }
+        return JSONUtil.toJSON(map, -1);
+    }
+
+    /**
+     * Retrieves a short digest of the key of this recorded request, which identifies it in logs, task descriptions and metrics without
+     * disclosing its parameters or body.
+     *
+     * @return the digest
+     */
+    public String getDigest()
+    {
+        return Digests.shortSha256(this.getKey());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return (this.handler != null ? this.handler + " " : "") + "request " + this.getDigest();
+    }
+}
@@ -0,0 +1,319 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.ContentStreamBase.ByteArrayStream;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestHandler;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this listener pre-warm the query result cache and (optionally) the document cache of a new SOLR searcher instance by
+ * replaying search requests recorded by {@link FilterQueryRecorderComponent}. Requests are replayed through the request handler which
+ * originally handled them, so that they are parsed and executed exactly as live requests - including the Alfresco JSON body - and hit the
+ * same cache entries. Only the most valuable requests are replayed, defined (as for learned filter queries) as their decayed frequency
+ * weighted by their cost of execution.
+ */
+public class RequestReplayListener extends AbstractSolrEventListener
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    protected static final int DEFAULT_REPLAY_COUNT = 50;
+
+    protected static final String DEFAULT_HANDLER = "/select";
+
+    protected final ConcurrentMap<String, Long> replayCosts = new ConcurrentHashMap<>();
+
+    protected WarmupConfiguration configuration;
+
+    public RequestReplayListener(final SolrCore core)
+    {
+        super(core);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void newSearcher(final SolrIndexSearcher newSearcher, final SolrIndexSearcher currentSearcher)
+    {
+        final long warmupStart = System.nanoTime();
+        final WarmupStatistics statistics = this.getStatistics();
+        final List<RecordedRequest> requests = this.getRecordedRequests(statistics);
+
+        if (requests.isEmpty())
+        {
+            LOGGER.debug("Skipping request replay as no recorded requests are available");
+        }
+        else
+        {
+            final Integer concurrentThreads = this.getConcurrentThreads();
+            final Integer concurrentTimeout = (Integer) this.getArgs().get("concurrentTimeout");
+
+            LOGGER.debug("Starting replay of {} recorded requests", requests.size());
+            final List<Runnable> tasks = this.createTasks(newSearcher, statistics, requests);
+
+            final WarmupMetrics metrics = WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.REQUEST_REPLAY);
+            final Runnable completion = () -> {
+                metrics.recordWarmup(currentSearcher == null ? "firstSearcher" : "newSearcher", System.nanoTime() - warmupStart, -1, -1);
+                LOGGER.debug("Completed request replay");
+            };
+            if (Boolean.TRUE.equals(this.getArgs().get("backgroundWarmup")))
+            {
+                WarmupScheduler.getInstance().submit(this.getCore(), newSearcher, "request replay", tasks, concurrentThreads.intValue(),
+                        concurrentTimeout, metrics, completion);
+            }
+            else
+            {
+                try
+                {
+                    WarmupScheduler.getInstance().execute(this.getCore(), newSearcher, "request replay", tasks,
+                            concurrentThreads.intValue(), concurrentTimeout, metrics);
+                }
+                finally
+                {
+                    completion.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(@SuppressWarnings("rawtypes") final NamedList args)
+    {
+        super.init(args);
+
+        final String configurationFile = (String) args.get("configurationFile");
+        if (configurationFile != null && !configurationFile.trim().isEmpty())
+        {
+            this.configuration = WarmupConfiguration
+                    .getInstance(this.getCore(), WarmupConfiguration.resolveConfigurationFile(this.getCore(), configurationFile));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * If a warmup configuration file has been configured, its entries for request replay override the arguments from
+     * {@code solrconfig.xml}.
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public NamedList getArgs()
+    {
+        final NamedList args = super.getArgs();
+        return this.configuration != null ? this.configuration.getArgs(WarmupMetrics.REQUEST_REPLAY, args) : args;
+    }
+
+    protected WarmupStatistics getStatistics()
+    {
+        final String statisticsFile = (String) this.getArgs().get("statisticsFile");
+        WarmupStatistics statistics = null;
+        if (statisticsFile != null && !statisticsFile.trim().isEmpty())
+        {
+            final Integer maxEntries = (Integer) this.getArgs().get("maxEntries");
+            final Object halfLife = this.getArgs().get("decayHalfLife");
+            statistics = WarmupStatistics.getInstance(this.getCore(),
+                    FilterQueryRecorderComponent.resolveStatisticsFile(this.getCore(), statisticsFile),
+                    maxEntries != null ? maxEntries.intValue() : WarmupStatistics.DEFAULT_MAX_ENTRIES,
+                    halfLife instanceof Number ? ((Number) halfLife).longValue() : WarmupStatistics.DEFAULT_HALF_LIFE);
+        }
+        else
+        {
+            LOGGER.warn("Statistics file has not been configured - recorded requests cannot be replayed");
+        }
+        return statistics;
+    }
+
+    protected List<RecordedRequest> getRecordedRequests(final WarmupStatistics statistics)
+    {
+        final List<RecordedRequest> requests = new ArrayList<>();
+        if (statistics != null)
+        {
+            final Integer replayCount = (Integer) this.getArgs().get("replayCount");
+            // recorded requests are already unique by their canonical key, so the top entries need no further de-duplication
+            for (final String key : statistics
+                    .getTopEntries(replayCount != null && replayCount.intValue() >= 0 ? replayCount.intValue() : DEFAULT_REPLAY_COUNT))
+            {
+                final RecordedRequest request = RecordedRequest.parse(key);
+                if (request != null)
+                {
+                    requests.add(request);
+                }
+                else
+                {
+                    LOGGER.debug("Skipping unreadable recorded request {}", Digests.shortSha256(key));
+                }
+            }
+        }
+        return requests;
+    }
+
+    protected Integer getConcurrentThreads()
+    {
+        Integer concurrentThreads = (Integer) this.getArgs().get("concurrentThreads");
+        if (concurrentThreads == null || concurrentThreads.intValue() <= 0)
+        {
+            LOGGER.debug("Number of concurrent threads has not been properly configured - defaulting to 1");
+            concurrentThreads = Integer.valueOf(1);
+        }
+        return concurrentThreads;
+    }
+
+    protected List<Runnable> createTasks(final SolrIndexSearcher searcher, final WarmupStatistics statistics,
+            final List<RecordedRequest> requests)
+    {
+        String defaultHandler = (String) this.getArgs().get("defaultHandler");
+        if (defaultHandler == null || defaultHandler.trim().isEmpty())
+        {
+            LOGGER.debug("Default handler has not been properly configured - defaulting to {}", DEFAULT_HANDLER);
+            defaultHandler = DEFAULT_HANDLER;
+        }
+        final boolean documentCacheWarmup = Boolean.TRUE.equals(this.getArgs().get("documentCacheWarmup"));
+
+        final List<Runnable> tasks = new ArrayList<>();
+        for (final RecordedRequest request : requests)
+        {
+            final String key = request.getKey();
+            final String handler = request.getHandler() != null ? request.getHandler() : defaultHandler;
+            final long cost = this.replayCosts.getOrDefault(key, Long.valueOf(0)).longValue();
+            // a replayed request saves its execution time on every repetition expected until the next searcher
+            final double value = (1 + statistics.getFrequency(key)) * Math.max(1, cost);
+            tasks.add(new WarmupTask("replay of " + request, cost, value, () -> {
+                final long start = System.nanoTime();
+                if (this.performReplay(searcher, handler, request, documentCacheWarmup))
+                {
+                    final long replayCost = System.nanoTime() - start;
+                    this.replayCosts.merge(key, Long.valueOf(replayCost), (previous, current) -> (previous + current) / 2);
+                    statistics.recordCost(key, TimeUnit.NANOSECONDS.toMillis(replayCost));
+                }
+            }));
+        }
+        return tasks;
+    }
+
+    protected boolean performReplay(final SolrIndexSearcher searcher, final String handlerName, final RecordedRequest request,
+            final boolean documentCacheWarmup)
+    {
+        boolean replayed = false;
+        final SolrRequestHandler handler = this.getCore().getRequestHandler(handlerName);
+        if (handler == null)
+        {
+            LOGGER.debug("Not replaying request {} as request handler {} does not exist", request, handlerName);
+        }
+        else
+        {
+            final SolrQueryRequest req = this.createRequest(searcher, request.getBody(), request.toParams());
+            final SolrQueryResponse rsp = new SolrQueryResponse();
+            // some components (and the Alfresco query parsers) expect the request info of the current thread to be set
+            SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+            try
+            {
+                this.getCore().execute(handler, req, rsp);
+                if (rsp.getException() != null)
+                {
+                    LOGGER.warn("Failed to replay request {}", request, rsp.getException());
+                }
+                else
+                {
+                    replayed = true;
+                    if (documentCacheWarmup)
+                    {
+                        this.fetchDocuments(searcher, rsp);
+                    }
+                }
+            }
+            catch (final SolrException sex)
+            {
+                LOGGER.warn("Failed to replay request {}", request, sex);
+            }
+            finally
+            {
+                SolrRequestInfo.clearRequestInfo();
+            }
+        }
+        return replayed;
+    }
+
+    protected void fetchDocuments(final SolrIndexSearcher searcher, final SolrQueryResponse rsp)
+    {
+        // documents are only loaded when a response is written, which does not happen for replayed requests
+        final Object response = rsp.getValues().get("response");
+        final DocList docList = response instanceof ResultContext ? ((ResultContext) response).getDocList()
+                : response instanceof DocList ? (DocList) response : null;
+        if (docList != null)
+        {
+            try
+            {
+                final DocIterator docs = docList.iterator();
+                while (docs.hasNext())
+                {
+                    // doc(int) caches the document in the document cache of the searcher
+                    searcher.doc(docs.nextDoc());
+                }
+            }
+            catch (final IOException ioex)
+            {
+                LOGGER.warn("Failed to warmup documents due to IO error", ioex);
+            }
+        }
+    }
+
+    protected SolrQueryRequest createRequest(final SolrIndexSearcher searcher, final String requestBody, final ModifiableSolrParams params)
+    {
+        final SolrQueryRequest req = new LocalSolrQueryRequest(this.getCore(), params)
+        {
+
+            {
+                if (requestBody != null)
+                {
+                    this.streams = Arrays.asList(new ByteArrayStream(requestBody.getBytes(StandardCharsets.UTF_8), requestBody));
+                }
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public SolrIndexSearcher getSearcher()
+            {
+                return searcher;
+            }
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public void close()
+            {
+            }
+        };
+        req.getContext().put(RecordedRequest.REPLAYED, Boolean.TRUE);
+        return req;
+    }
+}
@@ -0,0 +1,409 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PointInSetQuery;
+import org.apache.lucene.search.PointRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermInSetQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BitSetIterator;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.RoaringDocIdSet;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.BitDocSet;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.ExtendedQuery;
+import org.apache.solr.search.QueryUtils;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SortedIntDocSet;
+import org.apache.solr.search.WrappedQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class keep the matches of warmed filters per index segment, so that warming a new searcher only needs to execute the
+ * filters against segments that have been flushed or merged since the previous warmup. The filter cache entries of the new searcher are
+ * assembled from the cached segment matches, applying the current deletions of each segment.
+ *
+ * Only filters whose matches in a segment solely depend on that segment can be handled incrementally. All other filters - e.g. Alfresco
+ * queries that resolve ACLs or paths via the whole index - are executed against the full searcher as usual.
+ *
+ * Cached matches are dropped as soon as their segment is closed, and all of them when the core is closed. Matches computed during a warmup
+ * are counted against its {@link FilterCacheBudget} as they occupy the heap in addition to the filter cache entries.
+ */
+public class SegmentFilterCache
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final Map<SolrCore, SegmentFilterCache> INSTANCES = Collections.synchronizedMap(new WeakHashMap<>());
+
+    protected final ConcurrentMap<Object, ConcurrentMap<Query, SegmentEntry>> segments = new ConcurrentHashMap<>();
+
+    protected final Set<String> segmentLocalQueryClasses;
+
+    protected final AtomicLong generation = new AtomicLong();
+
+    protected final AtomicLong computedSegments = new AtomicLong();
+
+    protected final AtomicLong reusedSegments = new AtomicLong();
+
+    // the searcher is only referenced weakly so that an abandoned warmup does not keep it or its core from being collected
+    protected volatile WeakReference<SolrIndexSearcher> warmingSearcher = new WeakReference<>(null);
+
+    protected SegmentFilterCache(final Collection<String> segmentLocalQueryClasses)
+    {
+        this.segmentLocalQueryClasses = new HashSet<>(segmentLocalQueryClasses);
+    }
+
+    /**
+     * Retrieves the segment filter cache of a core.
+     *
+     * @param core
+     *            the core for which to retrieve the cache
+     * @param segmentLocalQueryClasses
+     *            the fully qualified names of additional query classes known to only depend on the segment being evaluated - only effective
+     *            on first access
+     * @return the segment filter cache
+     */
+    public static SegmentFilterCache getInstance(final SolrCore core, final Collection<String> segmentLocalQueryClasses)
+    {
+        return INSTANCES.computeIfAbsent(core, c -> {
+            final SegmentFilterCache segmentFilterCache = new SegmentFilterCache(segmentLocalQueryClasses);
+            c.addCloseHook(new CloseHook()
+            {
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void preClose(final SolrCore core)
+                {
+                    // NO-OP
+                }
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void postClose(final SolrCore core)
+                {
+                    INSTANCES.remove(core);
+                    segmentFilterCache.segments.clear();
+                }
+            });
+            return segmentFilterCache;
+        });
+    }
+
+    /**
+     * Starts a new warmup of a searcher, dropping any cached matches of segments that are no longer part of the index.
+     *
+     * @param searcher
+     *            the searcher to be warmed
+     */
+    public void startWarmup(final SolrIndexSearcher searcher)
+    {
+        this.warmingSearcher = new WeakReference<>(searcher);
+        this.generation.incrementAndGet();
+        this.computedSegments.set(0);
+        this.reusedSegments.set(0);
+
+        final Set<Object> coreKeys = new HashSet<>();
+        searcher.getTopReaderContext().leaves().forEach(leaf -> coreKeys.add(leaf.reader().getCoreCacheKey()));
+        final int segmentCount = this.segments.size();
+        this.segments.keySet().retainAll(coreKeys);
+        LOGGER.debug("Dropped cached filter matches of {} segments no longer part of the index", segmentCount - this.segments.size());
+    }
+
+    /**
+     * Completes a warmup, dropping any cached matches of filters that have not been warmed in it. Completing a warmup that has been
+     * superseded by the warmup of a newer searcher has no effect.
+     *
+     * @param searcher
+     *            the searcher that has been warmed
+     */
+    public void finishWarmup(final SolrIndexSearcher searcher)
+    {
+        synchronized (this)
+        {
+            if (this.warmingSearcher.get() != searcher)
+            {
+                LOGGER.debug("Not finishing superseded warmup of {}", searcher);
+                return;
+            }
+            this.warmingSearcher = new WeakReference<>(null);
+        }
+
+        final long currentGeneration = this.generation.get();
+        this.segments.values().forEach(entries -> entries.values().removeIf(entry -> entry.generation < currentGeneration));
+        LOGGER.debug("Warmed filters by computing {} segment matches and reusing {} cached segment matches, now using {} bytes",
+                this.computedSegments.get(), this.reusedSegments.get(), this.getCachedBytes());
+    }
+
+    /**
+     * Determines the memory used by the cached segment matches.
+     *
+     * @return the estimated memory usage in bytes
+     */
+    public long getCachedBytes()
+    {
+        long bytes = 0;
+        for (final ConcurrentMap<Query, SegmentEntry> entries : this.segments.values())
+        {
+            for (final SegmentEntry entry : entries.values())
+            {
+                bytes += entry.matches.ramBytesUsed();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Computes the matches of a filter and places them in the filter cache of a searcher.
+     *
+     * @param searcher
+     *            the searcher to warm
+     * @param filter
+     *            the filter to warm
+     * @param budget
+     *            the budget of the warmup to count newly cached segment matches against - may be {@code null}
+     * @return the matches of the filter
+     * @throws IOException
+     *             if an error occurs evaluating the filter
+     */
+    public DocSet cacheDocSet(final SolrIndexSearcher searcher, final Query filter, final FilterCacheBudget budget) throws IOException
+    {
+        final DocSet docSet;
+        // the filter cache always holds the positive variant of a filter
+        final Query absFilter = QueryUtils.getAbs(filter);
+        final SolrCache<Query, DocSet> filterCache = searcher.getFilterCache();
+        final boolean cacheable = filterCache != null && !(absFilter instanceof ExtendedQuery && !((ExtendedQuery) absFilter).getCache());
+        final Query localFilter = cacheable ? this.toSegmentLocal(absFilter) : null;
+        final boolean incremental = localFilter != null;
+        final DocSet cachedDocSet = incremental ? filterCache.get(absFilter) : null;
+
+        if (!incremental)
+        {
+            LOGGER.trace("Filter {} cannot be handled incrementally", absFilter);
+            docSet = searcher.getDocSet(absFilter);
+        }
+        else if (cachedDocSet != null)
+        {
+            docSet = cachedDocSet;
+            // keep the segment matches of filters already warmed by other means
+            final long currentGeneration = this.generation.get();
+            for (final LeafReaderContext leaf : searcher.getTopReaderContext().leaves())
+            {
+                final ConcurrentMap<Query, SegmentEntry> entries = this.segments.get(leaf.reader().getCoreCacheKey());
+                final SegmentEntry entry = entries != null ? entries.get(absFilter) : null;
+                if (entry != null)
+                {
+                    entry.generation = currentGeneration;
+                }
+            }
+        }
+        else
+        {
+            final long currentGeneration = this.generation.get();
+            final List<LeafReaderContext> leaves = searcher.getTopReaderContext().leaves();
+            final FixedBitSet bits = new FixedBitSet(searcher.maxDoc());
+            Weight weight = null;
+
+            for (final LeafReaderContext leaf : leaves)
+            {
+                final LeafReader reader = leaf.reader();
+                final ConcurrentMap<Query, SegmentEntry> entries = this.segments.computeIfAbsent(reader.getCoreCacheKey(), k -> {
+                    // merged away segments are closed before the next warmup, so their matches would otherwise linger until then
+                    reader.addCoreClosedListener(this.segments::remove);
+                    return new ConcurrentHashMap<>();
+                });
+
+                SegmentEntry entry = entries.get(absFilter);
+                if (entry == null)
+                {
+                    if (weight == null)
+                    {
+                        weight = searcher.createNormalizedWeight(localFilter, false);
+                    }
+                    entry = new SegmentEntry(this.computeSegmentMatches(weight, leaf));
+                    entries.put(absFilter, entry);
+                    this.computedSegments.incrementAndGet();
+                    if (budget != null)
+                    {
+                        budget.recordAllocation(entry.matches.ramBytesUsed());
+                    }
+                }
+                else
+                {
+                    this.reusedSegments.incrementAndGet();
+                }
+                entry.generation = currentGeneration;
+
+                final DocIdSetIterator matches = entry.matches.iterator();
+                if (matches != null)
+                {
+                    final Bits liveDocs = reader.getLiveDocs();
+                    for (int doc = matches.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = matches.nextDoc())
+                    {
+                        if (liveDocs == null || liveDocs.get(doc))
+                        {
+                            bits.set(leaf.docBase + doc);
+                        }
+                    }
+                }
+            }
+
+            docSet = this.toDocSet(bits, searcher.maxDoc());
+            filterCache.put(absFilter, docSet);
+        }
+        return docSet;
+    }
+
+    protected DocIdSet computeSegmentMatches(final Weight weight, final LeafReaderContext leaf) throws IOException
+    {
+        // matches are kept without regard for deletions as those change without changing the segment core
+        final RoaringDocIdSet.Builder builder = new RoaringDocIdSet.Builder(leaf.reader().maxDoc());
+        final Scorer scorer = weight.scorer(leaf);
+        if (scorer != null)
+        {
+            builder.add(scorer.iterator());
+        }
+        return builder.build();
+    }
+
+    protected DocSet toDocSet(final FixedBitSet bits, final int maxDoc)
+    {
+        final int size = bits.cardinality();
+        final DocSet docSet;
+        // same threshold as used by SOLR when collecting a DocSet
+        if (size <= (maxDoc >> 6) + 5)
+        {
+            final int[] docs = new int[size];
+            final BitSetIterator iterator = new BitSetIterator(bits, size);
+            int idx = 0;
+            for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc())
+            {
+                docs[idx++] = doc;
+            }
+            docSet = new SortedIntDocSet(docs);
+        }
+        else
+        {
+            docSet = new BitDocSet(bits, size);
+        }
+        return docSet;
+    }
+
+    /**
+     * Determines a variant of a query that only consists of clauses whose matches in a segment solely depend on that segment. Known
+     * wrappers are unwrapped structurally, so that multi-term queries nested in them are never expanded against the whole index. Queries of
+     * unknown type are never rewritten, as a rewrite against the whole index may resolve terms from other segments (e.g. paths or ACLs
+     * resolved to sets of ids), whose matches would then go stale in the cached segment matches - they are only segment local if their class
+     * has been configured as such.
+     *
+     * @param query
+     *            the query to check
+     * @return the segment local variant of the query to be executed instead of it, or {@code null} if the query is not segment local
+     */
+    protected Query toSegmentLocal(final Query query)
+    {
+        final Query segmentLocal;
+        if (query instanceof BooleanQuery)
+        {
+            final BooleanQuery booleanQuery = (BooleanQuery) query;
+            final BooleanQuery.Builder builder = new BooleanQuery.Builder();
+            builder.setDisableCoord(booleanQuery.isCoordDisabled());
+            builder.setMinimumNumberShouldMatch(booleanQuery.getMinimumNumberShouldMatch());
+            boolean allClausesLocal = true;
+            for (final BooleanClause clause : booleanQuery.clauses())
+            {
+                final Query localClause = allClausesLocal ? this.toSegmentLocal(clause.getQuery()) : null;
+                allClausesLocal = localClause != null;
+                if (allClausesLocal)
+                {
+                    builder.add(localClause, clause.getOccur());
+                }
+            }
+            segmentLocal = allClausesLocal ? builder.build() : null;
+        }
+        else if (query instanceof ConstantScoreQuery)
+        {
+            final Query inner = this.toSegmentLocal(((ConstantScoreQuery) query).getQuery());
+            segmentLocal = inner != null ? new ConstantScoreQuery(inner) : null;
+        }
+        else if (query instanceof BoostQuery)
+        {
+            final Query inner = this.toSegmentLocal(((BoostQuery) query).getQuery());
+            segmentLocal = inner != null ? new BoostQuery(inner, ((BoostQuery) query).getBoost()) : null;
+        }
+        else if (query instanceof WrappedQuery)
+        {
+            segmentLocal = this.toSegmentLocal(((WrappedQuery) query).getWrappedQuery());
+        }
+        else if (query instanceof MultiTermQuery)
+        {
+            // other rewrites select the top terms by their statistics across the whole index, e.g. for fuzzy queries
+            final MultiTermQuery.RewriteMethod rewriteMethod = ((MultiTermQuery) query).getRewriteMethod();
+            segmentLocal = rewriteMethod == MultiTermQuery.CONSTANT_SCORE_REWRITE
+                    || rewriteMethod == MultiTermQuery.CONSTANT_SCORE_BOOLEAN_REWRITE
+                    || this.segmentLocalQueryClasses.contains(query.getClass().getName()) ? query : null;
+        }
+        else if (query instanceof TermQuery || query instanceof TermInSetQuery
+                || query instanceof PointRangeQuery || query instanceof PointInSetQuery || query instanceof MatchAllDocsQuery
+                || query instanceof MatchNoDocsQuery || this.segmentLocalQueryClasses.contains(query.getClass().getName()))
+        {
+            segmentLocal = query;
+        }
+        else
+        {
+            segmentLocal = null;
+        }
+        return segmentLocal;
+    }
+
+    /**
+     * Instances of this class hold the cached matches of a filter in a single segment.
+     */
+    protected static class SegmentEntry
+    {
+
+        protected final DocIdSet matches;
+
+        protected volatile long generation;
+
+        protected SegmentEntry(final DocIdSet matches)
+        {
+            this.matches = matches;
+        }
+    }
+}
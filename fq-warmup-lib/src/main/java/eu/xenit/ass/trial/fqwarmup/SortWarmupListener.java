@@ -3,16 +3,30 @@ package eu.xenit.ass.trial.fqwarmup;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Collectors;
 
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.FieldComparatorSource;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.util.ContentStreamBase.ByteArrayStream;
 import org.apache.solr.common.util.NamedList;
@@ -23,6 +37,7 @@ import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.search.QParser;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.SyntaxError;
+import org.apache.solr.util.RefCounted;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,6 +52,17 @@ public class SortWarmupListener extends AbstractSolrEventListener
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
+    // sort structures are loaded per segment core and kept until it is closed, so each sort field only needs warming once per segment,
+    // regardless of the listener or searcher warming it
+    protected static final ConcurrentMap<Object, Set<String>> WARMED_SORT_FIELDS = new ConcurrentHashMap<>();
+
+    protected final ConcurrentMap<String, Long> sortCosts = new ConcurrentHashMap<>();
+
+    // segments differ widely in size, so the cost of loading a sort field is learned per document
+    protected final ConcurrentMap<String, Double> sortFieldCosts = new ConcurrentHashMap<>();
+
+    protected WarmupConfiguration configuration;
+
     public SortWarmupListener(final SolrCore core)
     {
         super(core);
@@ -47,23 +73,129 @@ public class SortWarmupListener extends AbstractSolrEventListener
      */
     @Override
     public void newSearcher(final SolrIndexSearcher newSearcher, final SolrIndexSearcher currentSearcher)
+    {
+        final long warmupStart = System.nanoTime();
+        final List<String> baseQueries = this.getBaseQueries();
+        final List<String> sorts = this.getSorts();
+
+        final String baseRequestBody = (String) this.getArgs().get("baseRequestBody");
+        final Integer concurrentThreads = this.getConcurrentThreads();
+        final Integer concurrentTimeout = (Integer) this.getArgs().get("concurrentTimeout");
+
+        LOGGER.debug("Starting sort warmup");
+        final List<Runnable> tasks = this.createTasks(newSearcher, baseRequestBody, baseQueries, sorts);
+
+        final WarmupMetrics metrics = WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.SORT_WARMUP);
+        final Runnable completion = () -> {
+            metrics.recordWarmup(currentSearcher == null ? "firstSearcher" : "newSearcher", System.nanoTime() - warmupStart, -1, -1);
+            LOGGER.debug("Completed sort warmup");
+        };
+        if (Boolean.TRUE.equals(this.getArgs().get("backgroundWarmup")))
+        {
+            WarmupScheduler.getInstance().submit(this.getCore(), newSearcher, "sort", tasks, concurrentThreads.intValue(), concurrentTimeout,
+                    metrics, completion);
+        }
+        else
+        {
+            try
+            {
+                WarmupScheduler.getInstance().execute(this.getCore(), newSearcher, "sort", tasks, concurrentThreads.intValue(),
+                        concurrentTimeout, metrics);
+            }
+            finally
+            {
+                completion.run();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(@SuppressWarnings("rawtypes") final NamedList args)
+    {
+        super.init(args);
+
+        final String configurationFile = (String) args.get("configurationFile");
+        if (configurationFile != null && !configurationFile.trim().isEmpty())
+        {
+            this.configuration = WarmupConfiguration
+                    .getInstance(this.getCore(), WarmupConfiguration.resolveConfigurationFile(this.getCore(), configurationFile));
+            this.configuration.registerChangeListener(this.getCore(), WarmupMetrics.SORT_WARMUP, this::warmupChanges);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * If a warmup configuration file has been configured, its entries for sort warmup override the arguments from {@code solrconfig.xml}.
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public NamedList getArgs()
+    {
+        final NamedList args = super.getArgs();
+        return this.configuration != null ? this.configuration.getArgs(WarmupMetrics.SORT_WARMUP, args) : args;
+    }
+
+    protected void warmupChanges(final Map<String, Object> changes)
+    {
+        final Object changedBaseQueries = changes.get("baseQueries");
+        final Object changedSorts = changes.get("sorts");
+        final RefCounted<SolrIndexSearcher> searcherRef = changedBaseQueries instanceof Collection<?> || changedSorts instanceof Collection<?>
+                ? this.getCore().getRegisteredSearcher()
+                : null;
+        if (searcherRef != null)
+        {
+            try
+            {
+                final long warmupStart = System.nanoTime();
+                final SolrIndexSearcher searcher = searcherRef.get();
+                final String baseRequestBody = (String) this.getArgs().get("baseRequestBody");
+                final List<String> baseQueries = this.getBaseQueries();
+                final List<String> addedSorts = changedSorts instanceof Collection<?>
+                        ? ((Collection<?>) changedSorts).stream().map(String::valueOf).collect(Collectors.toList())
+                        : Collections.<String> emptyList();
+                final List<String> otherSorts = new ArrayList<>(this.getSorts());
+                otherSorts.removeAll(addedSorts);
+
+                // only new combinations of base queries and sorts need warming
+                final List<Runnable> tasks = new ArrayList<>(this.createTasks(searcher, baseRequestBody, baseQueries, addedSorts));
+                if (changedBaseQueries instanceof Collection<?> && !Boolean.TRUE.equals(this.getArgs().get("directSortWarmup")))
+                {
+                    tasks.addAll(this.createTasks(searcher, baseRequestBody,
+                            ((Collection<?>) changedBaseQueries).stream().map(String::valueOf).collect(Collectors.toList()), otherSorts));
+                }
+                LOGGER.info("Warming {} changed sorts against current searcher {}", tasks.size(), searcher);
+
+                final WarmupMetrics metrics = WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.SORT_WARMUP);
+                // the current searcher is already serving requests, so there is no reason to make the caller wait for the warmup
+                WarmupScheduler.getInstance().submit(this.getCore(), searcher, "changed sort", tasks, this.getConcurrentThreads().intValue(),
+                        (Integer) this.getArgs().get("concurrentTimeout"), metrics,
+                        () -> metrics.recordWarmup("configurationChange", System.nanoTime() - warmupStart, -1, -1));
+            }
+            finally
+            {
+                searcherRef.decref();
+            }
+        }
+    }
+
+    protected List<String> getBaseQueries()
     {
         final List<String> baseQueries;
-        final List<String> sorts;
 
         final Object baseQueriesCandidate = this.getArgs().get("baseQueries");
         final Object baseQueryCandidate = this.getArgs().get("baseQuery");
 
-        final Object sortsCandidate = this.getArgs().get("sorts");
-        final Object sortCandidate = this.getArgs().get("sort");
-
         if (baseQueriesCandidate instanceof Collection<?> && !((Collection<?>) baseQueriesCandidate).isEmpty())
         {
             baseQueries = ((Collection<?>) baseQueriesCandidate).stream().map(String::valueOf).collect(Collectors.toList());
         }
-        else if (baseQueryCandidate instanceof String && !((String) baseQueriesCandidate).trim().isEmpty())
+        else if (baseQueryCandidate instanceof String && !((String) baseQueryCandidate).trim().isEmpty())
         {
-            baseQueries = Collections.singletonList((String) baseQueriesCandidate);
+            baseQueries = Collections.singletonList((String) baseQueryCandidate);
         }
         else
         {
@@ -71,6 +203,16 @@ public class SortWarmupListener extends AbstractSolrEventListener
             baseQueries = Collections.singletonList("ISNODE:T");
         }
 
+        return baseQueries;
+    }
+
+    protected List<String> getSorts()
+    {
+        final List<String> sorts;
+
+        final Object sortsCandidate = this.getArgs().get("sorts");
+        final Object sortCandidate = this.getArgs().get("sort");
+
         if (sortsCandidate instanceof Collection<?> && !((Collection<?>) sortsCandidate).isEmpty())
         {
             sorts = ((Collection<?>) sortsCandidate).stream().map(String::valueOf).collect(Collectors.toList());
@@ -86,77 +228,229 @@ public class SortWarmupListener extends AbstractSolrEventListener
             sorts = Arrays.asList("@cm:name asc", "@cm:name desc", "@cm:created asc", "@cm:created desc", "@cm:modified asc",
                     "@cm:modified desc");
         }
+        return sorts;
+    }
 
-        final String baseRequestBody = (String) this.getArgs().get("baseRequestBody");
+    protected Integer getConcurrentThreads()
+    {
         Integer concurrentThreads = (Integer) this.getArgs().get("concurrentThreads");
-        final Integer concurrentTimeout = (Integer) this.getArgs().get("concurrentTimeout");
-
         if (concurrentThreads == null || concurrentThreads.intValue() <= 0)
         {
             LOGGER.debug("Number of concurrent threads has not been properly configured - defaulting to 1");
             concurrentThreads = Integer.valueOf(1);
         }
+        return concurrentThreads;
+    }
 
-        LOGGER.debug("Starting sort warmup");
-        try
+    protected List<Runnable> createTasks(final SolrIndexSearcher searcher, final String baseRequestBody, final List<String> baseQueries,
+            final List<String> sorts)
+    {
+        final List<Runnable> tasks = new ArrayList<>();
+        if (Boolean.TRUE.equals(this.getArgs().get("directSortWarmup")))
         {
-            if (concurrentThreads.intValue() > 1)
+            // sort structures do not depend on the query or direction, so base queries are only needed to parse the sorts - each distinct
+            // one is still used, as a sort that fails to parse in the context of one base query may resolve in the context of another
+            final Map<String, SortField> sortFields = new LinkedHashMap<>();
+            for (final String baseQuery : new LinkedHashSet<>(baseQueries))
+            {
+                this.getSortFields(searcher, baseRequestBody, baseQuery, sorts).forEach(sortFields::putIfAbsent);
+            }
+            int warmedSegments = 0;
+            for (final Map.Entry<String, SortField> sortField : sortFields.entrySet())
             {
-                final ExecutorService threadPool = Executors.newFixedThreadPool(concurrentThreads.intValue());
-                try
+                for (final LeafReaderContext leaf : searcher.getTopReaderContext().leaves())
                 {
-                    // we multiplex all base queries with all sort fields
-                    baseQueries.forEach(q -> {
-                        sorts.forEach(s -> threadPool.submit(() -> this.performQuery(newSearcher, baseRequestBody, q, s)));
-                    });
+                    if (isWarmed(leaf, sortField.getKey()))
+                    {
+                        warmedSegments++;
+                    }
+                    else
+                    {
+                        this.addSortFieldTask(tasks, sortField.getKey(), leaf,
+                                () -> this.performSortField(searcher, sortField.getValue(), leaf));
+                    }
                 }
-                finally
+            }
+            LOGGER.debug("Skipping {} sort fields of segments that have already been warmed", warmedSegments);
+        }
+        else
+        {
+            final WarmupMetrics metrics = WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.SORT_WARMUP);
+            // combinations differing only textually parse to equal queries and sorts and thus share the same cache entries
+            final Map<List<Object>, String> canonicalKeys = new HashMap<>();
+            int redundantQueries = 0;
+            // we multiplex all base queries with all sort fields
+            for (final String baseQuery : baseQueries)
+            {
+                for (final String sort : sorts)
                 {
-                    threadPool.shutdown();
-
-                    final long timeout = concurrentTimeout == null || concurrentTimeout.intValue() < 0 ? 10000
-                            : concurrentTimeout.longValue();
-                    LOGGER.debug("Waiting for termination of concurrent warmup threads");
+                    final String key = baseQuery + " sorted by " + sort;
+                    final SolrQueryRequest req = this.createRequest(searcher, baseRequestBody, sort);
                     try
                     {
-                        if (threadPool.awaitTermination(timeout == 0 ? Long.MAX_VALUE : timeout, TimeUnit.MILLISECONDS))
+                        final long parseStart = System.nanoTime();
+                        final QParser parser = QParser.getParser(baseQuery, req);
+                        final Query baseLuceneQuery = parser.getQuery();
+                        final Sort luceneSort = parser.getSortSpec(true).getSort();
+                        metrics.recordParse(System.nanoTime() - parseStart);
+
+                        final String canonicalKey = canonicalKeys.putIfAbsent(Arrays.asList(baseLuceneQuery, luceneSort), key);
+                        if (canonicalKey == null)
                         {
-                            LOGGER.debug("All concurrent warmup threads completed in the allotted time");
+                            this.addTask(tasks, key, key, () -> this.performQuery(searcher, baseLuceneQuery, luceneSort));
                         }
                         else
                         {
-                            final List<Runnable> incompleteTasks = threadPool.shutdownNow();
-                            LOGGER.warn(
-                                    "Concurrent filter query warmup threads did not complete in the allotted time, leaving {} warmup tasks uncompleted",
-                                    incompleteTasks.size());
+                            redundantQueries++;
+                            LOGGER.debug("Skipping {} as it results in the same query and sort as {}", key, canonicalKey);
                         }
                     }
-                    catch (final InterruptedException iex)
+                    catch (final SyntaxError | RuntimeException ex)
+                    {
+                        // e.g. unknown or unsortable fields are reported as SolrException instead of SyntaxError
+                        metrics.recordSyntaxError();
+                        LOGGER.warn("Failed to parse {}", key, ex);
+                    }
+                }
+            }
+            metrics.recordRedundantQueries(redundantQueries);
+        }
+        return tasks;
+    }
+
+    protected void addTask(final List<Runnable> tasks, final String costKey, final String description, final Runnable action)
+    {
+        final long cost = this.sortCosts.getOrDefault(costKey, Long.valueOf(0)).longValue();
+        // without any information on how often a sort is used, the time saved on live queries is at least the time spent here
+        tasks.add(new WarmupTask(description, cost, cost, () -> {
+            final long start = System.nanoTime();
+            action.run();
+            this.sortCosts.merge(costKey, Long.valueOf(System.nanoTime() - start), (previous, current) -> (previous + current) / 2);
+        }));
+    }
+
+    protected void addSortFieldTask(final List<Runnable> tasks, final String sortFieldKey, final LeafReaderContext leaf,
+            final BooleanSupplier action)
+    {
+        final int maxDoc = leaf.reader().maxDoc();
+        final long cost = (long) (this.sortFieldCosts.getOrDefault(sortFieldKey, Double.valueOf(0)).doubleValue() * maxDoc);
+        tasks.add(new WarmupTask(sortFieldKey + " in segment " + leaf.ord, cost, cost, () -> {
+            final long start = System.nanoTime();
+            if (action.getAsBoolean())
+            {
+                markWarmed(leaf, sortFieldKey);
+            }
+            this.sortFieldCosts.merge(sortFieldKey, Double.valueOf((double) (System.nanoTime() - start) / Math.max(1, maxDoc)),
+                    (previous, current) -> (previous + current) / 2);
+        }));
+    }
+
+    protected static boolean isWarmed(final LeafReaderContext leaf, final String sortFieldKey)
+    {
+        final Set<String> warmedSortFields = WARMED_SORT_FIELDS.get(leaf.reader().getCoreCacheKey());
+        return warmedSortFields != null && warmedSortFields.contains(sortFieldKey);
+    }
+
+    protected static void markWarmed(final LeafReaderContext leaf, final String sortFieldKey)
+    {
+        final LeafReader reader = leaf.reader();
+        WARMED_SORT_FIELDS.computeIfAbsent(reader.getCoreCacheKey(), k -> {
+            // the loaded structures are released with the segment core, so its entry has to go as well
+            reader.addCoreClosedListener(WARMED_SORT_FIELDS::remove);
+            return ConcurrentHashMap.newKeySet();
+        }).add(sortFieldKey);
+    }
+
+    protected Map<String, SortField> getSortFields(final SolrIndexSearcher searcher, final String baseRequestBody, final String baseQuery,
+            final List<String> sorts)
+    {
+        final WarmupMetrics metrics = WarmupMetrics.getInstance(this.getCore(), WarmupMetrics.SORT_WARMUP);
+        final Map<String, SortField> sortFields = new LinkedHashMap<>();
+        for (final String sort : sorts)
+        {
+            final SolrQueryRequest req = this.createRequest(searcher, baseRequestBody, sort);
+            try
+            {
+                final long parseStart = System.nanoTime();
+                final Sort luceneSort = QParser.getParser(baseQuery, req).getSortSpec(true).getSort();
+                metrics.recordParse(System.nanoTime() - parseStart);
+
+                if (luceneSort != null)
+                {
+                    for (final SortField sortField : luceneSort.getSort())
                     {
-                        LOGGER.warn("Thread was interrupted waiting for concurrent filter query warmup threads");
-                        // reset the interrupted flag
-                        Thread.currentThread().interrupt();
+                        // relevance and index order sorts have no structures to load
+                        if (sortField.getField() != null)
+                        {
+                            final FieldComparatorSource comparatorSource = sortField.getComparatorSource();
+                            // the direction only affects how loaded values are compared, not which values are loaded
+                            sortFields.putIfAbsent(sortField.getField() + " (" + sortField.getType()
+                                    + (comparatorSource != null ? ", " + comparatorSource.getClass().getName() : "") + ")", sortField);
+                        }
                     }
                 }
             }
-            else
+            catch (final SyntaxError | RuntimeException ex)
+            {
+                // e.g. unknown or unsortable fields are reported as SolrException instead of SyntaxError
+                metrics.recordSyntaxError();
+                LOGGER.warn("Failed to parse sort {}", sort, ex);
+            }
+        }
+        LOGGER.debug("Resolved {} sorts to {} distinct sort fields", sorts.size(), sortFields.size());
+        return sortFields;
+    }
+
+    protected boolean performSortField(final SolrIndexSearcher searcher, final SortField sortField, final LeafReaderContext leaf)
+    {
+        boolean warmed = false;
+        try
+        {
+            // loading the leaf comparator loads (or uninverts) exactly the structures a sorted search would
+            sortField.getComparator(1, 0).getLeafComparator(leaf);
+
+            // comparators only load structures lazily accessed by document, so touch the values of standard sorts to page them in
+            if (sortField.getComparatorSource() == null)
             {
-                // we multiplex all base queries with all sort fields
-                baseQueries.forEach(q -> {
-                    sorts.forEach(s -> this.performQuery(newSearcher, baseRequestBody, q, s));
-                });
+                final LeafReader reader = leaf.reader();
+                final int maxDoc = reader.maxDoc();
+                switch (sortField.getType())
+                {
+                    case STRING:
+                    case STRING_VAL:
+                        final SortedDocValues sortedDocValues = DocValues.getSorted(reader, sortField.getField());
+                        for (int doc = 0; doc < maxDoc; doc++)
+                        {
+                            sortedDocValues.getOrd(doc);
+                        }
+                        break;
+                    case INT:
+                    case LONG:
+                    case FLOAT:
+                    case DOUBLE:
+                        final NumericDocValues numericDocValues = DocValues.getNumeric(reader, sortField.getField());
+                        for (int doc = 0; doc < maxDoc; doc++)
+                        {
+                            numericDocValues.get(doc);
+                        }
+                        break;
+                    default:
+                        LOGGER.trace("Not touching values of sort field {} of type {}", sortField.getField(), sortField.getType());
+                }
             }
+            warmed = true;
         }
-        finally
+        catch (final IOException | IllegalStateException ex)
         {
-            LOGGER.debug("Completed sort warmup");
+            // DocValues throws IllegalStateException if a field is neither indexed with nor uninvertible to the expected doc values type
+            LOGGER.warn("Failed to warmup sort field {}", sortField.getField(), ex);
         }
+        return warmed;
     }
 
-    protected void performQuery(final SolrIndexSearcher searcher, final String baseRequestBody, final String baseQuery, final String sort)
+    protected SolrQueryRequest createRequest(final SolrIndexSearcher searcher, final String baseRequestBody, final String sort)
     {
-        final SolrQueryRequest req = new LocalSolrQueryRequest(this.getCore(),
-                new NamedList<>(Collections.singletonMap(CommonParams.SORT, sort)))
+        return new LocalSolrQueryRequest(this.getCore(), new NamedList<>(Collections.singletonMap(CommonParams.SORT, sort)))
         {
 
             {
@@ -180,17 +474,13 @@ public class SortWarmupListener extends AbstractSolrEventListener
             {
             }
         };
+    }
 
+    protected void performQuery(final SolrIndexSearcher searcher, final Query baseQuery, final Sort sort)
+    {
         try
         {
-            final QParser parser = QParser.getParser(baseQuery, req);
-            final Query baseLuceneQuery = parser.getQuery();
-
-            searcher.getDocList(baseLuceneQuery, Collections.<Query> emptyList(), parser.getSortSpec(false).getSort(), 0, 1, 0);
-        }
-        catch (final SyntaxError serr)
-        {
-            LOGGER.warn("Failed to warmup sort due to syntax error", serr);
+            searcher.getDocList(baseQuery, Collections.<Query> emptyList(), sort, 0, 1, 0);
         }
         catch (final IOException ioex)
         {
@@ -0,0 +1,597 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.noggit.JSONUtil;
+import org.noggit.ObjectBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class provide a warmup configuration backed by a JSON file which is watched for changes and reloaded atomically, so that
+ * the configuration of warmup listeners can be changed without reloading the core (which would start with a cold searcher). The file
+ * contains one object per kind of warmup listener (e.g. {@link WarmupMetrics#FILTER_QUERY_WARMUP}), whose entries override the arguments
+ * the listeners have been configured with in {@code solrconfig.xml}. As the file can be replaced via {@link WarmupConfigurationHandler}, only
+ * tuning arguments and lists of entries to warm can be overridden - never any file paths or the request context used for query parsing. The
+ * {@code baseQueries} of the sort warmup are such entries, as each of them is warmed in combination with each sort, while the
+ * {@code baseQuery} and {@code baseRequestBody} that filter queries are parsed and executed in remain fixed.
+ * Instances are shared between all components configured with the same file, and stop watching the file once all their cores are closed.
+ */
+public class WarmupConfiguration
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final ConcurrentMap<Path, WarmupConfiguration> INSTANCES = new ConcurrentHashMap<>();
+
+    // arguments which may be overridden at runtime with the type the listeners read them as - files, the filter query base query and
+    // request bodies must only come from solrconfig.xml, while the base queries of the sort warmup are warmed entries like sorts and filter
+    // queries
+    protected static final Map<String, ArgType> OVERRIDABLE_ARGS;
+
+    static
+    {
+        final Map<String, ArgType> overridableArgs = new HashMap<>();
+        Arrays.asList("concurrentThreads", "concurrentTimeout", "batchTargetMillis", "learnedQueryCount", "authoritySetCount",
+                "filterCacheHandoffCount", "maxMegabytes", "replayCount").forEach(arg -> overridableArgs.put(arg, ArgType.INT));
+        Arrays.asList("backgroundWarmup", "filterCacheHandoffListedQueries", "directFilterWarmup", "directSortWarmup",
+                "documentCacheWarmup", "uninvertedFieldWarmup").forEach(arg -> overridableArgs.put(arg, ArgType.BOOL));
+        Arrays.asList("maxHeapUsage", "maxHeapWait").forEach(arg -> overridableArgs.put(arg, ArgType.NUMBER));
+        overridableArgs.put("facetMethod", ArgType.STRING);
+        Arrays.asList("filterQueries", "authoritySets", "baseQueries", "sorts", "facetFields", "facetQueries")
+                .forEach(arg -> overridableArgs.put(arg, ArgType.STRING_LIST));
+        OVERRIDABLE_ARGS = Collections.unmodifiableMap(overridableArgs);
+    }
+
+    protected final Path file;
+
+    protected final Set<SolrCore> cores = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    protected WatchService watchService;
+
+    protected final Map<SolrCore, ConcurrentMap<String, ChangeListener>> changeListeners = Collections.synchronizedMap(new WeakHashMap<>());
+
+    protected volatile Map<String, Map<String, Object>> sections = Collections.emptyMap();
+
+    protected WarmupConfiguration(final Path file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Retrieves the shared configuration instance backed by a specific file, loading it and starting to watch it for changes on first access.
+     *
+     * @param core
+     *            the core using the configuration - the file is no longer watched once all cores using it have been closed
+     * @param file
+     *            the configuration file
+     * @return the configuration instance
+     */
+    public static WarmupConfiguration getInstance(final SolrCore core, final Path file)
+    {
+        final Path normalisedFile = file.toAbsolutePath().normalize();
+        synchronized (INSTANCES)
+        {
+            final WarmupConfiguration configuration = INSTANCES.computeIfAbsent(normalisedFile, f -> {
+                final WarmupConfiguration newConfiguration = new WarmupConfiguration(f);
+                try
+                {
+                    newConfiguration.reload();
+                }
+                catch (final IOException ioex)
+                {
+                    LOGGER.warn("Error loading warmup configuration from {} - using solrconfig.xml arguments until it has been fixed", f,
+                            ioex);
+                }
+                newConfiguration.startWatching();
+                return newConfiguration;
+            });
+            if (configuration.cores.add(core))
+            {
+                core.addCloseHook(new CloseHook()
+                {
+
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public void preClose(final SolrCore core)
+                    {
+                        // NO-OP
+                    }
+
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public void postClose(final SolrCore core)
+                    {
+                        configuration.release(core);
+                    }
+                });
+            }
+            return configuration;
+        }
+    }
+
+    protected void release(final SolrCore core)
+    {
+        synchronized (INSTANCES)
+        {
+            this.cores.remove(core);
+            // a reloaded core registers before the core it replaces is closed, so the file is only released when it is no longer used
+            if (this.cores.isEmpty())
+            {
+                INSTANCES.remove(this.file, this);
+                this.stopWatching();
+            }
+        }
+    }
+
+    /**
+     * Retrieves the file backing this configuration.
+     *
+     * @return the configuration file
+     */
+    public Path getFile()
+    {
+        return this.file;
+    }
+
+    /**
+     * Retrieves the current state of the configuration.
+     *
+     * @return the entries of the configuration, grouped by kind of warmup listener
+     */
+    public Map<String, Map<String, Object>> getSections()
+    {
+        return this.sections;
+    }
+
+    /**
+     * Overlays the arguments of a warmup listener with the entries of its section of this configuration.
+     *
+     * @param section
+     *            the kind of warmup listener, e.g. {@link WarmupMetrics#FILTER_QUERY_WARMUP}
+     * @param args
+     *            the arguments the listener has been configured with in {@code solrconfig.xml}
+     * @return the effective arguments
+     */
+    public NamedList<Object> getArgs(final String section, final NamedList<?> args)
+    {
+        final NamedList<Object> effectiveArgs = new NamedList<>();
+        final Map<String, Object> entries = this.sections.getOrDefault(section, Collections.emptyMap());
+        if (args != null)
+        {
+            for (int i = 0; i < args.size(); i++)
+            {
+                if (!entries.containsKey(args.getName(i)))
+                {
+                    effectiveArgs.add(args.getName(i), args.getVal(i));
+                }
+            }
+        }
+        entries.forEach(effectiveArgs::add);
+        return effectiveArgs;
+    }
+
+    /**
+     * Registers a listener to be notified of changed entries in a specific section of this configuration. Only one listener is registered
+     * per core and section, since listeners for different searcher events of the same core would otherwise warm the same entries twice.
+     *
+     * @param core
+     *            the core of the listener
+     * @param section
+     *            the kind of warmup listener, e.g. {@link WarmupMetrics#FILTER_QUERY_WARMUP}
+     * @param listener
+     *            the listener
+     */
+    public void registerChangeListener(final SolrCore core, final String section, final ChangeListener listener)
+    {
+        final ConcurrentMap<String, ChangeListener> listeners = this.changeListeners.computeIfAbsent(core, c -> {
+            c.addCloseHook(new CloseHook()
+            {
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void preClose(final SolrCore core)
+                {
+                    WarmupConfiguration.this.changeListeners.remove(core);
+                }
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                public void postClose(final SolrCore core)
+                {
+                    // NO-OP
+                }
+            });
+            return new ConcurrentHashMap<>();
+        });
+        listeners.putIfAbsent(section, listener);
+    }
+
+    /**
+     * Replaces the configuration with a new JSON document, persisting it to the backing file and notifying listeners of any changes.
+     *
+     * @param json
+     *            the new configuration
+     * @return the changed entries, grouped by kind of warmup listener
+     * @throws IOException
+     *             if the configuration cannot be persisted
+     * @throws IllegalArgumentException
+     *             if the configuration is not a valid JSON document, or contains entries which cannot be changed at runtime or are not of
+     *             the expected type
+     */
+    public synchronized Map<String, Map<String, Object>> update(final String json) throws IOException
+    {
+        final Map<String, Map<String, Object>> newSections = parse(json);
+
+        final Path parent = this.file.toAbsolutePath().getParent();
+        if (parent != null)
+        {
+            Files.createDirectories(parent);
+        }
+        final Path tempFile = Files.createTempFile(parent, this.file.getFileName().toString(), ".tmp");
+        Files.write(tempFile, JSONUtil.toJSON(newSections).getBytes(StandardCharsets.UTF_8));
+        Files.move(tempFile, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        return this.apply(newSections);
+    }
+
+    /**
+     * Reloads the configuration from the backing file, notifying listeners of any changes.
+     *
+     * @return the changed entries, grouped by kind of warmup listener
+     * @throws IOException
+     *             if the configuration file cannot be read or is not a valid JSON document
+     */
+    public synchronized Map<String, Map<String, Object>> reload() throws IOException
+    {
+        final Map<String, Map<String, Object>> newSections;
+        if (Files.isRegularFile(this.file))
+        {
+            try
+            {
+                newSections = parse(new String(Files.readAllBytes(this.file), StandardCharsets.UTF_8));
+            }
+            catch (final IllegalArgumentException iaex)
+            {
+                throw new IOException("Invalid warmup configuration in " + this.file, iaex);
+            }
+        }
+        else
+        {
+            newSections = Collections.emptyMap();
+        }
+        return this.apply(newSections);
+    }
+
+    protected Map<String, Map<String, Object>> apply(final Map<String, Map<String, Object>> newSections)
+    {
+        final Map<String, Map<String, Object>> oldSections = this.sections;
+        // entries are only ever read via the reference to the immutable sections, so this swap is all it takes to apply them atomically
+        this.sections = newSections;
+
+        final Map<String, Map<String, Object>> changes = new LinkedHashMap<>();
+        newSections.forEach((section, entries) -> {
+            final Map<String, Object> oldEntries = oldSections.getOrDefault(section, Collections.emptyMap());
+            final Map<String, Object> changedEntries = new LinkedHashMap<>();
+            entries.forEach((key, value) -> {
+                final Object oldValue = oldEntries.get(key);
+                if (value instanceof List<?> && oldValue instanceof List<?>)
+                {
+                    // list entries (e.g. filter queries) are changed by adding elements, so only the added elements need warming
+                    final List<Object> addedElements = new ArrayList<>((List<?>) value);
+                    addedElements.removeAll((List<?>) oldValue);
+                    if (!addedElements.isEmpty())
+                    {
+                        changedEntries.put(key, addedElements);
+                    }
+                }
+                else if (!Objects.equals(value, oldValue))
+                {
+                    changedEntries.put(key, value);
+                }
+            });
+            if (!changedEntries.isEmpty())
+            {
+                changes.put(section, Collections.unmodifiableMap(changedEntries));
+            }
+        });
+        if (changes.isEmpty())
+        {
+            LOGGER.debug("Loaded warmup configuration from {} without changes", this.file);
+        }
+        else
+        {
+            LOGGER.info("Loaded warmup configuration from {} with changes to {}", this.file, changes.keySet());
+        }
+
+        final List<ConcurrentMap<String, ChangeListener>> listeners;
+        synchronized (this.changeListeners)
+        {
+            listeners = new ArrayList<>(this.changeListeners.values());
+        }
+        listeners.forEach(sectionListeners -> changes.forEach((section, changedEntries) -> {
+            final ChangeListener listener = sectionListeners.get(section);
+            if (listener != null)
+            {
+                try
+                {
+                    listener.configurationChanged(changedEntries);
+                }
+                catch (final RuntimeException rex)
+                {
+                    LOGGER.warn("Error warming changed {} configuration entries {}", section, changedEntries.keySet(), rex);
+                }
+            }
+        }));
+        return changes;
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static Map<String, Map<String, Object>> parse(final String json)
+    {
+        final Object parsed;
+        try
+        {
+            parsed = json.trim().isEmpty() ? Collections.emptyMap() : ObjectBuilder.fromJSON(json);
+        }
+        catch (final IOException | RuntimeException ex)
+        {
+            throw new IllegalArgumentException("Warmup configuration is not a valid JSON document", ex);
+        }
+
+        if (!(parsed instanceof Map<?, ?>))
+        {
+            throw new IllegalArgumentException("Warmup configuration must be a JSON object");
+        }
+
+        final Map<String, Map<String, Object>> sections = new LinkedHashMap<>();
+        ((Map<String, Object>) parsed).forEach((section, entries) -> {
+            if (!(entries instanceof Map<?, ?>))
+            {
+                throw new IllegalArgumentException("Warmup configuration section " + section + " must be a JSON object");
+            }
+
+            final Map<String, Object> sectionEntries = new LinkedHashMap<>();
+            ((Map<String, Object>) entries).forEach((key, value) -> {
+                final ArgType argType = OVERRIDABLE_ARGS.get(key);
+                if (argType == null)
+                {
+                    throw new IllegalArgumentException("Warmup configuration entry " + section + "." + key
+                            + " cannot be changed at runtime - supported entries are " + new TreeSet<>(OVERRIDABLE_ARGS.keySet()));
+                }
+                final Object argValue = toArgValue(section + "." + key, value);
+                // listeners cast their arguments, so a value of another type would fail every subsequent warmup
+                if (!argType.accepts(argValue))
+                {
+                    throw new IllegalArgumentException(
+                            "Warmup configuration entry " + section + "." + key + " must be " + argType.getDescription() + " - got " + value);
+                }
+                sectionEntries.put(key, argValue);
+            });
+            sections.put(section, Collections.unmodifiableMap(sectionEntries));
+        });
+        return Collections.unmodifiableMap(sections);
+    }
+
+    protected static Object toArgValue(final String key, final Object value)
+    {
+        final Object argValue;
+        // listeners expect argument values of the types SOLR creates for <int>, <str>, <bool> and <arr> in solrconfig.xml
+        if (value instanceof Long && ((Long) value).longValue() == ((Long) value).intValue())
+        {
+            argValue = Integer.valueOf(((Long) value).intValue());
+        }
+        else if (value instanceof Collection<?>)
+        {
+            final List<Object> elements = new ArrayList<>();
+            ((Collection<?>) value).forEach(element -> elements.add(toArgValue(key, element)));
+            argValue = Collections.unmodifiableList(elements);
+        }
+        else if (value instanceof Map<?, ?>)
+        {
+            throw new IllegalArgumentException("Warmup configuration entry " + key + " must not be a JSON object");
+        }
+        else
+        {
+            argValue = value;
+        }
+        return argValue;
+    }
+
+    protected void startWatching()
+    {
+        final Path directory = this.file.getParent();
+        try
+        {
+            Files.createDirectories(directory);
+            final WatchService watchService = directory.getFileSystem().newWatchService();
+            this.watchService = watchService;
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+
+            final Thread watcher = new Thread(() -> this.watch(watchService), "fq-warmup-configuration-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+            LOGGER.debug("Watching warmup configuration {} for changes", this.file);
+        }
+        catch (final IOException ioex)
+        {
+            LOGGER.warn("Error watching warmup configuration {} - changes will only be applied when requested explicitly", this.file, ioex);
+        }
+    }
+
+    protected void stopWatching()
+    {
+        if (this.watchService != null)
+        {
+            try
+            {
+                // the watcher thread terminates with a ClosedWatchServiceException
+                this.watchService.close();
+            }
+            catch (final IOException ioex)
+            {
+                LOGGER.warn("Error stopping to watch warmup configuration {}", this.file, ioex);
+            }
+            this.watchService = null;
+        }
+    }
+
+    protected void watch(final WatchService watchService)
+    {
+        try
+        {
+            while (true)
+            {
+                final WatchKey key = watchService.take();
+                boolean changed = false;
+                for (final WatchEvent<?> event : key.pollEvents())
+                {
+                    changed = changed || this.file.getFileName().equals(event.context());
+                }
+                key.reset();
+
+                if (changed)
+                {
+                    try
+                    {
+                        this.reload();
+                    }
+                    catch (final IOException ioex)
+                    {
+                        // editors may save a file in multiple steps, so the next event may well carry a valid configuration
+                        LOGGER.warn("Error reloading warmup configuration from {} - keeping previous configuration", this.file, ioex);
+                    }
+                }
+            }
+        }
+        catch (final InterruptedException | ClosedWatchServiceException ex)
+        {
+            LOGGER.debug("Stopped watching warmup configuration {}", this.file);
+        }
+    }
+
+    /**
+     * Resolves a configuration file relative to the data directory of a core.
+     *
+     * @param core
+     *            the core
+     * @param configurationFile
+     *            the configured path of the configuration file
+     * @return the resolved path
+     */
+    public static Path resolveConfigurationFile(final SolrCore core, final String configurationFile)
+    {
+        // the configuration may be changed at runtime, so it belongs with the (persistent) data and not the template
+        return FilterQueryRecorderComponent.resolveStatisticsFile(core, configurationFile);
+    }
+
+    /**
+     * Implementations of this interface are notified of changed entries in a section of a warmup configuration.
+     */
+    @FunctionalInterface
+    public interface ChangeListener
+    {
+
+        /**
+         * Handles changed entries of a warmup configuration, e.g. by warming them against the current searcher. List entries only contain
+         * the elements added by the change.
+         *
+         * @param changes
+         *            the changed entries
+         */
+        void configurationChanged(Map<String, Object> changes);
+    }
+
+    /**
+     * Types of the arguments which may be overridden at runtime, matching the types SOLR creates for their elements in
+     * {@code solrconfig.xml}.
+     */
+    protected enum ArgType
+    {
+
+        INT("an integer"),
+
+        BOOL("a boolean"),
+
+        NUMBER("a number"),
+
+        STRING("a string"),
+
+        STRING_LIST("an array of strings");
+
+        protected final String description;
+
+        ArgType(final String description)
+        {
+            this.description = description;
+        }
+
+        protected String getDescription()
+        {
+            return this.description;
+        }
+
+        protected boolean accepts(final Object argValue)
+        {
+            final boolean accepted;
+            switch (this)
+            {
+                case INT:
+                    accepted = argValue instanceof Integer;
+                    break;
+                case BOOL:
+                    accepted = argValue instanceof Boolean;
+                    break;
+                case NUMBER:
+                    accepted = argValue instanceof Number;
+                    break;
+                case STRING:
+                    accepted = argValue instanceof String;
+                    break;
+                case STRING_LIST:
+                    accepted = argValue instanceof List<?> && ((List<?>) argValue).stream().allMatch(String.class::isInstance);
+                    break;
+                default:
+                    accepted = false;
+            }
+            return accepted;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.invoke.MethodHandles;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this request handler provide access to a {@link WarmupConfiguration}. A plain request returns the current configuration, a
+ * request with {@code action=reload} reloads it from its file, and a request with a JSON body replaces it. Entries changed by a reload or
+ * replacement are warmed against the current searcher right away by the warmup listeners configured with the same file.
+ */
+public class WarmupConfigurationHandler extends RequestHandlerBase implements SolrCoreAware
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    protected String configurationFile;
+
+    protected WarmupConfiguration configuration;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(@SuppressWarnings("rawtypes") final NamedList args)
+    {
+        super.init(args);
+
+        this.configurationFile = (String) args.get("configurationFile");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void inform(final SolrCore core)
+    {
+        if (this.configurationFile == null || this.configurationFile.trim().isEmpty())
+        {
+            LOGGER.warn("Configuration file has not been configured - warmup configuration will not be accessible");
+        }
+        else
+        {
+            this.configuration = WarmupConfiguration
+                    .getInstance(core, WarmupConfiguration.resolveConfigurationFile(core, this.configurationFile));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void handleRequestBody(final SolrQueryRequest req, final SolrQueryResponse rsp) throws Exception
+    {
+        if (this.configuration == null)
+        {
+            throw new SolrException(ErrorCode.SERVICE_UNAVAILABLE, "Configuration file has not been configured");
+        }
+
+        Map<String, Map<String, Object>> changes = null;
+        final Iterable<ContentStream> contentStreams = req.getContentStreams();
+        if (contentStreams != null && contentStreams.iterator().hasNext())
+        {
+            final StringBuilder json = new StringBuilder();
+            for (final ContentStream contentStream : contentStreams)
+            {
+                try (Reader reader = contentStream.getReader())
+                {
+                    json.append(IOUtils.toString(reader));
+                }
+            }
+
+            try
+            {
+                changes = this.configuration.update(json.toString());
+            }
+            catch (final IllegalArgumentException iaex)
+            {
+                throw new SolrException(ErrorCode.BAD_REQUEST, iaex.getMessage(), iaex);
+            }
+        }
+        else if ("reload".equals(req.getParams().get("action")))
+        {
+            try
+            {
+                changes = this.configuration.reload();
+            }
+            catch (final IOException ioex)
+            {
+                throw new SolrException(ErrorCode.SERVER_ERROR, ioex.getMessage(), ioex);
+            }
+        }
+
+        rsp.add("configurationFile", this.configuration.getFile().toString());
+        rsp.add("configuration", this.configuration.getSections());
+        if (changes != null)
+        {
+            rsp.add("changes", changes);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDescription()
+    {
+        return "Provides access to the warmup configuration of filter query and sort warmup listeners";
+    }
+}
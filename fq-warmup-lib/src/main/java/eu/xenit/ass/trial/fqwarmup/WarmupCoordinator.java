@@ -0,0 +1,314 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class coordinates the warmups of all cores in the same JVM, e.g. the {@code alfresco} and {@code archive} cores or multiple shards
+ * hosted on the same node. Filter queries parsed for one core are shared with all other cores whose schema is identical, so that common
+ * query list files only need to be parsed once per JVM. In addition, the number of cores warming at the same time is limited by the system
+ * property {@code eu.xenit.ass.fqwarmup.maxConcurrentCores} (defaulting to a quarter of the available processors) and the start of warmups
+ * of different cores is staggered by the interval (in milliseconds) set via the system property {@code eu.xenit.ass.fqwarmup.staggerInterval},
+ * so that a commit replicated to all cores at the same time does not saturate disk and CPU of the node.
+ */
+public class WarmupCoordinator
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String MAX_CONCURRENT_CORES_PROPERTY = "eu.xenit.ass.fqwarmup.maxConcurrentCores";
+
+    public static final String STAGGER_INTERVAL_PROPERTY = "eu.xenit.ass.fqwarmup.staggerInterval";
+
+    protected static final long DEFAULT_STAGGER_INTERVAL = 500;
+
+    protected static final int MAX_SHARED_QUERY_LISTS = 32;
+
+    protected static final long ABANDONED_CHECK_INTERVAL = 100;
+
+    private static final WarmupCoordinator INSTANCE = new WarmupCoordinator(
+            Integer.getInteger(MAX_CONCURRENT_CORES_PROPERTY, Math.max(1, Runtime.getRuntime().availableProcessors() / 4)).intValue(),
+            Long.getLong(STAGGER_INTERVAL_PROPERTY, DEFAULT_STAGGER_INTERVAL).longValue());
+
+    protected final int maxConcurrentCores;
+
+    protected final long staggerInterval;
+
+    protected final Map<SolrCore, Integer> warmingCores = new HashMap<>();
+
+    protected final List<Waiter> waitingCores = new LinkedList<>();
+
+    protected long lastAdmission;
+
+    protected WeakReference<SolrCore> lastAdmittedCore = new WeakReference<>(null);
+
+    protected final Map<IndexSchema, String> schemaFingerprints = Collections.synchronizedMap(new WeakHashMap<>());
+
+    protected final Map<List<Object>, FutureTask<Object>> sharedQueryLists = Collections
+            .synchronizedMap(new LinkedHashMap<List<Object>, FutureTask<Object>>(16, 0.75f, true)
+            {
+
+                private static final long serialVersionUID = 1L;
+
+                /**
+                 * {@inheritDoc}
+                 */
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<List<Object>, FutureTask<Object>> eldest)
+                {
+                    return this.size() > MAX_SHARED_QUERY_LISTS;
+                }
+            });
+
+    protected WarmupCoordinator(final int maxConcurrentCores, final long staggerInterval)
+    {
+        this.maxConcurrentCores = Math.max(1, maxConcurrentCores);
+        this.staggerInterval = Math.max(0, staggerInterval);
+    }
+
+    /**
+     * Retrieves the JVM-wide coordinator instance.
+     *
+     * @return the coordinator
+     */
+    public static WarmupCoordinator getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Waits for a core to be admitted to warm up. Cores are admitted in the order in which they started waiting, as long as fewer than the
+     * maximum number of concurrently warming cores are warming and the stagger interval has passed since the last admission. A core which
+     * is already warming, e.g. because multiple listeners are warming the same searcher, is admitted immediately. Each successful call must
+     * be followed by a call to {@link #release(SolrCore) release}.
+     *
+     * @param core
+     *            the core to admit
+     * @param timeoutMillis
+     *            the maximum time to wait in milliseconds
+     * @return {@code true} if the core has been admitted, {@code false} if the timeout elapsed before the core could be admitted
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    public boolean acquire(final SolrCore core, final long timeoutMillis) throws InterruptedException
+    {
+        return this.acquire(core, timeoutMillis, () -> false);
+    }
+
+    /**
+     * Waits for a core to be admitted to warm up, just like {@link #acquire(SolrCore, long)}, but gives up waiting (and its place in line)
+     * as soon as the warmup has been abandoned, e.g. because a newer searcher has been opened.
+     *
+     * @param core
+     *            the core to admit
+     * @param timeoutMillis
+     *            the maximum time to wait in milliseconds
+     * @param abandoned
+     *            the check whether the warmup has been abandoned, evaluated at least every {@value #ABANDONED_CHECK_INTERVAL} milliseconds
+     * @return {@code true} if the core has been admitted, {@code false} if the timeout elapsed or the warmup was abandoned before the core
+     *         could be admitted
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    public synchronized boolean acquire(final SolrCore core, final long timeoutMillis, final BooleanSupplier abandoned)
+            throws InterruptedException
+    {
+        long now = System.currentTimeMillis();
+        final long deadline = timeoutMillis >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + Math.max(0, timeoutMillis);
+        boolean admitted = false;
+        // the core keeps its place in line for the whole wait, so cores are admitted in the order in which they started waiting
+        final Waiter waiter = new Waiter(core);
+        this.waitingCores.add(waiter);
+        try
+        {
+            boolean waiting = true;
+            while (!admitted && waiting)
+            {
+                final Integer warmups = this.warmingCores.get(core);
+                if (warmups != null)
+                {
+                    this.warmingCores.put(core, Integer.valueOf(warmups.intValue() + 1));
+                    admitted = true;
+                }
+                else if (this.waitingCores.get(0) == waiter && this.warmingCores.size() < this.maxConcurrentCores
+                        && (core == this.lastAdmittedCore.get() || now >= this.lastAdmission + this.staggerInterval))
+                {
+                    // consecutive warmups of the same core, e.g. by its different listeners, do not need to be staggered
+                    this.warmingCores.put(core, Integer.valueOf(1));
+                    this.lastAdmission = now;
+                    this.lastAdmittedCore = new WeakReference<>(core);
+                    admitted = true;
+                    LOGGER.debug("Admitted core {} to warm up alongside {} other cores", core.getName(), this.warmingCores.size() - 1);
+                }
+                else if (now >= deadline || abandoned.getAsBoolean())
+                {
+                    waiting = false;
+                }
+                else
+                {
+                    // admissions are only signalled for released cores, so waiting out the stagger interval or checking whether the warmup
+                    // has been abandoned requires a timed wait
+                    final long staggerWait = this.lastAdmission + this.staggerInterval - now;
+                    this.wait(Math.max(1, Math.min(Math.min(deadline - now, ABANDONED_CHECK_INTERVAL),
+                            staggerWait > 0 ? staggerWait : Long.MAX_VALUE)));
+                    now = System.currentTimeMillis();
+                }
+            }
+        }
+        finally
+        {
+            this.waitingCores.remove(waiter);
+            // the next core in line may have been waiting for this one to give up its place
+            this.notifyAll();
+        }
+        return admitted;
+    }
+
+    /**
+     * Releases a core previously admitted via {@link #acquire(SolrCore, long) acquire}.
+     *
+     * @param core
+     *            the core to release
+     */
+    public synchronized void release(final SolrCore core)
+    {
+        final Integer warmups = this.warmingCores.get(core);
+        if (warmups != null && warmups.intValue() > 1)
+        {
+            this.warmingCores.put(core, Integer.valueOf(warmups.intValue() - 1));
+        }
+        else if (warmups != null)
+        {
+            this.warmingCores.remove(core);
+            this.notifyAll();
+        }
+    }
+
+    /**
+     * Retrieves the parsed form of a list of queries shared by all cores with identical schemas, parsing it only if no core with the same
+     * schema has parsed the same list before.
+     *
+     * @param <T>
+     *            the type of the parsed form
+     * @param schema
+     *            the schema of the core requesting the queries
+     * @param key
+     *            the key identifying the list of queries and all other inputs of the parsing independent of the schema
+     * @param parser
+     *            the parser to use if the list of queries has not been parsed before
+     * @return the parsed form of the list of queries
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getSharedQueries(final IndexSchema schema, final List<?> key, final Supplier<T> parser)
+    {
+        final List<Object> sharedKey = new ArrayList<>(key);
+        sharedKey.add(this.getSchemaFingerprint(schema));
+
+        // cores are typically loaded in parallel, so concurrent requests for the same queries wait for the first one to parse them
+        final FutureTask<Object> newParse = new FutureTask<>(parser::get);
+        final FutureTask<Object> parse;
+        synchronized (this.sharedQueryLists)
+        {
+            final FutureTask<Object> existingParse = this.sharedQueryLists.get(sharedKey);
+            parse = existingParse != null ? existingParse : newParse;
+            if (existingParse == null)
+            {
+                this.sharedQueryLists.put(sharedKey, newParse);
+            }
+        }
+
+        T queries;
+        if (parse == newParse)
+        {
+            newParse.run();
+        }
+        else
+        {
+            LOGGER.debug("Reusing queries parsed for another core with identical schema");
+        }
+        try
+        {
+            queries = (T) parse.get();
+        }
+        catch (final ExecutionException eex)
+        {
+            this.sharedQueryLists.remove(sharedKey, parse);
+            final Throwable cause = eex.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+        catch (final InterruptedException iex)
+        {
+            // reset the interrupted flag and fall back to parsing without sharing
+            Thread.currentThread().interrupt();
+            queries = parser.get();
+        }
+        return queries;
+    }
+
+    /**
+     * Computes a fingerprint of the aspects of a schema which affect how queries are parsed.
+     *
+     * @param schema
+     *            the schema
+     * @return the fingerprint
+     */
+    public String getSchemaFingerprint(final IndexSchema schema)
+    {
+        return this.schemaFingerprints.computeIfAbsent(schema, s -> {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(s.getVersion()).append('\n');
+            sb.append(s.getDefaultSearchFieldName()).append('\n');
+            sb.append(s.getUniqueKeyField() != null ? s.getUniqueKeyField().getName() : null).append('\n');
+            for (final Map.Entry<String, FieldType> fieldType : new TreeMap<>(s.getFieldTypes()).entrySet())
+            {
+                sb.append(fieldType.getKey()).append(fieldType.getValue().getClass().getName())
+                        .append(fieldType.getValue().getNamedPropertyValues(true)).append('\n');
+            }
+            for (final Map.Entry<String, SchemaField> field : new TreeMap<>(s.getFields()).entrySet())
+            {
+                sb.append(field.getValue().getNamedPropertyValues(true)).append('\n');
+            }
+            for (final SchemaField dynamicField : s.getDynamicFieldPrototypes())
+            {
+                sb.append(dynamicField.getNamedPropertyValues(true)).append('\n');
+            }
+
+            return Digests.sha256(sb.toString());
+        });
+    }
+
+    /**
+     * Instances of this class hold the place in line of a single call to {@link WarmupCoordinator#acquire(SolrCore, long, BooleanSupplier)
+     * acquire}, as the same core may be waiting more than once, e.g. for different listeners.
+     */
+    protected static class Waiter
+    {
+
+        protected final SolrCore core;
+
+        protected Waiter(final SolrCore core)
+        {
+            this.core = core;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
+import org.apache.solr.metrics.SolrMetricManager;
+import org.apache.solr.metrics.SolrMetricProducer;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+/**
+ * Instances of this class collect the metrics of all warmup listeners of one kind on a single core. They are registered both as an info bean
+ * of the core, which exposes them via JMX and the {@code /admin/mbeans} handler (including the slowest queries of the last warmup), and as a
+ * producer of metrics in the SOLR metrics registry of the core.
+ */
+public class WarmupMetrics implements SolrInfoMBean, SolrMetricProducer
+{
+
+    public static final String FILTER_QUERY_WARMUP = "filterQueryWarmup";
+
+    public static final String SORT_WARMUP = "sortWarmup";
+
+    public static final String FACET_WARMUP = "facetWarmup";
+
+    public static final String INDEX_PREFETCH = "indexPrefetch";
+
+    public static final String REQUEST_REPLAY = "requestReplay";
+
+    // all events warmups are recorded for, each with its own timer in the metrics registry
+    protected static final List<String> WARMUP_EVENTS = Collections
+            .unmodifiableList(Arrays.asList("firstSearcher", "newSearcher", "configurationChange", "snapshotRestore"));
+
+    protected static final int MAX_SLOW_QUERIES = 20;
+
+    private static final Map<SolrCore, ConcurrentMap<String, WarmupMetrics>> INSTANCES = Collections.synchronizedMap(new WeakHashMap<>());
+
+    protected final String name;
+
+    protected final String description;
+
+    protected final ConcurrentMap<String, Timer> warmupTimes = new ConcurrentHashMap<>();
+
+    protected final Histogram parseTimes = new Histogram(new ExponentiallyDecayingReservoir());
+
+    protected final Histogram executeTimes = new Histogram(new ExponentiallyDecayingReservoir());
+
+    protected final Counter syntaxErrors = new Counter();
+
+    protected final Counter timeouts = new Counter();
+
+    protected final Counter skippedTasks = new Counter();
+
+    protected final Counter abandonedWarmups = new Counter();
+
+    protected final Counter capacitySkips = new Counter();
+
+    protected final Counter heapPressureSkips = new Counter();
+
+    protected final Timer heapPressureWaits = new Timer();
+
+    protected final Counter concurrencyBackoffs = new Counter();
+
+    protected volatile int cacheSizeBefore = -1;
+
+    protected volatile int cacheSizeAfter = -1;
+
+    protected volatile int redundantQueries;
+
+    protected volatile int concurrencyLimit = -1;
+
+    protected PriorityQueue<SlowQuery> currentSlowQueries = new PriorityQueue<>(Comparator.comparingLong(q -> q.nanos));
+
+    protected volatile List<SlowQuery> lastSlowQueries = Collections.emptyList();
+
+    protected WarmupMetrics(final String name, final String description)
+    {
+        this.name = name;
+        this.description = description;
+    }
+
+    /**
+     * Retrieves the metrics of a specific kind of warmup on a core, registering them with the core on first access.
+     *
+     * @param core
+     *            the core
+     * @param name
+     *            the name of the kind of warmup, e.g. {@link #FILTER_QUERY_WARMUP}
+     * @return the metrics
+     */
+    public static WarmupMetrics getInstance(final SolrCore core, final String name)
+    {
+        final ConcurrentMap<String, WarmupMetrics> metrics = INSTANCES.computeIfAbsent(core, c -> new ConcurrentHashMap<>());
+        return metrics.computeIfAbsent(name, n -> {
+            final WarmupMetrics newMetrics = new WarmupMetrics(n, "Metrics of " + n + " listeners");
+            core.registerInfoBean(n, newMetrics);
+            core.getCoreMetricManager().registerMetricProducer(n, newMetrics);
+            return newMetrics;
+        });
+    }
+
+    /**
+     * Records the time taken to parse a query.
+     *
+     * @param nanos
+     *            the parse time in nanoseconds
+     */
+    public void recordParse(final long nanos)
+    {
+        this.parseTimes.update(nanos);
+    }
+
+    /**
+     * Records a query that could not be parsed due to a syntax error.
+     */
+    public void recordSyntaxError()
+    {
+        this.syntaxErrors.inc();
+    }
+
+    /**
+     * Records the time taken to execute a warmup task.
+     *
+     * @param task
+     *            the description of the task
+     * @param nanos
+     *            the execution time in nanoseconds
+     */
+    public void recordExecution(final String task, final long nanos)
+    {
+        this.executeTimes.update(nanos);
+        synchronized (this)
+        {
+            this.currentSlowQueries.add(new SlowQuery(task, nanos));
+            if (this.currentSlowQueries.size() > MAX_SLOW_QUERIES)
+            {
+                this.currentSlowQueries.poll();
+            }
+        }
+    }
+
+    /**
+     * Records the end of a warmup run.
+     *
+     * @param timedOut
+     *            {@code true} if the warmup did not complete in the allotted time
+     * @param abandoned
+     *            {@code true} if the warmup has been abandoned due to a newer searcher
+     * @param skipped
+     *            the number of tasks that have not been executed
+     */
+    public void recordRun(final boolean timedOut, final boolean abandoned, final int skipped)
+    {
+        if (timedOut)
+        {
+            this.timeouts.inc();
+        }
+        if (abandoned)
+        {
+            this.abandonedWarmups.inc();
+        }
+        this.skippedTasks.inc(skipped);
+    }
+
+    /**
+     * Records the number of configured or listed queries found to be redundant in the last warmup, i.e. equal to another query after
+     * parsing.
+     *
+     * @param count
+     *            the number of redundant queries
+     */
+    public void recordRedundantQueries(final int count)
+    {
+        this.redundantQueries = count;
+    }
+
+    /**
+     * Adds to the number of redundant queries of the last warmup, e.g. for listed queries found to be redundant while the warmup was
+     * already running.
+     *
+     * @param count
+     *            the number of additional redundant queries
+     */
+    public synchronized void addRedundantQueries(final int count)
+    {
+        this.redundantQueries += count;
+    }
+
+    /**
+     * Records a filter that has been skipped as its cache entry would have evicted another entry from a full cache.
+     */
+    public void recordCapacitySkip()
+    {
+        this.capacitySkips.inc();
+    }
+
+    /**
+     * Records a delay of a filter due to heap pressure.
+     *
+     * @param nanos
+     *            the time waited for heap usage to drop in nanoseconds
+     * @param skipped
+     *            {@code true} if the filter has been skipped as heap usage did not drop in time
+     */
+    public void recordHeapPressure(final long nanos, final boolean skipped)
+    {
+        this.heapPressureWaits.update(nanos, TimeUnit.NANOSECONDS);
+        if (skipped)
+        {
+            this.heapPressureSkips.inc();
+        }
+    }
+
+    /**
+     * Records a change of the number of concurrent workers of an adaptive warmup.
+     *
+     * @param limit
+     *            the new number of concurrent workers
+     * @param backoff
+     *            {@code true} if the number has been reduced as live requests were affected by the warmup
+     */
+    public void recordConcurrency(final int limit, final boolean backoff)
+    {
+        this.concurrencyLimit = limit;
+        if (backoff)
+        {
+            this.concurrencyBackoffs.inc();
+        }
+    }
+
+    /**
+     * Records the completion of a warmup triggered by a searcher event, a configuration change or a snapshot restore.
+     *
+     * @param event
+     *            the event, i.e. {@code firstSearcher}, {@code newSearcher}, {@code configurationChange} or {@code snapshotRestore}
+     * @param nanos
+     *            the wall time of the warmup in nanoseconds
+     * @param cacheSizeBefore
+     *            the size of the warmed cache before the warmup or {@code -1} if not applicable
+     * @param cacheSizeAfter
+     *            the size of the warmed cache after the warmup or {@code -1} if not applicable
+     */
+    public void recordWarmup(final String event, final long nanos, final int cacheSizeBefore, final int cacheSizeAfter)
+    {
+        this.warmupTimes.computeIfAbsent(event, e -> new Timer()).update(nanos, TimeUnit.NANOSECONDS);
+        this.cacheSizeBefore = cacheSizeBefore;
+        this.cacheSizeAfter = cacheSizeAfter;
+
+        synchronized (this)
+        {
+            final List<SlowQuery> slowQueries = new ArrayList<>(this.currentSlowQueries);
+            slowQueries.sort(Comparator.comparingLong((final SlowQuery q) -> q.nanos).reversed());
+            this.lastSlowQueries = Collections.unmodifiableList(slowQueries);
+            this.currentSlowQueries.clear();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void initializeMetrics(final SolrMetricManager manager, final String registry, final String scope)
+    {
+        final String category = this.getCategory().toString();
+        manager.register(registry, this.parseTimes, true, "parseTimes", category, scope);
+        manager.register(registry, this.executeTimes, true, "executeTimes", category, scope);
+        manager.register(registry, this.syntaxErrors, true, "syntaxErrors", category, scope);
+        manager.register(registry, this.timeouts, true, "timeouts", category, scope);
+        manager.register(registry, this.skippedTasks, true, "skippedTasks", category, scope);
+        manager.register(registry, this.abandonedWarmups, true, "abandonedWarmups", category, scope);
+        manager.register(registry, this.capacitySkips, true, "capacitySkips", category, scope);
+        manager.register(registry, this.heapPressureSkips, true, "heapPressureSkips", category, scope);
+        manager.register(registry, this.heapPressureWaits, true, "heapPressureWaits", category, scope);
+        manager.register(registry, this.concurrencyBackoffs, true, "concurrencyBackoffs", category, scope);
+        manager.register(registry, (Gauge<Integer>) () -> this.cacheSizeBefore, true, "cacheSizeBefore", category, scope);
+        manager.register(registry, (Gauge<Integer>) () -> this.cacheSizeAfter, true, "cacheSizeAfter", category, scope);
+        manager.register(registry, (Gauge<Integer>) () -> this.redundantQueries, true, "redundantQueries", category, scope);
+        manager.register(registry, (Gauge<Integer>) () -> this.concurrencyLimit, true, "concurrencyLimit", category, scope);
+        for (final String event : WARMUP_EVENTS)
+        {
+            manager.register(registry, this.warmupTimes.computeIfAbsent(event, e -> new Timer()), true, event, category, scope,
+                    "warmupTimes");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getVersion()
+    {
+        return this.getClass().getPackage().getImplementationVersion();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDescription()
+    {
+        return this.description;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Category getCategory()
+    {
+        return Category.OTHER;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getSource()
+    {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public URL[] getDocs()
+    {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public NamedList getStatistics()
+    {
+        final NamedList<Object> statistics = new SimpleOrderedMap<>();
+        this.warmupTimes.forEach((event, timer) -> {
+            statistics.add(event + "Warmups", timer.getCount());
+            this.addSnapshot(statistics, event + "WarmupTime", timer.getSnapshot());
+        });
+        statistics.add("parsedQueries", this.parseTimes.getCount());
+        this.addSnapshot(statistics, "parseTime", this.parseTimes.getSnapshot());
+        statistics.add("executedTasks", this.executeTimes.getCount());
+        this.addSnapshot(statistics, "executeTime", this.executeTimes.getSnapshot());
+        statistics.add("syntaxErrors", this.syntaxErrors.getCount());
+        statistics.add("timeouts", this.timeouts.getCount());
+        statistics.add("skippedTasks", this.skippedTasks.getCount());
+        statistics.add("abandonedWarmups", this.abandonedWarmups.getCount());
+        statistics.add("capacitySkips", this.capacitySkips.getCount());
+        statistics.add("heapPressureSkips", this.heapPressureSkips.getCount());
+        statistics.add("heapPressureWaits", this.heapPressureWaits.getCount());
+        this.addSnapshot(statistics, "heapPressureWaitTime", this.heapPressureWaits.getSnapshot());
+        statistics.add("redundantQueries", this.redundantQueries);
+        statistics.add("concurrencyBackoffs", this.concurrencyBackoffs.getCount());
+        if (this.concurrencyLimit >= 0)
+        {
+            statistics.add("concurrencyLimit", this.concurrencyLimit);
+        }
+        if (this.cacheSizeBefore >= 0)
+        {
+            statistics.add("cacheSizeBefore", this.cacheSizeBefore);
+            statistics.add("cacheSizeAfter", this.cacheSizeAfter);
+        }
+
+        final NamedList<Object> slowQueries = new NamedList<>();
+        this.lastSlowQueries.forEach(q -> slowQueries.add(q.task, toMillis(q.nanos)));
+        statistics.add("slowQueries", slowQueries);
+        return statistics;
+    }
+
+    protected void addSnapshot(final NamedList<Object> statistics, final String prefix, final Snapshot snapshot)
+    {
+        statistics.add(prefix + "MeanMs", toMillis(snapshot.getMean()));
+        statistics.add(prefix + "MedianMs", toMillis(snapshot.getMedian()));
+        statistics.add(prefix + "95thPcMs", toMillis(snapshot.get95thPercentile()));
+        statistics.add(prefix + "99thPcMs", toMillis(snapshot.get99thPercentile()));
+        statistics.add(prefix + "MaxMs", toMillis(snapshot.getMax()));
+    }
+
+    protected static double toMillis(final double nanos)
+    {
+        return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * Instances of this class represent the execution time of a single warmup task.
+     */
+    protected static class SlowQuery
+    {
+
+        protected final String task;
+
+        protected final long nanos;
+
+        protected SlowQuery(final String task, final long nanos)
+        {
+            this.task = task;
+            this.nanos = nanos;
+        }
+    }
+}
@@ -0,0 +1,943 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class provides the JVM-wide thread pool used by all warmup listeners. The total number of warmup threads across all listeners and
+ * cores is limited by the system property {@code eu.xenit.ass.fqwarmup.maxThreads} (defaulting to half the available processors), while
+ * each individual warmup is further limited by the concurrency configured on its listener. Warmups are cancelled cooperatively, i.e. no
+ * further tasks are started, once they time out or once a newer searcher has been opened that supersedes the searcher being warmed. As tasks
+ * cannot be stopped midway, a cancelled warmup only completes once all of its workers have finished their current task.
+ * Tasks with known estimates ({@link WarmupTask}) are executed in order of value per cost, and tasks that are not expected to complete
+ * before the deadline of the warmup are skipped in favour of cheaper ones, reporting all skipped tasks at the end of the warmup.
+ *
+ * Tasks may also be fed to a running warmup by a {@link TaskSource}, e.g. as the queries they warm are being parsed. Fed tasks are merged
+ * with the tasks which have not been started yet, and workers wait for further tasks until the source has been exhausted.
+ *
+ * Before any tasks are started, each blocking warmup waits to be admitted by the {@link WarmupCoordinator}, which staggers the warmups of
+ * different cores in the same JVM. The time spent waiting counts against the timeout of the warmup.
+ *
+ * Warmups can either be executed while blocking the registration of the new searcher or be submitted for execution in the background once
+ * the new searcher has been registered, trading completeness of the warmup for visibility latency of new documents. As background warmups
+ * may run for a long time and keep their workers until they complete, all background warmups together are limited to half of the thread
+ * pool, leaving the remaining threads to the blocking warmups.
+ *
+ * If the system property {@code eu.xenit.ass.fqwarmup.adaptiveConcurrency} is set to {@code true}, the concurrency configured on a listener
+ * is only the upper limit of the number of workers of its warmups, which is adjusted while the warmup runs by {@link AdaptiveConcurrency}
+ * based on the latency of live requests, the CPU load and the throughput of the warmup.
+ */
+public class WarmupScheduler
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    public static final String MAX_THREADS_PROPERTY = "eu.xenit.ass.fqwarmup.maxThreads";
+
+    public static final String ADAPTIVE_CONCURRENCY_PROPERTY = "eu.xenit.ass.fqwarmup.adaptiveConcurrency";
+
+    protected static final long DEFAULT_TIMEOUT = 10000;
+
+    protected static final long SUPERSEDED_CHECK_INTERVAL = 100;
+
+    protected static final long REGISTRATION_POLL_INTERVAL = 50;
+
+    protected static final int MAX_REPORTED_TASKS = 20;
+
+    private static final WarmupScheduler INSTANCE = new WarmupScheduler(
+            Integer.getInteger(MAX_THREADS_PROPERTY, Math.max(1, Runtime.getRuntime().availableProcessors() / 2)).intValue(),
+            Boolean.getBoolean(ADAPTIVE_CONCURRENCY_PROPERTY));
+
+    protected final ExecutorService executor;
+
+    protected final ExecutorService backgroundCoordinator;
+
+    protected final int maxThreads;
+
+    protected final boolean adaptiveConcurrency;
+
+    protected final Semaphore backgroundWorkers;
+
+    protected final AtomicLong abandonedWarmups = new AtomicLong();
+
+    protected WarmupScheduler(final int maxThreads, final boolean adaptiveConcurrency)
+    {
+        this.maxThreads = Math.max(1, maxThreads);
+        this.adaptiveConcurrency = adaptiveConcurrency;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadFactory threadFactory = r -> {
+            final Thread thread = new Thread(r, "fq-warmup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(this.maxThreads, this.maxThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+
+        // coordinators only wait for searcher registration and worker completion, so they do not count against the thread budget
+        final AtomicInteger coordinatorCount = new AtomicInteger();
+        final ThreadPoolExecutor backgroundCoordinator = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+                    final Thread thread = new Thread(r, "fq-warmup-background-" + coordinatorCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.backgroundCoordinator = backgroundCoordinator;
+
+        // workers drain their warmup until it completes, so queue priority alone would not keep background warmups from occupying the
+        // whole pool while blocking warmups wait for a thread
+        this.backgroundWorkers = new Semaphore(Math.max(1, this.maxThreads / 2));
+    }
+
+    /**
+     * Retrieves the JVM-wide scheduler instance.
+     *
+     * @return the scheduler
+     */
+    public static WarmupScheduler getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * Executes a list of warmup tasks for a searcher, blocking until all tasks have completed, the warmup has timed out or it has been
+     * superseded by a newer searcher.
+     *
+     * @param core
+     *            the core being warmed
+     * @param searcher
+     *            the searcher being warmed
+     * @param description
+     *            the description of the warmup for logging purposes
+     * @param tasks
+     *            the tasks to execute
+     * @param concurrency
+     *            the maximum number of tasks to execute concurrently - values lower than {@code 2} cause tasks to be executed in the calling
+     *            thread, otherwise the actual number may be lower if adaptive concurrency is enabled
+     * @param timeout
+     *            the timeout in milliseconds - {@code null} or negative values select the default timeout (no timeout when executing in the
+     *            calling thread), {@code 0} disables the timeout
+     * @param metrics
+     *            the metrics to update with the results of the warmup - may be {@code null}
+     * @return the number of tasks that have not been executed
+     */
+    public int execute(final SolrCore core, final SolrIndexSearcher searcher, final String description, final List<Runnable> tasks,
+            final int concurrency, final Integer timeout, final WarmupMetrics metrics)
+    {
+        return this.execute(core, searcher, description, tasks, concurrency, timeout, metrics, null);
+    }
+
+    /**
+     * Executes a list of warmup tasks as well as the tasks provided by a source while the warmup is running, blocking until all tasks have
+     * completed, the warmup has timed out or it has been superseded by a newer searcher.
+     *
+     * @param core
+     *            the core being warmed
+     * @param searcher
+     *            the searcher being warmed
+     * @param description
+     *            the description of the warmup for logging purposes
+     * @param tasks
+     *            the tasks to execute
+     * @param concurrency
+     *            the maximum number of tasks to execute concurrently - values lower than {@code 2} cause tasks to be executed in the calling
+     *            thread, in which case the source is exhausted before any task is started
+     * @param timeout
+     *            the timeout in milliseconds - {@code null} or negative values select the default timeout (no timeout when executing in the
+     *            calling thread), {@code 0} disables the timeout
+     * @param metrics
+     *            the metrics to update with the results of the warmup - may be {@code null}
+     * @param source
+     *            the source of further tasks - may be {@code null}
+     * @return the number of tasks that have not been executed
+     */
+    public int execute(final SolrCore core, final SolrIndexSearcher searcher, final String description, final List<Runnable> tasks,
+            final int concurrency, final Integer timeout, final WarmupMetrics metrics, final TaskSource source)
+    {
+        // sequential warmups have never been limited unless explicitly configured
+        final WarmupRun run = new WarmupRun(core, searcher, description, tasks,
+                this.getDeadline(concurrency > 1 || timeout != null ? timeout : Integer.valueOf(0)), metrics, source);
+        if (run.getWorkload() > 0 && this.admit(run))
+        {
+            try
+            {
+                if (concurrency > 1)
+                {
+                    this.executeConcurrently(run, concurrency);
+                }
+                else
+                {
+                    run.feed();
+                    run.drain();
+                }
+            }
+            finally
+            {
+                WarmupCoordinator.getInstance().release(core);
+            }
+        }
+        return this.complete(run);
+    }
+
+    /**
+     * Submits a list of warmup tasks for a searcher for execution in the background, returning immediately. Execution starts once the
+     * searcher has been registered with its core and is abandoned if the searcher is superseded by a newer searcher before or during the
+     * warmup.
+     *
+     * @param core
+     *            the core being warmed
+     * @param searcher
+     *            the searcher being warmed
+     * @param description
+     *            the description of the warmup for logging purposes
+     * @param tasks
+     *            the tasks to execute, in order of priority
+     * @param concurrency
+     *            the maximum number of tasks to execute concurrently - the actual number may be lower if adaptive concurrency is enabled
+     * @param timeout
+     *            the timeout in milliseconds, including the time waiting for the searcher to be registered - {@code null} or negative values
+     *            select the default timeout, {@code 0} disables the timeout
+     * @param metrics
+     *            the metrics to update with the results of the warmup - may be {@code null}
+     * @param completion
+     *            the callback to invoke when the warmup has completed or has been abandoned - may be {@code null}
+     */
+    public void submit(final SolrCore core, final SolrIndexSearcher searcher, final String description, final List<Runnable> tasks,
+            final int concurrency, final Integer timeout, final WarmupMetrics metrics, final Runnable completion)
+    {
+        this.submit(core, searcher, description, tasks, concurrency, timeout, metrics, null, completion);
+    }
+
+    /**
+     * Submits a list of warmup tasks for a searcher as well as a source of further tasks for execution in the background, returning
+     * immediately. The source is only asked for its tasks once the execution has started.
+     *
+     * @param core
+     *            the core being warmed
+     * @param searcher
+     *            the searcher being warmed
+     * @param description
+     *            the description of the warmup for logging purposes
+     * @param tasks
+     *            the tasks to execute, in order of priority
+     * @param concurrency
+     *            the maximum number of tasks to execute concurrently - the actual number may be lower if adaptive concurrency is enabled
+     * @param timeout
+     *            the timeout in milliseconds, including the time waiting for the searcher to be registered - {@code null} or negative values
+     *            select the default timeout, {@code 0} disables the timeout
+     * @param metrics
+     *            the metrics to update with the results of the warmup - may be {@code null}
+     * @param source
+     *            the source of further tasks - may be {@code null}
+     * @param completion
+     *            the callback to invoke when the warmup has completed or has been abandoned - may be {@code null}
+     */
+    public void submit(final SolrCore core, final SolrIndexSearcher searcher, final String description, final List<Runnable> tasks,
+            final int concurrency, final Integer timeout, final WarmupMetrics metrics, final TaskSource source, final Runnable completion)
+    {
+        final WarmupRun run = new WarmupRun(core, searcher, description, tasks, this.getDeadline(timeout), metrics, source);
+
+        LOGGER.debug("Submitting {} {} warmup tasks for background execution", tasks.size(), description);
+        this.backgroundCoordinator.execute(() -> {
+            try
+            {
+                final RefCounted<SolrIndexSearcher> searcherRef = this.awaitRegistration(run);
+                if (searcherRef != null)
+                {
+                    try
+                    {
+                        // background warmups do not block the visibility of new searchers and may run for a long time, so they are
+                        // not admitted by the coordinator, which would otherwise delay the blocking warmups of other cores
+                        final int workers = run.getWorkload() > 0 ? this.acquireBackgroundWorkers(run, Math.max(1, concurrency)) : 0;
+                        if (workers > 0)
+                        {
+                            try
+                            {
+                                this.executeConcurrently(run, workers);
+                            }
+                            finally
+                            {
+                                this.backgroundWorkers.release(workers);
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        searcherRef.decref();
+                    }
+                }
+                this.complete(run);
+            }
+            finally
+            {
+                if (completion != null)
+                {
+                    completion.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Executes an auxiliary task of a warmup, e.g. parsing a chunk of a query list file, on the thread pool. Callers which wait for the
+     * result of such a task must be prepared to run it themselves, as it may be queued behind the tasks of other warmups.
+     *
+     * @param task
+     *            the task to execute
+     */
+    public void executeAsync(final Runnable task)
+    {
+        this.executor.execute(task);
+    }
+
+    /**
+     * Retrieves the number of warmups that have been abandoned since the start of the JVM because a newer searcher had been opened before
+     * they could complete.
+     *
+     * @return the number of abandoned warmups
+     */
+    public long getAbandonedWarmups()
+    {
+        return this.abandonedWarmups.get();
+    }
+
+    protected long getDeadline(final Integer timeout)
+    {
+        final long effectiveTimeout = timeout == null || timeout.intValue() < 0 ? DEFAULT_TIMEOUT : timeout.longValue();
+        return effectiveTimeout == 0 ? Long.MAX_VALUE : System.currentTimeMillis() + effectiveTimeout;
+    }
+
+    protected void executeConcurrently(final WarmupRun run, final int concurrency)
+    {
+        // the source is exhausted outside of the workers, which may occupy all threads of the pool while waiting for its tasks
+        final FutureTask<Void> feed = run.source != null ? new FutureTask<>(run::feed, null) : null;
+        if (feed != null)
+        {
+            this.backgroundCoordinator.execute(feed);
+        }
+        try
+        {
+            if (this.adaptiveConcurrency && Math.min(concurrency, this.maxThreads) > 1)
+            {
+                this.executeAdaptively(run, concurrency);
+            }
+            else
+            {
+                this.executeFixed(run, concurrency);
+            }
+        }
+        finally
+        {
+            if (feed != null)
+            {
+                this.awaitFeed(run, feed);
+            }
+        }
+    }
+
+    protected void awaitFeed(final WarmupRun run, final FutureTask<Void> feed)
+    {
+        // sources usually build state shared with later warmups, e.g. parsed query lists, so they are not abandoned with a cancelled warmup
+        boolean interrupted = false;
+        boolean done = false;
+        while (!done)
+        {
+            try
+            {
+                feed.get();
+                done = true;
+            }
+            catch (final ExecutionException eex)
+            {
+                LOGGER.warn("Failed to provide further {} warmup tasks", run.description, eex.getCause());
+                done = true;
+            }
+            catch (final InterruptedException iex)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            // reset the interrupted flag
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected void executeFixed(final WarmupRun run, final int concurrency)
+    {
+        final int workers = Math.min(Math.min(concurrency, this.maxThreads), run.getWorkload());
+        final CountDownLatch done = new CountDownLatch(workers);
+        for (int i = 0; i < workers; i++)
+        {
+            this.executor.execute(() -> {
+                try
+                {
+                    run.drain();
+                }
+                finally
+                {
+                    done.countDown();
+                }
+            });
+        }
+
+        LOGGER.debug("Waiting for termination of {} concurrent {} warmup workers", workers, run.description);
+        boolean interrupted = false;
+        try
+        {
+            final long remainingTime = run.deadline == Long.MAX_VALUE ? Long.MAX_VALUE : run.deadline - System.currentTimeMillis();
+            if (done.await(remainingTime, TimeUnit.MILLISECONDS))
+            {
+                LOGGER.debug("All concurrent {} warmup workers completed in the allotted time", run.description);
+            }
+            else
+            {
+                run.timeOut();
+                LOGGER.warn("Concurrent {} warmup workers did not complete in the allotted time, leaving {} warmup tasks uncompleted",
+                        run.description, run.getRemaining());
+            }
+        }
+        catch (final InterruptedException iex)
+        {
+            run.cancel();
+            LOGGER.warn("Thread was interrupted waiting for concurrent {} warmup workers", run.description);
+            interrupted = true;
+        }
+
+        // tasks cannot be stopped midway, so the warmup must not be completed while workers still execute their current task
+        while (done.getCount() > 0)
+        {
+            LOGGER.debug("Waiting for {} cancelled {} warmup workers to finish their current task", done.getCount(), run.description);
+            try
+            {
+                done.await();
+            }
+            catch (final InterruptedException iex)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            // reset the interrupted flag
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected void executeAdaptively(final WarmupRun run, final int concurrency)
+    {
+        final AdaptiveConcurrency controller = new AdaptiveConcurrency(LiveQueryMonitor.getInstance(run.core),
+                Math.min(concurrency, this.maxThreads), run.description, run.metrics);
+
+        LOGGER.debug("Waiting for termination of up to {} adaptive {} warmup workers", controller.maxLimit, run.description);
+        boolean interrupted = false;
+        try
+        {
+            while (!run.isCancelled() && (run.getWorkload() > 0 || controller.getActive() > 0))
+            {
+                final long remainingTime = run.deadline == Long.MAX_VALUE ? Long.MAX_VALUE : run.deadline - System.currentTimeMillis();
+                if (remainingTime <= 0)
+                {
+                    run.timeOut();
+                    LOGGER.warn("Adaptive {} warmup workers did not complete in the allotted time, leaving {} warmup tasks uncompleted",
+                            run.description, run.getRemaining());
+                }
+                else
+                {
+                    // workers above a lowered limit retire once they have completed their current task
+                    while (controller.getActive() < Math.min(controller.getLimit(), run.getWorkload()))
+                    {
+                        controller.workerStarted();
+                        this.executor.execute(() -> {
+                            boolean retired = false;
+                            try
+                            {
+                                retired = run.drain(controller::tryRetire);
+                            }
+                            finally
+                            {
+                                if (!retired)
+                                {
+                                    controller.workerFinished();
+                                }
+                            }
+                        });
+                    }
+                    controller.await(remainingTime);
+                    controller.adjust(run.getExecuted());
+                }
+            }
+            if (!run.isCancelled())
+            {
+                LOGGER.debug("All adaptive {} warmup workers completed in the allotted time", run.description);
+            }
+        }
+        catch (final InterruptedException iex)
+        {
+            run.cancel();
+            LOGGER.warn("Thread was interrupted waiting for adaptive {} warmup workers", run.description);
+            interrupted = true;
+        }
+
+        // tasks cannot be stopped midway, so the warmup must not be completed while workers still execute their current task
+        while (controller.getActive() > 0)
+        {
+            LOGGER.debug("Waiting for {} cancelled {} warmup workers to finish their current task", controller.getActive(),
+                    run.description);
+            try
+            {
+                controller.awaitIdle();
+            }
+            catch (final InterruptedException iex)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            // reset the interrupted flag
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    protected boolean admit(final WarmupRun run)
+    {
+        boolean admitted = false;
+        try
+        {
+            final long remainingTime = run.deadline == Long.MAX_VALUE ? Long.MAX_VALUE : run.deadline - System.currentTimeMillis();
+            // the coordinator checks whether the warmup has been superseded by a newer searcher while waiting
+            admitted = remainingTime > 0 && WarmupCoordinator.getInstance().acquire(run.core, remainingTime, run::isCancelled);
+            if (!admitted && !run.isCancelled())
+            {
+                run.timeOut();
+                LOGGER.warn("Core {} was not admitted to warm up in the allotted time, leaving {} {} warmup tasks uncompleted",
+                        run.core.getName(), run.getRemaining(), run.description);
+            }
+        }
+        catch (final InterruptedException iex)
+        {
+            run.cancel();
+            LOGGER.warn("Thread was interrupted waiting for core {} to be admitted to warm up", run.core.getName());
+            // reset the interrupted flag
+            Thread.currentThread().interrupt();
+        }
+        return admitted;
+    }
+
+    protected int acquireBackgroundWorkers(final WarmupRun run, final int concurrency)
+    {
+        int workers = 0;
+        try
+        {
+            while (workers == 0 && !run.isCancelled())
+            {
+                if (this.backgroundWorkers.tryAcquire(SUPERSEDED_CHECK_INTERVAL, TimeUnit.MILLISECONDS))
+                {
+                    workers = 1;
+                }
+                else if (System.currentTimeMillis() >= run.deadline)
+                {
+                    run.timeOut();
+                    LOGGER.warn("No background warmup worker became available in the allotted time, leaving {} {} warmup tasks uncompleted",
+                            run.getRemaining(), run.description);
+                    break;
+                }
+            }
+        }
+        catch (final InterruptedException iex)
+        {
+            run.cancel();
+            LOGGER.warn("Thread was interrupted waiting for a background {} warmup worker", run.description);
+            // reset the interrupted flag
+            Thread.currentThread().interrupt();
+        }
+
+        // further workers are only taken if available, as waiting for them would delay the warmup more than running with fewer workers
+        while (workers > 0 && workers < Math.min(concurrency, run.getWorkload()) && this.backgroundWorkers.tryAcquire())
+        {
+            workers++;
+        }
+        return workers;
+    }
+
+    protected RefCounted<SolrIndexSearcher> awaitRegistration(final WarmupRun run)
+    {
+        RefCounted<SolrIndexSearcher> searcherRef = null;
+        try
+        {
+            // holding a reference to the registered searcher prevents it from being closed while the warmup is still running
+            while (searcherRef == null && !run.isCancelled())
+            {
+                final RefCounted<SolrIndexSearcher> registeredRef = run.core.getRegisteredSearcher();
+                if (registeredRef != null && registeredRef.get() == run.searcher)
+                {
+                    searcherRef = registeredRef;
+                }
+                else
+                {
+                    if (registeredRef != null)
+                    {
+                        registeredRef.decref();
+                    }
+
+                    if (System.currentTimeMillis() >= run.deadline)
+                    {
+                        run.timeOut();
+                        LOGGER.warn("Searcher {} was not registered in the allotted time, leaving {} {} warmup tasks uncompleted",
+                                run.searcher, run.getRemaining(), run.description);
+                    }
+                    else
+                    {
+                        Thread.sleep(REGISTRATION_POLL_INTERVAL);
+                    }
+                }
+            }
+        }
+        catch (final InterruptedException iex)
+        {
+            run.cancel();
+            LOGGER.warn("Thread was interrupted waiting for registration of searcher {}", run.searcher);
+            // reset the interrupted flag
+            Thread.currentThread().interrupt();
+        }
+        return searcherRef;
+    }
+
+    protected int complete(final WarmupRun run)
+    {
+        if (run.isAbandoned())
+        {
+            final long abandonedWarmups = this.abandonedWarmups.incrementAndGet();
+            LOGGER.debug("{} warmups have been abandoned in total due to newer searchers", abandonedWarmups);
+        }
+
+        final List<Runnable> skipped = new ArrayList<>(run.skipped);
+        skipped.addAll(run.tasks);
+        if (!skipped.isEmpty())
+        {
+            LOGGER.info("Skipped {} {} warmup tasks ({} not expected to complete before the deadline), starting with {}", skipped.size(),
+                    run.description, run.skipped.size(),
+                    skipped.stream().limit(MAX_REPORTED_TASKS).map(String::valueOf).collect(Collectors.joining(", ", "[", "]")));
+        }
+
+        if (run.metrics != null)
+        {
+            run.metrics.recordRun(run.timedOut || !run.skipped.isEmpty(), run.isAbandoned(), skipped.size());
+        }
+        return skipped.size();
+    }
+
+    /**
+     * Instances of this interface provide warmup tasks which only become available while a warmup is already running.
+     */
+    @FunctionalInterface
+    public interface TaskSource
+    {
+
+        /**
+         * Produces the tasks of this source, handing them to the warmup as they become available. This operation is invoked at most once per
+         * warmup, outside of its workers, which wait for further tasks until it has returned.
+         *
+         * @param tasks
+         *            the consumer to hand the produced tasks to
+         */
+        void produce(Consumer<List<Runnable>> tasks);
+    }
+
+    /**
+     * Instances of this class represent the execution of the warmup tasks for a single searcher.
+     */
+    protected static class WarmupRun
+    {
+
+        protected final SolrCore core;
+
+        protected final SolrIndexSearcher searcher;
+
+        protected final String description;
+
+        protected final Queue<Runnable> tasks;
+
+        protected final TaskSource source;
+
+        // guards the merging of fed tasks, and is notified whenever tasks have been fed or the source has been exhausted
+        protected final Object feedMonitor = new Object();
+
+        protected volatile boolean feeding;
+
+        protected final Queue<Runnable> skipped = new ConcurrentLinkedQueue<>();
+
+        protected final long deadline;
+
+        protected final WarmupMetrics metrics;
+
+        protected volatile boolean cancelled;
+
+        protected volatile boolean timedOut;
+
+        protected volatile boolean abandoned;
+
+        protected volatile long lastSupersededCheck;
+
+        protected final AtomicInteger executed = new AtomicInteger();
+
+        protected WarmupRun(final SolrCore core, final SolrIndexSearcher searcher, final String description, final List<Runnable> tasks,
+                final long deadline, final WarmupMetrics metrics)
+        {
+            this(core, searcher, description, tasks, deadline, metrics, null);
+        }
+
+        protected WarmupRun(final SolrCore core, final SolrIndexSearcher searcher, final String description, final List<Runnable> tasks,
+                final long deadline, final WarmupMetrics metrics, final TaskSource source)
+        {
+            this.core = core;
+            this.searcher = searcher;
+            this.description = description;
+            this.deadline = deadline;
+            this.metrics = metrics;
+            this.source = source;
+            this.feeding = source != null;
+            this.tasks = new ConcurrentLinkedQueue<>(order(tasks));
+        }
+
+        protected static List<Runnable> order(final List<Runnable> tasks)
+        {
+            final List<Runnable> orderedTasks = new ArrayList<>(tasks);
+            if (orderedTasks.stream().allMatch(WarmupTask.class::isInstance))
+            {
+                // stable sort retains the order of the caller for tasks of equal value density
+                orderedTasks.sort(Comparator.comparingDouble(task -> -((WarmupTask) task).getValueDensity()));
+            }
+            return orderedTasks;
+        }
+
+        protected void feed()
+        {
+            try
+            {
+                if (this.source != null)
+                {
+                    this.source.produce(this::addTasks);
+                }
+            }
+            finally
+            {
+                synchronized (this.feedMonitor)
+                {
+                    this.feeding = false;
+                    this.feedMonitor.notifyAll();
+                }
+            }
+        }
+
+        protected void addTasks(final List<Runnable> addedTasks)
+        {
+            synchronized (this.feedMonitor)
+            {
+                // fed tasks are merged with the ones which have not been started yet, so that the most valuable ones still go first
+                final List<Runnable> pendingTasks = new ArrayList<>();
+                Runnable task;
+                while ((task = this.tasks.poll()) != null)
+                {
+                    pendingTasks.add(task);
+                }
+                pendingTasks.addAll(addedTasks);
+                this.tasks.addAll(order(pendingTasks));
+                this.feedMonitor.notifyAll();
+            }
+        }
+
+        protected Runnable nextTask()
+        {
+            Runnable task = this.tasks.poll();
+            // while the source may still provide tasks, workers wait for them instead of completing the warmup
+            while (task == null && this.feeding && !this.isCancelled())
+            {
+                if (this.deadline != Long.MAX_VALUE && System.currentTimeMillis() >= this.deadline)
+                {
+                    this.timeOut();
+                    LOGGER.debug("Deadline of {} warmup has passed while waiting for further warmup tasks", this.description);
+                }
+                else
+                {
+                    synchronized (this.feedMonitor)
+                    {
+                        if (this.tasks.isEmpty() && this.feeding)
+                        {
+                            try
+                            {
+                                this.feedMonitor.wait(SUPERSEDED_CHECK_INTERVAL);
+                            }
+                            catch (final InterruptedException iex)
+                            {
+                                this.cancel();
+                                // reset the interrupted flag
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+                    task = this.tasks.poll();
+                }
+            }
+            return task;
+        }
+
+        protected void drain()
+        {
+            this.drain(() -> false);
+        }
+
+        protected boolean drain(final BooleanSupplier retire)
+        {
+            boolean retired = false;
+            Runnable task;
+            while (!this.isCancelled() && !(retired = retire.getAsBoolean()) && (task = this.nextTask()) != null)
+            {
+                final long now = System.currentTimeMillis();
+                if (this.deadline != Long.MAX_VALUE && now >= this.deadline)
+                {
+                    this.tasks.add(task);
+                    this.timeOut();
+                    LOGGER.debug("Deadline of {} warmup has passed with {} warmup tasks uncompleted", this.description, this.tasks.size());
+                }
+                else if (this.deadline != Long.MAX_VALUE && task instanceof WarmupTask
+                        && now + TimeUnit.NANOSECONDS.toMillis(((WarmupTask) task).getEstimatedCost()) > this.deadline)
+                {
+                    // a cheaper task further down the queue may still fit into the remaining time
+                    this.skipped.add(task);
+                }
+                else
+                {
+                    final long start = System.nanoTime();
+                    try
+                    {
+                        task.run();
+                    }
+                    catch (final RuntimeException rex)
+                    {
+                        LOGGER.warn("Unexpected error in {} warmup task", this.description, rex);
+                    }
+                    if (this.metrics != null && task instanceof WarmupTask)
+                    {
+                        this.metrics.recordExecution(((WarmupTask) task).getDescription(), System.nanoTime() - start);
+                    }
+                    this.executed.incrementAndGet();
+                }
+            }
+            return retired;
+        }
+
+        protected void cancel()
+        {
+            this.cancelled = true;
+        }
+
+        protected void timeOut()
+        {
+            this.timedOut = true;
+            this.cancelled = true;
+        }
+
+        protected int getRemaining()
+        {
+            return this.tasks.size();
+        }
+
+        protected int getWorkload()
+        {
+            // the number of tasks still to be fed is unknown, so all workers may be needed
+            return this.feeding ? Integer.MAX_VALUE : this.tasks.size();
+        }
+
+        protected int getExecuted()
+        {
+            return this.executed.get();
+        }
+
+        protected boolean isAbandoned()
+        {
+            return this.abandoned;
+        }
+
+        protected boolean isCancelled()
+        {
+            if (!this.cancelled)
+            {
+                if (this.core.isClosed())
+                {
+                    LOGGER.info("Abandoning {} warmup as core {} is closing", this.description, this.core.getName());
+                    this.cancelled = true;
+                }
+                else
+                {
+                    final long now = System.currentTimeMillis();
+                    if (now - this.lastSupersededCheck >= SUPERSEDED_CHECK_INTERVAL)
+                    {
+                        this.lastSupersededCheck = now;
+                        if (this.isSuperseded())
+                        {
+                            LOGGER.info("Abandoning {} warmup of {} as a newer searcher has been opened, leaving {} warmup tasks uncompleted",
+                                    this.description, this.searcher, this.tasks.size());
+                            this.abandoned = true;
+                            this.cancelled = true;
+                        }
+                    }
+                }
+            }
+            return this.cancelled;
+        }
+
+        protected boolean isSuperseded()
+        {
+            boolean superseded = false;
+            final RefCounted<SolrIndexSearcher> newestRef = this.core.getNewestSearcher(false);
+            if (newestRef != null)
+            {
+                try
+                {
+                    final SolrIndexSearcher newest = newestRef.get();
+                    // searchers opened purely for realtime-get have caching disabled and never get registered
+                    superseded = newest != this.searcher && newest.isCachingEnabled()
+                            && newest.getOpenNanoTime() > this.searcher.getOpenNanoTime();
+                }
+                finally
+                {
+                    newestRef.decref();
+                }
+            }
+            return superseded;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Instances of this class keep a bounded, decaying record of the entries observed on a SOLR core - e.g. filter queries, authority sets or
+ * requests in their key form - together with the cost of executing them, so that the hottest entries can be learned from live traffic
+ * instead of being curated by hand. Instances are shared between all components configured with the same statistics file, and are
+ * released once all their cores are closed.
+ */
+public class WarmupStatistics
+{
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    protected static final ConcurrentMap<Path, WarmupStatistics> INSTANCES = new ConcurrentHashMap<>();
+
+    private static final String FIELD_SEPARATOR = "\t";
+
+    private static final String COMMENT_PREFIX = "#";
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    public static final long DEFAULT_HALF_LIFE = 3600000;
+
+    protected final Path file;
+
+    protected final int maxEntries;
+
+    protected final long halfLife;
+
+    protected final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    protected final Set<SolrCore> cores = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    protected WarmupStatistics(final Path file, final int maxEntries, final long halfLife)
+    {
+        this.file = file;
+        this.maxEntries = maxEntries;
+        this.halfLife = halfLife;
+    }
+
+    /**
+     * Retrieves the shared statistics instance backed by a specific file, loading any previously persisted state on first access.
+     *
+     * @param core
+     *            the core using the statistics - the instance is released once all cores using it have been closed
+     * @param file
+     *            the file in which the statistics are persisted
+     * @param maxEntries
+     *            the maximum number of entries to keep track of - only effective on first access
+     * @param halfLife
+     *            the half-life (in milliseconds) of the decay applied to observed frequencies - only effective on first access
+     * @return the statistics instance
+     */
+    public static WarmupStatistics getInstance(final SolrCore core, final Path file, final int maxEntries, final long halfLife)
+    {
+        final Path normalisedFile = file.toAbsolutePath().normalize();
+        synchronized (INSTANCES)
+        {
+            final WarmupStatistics statistics = INSTANCES.computeIfAbsent(normalisedFile, f -> {
+                final WarmupStatistics newStatistics = new WarmupStatistics(f, maxEntries > 0 ? maxEntries : DEFAULT_MAX_ENTRIES,
+                        halfLife > 0 ? halfLife : DEFAULT_HALF_LIFE);
+                newStatistics.load();
+                return newStatistics;
+            });
+            if (statistics.cores.add(core))
+            {
+                core.addCloseHook(new CloseHook()
+                {
+
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public void preClose(final SolrCore core)
+                    {
+                        // NO-OP
+                    }
+
+                    /**
+                     * {@inheritDoc}
+                     */
+                    @Override
+                    public void postClose(final SolrCore core)
+                    {
+                        statistics.release(core);
+                    }
+                });
+            }
+            return statistics;
+        }
+    }
+
+    protected void release(final SolrCore core)
+    {
+        synchronized (INSTANCES)
+        {
+            this.cores.remove(core);
+            // a reloaded core registers before the core it replaces is closed, so the instance is only released when it is no longer used
+            if (this.cores.isEmpty())
+            {
+                INSTANCES.remove(this.file, this);
+            }
+        }
+    }
+
+    /**
+     * Records a single observation of an entry.
+     *
+     * @param key
+     *            the key of the entry
+     */
+    public void record(final String key)
+    {
+        final long now = System.currentTimeMillis();
+        this.entries.computeIfAbsent(key, k -> new Entry(now)).hit(now, this.halfLife);
+        this.pruneIfNecessary();
+    }
+
+    /**
+     * Records the cost of executing an entry.
+     *
+     * @param key
+     *            the key of the entry
+     * @param costMillis
+     *            the execution time in milliseconds
+     */
+    public void recordCost(final String key, final long costMillis)
+    {
+        final Entry entry = this.entries.get(key);
+        if (entry != null)
+        {
+            entry.cost(costMillis);
+        }
+    }
+
+    /**
+     * Retrieves the decayed frequency with which an entry has been observed.
+     *
+     * @param key
+     *            the key of the entry
+     * @return the decayed frequency or {@code 0} if the entry has not been observed
+     */
+    public double getFrequency(final String key)
+    {
+        final Entry entry = this.entries.get(key);
+        return entry != null ? entry.frequency(System.currentTimeMillis(), this.halfLife) : 0;
+    }
+
+    /**
+     * Retrieves the keys of the entries with the highest score, defined as the decayed frequency weighted by the cost of execution.
+     *
+     * @param count
+     *            the maximum number of entries to retrieve
+     * @return the keys in descending order of score
+     */
+    public List<String> getTopEntries(final int count)
+    {
+        final List<Map.Entry<String, Double>> scores = this.snapshotScores(System.currentTimeMillis());
+        scores.sort(Map.Entry.<String, Double> comparingByValue().reversed());
+        return scores.stream().limit(count).map(Map.Entry::getKey).collect(Collectors.toList());
+    }
+
+    /**
+     * Captures the scores of all entries at a single point in time. Entries keep being hit by concurrent requests, so sorting on
+     * live scores would violate the contract of the comparator.
+     *
+     * @param now
+     *            the point in time at which to evaluate the scores
+     * @return the mutable list of keys with their immutable scores
+     */
+    protected List<Map.Entry<String, Double>> snapshotScores(final long now)
+    {
+        final List<Map.Entry<String, Double>> scores = new ArrayList<>(this.entries.size());
+        this.entries.forEach((key, entry) -> scores.add(new AbstractMap.SimpleImmutableEntry<>(key, entry.score(now, this.halfLife))));
+        return scores;
+    }
+
+    /**
+     * Persists the current state of the statistics to the backing file.
+     */
+    public synchronized void persist()
+    {
+        final long now = System.currentTimeMillis();
+        try
+        {
+            final Path parent = this.file.getParent();
+            if (parent != null)
+            {
+                Files.createDirectories(parent);
+            }
+
+            final Path tempFile = Files.createTempFile(parent, this.file.getFileName().toString(), ".tmp");
+            try (BufferedWriter bw = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8))
+            {
+                bw.write(COMMENT_PREFIX + " decayed frequency" + FIELD_SEPARATOR + "cost (ms)" + FIELD_SEPARATOR + "key");
+                bw.newLine();
+                for (final Map.Entry<String, Entry> entry : this.entries.entrySet())
+                {
+                    // the persisted format (just like the query list file) cannot hold multi-line keys
+                    if (entry.getKey().indexOf('\n') != -1 || entry.getKey().indexOf('\r') != -1)
+                    {
+                        continue;
+                    }
+
+                    final Entry value = entry.getValue();
+                    bw.write(value.frequency(now, this.halfLife) + FIELD_SEPARATOR + value.costMillis + FIELD_SEPARATOR + entry.getKey());
+                    bw.newLine();
+                }
+            }
+            Files.move(tempFile, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.debug("Persisted statistics of {} entries to {}", this.entries.size(), this.file);
+        }
+        catch (final IOException ioex)
+        {
+            LOGGER.warn("Error persisting warmup statistics to {}", this.file, ioex);
+        }
+    }
+
+    protected void load()
+    {
+        if (Files.isRegularFile(this.file))
+        {
+            final long now = System.currentTimeMillis();
+            try (BufferedReader br = Files.newBufferedReader(this.file, StandardCharsets.UTF_8))
+            {
+                String line;
+                while ((line = br.readLine()) != null)
+                {
+                    if (line.startsWith(COMMENT_PREFIX) || line.trim().isEmpty())
+                    {
+                        continue;
+                    }
+
+                    final String[] fields = line.split(FIELD_SEPARATOR, 3);
+                    if (fields.length == 3 && !fields[2].trim().isEmpty())
+                    {
+                        try
+                        {
+                            final Entry entry = new Entry(now);
+                            entry.frequency = Double.parseDouble(fields[0]);
+                            entry.costMillis = Long.parseLong(fields[1]);
+                            this.entries.put(fields[2].trim(), entry);
+                        }
+                        catch (final NumberFormatException nfex)
+                        {
+                            LOGGER.debug("Skipping malformed statistics line {}", line);
+                        }
+                    }
+                    else
+                    {
+                        LOGGER.debug("Skipping malformed statistics line {}", line);
+                    }
+                }
+                LOGGER.debug("Loaded statistics of {} entries from {}", this.entries.size(), this.file);
+            }
+            catch (final IOException ioex)
+            {
+                LOGGER.warn("Error loading warmup statistics from {}", this.file, ioex);
+            }
+        }
+    }
+
+    protected void pruneIfNecessary()
+    {
+        // allow some slack to avoid pruning on every new entry
+        if (this.entries.size() > this.maxEntries + this.maxEntries / 4)
+        {
+            synchronized (this)
+            {
+                final int excess = this.entries.size() - this.maxEntries;
+                if (excess > 0)
+                {
+                    final List<Map.Entry<String, Double>> leastValuable = this.snapshotScores(System.currentTimeMillis());
+                    leastValuable.sort(Map.Entry.comparingByValue());
+                    leastValuable.subList(0, Math.min(excess, leastValuable.size())).forEach(e -> this.entries.remove(e.getKey()));
+                    LOGGER.trace("Pruned {} entries from statistics", excess);
+                }
+            }
+        }
+    }
+
+    /**
+     * Instances of this class track the statistics of a single entry.
+     */
+    protected static class Entry
+    {
+
+        protected double frequency;
+
+        protected long timestamp;
+
+        protected volatile long costMillis;
+
+        protected Entry(final long timestamp)
+        {
+            this.timestamp = timestamp;
+        }
+
+        protected synchronized void hit(final long now, final long halfLife)
+        {
+            this.frequency = this.frequency(now, halfLife) + 1;
+            this.timestamp = now;
+        }
+
+        protected void cost(final long costMillis)
+        {
+            this.costMillis = costMillis;
+        }
+
+        protected synchronized double frequency(final long now, final long halfLife)
+        {
+            final long age = Math.max(0, now - this.timestamp);
+            return this.frequency * Math.pow(0.5, (double) age / halfLife);
+        }
+
+        protected double score(final long now, final long halfLife)
+        {
+            // expected time saved by having the entry warmed
+            return this.frequency(now, halfLife) * (1 + this.costMillis);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Instances of this class wrap a single warmup action together with the estimates {@link WarmupScheduler} uses to prioritise it within the
+ * time budget of a warmup. The value of a task is the latency it is expected to save on live queries, its cost the time it is expected to
+ * take, both in nanoseconds.
+ */
+public class WarmupTask implements Runnable
+{
+
+    protected final String description;
+
+    protected final long estimatedCost;
+
+    protected final double value;
+
+    protected final Runnable action;
+
+    /**
+     * Creates a new warmup task.
+     *
+     * @param description
+     *            the description of the task for reporting purposes
+     * @param estimatedCost
+     *            the estimated time in nanoseconds it takes to execute the task - {@code 0} if unknown
+     * @param value
+     *            the estimated latency in nanoseconds the task saves on live queries
+     * @param action
+     *            the actual warmup action
+     */
+    public WarmupTask(final String description, final long estimatedCost, final double value, final Runnable action)
+    {
+        this.description = description;
+        this.estimatedCost = Math.max(0, estimatedCost);
+        this.value = value;
+        this.action = action;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        this.action.run();
+    }
+
+    /**
+     * Retrieves the description of this task.
+     *
+     * @return the description
+     */
+    public String getDescription()
+    {
+        return this.description;
+    }
+
+    /**
+     * Retrieves the estimated cost of this task.
+     *
+     * @return the estimated time in nanoseconds it takes to execute the task
+     */
+    public long getEstimatedCost()
+    {
+        return this.estimatedCost;
+    }
+
+    /**
+     * Retrieves the estimated value of this task.
+     *
+     * @return the estimated latency in nanoseconds the task saves on live queries
+     */
+    public double getValue()
+    {
+        return this.value;
+    }
+
+    /**
+     * Retrieves the value of this task per unit of cost, used to order tasks so that the most latency-saving tasks are executed first.
+     *
+     * @return the value density
+     */
+    public double getValueDensity()
+    {
+        return this.value / Math.max(1, this.estimatedCost);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString()
+    {
+        return this.description + " (~" + TimeUnit.NANOSECONDS.toMillis(this.estimatedCost) + " ms)";
+    }
+}
@@ -0,0 +1,109 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class AdaptiveConcurrencyTest
+{
+
+    @Test
+    public void testDoublesWorkersDuringSlowStart()
+    {
+        final AdaptiveConcurrency controller = new AdaptiveConcurrency(new StubMonitor(), 6, "test", null);
+        Assertions.assertEquals(1, controller.getLimit());
+
+        // adjustments are only made once per control interval
+        controller.adjust(0);
+        Assertions.assertEquals(1, controller.getLimit());
+
+        adjustAfterInterval(controller, 0);
+        Assertions.assertEquals(2, controller.getLimit());
+        adjustAfterInterval(controller, 0);
+        Assertions.assertEquals(4, controller.getLimit());
+        adjustAfterInterval(controller, 0);
+        Assertions.assertEquals(6, controller.getLimit());
+        adjustAfterInterval(controller, 0);
+        Assertions.assertEquals(6, controller.getLimit());
+    }
+
+    @Test
+    public void testHalvesWorkersOnLatencySpike()
+    {
+        final StubMonitor monitor = new StubMonitor();
+        // the mean latency since the core was loaded serves as the baseline
+        monitor.complete(10, 10);
+        final AdaptiveConcurrency controller = new AdaptiveConcurrency(monitor, 8, "test", null);
+        adjustAfterInterval(controller, 0);
+        adjustAfterInterval(controller, 0);
+        adjustAfterInterval(controller, 0);
+        Assertions.assertEquals(8, controller.getLimit());
+
+        monitor.complete(AdaptiveConcurrency.MIN_LATENCY_SAMPLES, 50);
+        adjustAfterInterval(controller, 0);
+        Assertions.assertEquals(4, controller.getLimit());
+
+        // after the first back-off, workers are only added one at a time
+        adjustAfterInterval(controller, 0);
+        Assertions.assertEquals(5, controller.getLimit());
+    }
+
+    @Test
+    public void testStepsBackAfterThroughputDrop()
+    {
+        final AdaptiveConcurrency controller = new AdaptiveConcurrency(new StubMonitor(), 8, "test", null);
+        adjustAfterInterval(controller, 100);
+        Assertions.assertEquals(2, controller.getLimit());
+
+        // the additional worker reduced the throughput of the warmup
+        adjustAfterInterval(controller, 110);
+        Assertions.assertEquals(1, controller.getLimit());
+
+        adjustAfterInterval(controller, 210);
+        Assertions.assertEquals(2, controller.getLimit());
+    }
+
+    @Test
+    public void testRetiresWorkersAboveLoweredLimit()
+    {
+        final StubMonitor monitor = new StubMonitor();
+        monitor.complete(10, 10);
+        final AdaptiveConcurrency controller = new AdaptiveConcurrency(monitor, 4, "test", null);
+        adjustAfterInterval(controller, 0);
+        adjustAfterInterval(controller, 0);
+        for (int i = 0; i < 4; i++)
+        {
+            controller.workerStarted();
+        }
+        Assertions.assertFalse(controller.tryRetire());
+
+        monitor.complete(AdaptiveConcurrency.MIN_LATENCY_SAMPLES, 50);
+        adjustAfterInterval(controller, 0);
+        Assertions.assertEquals(2, controller.getLimit());
+
+        Assertions.assertTrue(controller.tryRetire());
+        Assertions.assertTrue(controller.tryRetire());
+        Assertions.assertFalse(controller.tryRetire());
+        Assertions.assertEquals(2, controller.getActive());
+    }
+
+    private static void adjustAfterInterval(final AdaptiveConcurrency controller, final int executed)
+    {
+        controller.lastAdjustment = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(AdaptiveConcurrency.CONTROL_INTERVAL);
+        controller.adjust(executed);
+    }
+
+    /**
+     * Stand-in for the monitor of a core, which is fed with live requests by {@link FilterQueryRecorderComponent}.
+     */
+    private static class StubMonitor extends LiveQueryMonitor
+    {
+
+        private void complete(final int requests, final long millis)
+        {
+            this.completed.addAndGet(requests);
+            this.totalNanos.addAndGet(requests * TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+}
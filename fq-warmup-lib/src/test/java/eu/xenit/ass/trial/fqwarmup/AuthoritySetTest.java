@@ -0,0 +1,29 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class AuthoritySetTest
+{
+
+    @Test
+    public void testIdentifiesEqualSetsByTheSameKeyAndDigest()
+    {
+        final AuthoritySet authoritySet = AuthoritySet.parse("jdoe, GROUP_EVERYONE");
+        final AuthoritySet reordered = AuthoritySet.parse(authoritySet.getKey());
+
+        Assertions.assertEquals(authoritySet.getKey(), reordered.getKey());
+        Assertions.assertEquals(authoritySet.getDigest(), reordered.getDigest());
+        Assertions.assertNotEquals(authoritySet.getDigest(), AuthoritySet.parse("jdoe").getDigest());
+    }
+
+    @Test
+    public void testDoesNotDiscloseAuthorities()
+    {
+        final String description = AuthoritySet.parse("jdoe, GROUP_EVERYONE").toString();
+
+        Assertions.assertFalse(description.contains("jdoe"));
+        Assertions.assertFalse(description.contains("GROUP_EVERYONE"));
+        Assertions.assertTrue(description.contains("2 authorities"));
+    }
+}
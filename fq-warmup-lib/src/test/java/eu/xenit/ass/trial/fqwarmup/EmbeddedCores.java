@@ -0,0 +1,157 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.SolrCore;
+
+/**
+ * Instances of this class provide embedded SOLR cores with a minimal schema for tests which need real cores and searchers.
+ */
+class EmbeddedCores implements Closeable
+{
+
+    protected final CoreContainer container;
+
+    protected final List<SolrCore> cores = new ArrayList<>();
+
+    protected EmbeddedCores(final Path home, final int count, final int filterCacheSize) throws IOException
+    {
+        Files.write(home.resolve("solr.xml"), "<solr></solr>".getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < count; i++)
+        {
+            writeConfiguration(home, "core" + i, filterCacheSize);
+        }
+
+        this.container = new CoreContainer(home.toString());
+        this.container.load();
+        for (int i = 0; i < count; i++)
+        {
+            this.cores.add(this.container.getCore("core" + i));
+        }
+    }
+
+    protected static void writeConfiguration(final Path home, final String name, final int filterCacheSize) throws IOException
+    {
+        final Path conf = Files.createDirectories(home.resolve(name).resolve("conf"));
+        Files.write(home.resolve(name).resolve("core.properties"), ("name=" + name).getBytes(StandardCharsets.UTF_8));
+        Files.write(conf.resolve("solrconfig.xml"), ("<config>"
+                + "<luceneMatchVersion>6.6.0</luceneMatchVersion>"
+                // in-memory indexes would otherwise resolve the data directory, and thus statistics files, against the working directory
+                + "<dataDir>" + home.resolve(name).resolve("data").toAbsolutePath() + "</dataDir>"
+                + "<directoryFactory name=\"DirectoryFactory\" class=\"solr.RAMDirectoryFactory\"/>"
+                + "<schemaFactory class=\"ClassicIndexSchemaFactory\"/>"
+                + "<indexConfig><lockType>single</lockType></indexConfig>"
+                + "<updateHandler class=\"solr.DirectUpdateHandler2\"/>"
+                + "<query>"
+                + "<filterCache class=\"solr.FastLRUCache\" size=\"" + filterCacheSize + "\" initialSize=\"16\" autowarmCount=\"0\"/>"
+                + "<documentCache class=\"solr.LRUCache\" size=\"64\" initialSize=\"16\" autowarmCount=\"0\"/>"
+                + "</query>"
+                + "<searchComponent name=\"recorder\" class=\"" + FilterQueryRecorderComponent.class.getName() + "\">"
+                + "<str name=\"statisticsFile\">filterQueryStatistics.tsv</str>"
+                + "<str name=\"requestStatisticsFile\">requestStatistics.tsv</str>"
+                + "</searchComponent>"
+                + "<requestHandler name=\"/select\" class=\"solr.SearchHandler\"/>"
+                + "<requestHandler name=\"/recorded\" class=\"solr.SearchHandler\">"
+                + "<arr name=\"first-components\"><str>recorder</str></arr>"
+                + "</requestHandler>"
+                + "<requestHandler name=\"/update\" class=\"solr.UpdateRequestHandler\"/>"
+                + "</config>").getBytes(StandardCharsets.UTF_8));
+        Files.write(conf.resolve("schema.xml"), ("<schema name=\"test\" version=\"1.6\">"
+                + "<fieldType name=\"string\" class=\"solr.StrField\" sortMissingLast=\"true\"/>"
+                + "<fieldType name=\"long\" class=\"solr.TrieLongField\" precisionStep=\"0\"/>"
+                + "<field name=\"id\" type=\"string\" indexed=\"true\" stored=\"true\" required=\"true\"/>"
+                + "<field name=\"_version_\" type=\"long\" indexed=\"true\" stored=\"true\"/>"
+                + "<field name=\"TYPE\" type=\"string\" indexed=\"true\" stored=\"false\"/>"
+                + "<field name=\"TAGS\" type=\"string\" indexed=\"true\" stored=\"false\" multiValued=\"true\"/>"
+                + "<field name=\"TAGS_DV\" type=\"string\" indexed=\"true\" stored=\"false\" multiValued=\"true\" docValues=\"true\"/>"
+                + "<uniqueKey>id</uniqueKey>"
+                + "</schema>").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Retrieves one of the cores.
+     *
+     * @param index
+     *            the index of the core
+     * @return the core
+     */
+    protected SolrCore getCore(final int index)
+    {
+        return this.cores.get(index);
+    }
+
+    /**
+     * Indexes and commits a number of documents, with types cycling through a fixed number of values.
+     *
+     * @param index
+     *            the index of the core
+     * @param documents
+     *            the number of documents
+     * @param types
+     *            the number of distinct types
+     * @throws IOException
+     *             if the documents cannot be indexed
+     */
+    protected void index(final int index, final int documents, final int types) throws IOException
+    {
+        final EmbeddedSolrServer server = new EmbeddedSolrServer(this.container, "core" + index);
+        try
+        {
+            final List<SolrInputDocument> batch = new ArrayList<>();
+            for (int doc = 0; doc < documents; doc++)
+            {
+                final SolrInputDocument document = new SolrInputDocument();
+                document.addField("id", "node-" + doc);
+                document.addField("TYPE", "type_" + doc % types);
+                batch.add(document);
+            }
+            server.add(batch);
+            server.commit();
+        }
+        catch (final SolrServerException ssex)
+        {
+            throw new IOException("Failed to index documents", ssex);
+        }
+    }
+
+    /**
+     * Merges the index of a core into a single segment.
+     *
+     * @param index
+     *            the index of the core
+     * @throws IOException
+     *             if the index cannot be merged
+     */
+    protected void optimize(final int index) throws IOException
+    {
+        final EmbeddedSolrServer server = new EmbeddedSolrServer(this.container, "core" + index);
+        try
+        {
+            server.optimize();
+        }
+        catch (final SolrServerException ssex)
+        {
+            throw new IOException("Failed to merge index", ssex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        this.cores.forEach(SolrCore::close);
+        this.container.shutdown();
+    }
+}
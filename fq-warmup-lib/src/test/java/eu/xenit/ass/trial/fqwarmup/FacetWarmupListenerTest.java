@@ -0,0 +1,98 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.facet.UnInvertedField;
+import org.apache.solr.util.RefCounted;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FacetWarmupListenerTest
+{
+
+    @TempDir
+    static Path home;
+
+    private static EmbeddedCores cores;
+
+    @BeforeAll
+    public static void setUp() throws Exception
+    {
+        cores = new EmbeddedCores(home, 1, 16);
+        cores.index(0, 100, 10);
+    }
+
+    @AfterAll
+    public static void tearDown()
+    {
+        cores.close();
+    }
+
+    @Test
+    public void testWarmsFacetFieldsAndQueriesDespiteUnknownFields()
+    {
+        final NamedList<Object> args = new NamedList<>();
+        args.add("baseQuery", "*:*");
+        args.add("facetFields", Arrays.asList("UNKNOWN", "TYPE"));
+        args.add("facetQueries", Collections.singletonList("TYPE:type_7"));
+
+        final SolrCore core = cores.getCore(0);
+        final FacetWarmupListener listener = createListener(core, args);
+        final RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+        try
+        {
+            Assertions.assertNull(searcher.get().getFilterCache().get(new TermQuery(new Term("TYPE", "type_7"))));
+
+            listener.newSearcher(searcher.get(), null);
+
+            // the unknown field is only logged, so the tasks after it are still executed
+            Assertions.assertTrue(listener.facetCosts.containsKey("facet on UNKNOWN"));
+            Assertions.assertTrue(listener.facetCosts.containsKey("facet on TYPE"));
+            Assertions.assertTrue(listener.facetCosts.containsKey("facet on TYPE:type_7"));
+            Assertions.assertNotNull(searcher.get().getFilterCache().get(new TermQuery(new Term("TYPE", "type_7"))));
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+
+    @Test
+    public void testUninvertsOnlyMultiValuedFieldsWithoutDocValues()
+    {
+        final SolrCore core = cores.getCore(0);
+        final FacetWarmupListener listener = createListener(core, new NamedList<>());
+        final RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+        try
+        {
+            listener.performUninvert(searcher.get(), "TAGS");
+            listener.performUninvert(searcher.get(), "TAGS_DV");
+            listener.performUninvert(searcher.get(), "TYPE");
+
+            Assertions.assertTrue(searcher.get().getFieldValueCache().get("TAGS") instanceof UnInvertedField);
+            Assertions.assertNull(searcher.get().getFieldValueCache().get("TAGS_DV"));
+            Assertions.assertNull(searcher.get().getFieldValueCache().get("TYPE"));
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+
+    private static FacetWarmupListener createListener(final SolrCore core, final NamedList<Object> args)
+    {
+        final FacetWarmupListener listener = new FacetWarmupListener(core);
+        listener.init(args);
+        return listener;
+    }
+}
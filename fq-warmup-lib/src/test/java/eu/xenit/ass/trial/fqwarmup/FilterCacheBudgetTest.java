@@ -0,0 +1,144 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.nio.file.Path;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FilterCacheBudgetTest
+{
+
+    @TempDir
+    static Path home;
+
+    private static EmbeddedCores cores;
+
+    @BeforeAll
+    public static void setUp() throws Exception
+    {
+        cores = new EmbeddedCores(home, 1, 4);
+        cores.index(0, 1000, 10);
+    }
+
+    @AfterAll
+    public static void tearDown()
+    {
+        cores.close();
+    }
+
+    @Test
+    public void testEstimatesSortedIntsAndBitSets() throws Exception
+    {
+        final RefCounted<SolrIndexSearcher> searcher = cores.getCore(0).getSearcher();
+        try
+        {
+            final FilterCacheBudget budget = new FilterCacheBudget(searcher.get(), FilterCacheBudget.DEFAULT_MAX_HEAP_USAGE,
+                    FilterCacheBudget.DEFAULT_MAX_HEAP_WAIT, null);
+            final long bitSetBytes = FilterCacheBudget.DOC_SET_OVERHEAD + 16 * 8;
+
+            Assertions.assertEquals(FilterCacheBudget.DOC_SET_OVERHEAD + 4 * 10, budget.estimateBytes(10));
+            Assertions.assertEquals(FilterCacheBudget.DOC_SET_OVERHEAD + 4 * 20, budget.estimateBytes(20));
+            Assertions.assertEquals(bitSetBytes, budget.estimateBytes(21));
+            Assertions.assertEquals(bitSetBytes, budget.estimateBytes(1000));
+            // unknown filters are assumed to be large
+            Assertions.assertEquals(bitSetBytes, budget.estimateBytes(-1));
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+
+    @Test
+    public void testRejectsReservationsBeyondCapacity() throws Exception
+    {
+        final RefCounted<SolrIndexSearcher> searcher = cores.getCore(0).getSearcher();
+        try
+        {
+            searcher.get().getFilterCache().clear();
+            searcher.get().getDocSet(new TermQuery(new Term("TYPE", "type_0")));
+            searcher.get().getDocSet(new TermQuery(new Term("TYPE", "type_1")));
+            Assertions.assertEquals(4, FilterCacheBudget.getCapacity(searcher.get()));
+
+            final FilterCacheBudget budget = new FilterCacheBudget(searcher.get(), 1, 0, null);
+            final long first = budget.reserve(100);
+            final long second = budget.reserve(100);
+            Assertions.assertTrue(first >= 0);
+            Assertions.assertTrue(second >= 0);
+            // cached entries and pending reservations together fill the cache
+            Assertions.assertEquals(-1, budget.reserve(100));
+
+            budget.release(first);
+            Assertions.assertTrue(budget.reserve(100) >= 0);
+            Assertions.assertTrue(budget.capacityReached);
+        }
+        finally
+        {
+            searcher.get().getFilterCache().clear();
+            searcher.decref();
+        }
+    }
+
+    @Test
+    public void testSkipsFiltersWhileHeapIsExhausted() throws Exception
+    {
+        final RefCounted<SolrIndexSearcher> searcher = cores.getCore(0).getSearcher();
+        try
+        {
+            // a threshold too small for any live heap usage
+            final FilterCacheBudget budget = new FilterCacheBudget(searcher.get(), 1e-12, 200, null);
+
+            final long start = System.currentTimeMillis();
+            Assertions.assertEquals(-1, budget.reserve(10));
+            Assertions.assertTrue(System.currentTimeMillis() - start >= 200);
+            Assertions.assertTrue(budget.heapExhausted);
+            Assertions.assertEquals(0, budget.pendingEntries.get());
+
+            // checking for heap room neither waits nor reserves
+            final long check = System.currentTimeMillis();
+            Assertions.assertFalse(budget.hasHeapRoom(10));
+            Assertions.assertTrue(System.currentTimeMillis() - check < 200);
+            Assertions.assertEquals(0, budget.pendingEntries.get());
+
+            // once a wait has timed out, further filters are skipped without waiting
+            final long next = System.currentTimeMillis();
+            Assertions.assertEquals(-1, budget.reserve(10));
+            Assertions.assertTrue(System.currentTimeMillis() - next < 200);
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+
+    @Test
+    public void testDisabledHeapThresholdDoesNotWait() throws Exception
+    {
+        final RefCounted<SolrIndexSearcher> searcher = cores.getCore(0).getSearcher();
+        try
+        {
+            final FilterCacheBudget budget = new FilterCacheBudget(searcher.get(), 0, 10000, null);
+
+            Assertions.assertTrue(budget.hasHeapRoom(-1));
+            final long reserved = budget.reserve(-1);
+            Assertions.assertEquals(budget.estimateBytes(-1), reserved);
+            Assertions.assertEquals(reserved, budget.pendingBytes.get());
+
+            budget.release(reserved);
+            Assertions.assertEquals(0, budget.pendingBytes.get());
+            Assertions.assertEquals(reserved, budget.warmedBytes.get());
+            Assertions.assertEquals(0, budget.pendingEntries.get());
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.solr.search.BitDocSet;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.SortedIntDocSet;
+import org.apache.solr.util.RefCounted;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FilterCacheSnapshotTest
+{
+
+    @TempDir
+    static Path home;
+
+    @TempDir
+    Path dataDir;
+
+    private static EmbeddedCores cores;
+
+    @BeforeAll
+    public static void setUp() throws Exception
+    {
+        cores = new EmbeddedCores(home, 1, 16);
+    }
+
+    @AfterAll
+    public static void tearDown()
+    {
+        cores.close();
+    }
+
+    @Test
+    public void testRoundTripsVInts() throws Exception
+    {
+        final int[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE };
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            for (final int value : values)
+            {
+                FilterCacheSnapshot.writeVInt(out, value);
+            }
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+        {
+            for (final int value : values)
+            {
+                Assertions.assertEquals(value, FilterCacheSnapshot.readVInt(in));
+            }
+            Assertions.assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    public void testRoundTripsSortedIntDocSet() throws Exception
+    {
+        final DocSet docSet = new SortedIntDocSet(new int[] { 0, 3, 200, 9999 });
+
+        final DocSet readDocSet = roundTrip(docSet, 10000);
+
+        Assertions.assertTrue(readDocSet instanceof SortedIntDocSet);
+        Assertions.assertArrayEquals(toArray(docSet), toArray(readDocSet));
+    }
+
+    @Test
+    public void testRoundTripsBitDocSet() throws Exception
+    {
+        final FixedBitSet bits = new FixedBitSet(1000);
+        for (int doc = 0; doc < 1000; doc += 3)
+        {
+            bits.set(doc);
+        }
+        final DocSet docSet = new BitDocSet(bits);
+
+        final DocSet readDocSet = roundTrip(docSet, 1000);
+
+        Assertions.assertTrue(readDocSet instanceof BitDocSet);
+        Assertions.assertEquals(docSet.size(), readDocSet.size());
+        Assertions.assertArrayEquals(toArray(docSet), toArray(readDocSet));
+    }
+
+    @Test
+    public void testRejectsBitDocSetOfDifferentIndexSize() throws Exception
+    {
+        final FixedBitSet bits = new FixedBitSet(1000);
+        bits.set(0, 500);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            FilterCacheSnapshot.writeDocSet(out, new BitDocSet(bits), 1000);
+        }
+
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+        {
+            Assertions.assertThrows(IOException.class, () -> FilterCacheSnapshot.readDocSet(in, 5000));
+        }
+    }
+
+    @Test
+    public void testRestoresOnlyMatchingHeader() throws Exception
+    {
+        cores.index(0, 1000, 10);
+        final RefCounted<SolrIndexSearcher> searcher = cores.getCore(0).getSearcher();
+        try
+        {
+            final List<String> segments = FilterCacheSnapshot.getSegmentIdentities(searcher.get());
+            Assertions.assertNotNull(segments);
+
+            Assertions.assertTrue(matchesHeader(searcher.get(), "{}", segments, out -> {
+                FilterCacheSnapshot.writeHeader(out, searcher.get(), "{}", segments);
+            }));
+            Assertions.assertFalse(matchesHeader(searcher.get(), "{\"locales\":[\"de\"]}", segments, out -> {
+                FilterCacheSnapshot.writeHeader(out, searcher.get(), "{}", segments);
+            }));
+            Assertions.assertFalse(matchesHeader(searcher.get(), "{}", segments, out -> {
+                FilterCacheSnapshot.writeHeader(out, searcher.get(), "{}", Collections.singletonList("_0:other"));
+            }));
+            Assertions.assertFalse(matchesHeader(searcher.get(), "{}", segments, out -> {
+                out.writeInt(FilterCacheSnapshot.FORMAT_VERSION + 1);
+            }));
+            Assertions.assertFalse(matchesHeader(searcher.get(), "{}", segments, out -> {
+                out.writeInt(FilterCacheSnapshot.FORMAT_VERSION);
+                FilterCacheSnapshot.writeString(out, "other schema");
+            }));
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+
+    @Test
+    public void testReadsEntriesWithTheirQueryUntilIndexChanges() throws Exception
+    {
+        cores.index(0, 1000, 10);
+        final FilterCacheSnapshot snapshot = new FilterCacheSnapshot(this.dataDir.resolve("filterCacheSnapshot.bin"));
+        final Query filter = new TermQuery(new Term("TYPE", "type_3"));
+
+        RefCounted<SolrIndexSearcher> searcher = cores.getCore(0).getSearcher();
+        try
+        {
+            final DocSet docSet = searcher.get().getDocSet(filter);
+            snapshot.write(searcher.get(), "{}", Collections.singletonMap("TYPE:type_3", filter));
+
+            final Map<String, FilterCacheSnapshot.Entry> entries = snapshot.read(searcher.get(), "{}");
+            Assertions.assertEquals(Collections.singleton("TYPE:type_3"), entries.keySet());
+            Assertions.assertEquals(filter.toString(), entries.get("TYPE:type_3").getQuery());
+            Assertions.assertArrayEquals(toArray(docSet), toArray(entries.get("TYPE:type_3").getDocSet()));
+        }
+        finally
+        {
+            searcher.decref();
+        }
+
+        cores.index(0, 1000, 10);
+        searcher = cores.getCore(0).getSearcher();
+        try
+        {
+            Assertions.assertTrue(snapshot.read(searcher.get(), "{}").isEmpty());
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+
+    private static boolean matchesHeader(final SolrIndexSearcher searcher, final String parseContext, final List<String> segments,
+            final HeaderWriter headerWriter) throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            headerWriter.write(out);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+        {
+            return FilterCacheSnapshot.matchesHeader(in, searcher, parseContext, segments);
+        }
+    }
+
+    private static DocSet roundTrip(final DocSet docSet, final int maxDoc) throws IOException
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes))
+        {
+            FilterCacheSnapshot.writeDocSet(out, docSet, maxDoc);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+        {
+            return FilterCacheSnapshot.readDocSet(in, maxDoc);
+        }
+    }
+
+    private static int[] toArray(final DocSet docSet)
+    {
+        final int[] docs = new int[docSet.size()];
+        final DocIterator iterator = docSet.iterator();
+        for (int i = 0; i < docs.length; i++)
+        {
+            docs[i] = iterator.nextDoc();
+        }
+        return docs;
+    }
+
+    private interface HeaderWriter
+    {
+
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,167 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrException.ErrorCode;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequestBase;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FilterQueryRecorderComponentTest
+{
+
+    private static final String REQUEST_BODY = "{\"authorities\":[\"GROUP_EVERYONE\",\"alice\"],\"tenants\":[\"\"]}";
+
+    @TempDir
+    Path dataDir;
+
+    private FilterQueryRecorderComponent component;
+
+    @BeforeEach
+    public void setUp()
+    {
+        final NamedList<Object> args = new NamedList<>();
+        args.add("statisticsFile", "filterQueryStatistics.tsv");
+        args.add("authoritySetStatisticsFile", "authoritySetStatistics.tsv");
+        this.component = new FilterQueryRecorderComponent();
+        this.component.init(args);
+        // inform(core) would resolve the files against the data directory of the core
+        this.component.statistics = new WarmupStatistics(this.dataDir.resolve("filterQueryStatistics.tsv"), 100,
+                WarmupStatistics.DEFAULT_HALF_LIFE);
+        this.component.authoritySetStatistics = new WarmupStatistics(this.dataDir.resolve("authoritySetStatistics.tsv"), 100,
+                WarmupStatistics.DEFAULT_HALF_LIFE);
+    }
+
+    @Test
+    public void testRecordsAuthoritySetOfParsedAftsRequest() throws Exception
+    {
+        final SolrQueryRequest req = createRequest(AuthoritySet.DEFAULT_AUTHORITY_FILTER_QUERY, "{!afts}TYPE:\"cm:content\"");
+        final ResponseBuilder rb = new ResponseBuilder(req, new SolrQueryResponse(), Collections.emptyList());
+
+        // as first component, the recorder is prepared before the query component parses the AFTS queries
+        this.component.prepare(rb);
+        Assertions.assertTrue(this.component.statistics.getTopEntries(10).isEmpty());
+        Assertions.assertTrue(this.component.authoritySetStatistics.getTopEntries(10).isEmpty());
+
+        // the AFTS query parser consumes the request body and provides it in the request context
+        req.getContext().put(AuthoritySet.ALFRESCO_JSON, REQUEST_BODY);
+        this.component.process(rb);
+
+        // the permission filter depends on the request body and is only recorded via the authority set
+        Assertions.assertEquals(Collections.singletonList("{!afts}TYPE:\"cm:content\""), this.component.statistics.getTopEntries(10));
+        final String expectedKey = new AuthoritySet(Arrays.asList("GROUP_EVERYONE", "alice")).getKey();
+        Assertions.assertEquals(Collections.singletonList(expectedKey), this.component.authoritySetStatistics.getTopEntries(10));
+    }
+
+    @Test
+    public void testSkipsFilterQueriesResolvedFromRequestBody() throws Exception
+    {
+        final SolrQueryRequest req = createRequest("{!afts}TENANT_FILTER_FROM_JSON", "{!afts}ASPECT:\"cm:titled\"");
+        final ResponseBuilder rb = new ResponseBuilder(req, new SolrQueryResponse(), Collections.emptyList());
+
+        this.component.prepare(rb);
+        this.component.process(rb);
+
+        Assertions.assertEquals(Collections.singletonList("{!afts}ASPECT:\"cm:titled\""), this.component.statistics.getTopEntries(10));
+    }
+
+    @Test
+    public void testRecordsOnlySuccessfulRequests() throws Exception
+    {
+        final SolrQueryRequest failedReq = createRequest("UNDEFINED_FIELD:x");
+        final SolrQueryResponse failedRsp = new SolrQueryResponse();
+        this.processRequest(failedReq, failedRsp, () -> failedRsp.setException(new SolrException(ErrorCode.BAD_REQUEST, "undefined field")));
+
+        final SolrQueryRequest req = createRequest("{!afts}TYPE:\"cm:content\"");
+        this.processRequest(req, new SolrQueryResponse(), () -> {
+            // recording is deferred until the request has completed
+            Assertions.assertTrue(this.component.statistics.getTopEntries(10).isEmpty());
+        });
+
+        Assertions.assertEquals(Collections.singletonList("{!afts}TYPE:\"cm:content\""), this.component.statistics.getTopEntries(10));
+    }
+
+    @Test
+    public void testIgnoresRequestWithoutAuthorityFilter() throws Exception
+    {
+        final SolrQueryRequest req = createRequest("{!afts}TYPE:\"cm:content\"");
+        final ResponseBuilder rb = new ResponseBuilder(req, new SolrQueryResponse(), Collections.emptyList());
+
+        this.component.prepare(rb);
+        req.getContext().put(AuthoritySet.ALFRESCO_JSON, REQUEST_BODY);
+        this.component.process(rb);
+
+        Assertions.assertTrue(this.component.authoritySetStatistics.getTopEntries(10).isEmpty());
+    }
+
+    @Test
+    public void testIgnoresReplayedRequest() throws Exception
+    {
+        final SolrQueryRequest req = createRequest(AuthoritySet.DEFAULT_AUTHORITY_FILTER_QUERY);
+        req.getContext().put(RecordedRequest.REPLAYED, Boolean.TRUE);
+        final ResponseBuilder rb = new ResponseBuilder(req, new SolrQueryResponse(), Collections.emptyList());
+
+        this.component.prepare(rb);
+        req.getContext().put(AuthoritySet.ALFRESCO_JSON, REQUEST_BODY);
+        this.component.process(rb);
+
+        Assertions.assertTrue(this.component.statistics.getTopEntries(10).isEmpty());
+        Assertions.assertTrue(this.component.authoritySetStatistics.getTopEntries(10).isEmpty());
+    }
+
+    private void processRequest(final SolrQueryRequest req, final SolrQueryResponse rsp, final Runnable handling) throws Exception
+    {
+        SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+        try
+        {
+            final ResponseBuilder rb = new ResponseBuilder(req, rsp, Collections.emptyList());
+            this.component.prepare(rb);
+            this.component.process(rb);
+            handling.run();
+        }
+        finally
+        {
+            SolrRequestInfo.clearRequestInfo();
+        }
+    }
+
+    private static SolrQueryRequest createRequest(final String... filterQueries)
+    {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.add(CommonParams.Q, "{!afts}ISNODE:T");
+        params.add(CommonParams.FQ, filterQueries);
+        final SolrQueryRequestBase req = new SolrQueryRequestBase(null, params)
+        {
+        };
+        // like an HTTP request body, this stream can only be read once, i.e. by the query parser
+        req.setContentStreams(Collections.singletonList(new ContentStreamBase()
+        {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            public InputStream getStream()
+            {
+                return new ByteArrayInputStream(REQUEST_BODY.getBytes(StandardCharsets.UTF_8));
+            }
+        }));
+        return req;
+    }
+}
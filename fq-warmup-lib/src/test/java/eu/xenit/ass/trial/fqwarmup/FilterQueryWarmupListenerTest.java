@@ -0,0 +1,122 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FilterQueryWarmupListenerTest
+{
+
+    @TempDir
+    static Path home;
+
+    private static EmbeddedCores cores;
+
+    @BeforeAll
+    public static void setUp() throws Exception
+    {
+        cores = new EmbeddedCores(home, 1, 16);
+        cores.index(0, 100, 10);
+    }
+
+    @AfterAll
+    public static void tearDown()
+    {
+        cores.close();
+    }
+
+    @Test
+    public void testWarmsParsedChunksWhileLaterChunksAreParsed() throws Exception
+    {
+        final List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 4 * FilterQueryWarmupPlan.PARSE_CHUNK_SIZE; i++)
+        {
+            lines.add("TYPE:type_" + i);
+        }
+        final Path file = Files.write(home.resolve("streamed-queries.txt"), lines, StandardCharsets.UTF_8);
+
+        final NamedList<Object> args = new NamedList<>();
+        args.add("queryListFile", file.toString());
+        args.add("baseQuery", "*:*");
+        args.add("concurrentThreads", Integer.valueOf(2));
+        args.add("concurrentTimeout", Integer.valueOf(60000));
+
+        final SolrCore core = cores.getCore(0);
+        final CountDownLatch listedQueryWarmed = new CountDownLatch(1);
+        final AtomicBoolean parsedWhenWarmed = new AtomicBoolean(true);
+        final AtomicInteger listedChunks = new AtomicInteger();
+        final AtomicBoolean overlapped = new AtomicBoolean();
+        final FilterQueryWarmupListener listener = new FilterQueryWarmupListener(core)
+        {
+
+            @Override
+            protected List<Runnable> createFilterQueryTasks(final SolrIndexSearcher searcher, final SegmentFilterCache segmentFilterCache,
+                    final FilterCacheBudget budget, final FilterQueryWarmupPlan plan, final WarmupStatistics statistics,
+                    final RankedFilterCache<Query, DocSet> handoffCache, final Map<String, Query> filterQueries,
+                    final boolean individualTasks)
+            {
+                // parsing cannot continue past the second chunk until a query of the first chunk has been warmed
+                if (!filterQueries.isEmpty() && listedChunks.incrementAndGet() == 2)
+                {
+                    try
+                    {
+                        overlapped.set(listedQueryWarmed.await(10, TimeUnit.SECONDS));
+                    }
+                    catch (final InterruptedException iex)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.createFilterQueryTasks(searcher, segmentFilterCache, budget, plan, statistics, handoffCache, filterQueries,
+                        individualTasks);
+            }
+
+            @Override
+            protected void performQuery(final SolrIndexSearcher searcher, final SegmentFilterCache segmentFilterCache,
+                    final FilterCacheBudget budget, final FilterQueryWarmupPlan plan, final Map<String, Query> filterQueries)
+            {
+                if (listedQueryWarmed.getCount() > 0)
+                {
+                    parsedWhenWarmed.set(plan.isParsed());
+                }
+                super.performQuery(searcher, segmentFilterCache, budget, plan, filterQueries);
+                listedQueryWarmed.countDown();
+            }
+        };
+        listener.init(args);
+
+        final RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+        try
+        {
+            listener.newSearcher(searcher.get(), searcher.get());
+
+            Assertions.assertTrue(overlapped.get());
+            Assertions.assertFalse(parsedWhenWarmed.get());
+            Assertions.assertEquals(4, listedChunks.get());
+            Assertions.assertEquals(lines.size(), listener.getPlan(searcher.get()).getFilterQueries().size());
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+}
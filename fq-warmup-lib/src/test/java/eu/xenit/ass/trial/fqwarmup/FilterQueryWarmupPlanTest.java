@@ -0,0 +1,88 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FilterQueryWarmupPlanTest
+{
+
+    @TempDir
+    static Path home;
+
+    private static EmbeddedCores cores;
+
+    @BeforeAll
+    public static void setUp() throws Exception
+    {
+        cores = new EmbeddedCores(home, 1, 16);
+    }
+
+    @AfterAll
+    public static void tearDown()
+    {
+        cores.close();
+    }
+
+    @Test
+    public void testSkipsBadLinesInParallelParsedChunks() throws Exception
+    {
+        final List<String> lines = new ArrayList<>();
+        final List<String> expected = new ArrayList<>();
+        // spans several chunks, with syntax errors, undefined fields, blank and duplicate lines spread across them
+        for (int i = 0; i < 3 * FilterQueryWarmupPlan.PARSE_CHUNK_SIZE; i++)
+        {
+            if (i % 97 == 0)
+            {
+                lines.add("TYPE:(type_" + i);
+            }
+            else if (i % 89 == 0)
+            {
+                lines.add("UNDEFINED:value_" + i);
+            }
+            else if (i % 83 == 0)
+            {
+                lines.add("   ");
+            }
+            else
+            {
+                lines.add("TYPE:type_" + i);
+                expected.add("TYPE:type_" + i);
+            }
+        }
+        lines.add(" TYPE:type_1 ");
+        final Path file = Files.write(home.resolve("queries.txt"), lines, StandardCharsets.UTF_8);
+
+        final SolrCore core = cores.getCore(0);
+        final RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+        try
+        {
+            for (final int parseConcurrency : new int[] { 1, 4 })
+            {
+                final FilterQueryWarmupPlan plan = new FilterQueryWarmupPlan(core, core.getLatestSchema(), null, file, -1, 0,
+                        Collections.emptyList());
+                final FilterQueryWarmupPlan.ParsedQueries parsedQueries = plan.parse(searcher.get(), file, parseConcurrency, null);
+
+                Assertions.assertEquals(expected, new ArrayList<>(parsedQueries.filterQueries.keySet()));
+                Assertions.assertEquals(Files.size(file), parsedQueries.queryListFileSize);
+                Assertions.assertEquals(FilterQueryWarmupPlan.checksum(file), parsedQueries.queryListFileChecksum);
+            }
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class IndexPrefetchListenerTest
+{
+
+    @TempDir
+    static Path home;
+
+    private static EmbeddedCores cores;
+
+    @BeforeAll
+    public static void setUp() throws Exception
+    {
+        cores = new EmbeddedCores(home, 3, 16);
+        for (int i = 0; i < 3; i++)
+        {
+            cores.index(i, 100, 10);
+        }
+    }
+
+    @AfterAll
+    public static void tearDown()
+    {
+        cores.close();
+    }
+
+    @Test
+    public void testBudgetSkipsLargeFilesButFitsSmallerOnes()
+    {
+        final SolrCore core = cores.getCore(0);
+        final NamedList<Object> args = new NamedList<>();
+        // the term dictionary of a segment is much larger than its term index
+        args.add("fileExtensions", Arrays.asList("tim", "tip"));
+
+        final RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+        try
+        {
+            final List<IndexPrefetchListener.IndexFile> candidates = createListener(core, args, Long.MAX_VALUE)
+                    .selectFiles(searcher.get());
+            Assertions.assertEquals(2, candidates.size());
+            final IndexPrefetchListener.IndexFile termDictionary = candidates.get(0);
+            final IndexPrefetchListener.IndexFile termIndex = candidates.get(1);
+            Assertions.assertTrue(termDictionary.name.endsWith(".tim"));
+            Assertions.assertTrue(termDictionary.length > termIndex.length);
+
+            final List<IndexPrefetchListener.IndexFile> files = createListener(core, args, termDictionary.length - 1)
+                    .selectFiles(searcher.get());
+            Assertions.assertEquals(Arrays.asList(termIndex.name), files.stream().map(file -> file.name).collect(Collectors.toList()));
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+
+    @Test
+    public void testSkipsFilesPrefetchedForEarlierSearcher() throws Exception
+    {
+        final SolrCore core = cores.getCore(1);
+        final IndexPrefetchListener listener = createListener(core, new NamedList<>(), Long.MAX_VALUE);
+
+        final Set<String> prefetchedFiles = new HashSet<>();
+        RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+        try
+        {
+            listener.selectFiles(searcher.get()).forEach(file -> prefetchedFiles.add(file.name));
+            Assertions.assertFalse(prefetchedFiles.isEmpty());
+
+            listener.newSearcher(searcher.get(), null);
+            Assertions.assertTrue(listener.selectFiles(searcher.get()).isEmpty());
+        }
+        finally
+        {
+            searcher.decref();
+        }
+
+        // only the files of the new segment remain to be prefetched
+        cores.index(1, 10, 10);
+        searcher = core.getSearcher();
+        try
+        {
+            final List<IndexPrefetchListener.IndexFile> files = listener.selectFiles(searcher.get());
+            Assertions.assertFalse(files.isEmpty());
+            files.forEach(file -> Assertions.assertFalse(prefetchedFiles.contains(file.name)));
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+
+    @Test
+    public void testPrunesPrefetchedFilesAfterMerge() throws Exception
+    {
+        final SolrCore core = cores.getCore(2);
+        final IndexPrefetchListener listener = createListener(core, new NamedList<>(), Long.MAX_VALUE);
+        cores.index(2, 10, 10);
+
+        RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+        try
+        {
+            Assertions.assertTrue(searcher.get().getIndexReader().leaves().size() > 1);
+            listener.newSearcher(searcher.get(), null);
+            Assertions.assertFalse(IndexPrefetchListener.PREFETCHED_FILES.get(core).isEmpty());
+        }
+        finally
+        {
+            searcher.decref();
+        }
+
+        cores.optimize(2);
+        searcher = core.getSearcher();
+        try
+        {
+            final Set<String> currentFiles = new HashSet<>();
+            for (final LeafReaderContext leaf : searcher.get().getIndexReader().leaves())
+            {
+                currentFiles.addAll(((SegmentReader) FilterLeafReader.unwrap(leaf.reader())).getSegmentInfo().files());
+            }
+
+            Assertions.assertFalse(listener.selectFiles(searcher.get()).isEmpty());
+            // files of merged away segments are never used again
+            final Set<String> prefetchedFiles = IndexPrefetchListener.PREFETCHED_FILES.get(core);
+            Assertions.assertTrue(prefetchedFiles.isEmpty());
+
+            listener.newSearcher(searcher.get(), null);
+            Assertions.assertFalse(prefetchedFiles.isEmpty());
+            Assertions.assertTrue(currentFiles.containsAll(prefetchedFiles));
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+
+    private static IndexPrefetchListener createListener(final SolrCore core, final NamedList<Object> args, final long budget)
+    {
+        final IndexPrefetchListener listener = new IndexPrefetchListener(core)
+        {
+
+            /**
+             * {@inheritDoc}
+             */
+            @Override
+            protected long getBudget()
+            {
+                // the test indexes are far smaller than the megabytes the budget is configured in
+                return budget;
+            }
+        };
+        listener.init(args);
+        return listener;
+    }
+}
@@ -0,0 +1,77 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class RankedFilterCacheTest
+{
+
+    private RankedFilterCache<String, String> cache;
+
+    @BeforeEach
+    public void setUp()
+    {
+        final Map<String, String> args = new HashMap<>();
+        args.put("name", "filterCache");
+        args.put("size", "8");
+        this.cache = new RankedFilterCache<>();
+        this.cache.init(args, null, null);
+    }
+
+    @Test
+    public void testRanksKeysByHits()
+    {
+        this.cache.put("cold", "value");
+        this.cache.put("warm", "value");
+        this.cache.put("hot", "value");
+        this.cache.get("warm");
+        this.cache.get("hot");
+        this.cache.get("hot");
+
+        Assertions.assertEquals(Arrays.asList("hot", "warm", "cold"), this.cache.getHottestKeys(10));
+        Assertions.assertEquals(Arrays.asList("hot"), this.cache.getHottestKeys(1));
+        Assertions.assertTrue(this.cache.getRank("hot") > this.cache.getRank("warm"));
+        Assertions.assertEquals(0, this.cache.getRank("unknown"));
+
+        // peeking at a value does not change the ranks
+        Assertions.assertEquals("value", this.cache.peek("cold"));
+        Assertions.assertEquals(Arrays.asList("hot", "warm", "cold"), this.cache.getHottestKeys(10));
+        Assertions.assertTrue(this.cache.getRank("cold") < 1);
+        Assertions.assertNull(this.cache.peek("unknown"));
+    }
+
+    @Test
+    public void testBoundsTrackedKeysToCacheSize()
+    {
+        this.cache.put("hot", "value");
+        this.cache.get("hot");
+        for (int i = 0; i < 100; i++)
+        {
+            this.cache.put("key" + i, "value");
+            Assertions.assertTrue(this.cache.hitStatistics.size() <= 8);
+        }
+        Assertions.assertTrue(this.cache.hitStatistics.containsKey("hot"));
+    }
+
+    @Test
+    public void testKeepsTrackingNewlyCachedKeys()
+    {
+        for (int i = 0; i < 8; i++)
+        {
+            this.cache.put("hot" + i, "value");
+            this.cache.get("hot" + i);
+        }
+
+        // the statistics are full of keys that have been hit, which must not push out the key just cached
+        this.cache.put("new", "value");
+        Assertions.assertTrue(this.cache.hitStatistics.containsKey("new"));
+        this.cache.get("new");
+        this.cache.get("new");
+        Assertions.assertEquals("new", this.cache.getHottestKeys(1).get(0));
+    }
+}
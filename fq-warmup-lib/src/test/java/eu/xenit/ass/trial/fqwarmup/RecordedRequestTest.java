@@ -0,0 +1,88 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.util.Arrays;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequestBase;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class RecordedRequestTest
+{
+
+    @Test
+    public void testKeyIgnoresFilterQueryOrder()
+    {
+        final RecordedRequest request = RecordedRequest.fromRequest(createRequest(null, null, "TYPE:b", "TYPE:a"),
+                RecordedRequest.DEFAULT_RECORDED_PARAMS);
+        final RecordedRequest reorderedRequest = RecordedRequest.fromRequest(createRequest(null, null, "TYPE:a", "TYPE:b"),
+                RecordedRequest.DEFAULT_RECORDED_PARAMS);
+
+        Assertions.assertEquals(request.getKey(), reorderedRequest.getKey());
+        final RecordedRequest parsedRequest = RecordedRequest.parse(request.getKey());
+        Assertions.assertEquals(request.getKey(), parsedRequest.getKey());
+        Assertions.assertEquals(Arrays.asList("TYPE:a", "TYPE:b"), Arrays.asList(parsedRequest.toParams().getParams(CommonParams.FQ)));
+        Assertions.assertEquals("{!afts}ISNODE:T", parsedRequest.toParams().get(CommonParams.Q));
+    }
+
+    @Test
+    public void testKeyIgnoresBodyPropertyOrder()
+    {
+        final RecordedRequest request = RecordedRequest.fromRequest(
+                createRequest(null, "{\"tenants\":[\"\"],\"authorities\":[\"GROUP_EVERYONE\",\"alice\"]}", "TYPE:a"),
+                RecordedRequest.DEFAULT_RECORDED_PARAMS);
+        final RecordedRequest reorderedRequest = RecordedRequest.fromRequest(
+                createRequest(null, "{ \"authorities\": [\"GROUP_EVERYONE\", \"alice\"], \"tenants\": [\"\"] }", "TYPE:a"),
+                RecordedRequest.DEFAULT_RECORDED_PARAMS);
+
+        Assertions.assertEquals(request.getKey(), reorderedRequest.getKey());
+        final RecordedRequest parsedRequest = RecordedRequest.parse(request.getKey());
+        Assertions.assertEquals(request.getKey(), parsedRequest.getKey());
+        Assertions.assertEquals("{\"authorities\":[\"GROUP_EVERYONE\",\"alice\"],\"tenants\":[\"\"]}", parsedRequest.getBody());
+    }
+
+    @Test
+    public void testKeyDistinguishesHandlers()
+    {
+        final RecordedRequest request = RecordedRequest.fromRequest(createRequest(null, null, "TYPE:a"),
+                RecordedRequest.DEFAULT_RECORDED_PARAMS);
+        final RecordedRequest handledRequest = RecordedRequest.fromRequest(createRequest("/afts", null, "TYPE:a"),
+                RecordedRequest.DEFAULT_RECORDED_PARAMS);
+
+        Assertions.assertNotEquals(request.getKey(), handledRequest.getKey());
+        Assertions.assertNull(RecordedRequest.parse(request.getKey()).getHandler());
+        Assertions.assertEquals(request.getKey(), RecordedRequest.parse(request.getKey()).getKey());
+        Assertions.assertEquals("/afts", RecordedRequest.parse(handledRequest.getKey()).getHandler());
+        Assertions.assertEquals(handledRequest.getKey(), RecordedRequest.parse(handledRequest.getKey()).getKey());
+    }
+
+    @Test
+    public void testRejectsUnreadableKeys()
+    {
+        Assertions.assertNull(RecordedRequest.parse("{\"handler\":\"/afts\"}"));
+        Assertions.assertNull(RecordedRequest.parse("TYPE:a"));
+    }
+
+    private static SolrQueryRequest createRequest(final String handler, final String body, final String... filterQueries)
+    {
+        final ModifiableSolrParams params = new ModifiableSolrParams();
+        params.add(CommonParams.Q, "{!afts}ISNODE:T");
+        params.add(CommonParams.FQ, filterQueries);
+        params.add(CommonParams.WT, "json");
+        final SolrQueryRequestBase req = new SolrQueryRequestBase(null, params)
+        {
+        };
+        if (handler != null)
+        {
+            req.getContext().put(CommonParams.PATH, handler);
+        }
+        if (body != null)
+        {
+            // as provided by the Alfresco query parsers once they have consumed the request body
+            req.getContext().put(AuthoritySet.ALFRESCO_JSON, body);
+        }
+        return req;
+    }
+}
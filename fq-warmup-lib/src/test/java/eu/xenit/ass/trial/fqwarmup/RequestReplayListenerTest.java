@@ -0,0 +1,101 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RequestReplayListenerTest
+{
+
+    @TempDir
+    static Path home;
+
+    private static EmbeddedCores cores;
+
+    @BeforeAll
+    public static void setUp() throws Exception
+    {
+        cores = new EmbeddedCores(home, 1, 16);
+        cores.index(0, 100, 10);
+    }
+
+    @AfterAll
+    public static void tearDown()
+    {
+        cores.close();
+    }
+
+    @Test
+    public void testReplayFillsDocumentCacheWithoutBeingRecorded()
+    {
+        final SolrCore core = cores.getCore(0);
+        final NamedList<Object> args = new NamedList<>();
+        // the same statistics the recorder component of the /recorded handler records to
+        args.add("statisticsFile", "requestStatistics.tsv");
+        args.add("documentCacheWarmup", Boolean.TRUE);
+        final RequestReplayListener listener = new RequestReplayListener(core);
+        listener.init(args);
+
+        final Map<String, List<String>> params = new TreeMap<>();
+        params.put(CommonParams.Q, Collections.singletonList("TYPE:type_1"));
+        params.put(CommonParams.ROWS, Collections.singletonList("5"));
+        final RecordedRequest request = new RecordedRequest("/recorded", params, null);
+        final WarmupStatistics statistics = listener.getStatistics();
+        statistics.record(request.getKey());
+        final double frequency = statistics.getFrequency(request.getKey());
+
+        final RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+        try
+        {
+            // the document cache is only accessible via the info registry of the core the searcher has been registered with
+            final SolrCache<?, ?> documentCache = (SolrCache<?, ?>) core.getInfoRegistry().get("documentCache");
+            Assertions.assertEquals(0, documentCache.size());
+
+            listener.newSearcher(searcher.get(), null);
+
+            Assertions.assertEquals(5, documentCache.size());
+            Assertions.assertTrue(listener.replayCosts.containsKey(request.getKey()));
+            Assertions.assertEquals(Collections.singletonList(request.getKey()), statistics.getTopEntries(10));
+            Assertions.assertEquals(frequency, statistics.getFrequency(request.getKey()), frequency / 100);
+
+            // the same request is recorded when it is not marked as replayed
+            final SolrQueryRequest liveRequest = listener.createRequest(searcher.get(), null, request.toParams());
+            liveRequest.getContext().remove(RecordedRequest.REPLAYED);
+            final SolrQueryResponse liveResponse = new SolrQueryResponse();
+            SolrRequestInfo.setRequestInfo(new SolrRequestInfo(liveRequest, liveResponse));
+            try
+            {
+                core.execute(core.getRequestHandler("/recorded"), liveRequest, liveResponse);
+            }
+            finally
+            {
+                SolrRequestInfo.clearRequestInfo();
+            }
+            Assertions.assertEquals(2, statistics.getTopEntries(10).size());
+            Assertions.assertTrue(Arrays.asList(request.getKey(), new RecordedRequest(null, params, null).getKey())
+                    .containsAll(statistics.getTopEntries(10)));
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+}
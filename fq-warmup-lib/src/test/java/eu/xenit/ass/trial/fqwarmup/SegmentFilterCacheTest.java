@@ -0,0 +1,178 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.search.WrappedQuery;
+import org.apache.solr.util.RefCounted;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentFilterCacheTest
+{
+
+    @TempDir
+    static Path home;
+
+    private static EmbeddedCores cores;
+
+    @BeforeAll
+    public static void setUp() throws Exception
+    {
+        cores = new EmbeddedCores(home, 1, 16);
+    }
+
+    @AfterAll
+    public static void tearDown()
+    {
+        cores.close();
+    }
+
+    @Test
+    public void testCountsSegmentMatchesAndDropsThemWithTheirSegment() throws Exception
+    {
+        cores.index(0, 1000, 10);
+        final SegmentFilterCache segmentFilterCache = new SegmentFilterCache(Collections.<String> emptyList());
+        final Query filter = new TermQuery(new Term("TYPE", "type_3"));
+
+        final Object segmentKey;
+        final RefCounted<SolrIndexSearcher> searcher = cores.getCore(0).getSearcher();
+        try
+        {
+            segmentFilterCache.startWarmup(searcher.get());
+            final FilterCacheBudget budget = new FilterCacheBudget(searcher.get(), 0, 0, null);
+            final DocSet docSet = segmentFilterCache.cacheDocSet(searcher.get(), filter, budget);
+            segmentFilterCache.finishWarmup(searcher.get());
+
+            Assertions.assertEquals(100, docSet.size());
+            Assertions.assertEquals(1, segmentFilterCache.segments.size());
+            Assertions.assertTrue(segmentFilterCache.getCachedBytes() > 0);
+            Assertions.assertEquals(segmentFilterCache.getCachedBytes(), budget.warmedBytes.get());
+            Assertions.assertNull(segmentFilterCache.warmingSearcher.get());
+            segmentKey = searcher.get().getTopReaderContext().leaves().get(0).reader().getCoreCacheKey();
+        }
+        finally
+        {
+            searcher.decref();
+        }
+
+        // replacing all documents deletes the segment, which is closed together with the previous searcher
+        cores.index(0, 1000, 10);
+        Assertions.assertFalse(segmentFilterCache.segments.containsKey(segmentKey));
+        Assertions.assertEquals(0, segmentFilterCache.getCachedBytes());
+    }
+
+    @Test
+    public void testHandlesWrappedMultiTermQueriesWithoutExpandingThem() throws Exception
+    {
+        cores.index(0, 1000, 10);
+        final SegmentFilterCache segmentFilterCache = new SegmentFilterCache(Collections.<String> emptyList());
+        final BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.add(new WildcardQuery(new Term("TYPE", "type_*")), BooleanClause.Occur.MUST);
+        builder.add(new TermQuery(new Term("TYPE", "type_3")), BooleanClause.Occur.MUST_NOT);
+        final Query filter = new WrappedQuery(builder.build());
+
+        final RefCounted<SolrIndexSearcher> searcher = cores.getCore(0).getSearcher();
+        try
+        {
+            final Query localFilter = segmentFilterCache.toSegmentLocal(filter);
+            Assertions.assertTrue(localFilter instanceof BooleanQuery);
+            Assertions.assertTrue(((BooleanQuery) localFilter).clauses().get(0).getQuery() instanceof WildcardQuery);
+
+            segmentFilterCache.startWarmup(searcher.get());
+            final DocSet docSet = segmentFilterCache.cacheDocSet(searcher.get(), filter, null);
+            segmentFilterCache.finishWarmup(searcher.get());
+
+            Assertions.assertEquals(900, docSet.size());
+            Assertions.assertEquals(1, segmentFilterCache.segments.size());
+            Assertions.assertEquals(1, segmentFilterCache.computedSegments.get());
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+
+    @Test
+    public void testDoesNotTreatTopTermsMultiTermQueriesAsSegmentLocal()
+    {
+        final SegmentFilterCache segmentFilterCache = new SegmentFilterCache(Collections.<String> emptyList());
+        // fuzzy queries select their top terms across the whole index
+        final FuzzyQuery fuzzyQuery = new FuzzyQuery(new Term("TYPE", "type_3"));
+        final BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.add(new TermQuery(new Term("TYPE", "type_1")), BooleanClause.Occur.SHOULD);
+        builder.add(fuzzyQuery, BooleanClause.Occur.SHOULD);
+
+        Assertions.assertNull(segmentFilterCache.toSegmentLocal(new WrappedQuery(fuzzyQuery)));
+        Assertions.assertNull(segmentFilterCache.toSegmentLocal(new WrappedQuery(builder.build())));
+        Assertions.assertNotNull(segmentFilterCache.toSegmentLocal(new WildcardQuery(new Term("TYPE", "type_*"))));
+    }
+
+    @Test
+    public void testDoesNotRewriteQueriesOfUnknownType()
+    {
+        final Query filter = new WrappedQuery(new IndexResolvedQuery());
+
+        Assertions.assertNull(new SegmentFilterCache(Collections.<String> emptyList()).toSegmentLocal(filter));
+
+        final SegmentFilterCache segmentFilterCache = new SegmentFilterCache(
+                Collections.singletonList(IndexResolvedQuery.class.getName()));
+        Assertions.assertTrue(segmentFilterCache.toSegmentLocal(filter) instanceof IndexResolvedQuery);
+    }
+
+    /**
+     * Stand-in for queries which resolve their matches via the whole index when rewritten, e.g. Alfresco path queries.
+     */
+    private static class IndexResolvedQuery extends Query
+    {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Query rewrite(final IndexReader reader)
+        {
+            return new TermQuery(new Term("id", "node-1"));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString(final String field)
+        {
+            return "INDEX_RESOLVED";
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(final Object other)
+        {
+            return this.sameClassAs(other);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode()
+        {
+            return this.classHash();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SortWarmupListenerTest
+{
+
+    @TempDir
+    static Path home;
+
+    private static EmbeddedCores cores;
+
+    @BeforeAll
+    public static void setUp() throws Exception
+    {
+        cores = new EmbeddedCores(home, 1, 16);
+        cores.index(0, 100, 10);
+    }
+
+    @AfterAll
+    public static void tearDown()
+    {
+        cores.close();
+    }
+
+    @Test
+    public void testUsesSingleBaseQuery()
+    {
+        final NamedList<Object> args = new NamedList<>();
+        args.add("baseQuery", "TYPE:\"cm:content\"");
+
+        Assertions.assertEquals(Collections.singletonList("TYPE:\"cm:content\""), createListener(args).getBaseQueries());
+    }
+
+    @Test
+    public void testPrefersBaseQueries()
+    {
+        final NamedList<Object> args = new NamedList<>();
+        args.add("baseQuery", "TYPE:\"cm:content\"");
+        args.add("baseQueries", Arrays.asList("TYPE:\"cm:folder\"", "ISNODE:T"));
+
+        Assertions.assertEquals(Arrays.asList("TYPE:\"cm:folder\"", "ISNODE:T"), createListener(args).getBaseQueries());
+    }
+
+    @Test
+    public void testDefaultsToAllNodes()
+    {
+        final NamedList<Object> args = new NamedList<>();
+        args.add("baseQuery", " ");
+
+        Assertions.assertEquals(Collections.singletonList("ISNODE:T"), createListener(args).getBaseQueries());
+        Assertions.assertEquals(Collections.singletonList("ISNODE:T"), createListener(new NamedList<>()).getBaseQueries());
+    }
+
+    @Test
+    public void testSkipsSortsOnUnknownFields()
+    {
+        final SolrCore core = cores.getCore(0);
+        final RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+        try
+        {
+            for (final boolean directSortWarmup : new boolean[] { false, true })
+            {
+                final NamedList<Object> args = new NamedList<>();
+                args.add("directSortWarmup", Boolean.valueOf(directSortWarmup));
+                final SortWarmupListener listener = createListener(core, args);
+
+                // unknown fields are reported as SolrException, which must not escape to the other listeners of the new searcher
+                final List<Runnable> tasks = listener.createTasks(searcher.get(), "{}", Collections.singletonList("*:*"),
+                        Arrays.asList("unknown asc", "id asc"));
+
+                Assertions.assertEquals(directSortWarmup ? searcher.get().getTopReaderContext().leaves().size() : 1, tasks.size());
+            }
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+
+    @Test
+    public void testWarmsSortFieldsOnlyOncePerSegment() throws Exception
+    {
+        final SolrCore core = cores.getCore(0);
+        final NamedList<Object> args = new NamedList<>();
+        args.add("directSortWarmup", Boolean.TRUE);
+        final SortWarmupListener listener = createListener(core, args);
+        final List<String> sorts = Arrays.asList("_version_ asc", "_version_ desc");
+
+        final Set<Object> warmedSegments = new HashSet<>();
+        RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+        try
+        {
+            final List<Runnable> tasks = listener.createTasks(searcher.get(), "{}", Collections.singletonList("*:*"), sorts);
+            Assertions.assertEquals(searcher.get().getTopReaderContext().leaves().size(), tasks.size());
+            tasks.forEach(Runnable::run);
+            searcher.get().getTopReaderContext().leaves().forEach(leaf -> warmedSegments.add(leaf.reader().getCoreCacheKey()));
+
+            Assertions.assertTrue(listener.createTasks(searcher.get(), "{}", Collections.singletonList("*:*"), sorts).isEmpty());
+        }
+        finally
+        {
+            searcher.decref();
+        }
+
+        cores.index(0, 10, 10);
+        searcher = core.getSearcher();
+        try
+        {
+            final long newSegments = searcher.get().getTopReaderContext().leaves().stream()
+                    .filter(leaf -> !warmedSegments.contains(leaf.reader().getCoreCacheKey())).count();
+            Assertions.assertTrue(newSegments > 0);
+            Assertions.assertEquals(newSegments,
+                    listener.createTasks(searcher.get(), "{}", Collections.singletonList("*:*"), sorts).size());
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+
+    private static SortWarmupListener createListener(final NamedList<Object> args)
+    {
+        return createListener(null, args);
+    }
+
+    private static SortWarmupListener createListener(final SolrCore core, final NamedList<Object> args)
+    {
+        final SortWarmupListener listener = new SortWarmupListener(core);
+        listener.init(args);
+        return listener;
+    }
+}
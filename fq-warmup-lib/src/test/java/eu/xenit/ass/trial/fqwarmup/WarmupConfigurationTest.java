@@ -0,0 +1,103 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.solr.common.util.NamedList;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WarmupConfigurationTest
+{
+
+    @TempDir
+    Path dataDir;
+
+    @Test
+    public void testParsesEntriesAsSolrConfigTypes()
+    {
+        final Map<String, Map<String, Object>> sections = WarmupConfiguration.parse("{\"filterQueryWarmup\":{\"concurrentThreads\":8,"
+                + "\"backgroundWarmup\":true,\"maxHeapUsage\":0.75,\"maxHeapWait\":60000,\"filterQueries\":[\"TYPE:a\",\"TYPE:b\"]},"
+                + "\"facetWarmup\":{\"facetMethod\":\"fc\"}}");
+
+        final Map<String, Object> filterQueryWarmup = sections.get(WarmupMetrics.FILTER_QUERY_WARMUP);
+        Assertions.assertEquals(Integer.valueOf(8), filterQueryWarmup.get("concurrentThreads"));
+        Assertions.assertEquals(Boolean.TRUE, filterQueryWarmup.get("backgroundWarmup"));
+        Assertions.assertEquals(0.75, ((Number) filterQueryWarmup.get("maxHeapUsage")).doubleValue());
+        Assertions.assertEquals(Integer.valueOf(60000), filterQueryWarmup.get("maxHeapWait"));
+        Assertions.assertEquals(Arrays.asList("TYPE:a", "TYPE:b"), filterQueryWarmup.get("filterQueries"));
+        Assertions.assertEquals("fc", sections.get(WarmupMetrics.FACET_WARMUP).get("facetMethod"));
+        Assertions.assertTrue(WarmupConfiguration.parse(" ").isEmpty());
+    }
+
+    @Test
+    public void testRejectsInvalidDocumentsAndEntries()
+    {
+        for (final String json : Arrays.asList("{", "[]", "{\"filterQueryWarmup\":[]}", "{\"filterQueryWarmup\":{\"baseQuery\":\"*:*\"}}",
+                "{\"filterQueryWarmup\":{\"statisticsFile\":\"../../other.tsv\"}}", "{\"filterQueryWarmup\":{\"filterQueries\":{}}}"))
+        {
+            Assertions.assertThrows(IllegalArgumentException.class, () -> WarmupConfiguration.parse(json), json);
+        }
+    }
+
+    @Test
+    public void testRejectsEntriesOfUnexpectedType()
+    {
+        for (final String json : Arrays.asList("{\"filterQueryWarmup\":{\"concurrentThreads\":\"8\"}}",
+                "{\"filterQueryWarmup\":{\"learnedQueryCount\":2.5}}", "{\"filterQueryWarmup\":{\"learnedQueryCount\":3000000000}}",
+                "{\"filterQueryWarmup\":{\"backgroundWarmup\":\"true\"}}", "{\"filterQueryWarmup\":{\"maxHeapUsage\":\"0.8\"}}",
+                "{\"filterQueryWarmup\":{\"concurrentTimeout\":null}}", "{\"facetWarmup\":{\"facetMethod\":1}}",
+                "{\"filterQueryWarmup\":{\"filterQueries\":\"TYPE:a\"}}", "{\"filterQueryWarmup\":{\"filterQueries\":[\"TYPE:a\",1]}}"))
+        {
+            Assertions.assertThrows(IllegalArgumentException.class, () -> WarmupConfiguration.parse(json), json);
+        }
+    }
+
+    @Test
+    public void testReportsOnlyChangedEntriesAndAddedElements()
+    {
+        final WarmupConfiguration configuration = new WarmupConfiguration(this.dataDir.resolve("warmupConfiguration.json"));
+        configuration.apply(WarmupConfiguration
+                .parse("{\"filterQueryWarmup\":{\"concurrentThreads\":4,\"learnedQueryCount\":10,\"filterQueries\":[\"TYPE:a\",\"TYPE:b\"]}}"));
+
+        final Map<String, Map<String, Object>> changes = configuration.apply(WarmupConfiguration.parse(
+                "{\"filterQueryWarmup\":{\"concurrentThreads\":8,\"learnedQueryCount\":10,\"filterQueries\":[\"TYPE:b\",\"TYPE:c\"]},"
+                        + "\"sortWarmup\":{\"sorts\":[\"@cm:name asc\"]}}"));
+
+        final Map<String, Object> filterQueryChanges = changes.get(WarmupMetrics.FILTER_QUERY_WARMUP);
+        Assertions.assertEquals(Integer.valueOf(8), filterQueryChanges.get("concurrentThreads"));
+        Assertions.assertFalse(filterQueryChanges.containsKey("learnedQueryCount"));
+        Assertions.assertEquals(Collections.singletonList("TYPE:c"), filterQueryChanges.get("filterQueries"));
+        Assertions.assertEquals(Collections.singletonList("@cm:name asc"), changes.get(WarmupMetrics.SORT_WARMUP).get("sorts"));
+
+        // removing elements does not require any warmup
+        Assertions.assertTrue(configuration.apply(WarmupConfiguration.parse(
+                "{\"filterQueryWarmup\":{\"concurrentThreads\":8,\"learnedQueryCount\":10,\"filterQueries\":[\"TYPE:c\"]},"
+                        + "\"sortWarmup\":{\"sorts\":[\"@cm:name asc\"]}}")).isEmpty());
+    }
+
+    @Test
+    public void testOverlaysArgsAndKeepsFileOnRejectedUpdate() throws Exception
+    {
+        final WarmupConfiguration configuration = new WarmupConfiguration(this.dataDir.resolve("warmupConfiguration.json"));
+        configuration.update("{\"filterQueryWarmup\":{\"concurrentThreads\":8}}");
+        final String persisted = new String(Files.readAllBytes(configuration.getFile()), StandardCharsets.UTF_8);
+
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> configuration.update("{\"filterQueryWarmup\":{\"concurrentThreads\":\"16\"}}"));
+        Assertions.assertEquals(persisted, new String(Files.readAllBytes(configuration.getFile()), StandardCharsets.UTF_8));
+
+        final NamedList<Object> args = new NamedList<>();
+        args.add("concurrentThreads", Integer.valueOf(2));
+        args.add("statisticsFile", "filterQueryStatistics.tsv");
+        final NamedList<Object> effectiveArgs = configuration.getArgs(WarmupMetrics.FILTER_QUERY_WARMUP, args);
+        Assertions.assertEquals(Integer.valueOf(8), effectiveArgs.get("concurrentThreads"));
+        Assertions.assertEquals("filterQueryStatistics.tsv", effectiveArgs.get("statisticsFile"));
+        Assertions.assertEquals(1, effectiveArgs.getAll("concurrentThreads").size());
+    }
+}
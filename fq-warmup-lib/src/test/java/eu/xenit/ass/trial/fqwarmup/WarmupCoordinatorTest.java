@@ -0,0 +1,125 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.solr.core.SolrCore;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WarmupCoordinatorTest
+{
+
+    @TempDir
+    static Path home;
+
+    private static EmbeddedCores cores;
+
+    @BeforeAll
+    public static void setUp() throws Exception
+    {
+        cores = new EmbeddedCores(home, 4, 16);
+    }
+
+    @AfterAll
+    public static void tearDown()
+    {
+        cores.close();
+    }
+
+    @Test
+    public void testAdmitsCoresInOrderOfArrival() throws Exception
+    {
+        final WarmupCoordinator coordinator = new WarmupCoordinator(1, 20);
+        Assertions.assertTrue(coordinator.acquire(cores.getCore(0), 1000));
+
+        final List<String> admissions = Collections.synchronizedList(new ArrayList<>());
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 1; i < 4; i++)
+        {
+            final SolrCore core = cores.getCore(i);
+            final Thread thread = new Thread(() -> {
+                try
+                {
+                    // like the scheduler, the cores keep checking whether their warmups have been abandoned while waiting
+                    if (coordinator.acquire(core, 10000, () -> false))
+                    {
+                        admissions.add(core.getName());
+                        Thread.sleep(50);
+                        coordinator.release(core);
+                    }
+                }
+                catch (final InterruptedException iex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+            awaitWaitingCores(coordinator, i);
+        }
+
+        // let the waiting cores go through several abandonment checks before the first one can be admitted
+        Thread.sleep(5 * WarmupCoordinator.ABANDONED_CHECK_INTERVAL);
+        coordinator.release(cores.getCore(0));
+        for (final Thread thread : threads)
+        {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        }
+
+        Assertions.assertEquals(Arrays.asList("core1", "core2", "core3"), admissions);
+    }
+
+    @Test
+    public void testAdmitsWarmingCoreImmediately() throws Exception
+    {
+        final WarmupCoordinator coordinator = new WarmupCoordinator(1, 10000);
+        Assertions.assertTrue(coordinator.acquire(cores.getCore(0), 1000));
+        Assertions.assertTrue(coordinator.acquire(cores.getCore(0), 0));
+
+        coordinator.release(cores.getCore(0));
+        Assertions.assertFalse(coordinator.acquire(cores.getCore(1), 50));
+        coordinator.release(cores.getCore(0));
+        Assertions.assertTrue(coordinator.warmingCores.isEmpty());
+    }
+
+    @Test
+    public void testGivesUpPlaceWhenAbandoned() throws Exception
+    {
+        final WarmupCoordinator coordinator = new WarmupCoordinator(1, 0);
+        Assertions.assertTrue(coordinator.acquire(cores.getCore(0), 1000));
+
+        final long start = System.currentTimeMillis();
+        Assertions.assertFalse(coordinator.acquire(cores.getCore(1), 10000, () -> System.currentTimeMillis() - start > 150));
+        Assertions.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assertions.assertTrue(coordinator.waitingCores.isEmpty());
+
+        coordinator.release(cores.getCore(0));
+        Assertions.assertTrue(coordinator.acquire(cores.getCore(1), 1000));
+        coordinator.release(cores.getCore(1));
+    }
+
+    private static void awaitWaitingCores(final WarmupCoordinator coordinator, final int count) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline)
+        {
+            synchronized (coordinator)
+            {
+                if (coordinator.waitingCores.size() >= count)
+                {
+                    return;
+                }
+            }
+            Thread.sleep(5);
+        }
+        Assertions.fail("Cores did not start waiting in time");
+    }
+}
@@ -0,0 +1,55 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.apache.solr.core.SolrCore;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.codahale.metrics.MetricRegistry;
+
+class WarmupMetricsTest
+{
+
+    @TempDir
+    static Path home;
+
+    private static EmbeddedCores cores;
+
+    @BeforeAll
+    public static void setUp() throws Exception
+    {
+        cores = new EmbeddedCores(home, 1, 16);
+    }
+
+    @AfterAll
+    public static void tearDown()
+    {
+        cores.close();
+    }
+
+    @Test
+    public void testRegistersTimersOfAllWarmupEvents()
+    {
+        final SolrCore core = cores.getCore(0);
+        final WarmupMetrics metrics = WarmupMetrics.getInstance(core, WarmupMetrics.FILTER_QUERY_WARMUP);
+        metrics.recordWarmup("snapshotRestore", 1000000, -1, -1);
+        metrics.recordWarmup("configurationChange", 2000000, -1, -1);
+
+        final MetricRegistry registry = core.getCoreContainer().getMetricManager().registry(core.getCoreMetricManager().getRegistryName());
+        final Set<String> names = registry.getNames();
+        for (final String event : WarmupMetrics.WARMUP_EVENTS)
+        {
+            final String name = names.stream()
+                    .filter(n -> n.contains(WarmupMetrics.FILTER_QUERY_WARMUP) && n.endsWith("warmupTimes." + event)).findFirst()
+                    .orElse(null);
+            Assertions.assertNotNull(name, event);
+            Assertions.assertSame(metrics.warmupTimes.get(event), registry.getTimers().get(name));
+        }
+        Assertions.assertEquals(1, metrics.warmupTimes.get("snapshotRestore").getCount());
+    }
+}
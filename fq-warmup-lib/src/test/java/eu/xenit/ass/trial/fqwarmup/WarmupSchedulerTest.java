@@ -0,0 +1,134 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WarmupSchedulerTest
+{
+
+    @TempDir
+    static Path home;
+
+    private static EmbeddedCores cores;
+
+    @BeforeAll
+    public static void setUp() throws Exception
+    {
+        cores = new EmbeddedCores(home, 1, 16);
+    }
+
+    @AfterAll
+    public static void tearDown()
+    {
+        cores.close();
+    }
+
+    @Test
+    public void testCompletesTimedOutWarmupsOnlyAfterTheirCurrentTasks() throws Exception
+    {
+        for (final boolean adaptiveConcurrency : new boolean[] { false, true })
+        {
+            final WarmupScheduler scheduler = new WarmupScheduler(2, adaptiveConcurrency);
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger finished = new AtomicInteger();
+            final List<Runnable> tasks = new ArrayList<>();
+            for (int i = 0; i < 4; i++)
+            {
+                tasks.add(() -> {
+                    running.incrementAndGet();
+                    try
+                    {
+                        Thread.sleep(500);
+                    }
+                    catch (final InterruptedException iex)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                    finished.incrementAndGet();
+                    running.decrementAndGet();
+                });
+            }
+
+            final SolrCore core = cores.getCore(0);
+            final RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+            try
+            {
+                final int uncompleted = scheduler.execute(core, searcher.get(), "test", tasks, 2, Integer.valueOf(100), null);
+
+                // the timeout only prevents further tasks from being started
+                Assertions.assertEquals(0, running.get());
+                Assertions.assertEquals(4 - finished.get(), uncompleted);
+                Assertions.assertTrue(finished.get() > 0);
+            }
+            finally
+            {
+                searcher.decref();
+            }
+        }
+    }
+
+    @Test
+    public void testLeavesThreadsOfBackgroundWarmupsToBlockingWarmups() throws Exception
+    {
+        final WarmupScheduler scheduler = new WarmupScheduler(4, false);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final CountDownLatch backgroundDone = new CountDownLatch(1);
+
+        final SolrCore core = cores.getCore(0);
+        final RefCounted<SolrIndexSearcher> searcher = core.getSearcher();
+        try
+        {
+            scheduler.submit(core, searcher.get(), "background", sleepingTasks(8, running, peak), 4, Integer.valueOf(0), null,
+                    backgroundDone::countDown);
+            Thread.sleep(100);
+
+            final int uncompleted = scheduler.execute(core, searcher.get(), "blocking", sleepingTasks(2, new AtomicInteger(),
+                    new AtomicInteger()), 2, Integer.valueOf(0), null);
+
+            // the blocking warmup does not queue behind the background warmup, which only takes half of the pool
+            Assertions.assertEquals(0, uncompleted);
+            Assertions.assertEquals(1, backgroundDone.getCount());
+            Assertions.assertTrue(backgroundDone.await(10, TimeUnit.SECONDS));
+            Assertions.assertEquals(2, peak.get());
+        }
+        finally
+        {
+            searcher.decref();
+        }
+    }
+
+    private static List<Runnable> sleepingTasks(final int count, final AtomicInteger running, final AtomicInteger peak)
+    {
+        final List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            tasks.add(() -> {
+                peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try
+                {
+                    Thread.sleep(300);
+                }
+                catch (final InterruptedException iex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+            });
+        }
+        return tasks;
+    }
+}
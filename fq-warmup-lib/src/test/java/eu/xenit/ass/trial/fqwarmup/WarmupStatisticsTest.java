@@ -0,0 +1,115 @@
+package eu.xenit.ass.trial.fqwarmup;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WarmupStatisticsTest
+{
+
+    @TempDir
+    Path dataDir;
+
+    @Test
+    public void testFrequencyDecaysByHalfLife()
+    {
+        final WarmupStatistics.Entry entry = new WarmupStatistics.Entry(0);
+        entry.hit(0, 1000);
+        entry.hit(0, 1000);
+
+        Assertions.assertEquals(2, entry.frequency(0, 1000), 1e-9);
+        Assertions.assertEquals(1, entry.frequency(1000, 1000), 1e-9);
+        Assertions.assertEquals(0.5, entry.frequency(2000, 1000), 1e-9);
+
+        // a later hit adds to the decayed frequency
+        entry.hit(1000, 1000);
+        Assertions.assertEquals(2, entry.frequency(1000, 1000), 1e-9);
+    }
+
+    @Test
+    public void testScoreIsWeightedByCost()
+    {
+        final WarmupStatistics statistics = new WarmupStatistics(this.dataDir.resolve("statistics.tsv"), 10, 3600000);
+        statistics.record("frequent");
+        statistics.record("frequent");
+        statistics.record("expensive");
+        statistics.recordCost("expensive", 100);
+
+        Assertions.assertEquals(Arrays.asList("expensive", "frequent"), statistics.getTopEntries(10));
+        Assertions.assertEquals(Arrays.asList("expensive"), statistics.getTopEntries(1));
+    }
+
+    @Test
+    public void testPrunesLeastValuableEntries()
+    {
+        final WarmupStatistics statistics = new WarmupStatistics(this.dataDir.resolve("statistics.tsv"), 4, 3600000);
+        for (int i = 0; i < 4; i++)
+        {
+            statistics.record("hot" + i);
+            statistics.record("hot" + i);
+        }
+        // slack of a quarter of the maximum before pruning kicks in
+        statistics.record("cold0");
+        Assertions.assertEquals(5, statistics.entries.size());
+
+        statistics.record("cold1");
+        Assertions.assertEquals(4, statistics.entries.size());
+        Assertions.assertTrue(statistics.entries.keySet().containsAll(Arrays.asList("hot0", "hot1", "hot2", "hot3")));
+    }
+
+    @Test
+    public void testSortsWhileEntriesAreConcurrentlyHit() throws Exception
+    {
+        final WarmupStatistics statistics = new WarmupStatistics(this.dataDir.resolve("statistics.tsv"), 200, 10);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Future<?>> writers = new ArrayList<>();
+        try
+        {
+            for (int i = 0; i < 3; i++)
+            {
+                writers.add(executor.submit(() -> {
+                    while (running.get())
+                    {
+                        final String filterQuery = "fq" + ThreadLocalRandom.current().nextInt(300);
+                        statistics.record(filterQuery);
+                        statistics.recordCost(filterQuery, ThreadLocalRandom.current().nextInt(50));
+                    }
+                }));
+            }
+            final Future<?> reader = executor.submit(() -> {
+                for (int i = 0; i < 2000; i++)
+                {
+                    final List<String> top = statistics.getTopEntries(50);
+                    Assertions.assertTrue(top.size() <= 50);
+                }
+            });
+
+            reader.get(60, TimeUnit.SECONDS);
+            running.set(false);
+            // writers also sort entries when pruning
+            for (final Future<?> writer : writers)
+            {
+                writer.get(10, TimeUnit.SECONDS);
+            }
+        }
+        finally
+        {
+            running.set(false);
+            executor.shutdown();
+            Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        }
+        Assertions.assertTrue(statistics.entries.size() <= 250);
+    }
+}
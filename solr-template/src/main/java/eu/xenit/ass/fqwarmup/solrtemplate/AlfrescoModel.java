@@ -0,0 +1,164 @@
+package eu.xenit.ass.fqwarmup.solrtemplate;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+public class AlfrescoModel {
+
+    static final String TYPE = "TYPE";
+
+    static final String ASPECT = "ASPECT";
+
+    private final Set<String> prefixes = new LinkedHashSet<>();
+
+    private final Map<String, String> classes = new LinkedHashMap<>();
+
+    private final Map<String, Property> properties = new LinkedHashMap<>();
+
+    public static AlfrescoModel load(Path path) throws Exception {
+        List<Path> files;
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> children = Files.list(path)) {
+                files = children.filter(child -> child.getFileName().toString().endsWith(".xml")).sorted()
+                        .collect(Collectors.toList());
+            }
+        } else {
+            files = Collections.singletonList(path);
+        }
+
+        AlfrescoModel model = new AlfrescoModel();
+        for (Path file : files) {
+            try (InputStream in = Files.newInputStream(file)) {
+                model.parse(in);
+            }
+        }
+        return model;
+    }
+
+    public void parse(InputStream in) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+        doc.getDocumentElement().normalize();
+
+        // imported namespaces belong to other models, which may not be part of the export
+        NodeList namespaces = doc.getElementsByTagName("namespace");
+        for (int i = 0; i < namespaces.getLength(); i++) {
+            prefixes.add(((Element) namespaces.item(i)).getAttribute("prefix"));
+        }
+
+        addClasses(doc.getElementsByTagName("type"), "types", TYPE);
+        addClasses(doc.getElementsByTagName("aspect"), "aspects", ASPECT);
+
+        NodeList propertyElements = doc.getElementsByTagName("property");
+        for (int i = 0; i < propertyElements.getLength(); i++) {
+            Element element = (Element) propertyElements.item(i);
+            Property property = new Property(element.getAttribute("name"));
+            Element type = getChild(element, "type");
+            property.type = type != null ? type.getTextContent().trim() : null;
+            Element index = getChild(element, "index");
+            if (index != null) {
+                property.indexed = !index.hasAttribute("enabled") || Boolean.parseBoolean(index.getAttribute("enabled").trim());
+                Element tokenised = getChild(index, "tokenised");
+                property.tokenised = tokenised != null ? tokenised.getTextContent().trim().toUpperCase() : property.tokenised;
+                Element facetable = getChild(index, "facetable");
+                property.facetable = facetable != null ? Boolean.valueOf(facetable.getTextContent().trim()) : null;
+            }
+            properties.put(property.name, property);
+        }
+    }
+
+    public boolean definesPrefix(String prefix) {
+        return prefixes.contains(prefix);
+    }
+
+    public boolean definesClass(String name) {
+        return classes.containsKey(name);
+    }
+
+    public Collection<String> getClasses(String kind) {
+        return classes.entrySet().stream().filter(entry -> kind.equals(entry.getValue())).map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    public Property getProperty(String name) {
+        return properties.get(name);
+    }
+
+    public Collection<Property> getProperties() {
+        return new ArrayList<>(properties.values());
+    }
+
+    private void addClasses(NodeList elements, String parentName, String kind) {
+        for (int i = 0; i < elements.getLength(); i++) {
+            Element element = (Element) elements.item(i);
+            // properties have a type element as well
+            if (parentName.equals(element.getParentNode().getNodeName())) {
+                classes.put(element.getAttribute("name"), kind);
+            }
+        }
+    }
+
+    private static Element getChild(Element parent, String name) {
+        NodeList children = parent.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            if (child instanceof Element && name.equals(child.getNodeName())) {
+                return (Element) child;
+            }
+        }
+        return null;
+    }
+
+    public static class Property {
+
+        final String name;
+
+        String type;
+
+        boolean indexed = true;
+
+        // the dictionary default for text properties
+        String tokenised = "TRUE";
+
+        Boolean facetable;
+
+        Property(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public boolean isIndexed() {
+            return indexed;
+        }
+
+        public String getTokenised() {
+            return tokenised;
+        }
+
+        public Boolean getFacetable() {
+            return facetable;
+        }
+    }
+}
@@ -4,6 +4,8 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import org.apache.commons.io.FileUtils;
@@ -23,11 +25,36 @@ public class RerankQueryFQWarmupTemplate {
         FileUtils.deleteDirectory(outputPath.toFile());
         FileUtils.copyDirectory(inputPath.toFile(), outputPath.toFile());
 
+        // an optional export of the Alfresco content models (a model XML file or a directory of them)
+        AlfrescoModel model = args.length > 2 ? AlfrescoModel.load(Paths.get(args[2])) : null;
+        SolrSchema schema = null;
+        Path schemaXml = inputPath.resolve(Paths.get("conf", "schema.xml"));
+        if (Files.exists(schemaXml)) {
+            try (InputStream in = Files.newInputStream(schemaXml)) {
+                schema = SolrSchema.parse(in);
+            }
+        }
+        int filterCacheSize;
+        try (InputStream in = Files.newInputStream(inputXml)) {
+            filterCacheSize = WarmupPlanGenerator.getFilterCacheSize(in);
+        }
+
+        WarmupPlan plan = new WarmupPlanGenerator(schema, model, filterCacheSize).generate(WarmupPlan.createDefault());
+        plan.getFindings().forEach(finding -> System.out.println("Rejected warmup entry: " + finding));
+        // the plan has the format of the warmup configuration file, so it can be pushed to running cores as well
+        Files.write(outputPath.resolve(Paths.get("conf", "warmupPlan.json")), plan.toJson().getBytes(StandardCharsets.UTF_8));
+        // entries derived from the content models are not warmed, but can be pushed selectively, e.g. once they turn out to be hot
+        if (plan.hasSuggestions()) {
+            Files.write(outputPath.resolve(Paths.get("conf", "warmupSuggestions.json")),
+                    plan.suggestionsToJson().getBytes(StandardCharsets.UTF_8));
+        }
+
         InputStream in = new FileInputStream(inputXml.toFile());
         OutputStream out = new FileOutputStream(outputXml.toFile());
 
-        WarmupListenerXmlTransformer warmupListenerXmlTransformer = new WarmupListenerXmlTransformer();
-        warmupListenerXmlTransformer.transform(in, out);
+        // optional stages are enabled through system properties, e.g. -Dfqwarmup.rankedFilterCache=true
+        WarmupListenerXmlTransformer warmupListenerXmlTransformer = new WarmupListenerXmlTransformer(System.getProperties());
+        warmupListenerXmlTransformer.transform(in, out, plan);
     }
 
 }
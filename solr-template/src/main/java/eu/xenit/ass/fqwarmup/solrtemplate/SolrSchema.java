@@ -0,0 +1,133 @@
+package eu.xenit.ass.fqwarmup.solrtemplate;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+public class SolrSchema {
+
+    private final Map<String, Field> fields = new HashMap<>();
+
+    private final List<Field> dynamicFields = new ArrayList<>();
+
+    public static SolrSchema parse(InputStream in) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(in);
+        doc.getDocumentElement().normalize();
+
+        Map<String, Field> fieldTypes = new HashMap<>();
+        for (String tagName : new String[]{"fieldType", "fieldtype"}) {
+            NodeList elements = doc.getElementsByTagName(tagName);
+            for (int i = 0; i < elements.getLength(); i++) {
+                Element element = (Element) elements.item(i);
+                Field fieldType = new Field(element.getAttribute("name"));
+                fieldType.indexed = getBoolean(element, "indexed", true);
+                fieldType.docValues = getBoolean(element, "docValues", false);
+                fieldType.multiValued = getBoolean(element, "multiValued", false);
+                fieldType.tokenized = isTokenized(element);
+                fieldTypes.put(fieldType.name, fieldType);
+            }
+        }
+
+        SolrSchema schema = new SolrSchema();
+        for (String tagName : new String[]{"field", "dynamicField", "dynamicfield"}) {
+            NodeList elements = doc.getElementsByTagName(tagName);
+            for (int i = 0; i < elements.getLength(); i++) {
+                Element element = (Element) elements.item(i);
+                Field fieldType = fieldTypes.get(element.getAttribute("type"));
+                if (fieldType == null) {
+                    fieldType = new Field(element.getAttribute("type"));
+                    fieldType.indexed = true;
+                }
+                Field field = new Field(element.getAttribute("name"));
+                field.indexed = getBoolean(element, "indexed", fieldType.indexed);
+                field.docValues = getBoolean(element, "docValues", fieldType.docValues);
+                field.multiValued = getBoolean(element, "multiValued", fieldType.multiValued);
+                field.tokenized = fieldType.tokenized;
+                if ("field".equals(tagName)) {
+                    schema.fields.put(field.name, field);
+                } else {
+                    schema.dynamicFields.add(field);
+                }
+            }
+        }
+        // like SOLR, prefer the most specific (i.e. longest) dynamic field pattern
+        schema.dynamicFields.sort(Comparator.comparingInt((Field field) -> field.name.length()).reversed());
+        return schema;
+    }
+
+    public Field getField(String name) {
+        Field field = fields.get(name);
+        for (int i = 0; field == null && i < dynamicFields.size(); i++) {
+            String pattern = dynamicFields.get(i).name;
+            if ((pattern.startsWith("*") && name.endsWith(pattern.substring(1)))
+                    || (pattern.endsWith("*") && name.startsWith(pattern.substring(0, pattern.length() - 1)))) {
+                field = dynamicFields.get(i);
+            }
+        }
+        return field;
+    }
+
+    private static boolean isTokenized(Element fieldType) {
+        NodeList tokenizers = fieldType.getElementsByTagName("tokenizer");
+        if (tokenizers.getLength() == 0) {
+            // text fields without an explicit analyzer use the standard tokenizer
+            return fieldType.getAttribute("class").endsWith(".TextField");
+        }
+        for (int i = 0; i < tokenizers.getLength(); i++) {
+            Element tokenizer = (Element) tokenizers.item(i);
+            String tokenizerClass = tokenizer.hasAttribute("class") ? tokenizer.getAttribute("class") : tokenizer.getAttribute("name");
+            if (!tokenizerClass.toLowerCase().contains("keyword")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean getBoolean(Element element, String name, boolean defaultValue) {
+        return element.hasAttribute(name) ? Boolean.parseBoolean(element.getAttribute(name).trim()) : defaultValue;
+    }
+
+    public static class Field {
+
+        final String name;
+
+        boolean indexed;
+
+        boolean docValues;
+
+        boolean multiValued;
+
+        boolean tokenized;
+
+        Field(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isIndexed() {
+            return indexed;
+        }
+
+        public boolean hasDocValues() {
+            return docValues;
+        }
+
+        public boolean isMultiValued() {
+            return multiValued;
+        }
+
+        public boolean isTokenized() {
+            return tokenized;
+        }
+    }
+}
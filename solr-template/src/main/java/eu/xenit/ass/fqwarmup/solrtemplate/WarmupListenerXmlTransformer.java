@@ -1,9 +1,17 @@
 package eu.xenit.ass.fqwarmup.solrtemplate;
 
+import eu.xenit.ass.trial.fqwarmup.FacetWarmupListener;
+import eu.xenit.ass.trial.fqwarmup.FilterQueryRecorderComponent;
 import eu.xenit.ass.trial.fqwarmup.FilterQueryWarmupListener;
+import eu.xenit.ass.trial.fqwarmup.IndexPrefetchListener;
+import eu.xenit.ass.trial.fqwarmup.RankedFilterCache;
+import eu.xenit.ass.trial.fqwarmup.RequestReplayListener;
 import eu.xenit.ass.trial.fqwarmup.SortWarmupListener;
+import eu.xenit.ass.trial.fqwarmup.WarmupConfigurationHandler;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.OutputKeys;
@@ -13,10 +21,55 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 public class WarmupListenerXmlTransformer {
 
+    static final String FILTER_QUERY_RECORDER_NAME = "filterQueryRecorder";
+
+    static final String STATISTICS_FILE = "filterQueryStatistics.tsv";
+
+    static final String AUTHORITY_SET_STATISTICS_FILE = "authoritySetStatistics.tsv";
+
+    static final String REQUEST_STATISTICS_FILE = "requestStatistics.tsv";
+
+    static final String SNAPSHOT_FILE = "filterCacheSnapshot.bin";
+
+    static final String CONFIGURATION_FILE = "warmupConfiguration.json";
+
+    static final String CONFIGURATION_HANDLER_NAME = "/warmupConfiguration";
+
+    static final String[] RECORDED_REQUEST_HANDLERS = {"/afts", "/alfresco"};
+
+    // optional stages trade memory, disk or start-up time for faster warmups, so they have to be enabled explicitly
+    static final String RANKED_FILTER_CACHE = "fqwarmup.rankedFilterCache";
+
+    static final String INDEX_PREFETCH = "fqwarmup.indexPrefetch";
+
+    static final String FILTER_CACHE_SNAPSHOT = "fqwarmup.filterCacheSnapshot";
+
+    static final String REQUEST_REPLAY = "fqwarmup.requestReplay";
+
+    static final String AUTHORITY_SET_WARMUP = "fqwarmup.authoritySetWarmup";
+
+    static final String DIRECT_FILTER_WARMUP = "fqwarmup.directFilterWarmup";
+
+    private final Properties options;
+
+    public WarmupListenerXmlTransformer() {
+        this(new Properties());
+    }
+
+    public WarmupListenerXmlTransformer(Properties options) {
+        this.options = options;
+    }
+
     public void transform(InputStream in, OutputStream out) throws Exception {
+        transform(in, out, WarmupPlan.createDefault());
+    }
+
+    public void transform(InputStream in, OutputStream out, WarmupPlan plan) throws Exception {
         DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
         DocumentBuilder dBuilder;
 
@@ -27,11 +80,32 @@ public class WarmupListenerXmlTransformer {
         Element config = doc.getDocumentElement();
         Element query = (Element) config.getElementsByTagName("query").item(0);
 
-        addFilterQueryWarmupListener(doc, query, "newSearcher");
-        addFilterQueryWarmupListener(doc, query, "firstSearcher");
+        if (isEnabled(RANKED_FILTER_CACHE)) {
+            useRankedFilterCache(query);
+        }
+
+        // listeners are called in order of registration, so prefetching has to come first
+        if (isEnabled(INDEX_PREFETCH)) {
+            addIndexPrefetchListener(doc, query, "newSearcher");
+            addIndexPrefetchListener(doc, query, "firstSearcher");
+        }
+
+        addFilterQueryWarmupListener(doc, query, "newSearcher", plan);
+        addFilterQueryWarmupListener(doc, query, "firstSearcher", plan);
 
-        addSortWarmupListener(doc, query, "newSearcher");
-        addSortWarmupListener(doc, query, "firstSearcher");
+        addSortWarmupListener(doc, query, "newSearcher", plan);
+        addSortWarmupListener(doc, query, "firstSearcher", plan);
+
+        addFacetWarmupListener(doc, query, "newSearcher", plan);
+        addFacetWarmupListener(doc, query, "firstSearcher", plan);
+
+        if (isEnabled(REQUEST_REPLAY)) {
+            addRequestReplayListener(doc, query, "newSearcher");
+            addRequestReplayListener(doc, query, "firstSearcher");
+        }
+
+        addFilterQueryRecorderComponent(doc, config);
+        addWarmupConfigurationHandler(doc, config);
 
         TransformerFactory transformerFactory = TransformerFactory.newInstance();
         Transformer transformer = transformerFactory.newTransformer();
@@ -41,7 +115,16 @@ public class WarmupListenerXmlTransformer {
         transformer.transform(source, result);
     }
 
-    private static void addFilterQueryWarmupListener(Document doc, Element query, String event) {
+    private static void addIndexPrefetchListener(Document doc, Element query, String event) {
+        Element indexPrefetchListener = getListenerElement(doc, event, IndexPrefetchListener.class.getCanonicalName());
+        addIntElement(doc, indexPrefetchListener, "maxMegabytes", 1024);
+        addStringElement(doc, indexPrefetchListener, "configurationFile", CONFIGURATION_FILE);
+        addIntElement(doc, indexPrefetchListener, "concurrentThreads", 4);
+        addIntElement(doc, indexPrefetchListener, "concurrentTimeout", 120000);
+        query.appendChild(indexPrefetchListener);
+    }
+
+    private void addFilterQueryWarmupListener(Document doc, Element query, String event, WarmupPlan plan) {
         Element filterQueryWarmupListener = getListenerElement(doc, event,
                 FilterQueryWarmupListener.class.getCanonicalName());
 
@@ -50,23 +133,150 @@ public class WarmupListenerXmlTransformer {
                 "{\"tenants\":[\"\"],\"locales\":[\"en_\"],\"defaultNamespace\":\"http://www.alfresco.org/model/content/1.0\",\"textAttributes\":[],\"defaultFTSOperator\":\"OR\",\"defaultFTSFieldOperator\":\"OR\",\"templates\":[],\"allAttributes\":[],\"queryConsistency\":\"EVENTUAL\"}");
         addStringElement(doc, filterQueryWarmupListener, "queryListFile",
                 "/opt/alfresco-search-services/filterQueryList");
+        List<String> filterQueries = plan.get(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES);
+        if (!filterQueries.isEmpty()) {
+            addStringArray(doc, filterQueryWarmupListener, "filterQueries", filterQueries.toArray(new String[0]));
+        }
+        addStringElement(doc, filterQueryWarmupListener, "statisticsFile", STATISTICS_FILE);
+        addIntElement(doc, filterQueryWarmupListener, "learnedQueryCount", 200);
+        if (isEnabled(AUTHORITY_SET_WARMUP)) {
+            addStringElement(doc, filterQueryWarmupListener, "authoritySetStatisticsFile", AUTHORITY_SET_STATISTICS_FILE);
+            addIntElement(doc, filterQueryWarmupListener, "authoritySetCount", 100);
+        }
+        // only the ranked filter cache knows which of its entries are hot enough to hand off
+        if ("newSearcher".equals(event) && isEnabled(RANKED_FILTER_CACHE)) {
+            addIntElement(doc, filterQueryWarmupListener, "filterCacheHandoffCount", 500);
+        }
+        if (isEnabled(DIRECT_FILTER_WARMUP)) {
+            addBoolElement(doc, filterQueryWarmupListener, "directFilterWarmup", true);
+        }
+        if (isEnabled(FILTER_CACHE_SNAPSHOT)) {
+            addStringElement(doc, filterQueryWarmupListener, "snapshotFile", SNAPSHOT_FILE);
+        }
+        addStringElement(doc, filterQueryWarmupListener, "configurationFile", CONFIGURATION_FILE);
         addIntElement(doc, filterQueryWarmupListener, "concurrentThreads", 8);
         addIntElement(doc, filterQueryWarmupListener, "concurrentTimeout", 300000);
         query.appendChild(filterQueryWarmupListener);
     }
 
-    private static void addSortWarmupListener(Document doc, Element query, String event) {
+    private static void addSortWarmupListener(Document doc, Element query, String event, WarmupPlan plan) {
         Element sortWarmupListener = getListenerElement(doc, event, SortWarmupListener.class.getCanonicalName());
-        addStringArray(doc, sortWarmupListener, "baseQueries", "{!afts}ISNODE:T", "{!afts}TYPE:\"cm:folder\"",
-                "{!afts}TYPE:\"cm:content\"");
-        addStringArray(doc, sortWarmupListener, "sorts", "@cm:name asc", "@cm:name asc");
+        addStringArray(doc, sortWarmupListener, "baseQueries",
+                plan.get(WarmupPlan.SORT_WARMUP, WarmupPlan.BASE_QUERIES).toArray(new String[0]));
+        addStringArray(doc, sortWarmupListener, "sorts", plan.get(WarmupPlan.SORT_WARMUP, WarmupPlan.SORTS).toArray(new String[0]));
         addStringElement(doc, sortWarmupListener, "baseRequestBody",
                 "{\"tenants\":[\"\"],\"locales\":[\"en_\"],\"defaultNamespace\":\"http://www.alfresco.org/model/content/1.0\",\"textAttributes\":[],\"defaultFTSOperator\":\"OR\",\"defaultFTSFieldOperator\":\"OR\",\"templates\":[],\"allAttributes\":[],\"queryConsistency\":\"EVENTUAL\"}");
+        addBoolElement(doc, sortWarmupListener, "directSortWarmup", true);
+        addStringElement(doc, sortWarmupListener, "configurationFile", CONFIGURATION_FILE);
         addIntElement(doc, sortWarmupListener, "concurrentThreads", 8);
         addIntElement(doc, sortWarmupListener, "concurrentTimeout", 300000);
         query.appendChild(sortWarmupListener);
     }
 
+    private static void addFacetWarmupListener(Document doc, Element query, String event, WarmupPlan plan) {
+        Element facetWarmupListener = getListenerElement(doc, event, FacetWarmupListener.class.getCanonicalName());
+        addStringElement(doc, facetWarmupListener, "baseQuery", "{!afts}ISNODE:T");
+        addStringElement(doc, facetWarmupListener, "baseRequestBody",
+                "{\"tenants\":[\"\"],\"locales\":[\"en_\"],\"defaultNamespace\":\"http://www.alfresco.org/model/content/1.0\",\"textAttributes\":[],\"defaultFTSOperator\":\"OR\",\"defaultFTSFieldOperator\":\"OR\",\"templates\":[],\"allAttributes\":[],\"queryConsistency\":\"EVENTUAL\"}");
+        List<String> facetFields = plan.get(WarmupPlan.FACET_WARMUP, WarmupPlan.FACET_FIELDS);
+        if (!facetFields.isEmpty()) {
+            addStringArray(doc, facetWarmupListener, "facetFields", facetFields.toArray(new String[0]));
+        }
+        addStringArray(doc, facetWarmupListener, "facetQueries",
+                plan.get(WarmupPlan.FACET_WARMUP, WarmupPlan.FACET_QUERIES).toArray(new String[0]));
+        addStringElement(doc, facetWarmupListener, "configurationFile", CONFIGURATION_FILE);
+        addIntElement(doc, facetWarmupListener, "concurrentThreads", 8);
+        addIntElement(doc, facetWarmupListener, "concurrentTimeout", 300000);
+        query.appendChild(facetWarmupListener);
+    }
+
+    private static void addRequestReplayListener(Document doc, Element query, String event) {
+        Element requestReplayListener = getListenerElement(doc, event, RequestReplayListener.class.getCanonicalName());
+        addStringElement(doc, requestReplayListener, "statisticsFile", REQUEST_STATISTICS_FILE);
+        addIntElement(doc, requestReplayListener, "replayCount", 50);
+        addStringElement(doc, requestReplayListener, "defaultHandler", RECORDED_REQUEST_HANDLERS[0]);
+        addBoolElement(doc, requestReplayListener, "documentCacheWarmup", true);
+        addStringElement(doc, requestReplayListener, "configurationFile", CONFIGURATION_FILE);
+        addIntElement(doc, requestReplayListener, "concurrentThreads", 4);
+        addIntElement(doc, requestReplayListener, "concurrentTimeout", 300000);
+        query.appendChild(requestReplayListener);
+    }
+
+    private static void useRankedFilterCache(Element query) {
+        NodeList filterCaches = query.getElementsByTagName("filterCache");
+        for (int i = 0; i < filterCaches.getLength(); i++) {
+            ((Element) filterCaches.item(i)).setAttribute("class", RankedFilterCache.class.getCanonicalName());
+        }
+    }
+
+    private boolean isEnabled(String option) {
+        return Boolean.parseBoolean(options.getProperty(option));
+    }
+
+    private void addFilterQueryRecorderComponent(Document doc, Element config) {
+        Element component = doc.createElement("searchComponent");
+        component.setAttribute("name", FILTER_QUERY_RECORDER_NAME);
+        component.setAttribute("class", FilterQueryRecorderComponent.class.getCanonicalName());
+        addStringElement(doc, component, "statisticsFile", STATISTICS_FILE);
+        // authority sets hold the user and group names of the requests, so they are only recorded to be warmed
+        if (isEnabled(AUTHORITY_SET_WARMUP)) {
+            addStringElement(doc, component, "authoritySetStatisticsFile", AUTHORITY_SET_STATISTICS_FILE);
+        }
+        // complete requests are only recorded to be replayed
+        if (isEnabled(REQUEST_REPLAY)) {
+            addStringElement(doc, component, "requestStatisticsFile", REQUEST_STATISTICS_FILE);
+        }
+        addIntElement(doc, component, "maxEntries", 1000);
+        config.appendChild(component);
+
+        NodeList requestHandlers = config.getElementsByTagName("requestHandler");
+        for (int i = 0; i < requestHandlers.getLength(); i++) {
+            Element requestHandler = (Element) requestHandlers.item(i);
+            for (String recordedRequestHandler : RECORDED_REQUEST_HANDLERS) {
+                if (recordedRequestHandler.equals(requestHandler.getAttribute("name"))) {
+                    addFirstComponent(doc, requestHandler, FILTER_QUERY_RECORDER_NAME);
+                }
+            }
+        }
+    }
+
+    private static void addWarmupConfigurationHandler(Document doc, Element config) {
+        Element requestHandler = doc.createElement("requestHandler");
+        requestHandler.setAttribute("name", CONFIGURATION_HANDLER_NAME);
+        requestHandler.setAttribute("class", WarmupConfigurationHandler.class.getCanonicalName());
+        addStringElement(doc, requestHandler, "configurationFile", CONFIGURATION_FILE);
+        config.appendChild(requestHandler);
+    }
+
+    private static void addFirstComponent(Document doc, Element requestHandler, String componentName) {
+        // SOLR does not allow first-components when the full list of components has been declared
+        Element components = getChildArray(requestHandler, "components");
+        if (components == null) {
+            components = getChildArray(requestHandler, "first-components");
+        }
+        if (components == null) {
+            components = doc.createElement("arr");
+            components.setAttribute("name", "first-components");
+            requestHandler.appendChild(components);
+        }
+
+        Element component = doc.createElement("str");
+        component.setTextContent(componentName);
+        components.insertBefore(component, components.getFirstChild());
+    }
+
+    private static Element getChildArray(Element parent, String name) {
+        NodeList children = parent.getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node child = children.item(i);
+            if (child instanceof Element && "arr".equals(child.getNodeName())
+                    && name.equals(((Element) child).getAttribute("name"))) {
+                return (Element) child;
+            }
+        }
+        return null;
+    }
+
     private static void addStringArray(Document doc, Element parent, String name, String... values) {
         Element array = doc.createElement("arr");
         array.setAttribute("name", name);
@@ -93,6 +303,10 @@ public class WarmupListenerXmlTransformer {
         addElement(doc, parent, "int", name, Integer.toString(value));
     }
 
+    private static void addBoolElement(Document doc, Element parent, String name, boolean value) {
+        addElement(doc, parent, "bool", name, Boolean.toString(value));
+    }
+
     private static void addElement(Document doc, Element parent, String element, String name, String textContent) {
         Element baseQuery = doc.createElement(element);
         baseQuery.setAttribute("name", name);
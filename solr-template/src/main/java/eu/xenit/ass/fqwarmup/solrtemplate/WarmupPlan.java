@@ -0,0 +1,195 @@
+package eu.xenit.ass.fqwarmup.solrtemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class WarmupPlan {
+
+    // section names of the warmup configuration file, see WarmupMetrics
+    static final String FILTER_QUERY_WARMUP = "filterQueryWarmup";
+
+    static final String SORT_WARMUP = "sortWarmup";
+
+    static final String FACET_WARMUP = "facetWarmup";
+
+    static final String FILTER_QUERIES = "filterQueries";
+
+    static final String BASE_QUERIES = "baseQueries";
+
+    static final String SORTS = "sorts";
+
+    static final String FACET_FIELDS = "facetFields";
+
+    static final String FACET_QUERIES = "facetQueries";
+
+    private final Map<String, Map<String, List<String>>> sections = new LinkedHashMap<>();
+
+    // entries derived from the content models are only suggested, as warming all of them would push the learned filters out of the cache
+    private final Map<String, Map<String, List<String>>> suggestions = new LinkedHashMap<>();
+
+    private final List<Finding> findings = new ArrayList<>();
+
+    public static WarmupPlan createDefault() {
+        WarmupPlan plan = new WarmupPlan();
+        plan.add(SORT_WARMUP, BASE_QUERIES, "{!afts}ISNODE:T");
+        plan.add(SORT_WARMUP, BASE_QUERIES, "{!afts}TYPE:\"cm:folder\"");
+        plan.add(SORT_WARMUP, BASE_QUERIES, "{!afts}TYPE:\"cm:content\"");
+        plan.add(SORT_WARMUP, SORTS, "@cm:name asc");
+        plan.add(SORT_WARMUP, SORTS, "@cm:name desc");
+        // facet fields are index field names, which depend on the content model - so only the date ranges of Share are warmed by default
+        plan.add(FACET_WARMUP, FACET_QUERIES, "{!afts}cm:modified:[NOW/DAY-1DAY TO NOW/DAY+1DAY]");
+        plan.add(FACET_WARMUP, FACET_QUERIES, "{!afts}cm:modified:[NOW/DAY-7DAYS TO NOW/DAY+1DAY]");
+        plan.add(FACET_WARMUP, FACET_QUERIES, "{!afts}cm:modified:[NOW/DAY-1MONTH TO NOW/DAY+1DAY]");
+        plan.add(FACET_WARMUP, FACET_QUERIES, "{!afts}cm:modified:[NOW/DAY-6MONTHS TO NOW/DAY+1DAY]");
+        plan.add(FACET_WARMUP, FACET_QUERIES, "{!afts}cm:modified:[NOW/DAY-1YEAR TO NOW/DAY+1DAY]");
+        return plan;
+    }
+
+    public void add(String section, String name, String entry) {
+        add(sections, section, name, entry);
+    }
+
+    public void addSuggestion(String section, String name, String entry) {
+        if (!get(section, name).contains(entry)) {
+            add(suggestions, section, name, entry);
+        }
+    }
+
+    private static void add(Map<String, Map<String, List<String>>> sections, String section, String name, String entry) {
+        List<String> entries = sections.computeIfAbsent(section, s -> new LinkedHashMap<>())
+                .computeIfAbsent(name, n -> new ArrayList<>());
+        if (!entries.contains(entry)) {
+            entries.add(entry);
+        }
+    }
+
+    public boolean remove(String section, String name, String entry) {
+        return get(section, name).remove(entry);
+    }
+
+    public List<String> get(String section, String name) {
+        return sections.getOrDefault(section, Collections.emptyMap()).getOrDefault(name, new ArrayList<>());
+    }
+
+    public Map<String, Map<String, List<String>>> getSections() {
+        return sections;
+    }
+
+    public List<String> getSuggestions(String section, String name) {
+        return suggestions.getOrDefault(section, Collections.emptyMap()).getOrDefault(name, new ArrayList<>());
+    }
+
+    public boolean hasSuggestions() {
+        return !suggestions.isEmpty();
+    }
+
+    public void addFinding(Finding finding) {
+        findings.add(finding);
+    }
+
+    public List<Finding> getFindings() {
+        return findings;
+    }
+
+    public String toJson() {
+        return toJson(sections);
+    }
+
+    public String suggestionsToJson() {
+        return toJson(suggestions);
+    }
+
+    private static String toJson(Map<String, Map<String, List<String>>> sections) {
+        StringBuilder json = new StringBuilder("{");
+        String sectionSeparator = "\n";
+        for (Map.Entry<String, Map<String, List<String>>> section : sections.entrySet()) {
+            json.append(sectionSeparator).append("  ").append(quote(section.getKey())).append(": {");
+            String argumentSeparator = "\n";
+            for (Map.Entry<String, List<String>> argument : section.getValue().entrySet()) {
+                json.append(argumentSeparator).append("    ").append(quote(argument.getKey())).append(": [");
+                String entrySeparator = "\n";
+                for (String entry : argument.getValue()) {
+                    json.append(entrySeparator).append("      ").append(quote(entry));
+                    entrySeparator = ",\n";
+                }
+                json.append(argument.getValue().isEmpty() ? "]" : "\n    ]");
+                argumentSeparator = ",\n";
+            }
+            json.append("\n  }");
+            sectionSeparator = ",\n";
+        }
+        return json.append("\n}\n").toString();
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    public enum Severity {
+        // the entry would be warmed, but at a cost out of proportion to the time it saves
+        SLOW,
+        // the entry would not fit into the cache it warms without evicting other entries
+        UNCACHEABLE,
+        // the entry would fail or warm nothing
+        INVALID
+    }
+
+    public static class Finding {
+
+        private final Severity severity;
+
+        private final String section;
+
+        private final String name;
+
+        private final String entry;
+
+        private final String reason;
+
+        public Finding(Severity severity, String section, String name, String entry, String reason) {
+            this.severity = severity;
+            this.section = section;
+            this.name = name;
+            this.entry = entry;
+            this.reason = reason;
+        }
+
+        public Severity getSeverity() {
+            return severity;
+        }
+
+        public String getSection() {
+            return section;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getEntry() {
+            return entry;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return severity + " " + section + "." + name + " " + quote(entry) + ": " + reason;
+        }
+    }
+}
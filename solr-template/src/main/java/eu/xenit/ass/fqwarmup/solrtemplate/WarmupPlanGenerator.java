@@ -0,0 +1,303 @@
+package eu.xenit.ass.fqwarmup.solrtemplate;
+
+import eu.xenit.ass.fqwarmup.solrtemplate.WarmupPlan.Finding;
+import eu.xenit.ass.fqwarmup.solrtemplate.WarmupPlan.Severity;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+public class WarmupPlanGenerator {
+
+    // a term starting with a wildcard, as opposed to match-all queries (*:*) and open ranges ([* TO x])
+    private static final Pattern LEADING_WILDCARD = Pattern.compile("(^|[\\s(:])[*?]\\w");
+
+    private static final Pattern LOCAL_PARAMS = Pattern.compile("^\\s*\\{!(\\w*)([^}]*)}");
+
+    private static final Pattern LOCAL_PARAM_FIELD = Pattern.compile("\\bf=(\\S+)");
+
+    private static final Pattern FIELD_REFERENCE = Pattern.compile("(?:^|[\\s(+\\-])([A-Za-z_][\\w.]*):");
+
+    private static final Pattern PROPERTY_REFERENCE = Pattern.compile("@?([A-Za-z][\\w\\-]*):([A-Za-z_][\\w\\-]*):");
+
+    private static final Pattern CLASS_REFERENCE = Pattern
+            .compile("\\b(?:EXACT)?(TYPE|ASPECT):\"?([A-Za-z][\\w\\-]*):([A-Za-z_][\\w\\-]*)");
+
+    private static final Pattern SORT_PROPERTY = Pattern.compile("@?([A-Za-z][\\w\\-]*):([A-Za-z_][\\w\\-]*)");
+
+    private static final Set<String> SORTABLE_TYPES = new HashSet<>(Arrays.asList("d:text", "d:mltext", "d:int", "d:long",
+            "d:float", "d:double", "d:date", "d:datetime", "d:boolean"));
+
+    private static final Set<String> TEXT_TYPES = new HashSet<>(Arrays.asList("d:text", "d:mltext"));
+
+    private static final Set<String> SPECIAL_SORTS = new HashSet<>(Arrays.asList("score", "_docid_"));
+
+    private final SolrSchema schema;
+
+    private final AlfrescoModel model;
+
+    private final int filterCacheSize;
+
+    public WarmupPlanGenerator(SolrSchema schema, AlfrescoModel model, int filterCacheSize) {
+        this.schema = schema;
+        this.model = model;
+        this.filterCacheSize = filterCacheSize;
+    }
+
+    public static int getFilterCacheSize(InputStream solrConfig) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(solrConfig);
+        NodeList filterCaches = doc.getElementsByTagName("filterCache");
+        if (filterCaches.getLength() == 0) {
+            return -1;
+        }
+        String size = ((Element) filterCaches.item(0)).getAttribute("size").trim();
+        // property substitutions, e.g. ${solr.filterCache.size:512}, are resolved to their default value
+        if (size.startsWith("${") && size.endsWith("}")) {
+            size = size.indexOf(':') != -1 ? size.substring(size.indexOf(':') + 1, size.length() - 1) : "";
+        }
+        try {
+            return Integer.parseInt(size.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public WarmupPlan generate(WarmupPlan candidates) {
+        WarmupPlan plan = new WarmupPlan();
+        checkCandidates(candidates, plan, false);
+        limitToFilterCache(plan);
+        if (model != null) {
+            // configured entries are warmed ahead of the learned ones, so model classes and properties - used or not - would push the
+            // hot filters out of the filter cache on every searcher, and are only suggested instead
+            WarmupPlan modelCandidates = new WarmupPlan();
+            addModelCandidates(modelCandidates);
+            checkCandidates(modelCandidates, plan, true);
+        }
+        return plan;
+    }
+
+    private void checkCandidates(WarmupPlan candidates, WarmupPlan plan, boolean suggestions) {
+        for (Map.Entry<String, Map<String, List<String>>> section : candidates.getSections().entrySet()) {
+            for (Map.Entry<String, List<String>> argument : section.getValue().entrySet()) {
+                for (String entry : argument.getValue()) {
+                    Problem problem = check(argument.getKey(), entry);
+                    if (problem != null) {
+                        plan.addFinding(new Finding(problem.severity, section.getKey(), argument.getKey(), entry, problem.reason));
+                    } else if (suggestions) {
+                        plan.addSuggestion(section.getKey(), argument.getKey(), entry);
+                    } else {
+                        plan.add(section.getKey(), argument.getKey(), entry);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addModelCandidates(WarmupPlan plan) {
+        for (String kind : new String[]{AlfrescoModel.TYPE, AlfrescoModel.ASPECT}) {
+            for (String name : model.getClasses(kind)) {
+                plan.add(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, "{!afts}" + kind + ":\"" + name + "\"");
+            }
+        }
+        for (AlfrescoModel.Property property : model.getProperties()) {
+            // only sorts likely to be cheap are proposed, all others would be rejected by the checks anyway
+            if (property.isIndexed() && SORTABLE_TYPES.contains(property.getType())
+                    && !(TEXT_TYPES.contains(property.getType()) && "TRUE".equals(property.getTokenised()))) {
+                plan.add(WarmupPlan.SORT_WARMUP, WarmupPlan.SORTS, "@" + property.getName() + " asc");
+            }
+        }
+    }
+
+    private void limitToFilterCache(WarmupPlan plan) {
+        if (filterCacheSize >= 0) {
+            // base queries and facet queries end up in the filter cache as well
+            int available = filterCacheSize - plan.get(WarmupPlan.SORT_WARMUP, WarmupPlan.BASE_QUERIES).size()
+                    - plan.get(WarmupPlan.FACET_WARMUP, WarmupPlan.FACET_QUERIES).size();
+            List<String> filterQueries = new ArrayList<>(plan.get(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES));
+            for (int i = Math.max(0, available); i < filterQueries.size(); i++) {
+                plan.remove(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, filterQueries.get(i));
+                plan.addFinding(new Finding(Severity.UNCACHEABLE, WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES,
+                        filterQueries.get(i), "exceeds the filter cache size of " + filterCacheSize + " entries"));
+            }
+        }
+    }
+
+    private Problem check(String name, String entry) {
+        switch (name) {
+            case WarmupPlan.FILTER_QUERIES:
+            case WarmupPlan.BASE_QUERIES:
+            case WarmupPlan.FACET_QUERIES:
+                return checkQuery(entry);
+            case WarmupPlan.SORTS:
+                return checkSort(entry);
+            case WarmupPlan.FACET_FIELDS:
+                return checkFacetField(entry);
+            default:
+                return null;
+        }
+    }
+
+    private Problem checkQuery(String query) {
+        if (LEADING_WILDCARD.matcher(query).find()) {
+            return problem(Severity.SLOW, "leading wildcards enumerate all terms of a field");
+        }
+
+        if (model != null) {
+            Matcher properties = PROPERTY_REFERENCE.matcher(query);
+            while (properties.find()) {
+                Problem problem = checkPropertyFilter(properties.group(1), properties.group(2));
+                if (problem != null) {
+                    return problem;
+                }
+            }
+            Matcher classes = CLASS_REFERENCE.matcher(query);
+            while (classes.find()) {
+                String className = classes.group(2) + ":" + classes.group(3);
+                if (model.definesPrefix(classes.group(2)) && !model.definesClass(className)) {
+                    return problem(Severity.INVALID, "unknown type or aspect " + className);
+                }
+            }
+        }
+
+        Matcher localParams = LOCAL_PARAMS.matcher(query);
+        String parser = localParams.find() ? localParams.group(1) : null;
+        // without local params, the parser depends on the request handler (afts for Alfresco), so index fields are only checked for
+        // explicitly chosen SOLR parsers
+        if (schema != null && parser != null) {
+            if ("lucene".equals(parser)) {
+                Matcher fields = FIELD_REFERENCE.matcher(query.substring(localParams.end()));
+                while (fields.find()) {
+                    Problem problem = checkFilterField(fields.group(1));
+                    if (problem != null) {
+                        return problem;
+                    }
+                }
+            } else if (Arrays.asList("term", "field", "prefix", "raw").contains(parser)) {
+                Matcher field = LOCAL_PARAM_FIELD.matcher(localParams.group(2));
+                if (field.find()) {
+                    return checkFilterField(field.group(1));
+                }
+            }
+        }
+        return null;
+    }
+
+    private Problem checkPropertyFilter(String prefix, String localName) {
+        if (model.definesPrefix(prefix)) {
+            AlfrescoModel.Property property = model.getProperty(prefix + ":" + localName);
+            if (property == null) {
+                return problem(Severity.INVALID, "unknown property " + prefix + ":" + localName);
+            }
+            if (!property.isIndexed()) {
+                return problem(Severity.INVALID, "property " + property.getName() + " is not indexed, so the query matches nothing");
+            }
+        }
+        return null;
+    }
+
+    private Problem checkFilterField(String fieldName) {
+        SolrSchema.Field field = schema.getField(fieldName);
+        if (field == null) {
+            return problem(Severity.INVALID, "unknown field " + fieldName);
+        }
+        if (!field.isIndexed() && !field.hasDocValues()) {
+            return problem(Severity.INVALID, "field " + fieldName + " is neither indexed nor has doc values, so the query matches nothing");
+        }
+        if (!field.isIndexed()) {
+            return problem(Severity.SLOW, "field " + fieldName + " is not indexed, so the query scans the doc values of all documents");
+        }
+        return null;
+    }
+
+    private Problem checkSort(String sort) {
+        for (String clause : sort.split(",")) {
+            String sortField = clause.trim().split("\\s+")[0];
+            Problem problem = null;
+            Matcher property = SORT_PROPERTY.matcher(sortField);
+            if (property.matches()) {
+                if (model != null) {
+                    problem = checkSortProperty(property.group(1), property.group(2));
+                }
+            } else if (schema != null && !SPECIAL_SORTS.contains(sortField) && !sortField.contains("(")) {
+                problem = checkSortField(sortField);
+            }
+            if (problem != null) {
+                return problem;
+            }
+        }
+        return null;
+    }
+
+    private Problem checkSortProperty(String prefix, String localName) {
+        Problem problem = checkPropertyFilter(prefix, localName);
+        AlfrescoModel.Property property = model.getProperty(prefix + ":" + localName);
+        if (problem == null && property != null) {
+            if (!SORTABLE_TYPES.contains(property.getType())) {
+                problem = problem(Severity.INVALID, "properties of type " + property.getType() + " cannot be sorted on");
+            } else if (TEXT_TYPES.contains(property.getType()) && "TRUE".equals(property.getTokenised())) {
+                problem = problem(Severity.SLOW, "property " + property.getName()
+                        + " is only indexed tokenised, so sorting un-inverts its tokens - index it with tokenised BOTH or FALSE");
+            }
+        }
+        return problem;
+    }
+
+    private Problem checkSortField(String fieldName) {
+        SolrSchema.Field field = schema.getField(fieldName);
+        if (field == null) {
+            return problem(Severity.INVALID, "unknown field " + fieldName);
+        }
+        if (field.isMultiValued()) {
+            return problem(Severity.INVALID, "field " + fieldName + " is multi-valued and cannot be sorted on");
+        }
+        if (field.isTokenized()) {
+            return problem(Severity.SLOW, "field " + fieldName + " is tokenized, so sorting un-inverts its tokens");
+        }
+        if (!field.hasDocValues()) {
+            return problem(Severity.SLOW, "field " + fieldName + " has no doc values, so sorting un-inverts it onto the heap");
+        }
+        return null;
+    }
+
+    private Problem checkFacetField(String fieldName) {
+        if (schema == null) {
+            return null;
+        }
+        SolrSchema.Field field = schema.getField(fieldName);
+        if (field == null) {
+            return problem(Severity.INVALID, "unknown field " + fieldName);
+        }
+        if (field.isTokenized()) {
+            return problem(Severity.SLOW, "field " + fieldName + " is tokenized, so faceting counts (and un-inverts) individual tokens");
+        }
+        if (!field.hasDocValues()) {
+            return problem(Severity.SLOW, "field " + fieldName + " has no doc values, so faceting un-inverts it onto the heap");
+        }
+        return null;
+    }
+
+    private static Problem problem(Severity severity, String reason) {
+        return new Problem(severity, reason);
+    }
+
+    private static class Problem {
+
+        final Severity severity;
+
+        final String reason;
+
+        Problem(Severity severity, String reason) {
+            this.severity = severity;
+            this.reason = reason;
+        }
+    }
+}
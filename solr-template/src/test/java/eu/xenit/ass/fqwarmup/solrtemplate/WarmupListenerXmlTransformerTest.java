@@ -1,12 +1,20 @@
 package eu.xenit.ass.fqwarmup.solrtemplate;
 
+import eu.xenit.ass.trial.fqwarmup.FacetWarmupListener;
+import eu.xenit.ass.trial.fqwarmup.FilterQueryRecorderComponent;
 import eu.xenit.ass.trial.fqwarmup.FilterQueryWarmupListener;
+import eu.xenit.ass.trial.fqwarmup.IndexPrefetchListener;
+import eu.xenit.ass.trial.fqwarmup.RankedFilterCache;
+import eu.xenit.ass.trial.fqwarmup.RequestReplayListener;
 import eu.xenit.ass.trial.fqwarmup.SortWarmupListener;
+import eu.xenit.ass.trial.fqwarmup.WarmupConfigurationHandler;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Properties;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import org.junit.jupiter.api.Assertions;
@@ -56,7 +64,423 @@ class WarmupListenerXmlTransformerTest {
         checkListener(elementList, "firstSearcher", SortWarmupListener.class.getCanonicalName());
         checkListener(elementList, "newSearcher", SortWarmupListener.class.getCanonicalName());
 
+        checkListener(elementList, "firstSearcher", FacetWarmupListener.class.getCanonicalName());
+        checkListener(elementList, "newSearcher", FacetWarmupListener.class.getCanonicalName());
 
+        Assertions.assertTrue(elementList.stream()
+                .noneMatch(element -> element.getAttribute("class").equals(IndexPrefetchListener.class.getCanonicalName())));
+
+        Assertions.assertTrue(elementList.stream()
+                .noneMatch(element -> element.getAttribute("class").equals(RequestReplayListener.class.getCanonicalName())));
+
+
+    }
+
+    @Test
+    public void testTransformRegistersIndexPrefetchFirst() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query></query>"
+                        + "</config>";
+        Document doc = transform(xmlIn, WarmupPlan.createDefault(), options(WarmupListenerXmlTransformer.INDEX_PREFETCH));
+
+        NodeList listeners = doc.getDocumentElement().getElementsByTagName("listener");
+        for (String event : new String[]{"firstSearcher", "newSearcher"}) {
+            for (int i = 0; i < listeners.getLength(); i++) {
+                Element listener = (Element) listeners.item(i);
+                if (event.equals(listener.getAttribute("event"))) {
+                    Assertions.assertEquals(IndexPrefetchListener.class.getCanonicalName(), listener.getAttribute("class"));
+                    break;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTransformRegistersFilterQueryRecorder() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query></query>"
+                        + "<requestHandler name=\"/afts\"><arr name=\"components\"><str>query</str></arr></requestHandler>"
+                        + "<requestHandler name=\"/alfresco\"></requestHandler>"
+                        + "<requestHandler name=\"/update\"></requestHandler>"
+                        + "</config>";
+        Document doc = transform(xmlIn);
+        Element config = doc.getDocumentElement();
+
+        NodeList components = config.getElementsByTagName("searchComponent");
+        Assertions.assertEquals(1, components.getLength());
+        Assertions.assertEquals(FilterQueryRecorderComponent.class.getCanonicalName(),
+                ((Element) components.item(0)).getAttribute("class"));
+
+        NodeList requestHandlers = config.getElementsByTagName("requestHandler");
+        Element afts = (Element) requestHandlers.item(0);
+        Element aftsComponents = (Element) afts.getElementsByTagName("arr").item(0);
+        Assertions.assertEquals("components", aftsComponents.getAttribute("name"));
+        Assertions.assertEquals(WarmupListenerXmlTransformer.FILTER_QUERY_RECORDER_NAME,
+                aftsComponents.getElementsByTagName("str").item(0).getTextContent());
+        Assertions.assertEquals("query", aftsComponents.getElementsByTagName("str").item(1).getTextContent());
+
+        Element alfresco = (Element) requestHandlers.item(1);
+        Element alfrescoComponents = (Element) alfresco.getElementsByTagName("arr").item(0);
+        Assertions.assertEquals("first-components", alfrescoComponents.getAttribute("name"));
+        Assertions.assertEquals(WarmupListenerXmlTransformer.FILTER_QUERY_RECORDER_NAME,
+                alfrescoComponents.getElementsByTagName("str").item(0).getTextContent());
+
+        Element update = (Element) requestHandlers.item(2);
+        Assertions.assertEquals(0, update.getElementsByTagName("arr").getLength());
+    }
+
+    @Test
+    public void testTransformRecordsAndWarmsAuthoritySets() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query></query>"
+                        + "</config>";
+        Document doc = transform(xmlIn, WarmupPlan.createDefault(), options(WarmupListenerXmlTransformer.AUTHORITY_SET_WARMUP));
+        Element config = doc.getDocumentElement();
+
+        Element component = (Element) config.getElementsByTagName("searchComponent").item(0);
+        Assertions.assertEquals(WarmupListenerXmlTransformer.AUTHORITY_SET_STATISTICS_FILE,
+                getString(component, "authoritySetStatisticsFile"));
+
+        NodeList listeners = config.getElementsByTagName("listener");
+        for (int i = 0; i < listeners.getLength(); i++) {
+            Element listener = (Element) listeners.item(i);
+            if (FilterQueryWarmupListener.class.getCanonicalName().equals(listener.getAttribute("class"))) {
+                Assertions.assertEquals(WarmupListenerXmlTransformer.AUTHORITY_SET_STATISTICS_FILE,
+                        getString(listener, "authoritySetStatisticsFile"));
+            } else {
+                Assertions.assertNull(getString(listener, "authoritySetStatisticsFile"));
+            }
+        }
+    }
+
+    @Test
+    public void testTransformSkipsAuthoritySetsByDefault() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query></query>"
+                        + "</config>";
+        Document doc = transform(xmlIn);
+        Element config = doc.getDocumentElement();
+
+        Element component = (Element) config.getElementsByTagName("searchComponent").item(0);
+        Assertions.assertNull(getString(component, "authoritySetStatisticsFile"));
+        NodeList listeners = config.getElementsByTagName("listener");
+        for (int i = 0; i < listeners.getLength(); i++) {
+            Assertions.assertNull(getString((Element) listeners.item(i), "authoritySetStatisticsFile"));
+        }
+    }
+
+    @Test
+    public void testTransformSnapshotsFilterCache() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query></query>"
+                        + "</config>";
+        Document doc = transform(xmlIn, WarmupPlan.createDefault(), options(WarmupListenerXmlTransformer.FILTER_CACHE_SNAPSHOT));
+        Element config = doc.getDocumentElement();
+
+        NodeList listeners = config.getElementsByTagName("listener");
+        for (int i = 0; i < listeners.getLength(); i++) {
+            Element listener = (Element) listeners.item(i);
+            if (FilterQueryWarmupListener.class.getCanonicalName().equals(listener.getAttribute("class"))) {
+                Assertions.assertEquals(WarmupListenerXmlTransformer.SNAPSHOT_FILE, getString(listener, "snapshotFile"));
+            } else {
+                Assertions.assertNull(getString(listener, "snapshotFile"));
+            }
+        }
+    }
+
+    @Test
+    public void testTransformSkipsFilterCacheSnapshotByDefault() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query></query>"
+                        + "</config>";
+        Document doc = transform(xmlIn);
+
+        NodeList listeners = doc.getDocumentElement().getElementsByTagName("listener");
+        for (int i = 0; i < listeners.getLength(); i++) {
+            Assertions.assertNull(getString((Element) listeners.item(i), "snapshotFile"));
+        }
+    }
+
+    @Test
+    public void testTransformRecordsAndReplaysRequests() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query></query>"
+                        + "</config>";
+        Document doc = transform(xmlIn, WarmupPlan.createDefault(), options(WarmupListenerXmlTransformer.REQUEST_REPLAY));
+        Element config = doc.getDocumentElement();
+
+        Element component = (Element) config.getElementsByTagName("searchComponent").item(0);
+        Assertions.assertEquals(WarmupListenerXmlTransformer.REQUEST_STATISTICS_FILE, getString(component, "requestStatisticsFile"));
+
+        int replayListeners = 0;
+        NodeList listeners = config.getElementsByTagName("listener");
+        for (int i = 0; i < listeners.getLength(); i++) {
+            Element listener = (Element) listeners.item(i);
+            if (RequestReplayListener.class.getCanonicalName().equals(listener.getAttribute("class"))) {
+                replayListeners++;
+                Assertions.assertEquals(WarmupListenerXmlTransformer.REQUEST_STATISTICS_FILE, getString(listener, "statisticsFile"));
+                // replayed requests should find the filters and sorts already warmed by all other listeners
+                Assertions.assertTrue(i >= listeners.getLength() - 2);
+            }
+        }
+        Assertions.assertEquals(2, replayListeners);
+    }
+
+    @Test
+    public void testTransformSkipsRequestRecordingByDefault() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query></query>"
+                        + "</config>";
+        Document doc = transform(xmlIn);
+        Element config = doc.getDocumentElement();
+
+        Element component = (Element) config.getElementsByTagName("searchComponent").item(0);
+        Assertions.assertNull(getString(component, "requestStatisticsFile"));
+        NodeList listeners = config.getElementsByTagName("listener");
+        for (int i = 0; i < listeners.getLength(); i++) {
+            Assertions.assertNotEquals(RequestReplayListener.class.getCanonicalName(), ((Element) listeners.item(i)).getAttribute("class"));
+        }
+    }
+
+    @Test
+    public void testTransformRegistersWarmupConfigurationHandler() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query></query>"
+                        + "</config>";
+        Document doc = transform(xmlIn);
+        Element config = doc.getDocumentElement();
+
+        NodeList requestHandlers = config.getElementsByTagName("requestHandler");
+        Assertions.assertEquals(1, requestHandlers.getLength());
+        Element handler = (Element) requestHandlers.item(0);
+        Assertions.assertEquals(WarmupListenerXmlTransformer.CONFIGURATION_HANDLER_NAME, handler.getAttribute("name"));
+        Assertions.assertEquals(WarmupConfigurationHandler.class.getCanonicalName(), handler.getAttribute("class"));
+
+        NodeList listeners = config.getElementsByTagName("listener");
+        for (int i = 0; i < listeners.getLength(); i++) {
+            Element listener = (Element) listeners.item(i);
+            NodeList strings = listener.getElementsByTagName("str");
+            boolean configurationFile = false;
+            for (int j = 0; j < strings.getLength(); j++) {
+                Element string = (Element) strings.item(j);
+                configurationFile |= "configurationFile".equals(string.getAttribute("name"))
+                        && WarmupListenerXmlTransformer.CONFIGURATION_FILE.equals(string.getTextContent());
+            }
+            Assertions.assertTrue(configurationFile);
+        }
+    }
+
+    @Test
+    public void testTransformKeepsFilterCacheByDefault() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query><filterCache class=\"solr.FastLRUCache\" size=\"512\"/></query>"
+                        + "</config>";
+        Document doc = transform(xmlIn);
+
+        Element filterCache = (Element) doc.getDocumentElement().getElementsByTagName("filterCache").item(0);
+        Assertions.assertEquals("solr.FastLRUCache", filterCache.getAttribute("class"));
+        NodeList listeners = doc.getDocumentElement().getElementsByTagName("listener");
+        for (int i = 0; i < listeners.getLength(); i++) {
+            Assertions.assertNull(getInt((Element) listeners.item(i), "filterCacheHandoffCount"));
+        }
+    }
+
+    @Test
+    public void testTransformUsesRankedFilterCache() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query><filterCache class=\"solr.FastLRUCache\" size=\"512\"/></query>"
+                        + "</config>";
+        Document doc = transform(xmlIn, WarmupPlan.createDefault(), options(WarmupListenerXmlTransformer.RANKED_FILTER_CACHE));
+
+        Element filterCache = (Element) doc.getDocumentElement().getElementsByTagName("filterCache").item(0);
+        Assertions.assertEquals(RankedFilterCache.class.getCanonicalName(), filterCache.getAttribute("class"));
+        Assertions.assertEquals("512", filterCache.getAttribute("size"));
+        NodeList listeners = doc.getDocumentElement().getElementsByTagName("listener");
+        for (int i = 0; i < listeners.getLength(); i++) {
+            Element listener = (Element) listeners.item(i);
+            boolean handoff = FilterQueryWarmupListener.class.getCanonicalName().equals(listener.getAttribute("class"))
+                    && "newSearcher".equals(listener.getAttribute("event"));
+            Assertions.assertEquals(handoff ? "500" : null, getInt(listener, "filterCacheHandoffCount"));
+        }
+    }
+
+    @Test
+    public void testTransformEnablesDirectFilterWarmup() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query></query>"
+                        + "</config>";
+        Document doc = transform(xmlIn, WarmupPlan.createDefault(), options(WarmupListenerXmlTransformer.DIRECT_FILTER_WARMUP));
+
+        NodeList listeners = doc.getDocumentElement().getElementsByTagName("listener");
+        for (int i = 0; i < listeners.getLength(); i++) {
+            Element listener = (Element) listeners.item(i);
+            NodeList bools = listener.getElementsByTagName("bool");
+            boolean directFilterWarmup = false;
+            for (int j = 0; j < bools.getLength(); j++) {
+                Element bool = (Element) bools.item(j);
+                directFilterWarmup |= "directFilterWarmup".equals(bool.getAttribute("name"))
+                        && "true".equals(bool.getTextContent());
+            }
+            Assertions.assertEquals(
+                    FilterQueryWarmupListener.class.getCanonicalName().equals(listener.getAttribute("class")),
+                    directFilterWarmup);
+        }
+    }
+
+    @Test
+    public void testTransformSkipsDirectFilterWarmupByDefault() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query></query>"
+                        + "</config>";
+        Document doc = transform(xmlIn);
+
+        NodeList bools = doc.getDocumentElement().getElementsByTagName("bool");
+        for (int i = 0; i < bools.getLength(); i++) {
+            Assertions.assertNotEquals("directFilterWarmup", ((Element) bools.item(i)).getAttribute("name"));
+        }
+    }
+
+    @Test
+    public void testTransformEnablesDirectSortWarmup() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query></query>"
+                        + "</config>";
+        Document doc = transform(xmlIn);
+
+        NodeList listeners = doc.getDocumentElement().getElementsByTagName("listener");
+        for (int i = 0; i < listeners.getLength(); i++) {
+            Element listener = (Element) listeners.item(i);
+            NodeList bools = listener.getElementsByTagName("bool");
+            boolean directSortWarmup = false;
+            for (int j = 0; j < bools.getLength(); j++) {
+                Element bool = (Element) bools.item(j);
+                directSortWarmup |= "directSortWarmup".equals(bool.getAttribute("name"))
+                        && "true".equals(bool.getTextContent());
+            }
+            Assertions.assertEquals(
+                    SortWarmupListener.class.getCanonicalName().equals(listener.getAttribute("class")),
+                    directSortWarmup);
+        }
+    }
+
+    @Test
+    public void testTransformUsesWarmupPlan() throws Exception {
+        String xmlIn =
+                "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+                        + "<config>"
+                        + "<query></query>"
+                        + "</config>";
+        WarmupPlan plan = new WarmupPlan();
+        plan.add(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, "{!afts}ASPECT:\"cm:versionable\"");
+        plan.add(WarmupPlan.SORT_WARMUP, WarmupPlan.BASE_QUERIES, "{!afts}ISNODE:T");
+        plan.add(WarmupPlan.SORT_WARMUP, WarmupPlan.SORTS, "@cm:modified desc");
+        plan.add(WarmupPlan.FACET_WARMUP, WarmupPlan.FACET_FIELDS, "TYPE");
+        Document doc = transform(xmlIn, plan);
+
+        NodeList listeners = doc.getDocumentElement().getElementsByTagName("listener");
+        for (int i = 0; i < listeners.getLength(); i++) {
+            Element listener = (Element) listeners.item(i);
+            String listenerClass = listener.getAttribute("class");
+            if (FilterQueryWarmupListener.class.getCanonicalName().equals(listenerClass)) {
+                Assertions.assertEquals(Collections.singletonList("{!afts}ASPECT:\"cm:versionable\""),
+                        getStringArray(listener, "filterQueries"));
+            } else if (SortWarmupListener.class.getCanonicalName().equals(listenerClass)) {
+                Assertions.assertEquals(Collections.singletonList("{!afts}ISNODE:T"), getStringArray(listener, "baseQueries"));
+                Assertions.assertEquals(Collections.singletonList("@cm:modified desc"), getStringArray(listener, "sorts"));
+            } else if (FacetWarmupListener.class.getCanonicalName().equals(listenerClass)) {
+                Assertions.assertEquals(Collections.singletonList("TYPE"), getStringArray(listener, "facetFields"));
+                Assertions.assertEquals(Collections.emptyList(), getStringArray(listener, "facetQueries"));
+            }
+        }
+    }
+
+    private Document transform(String xmlIn) throws Exception {
+        return transform(xmlIn, WarmupPlan.createDefault());
+    }
+
+    private Document transform(String xmlIn, WarmupPlan plan) throws Exception {
+        return transform(xmlIn, plan, new Properties());
+    }
+
+    private Document transform(String xmlIn, WarmupPlan plan, Properties options) throws Exception {
+        WarmupListenerXmlTransformer warmupListenerXmlTransformer = new WarmupListenerXmlTransformer(options);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        warmupListenerXmlTransformer.transform(new ByteArrayInputStream(xmlIn.getBytes()), out, plan);
+
+        DocumentBuilder dBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        Document doc = dBuilder.parse(new ByteArrayInputStream(out.toByteArray()));
+        doc.getDocumentElement().normalize();
+        return doc;
+    }
+
+    private Properties options(String... enabledOptions) {
+        Properties options = new Properties();
+        for (String option : enabledOptions) {
+            options.setProperty(option, "true");
+        }
+        return options;
+    }
+
+    private String getString(Element parent, String name) {
+        return getElement(parent, "str", name);
+    }
+
+    private String getInt(Element parent, String name) {
+        return getElement(parent, "int", name);
+    }
+
+    private String getElement(Element parent, String element, String name) {
+        NodeList strings = parent.getElementsByTagName(element);
+        for (int i = 0; i < strings.getLength(); i++) {
+            Element string = (Element) strings.item(i);
+            if (name.equals(string.getAttribute("name"))) {
+                return string.getTextContent();
+            }
+        }
+        return null;
+    }
+
+    private List<String> getStringArray(Element parent, String name) {
+        List<String> values = new ArrayList<>();
+        NodeList arrays = parent.getElementsByTagName("arr");
+        for (int i = 0; i < arrays.getLength(); i++) {
+            Element array = (Element) arrays.item(i);
+            if (name.equals(array.getAttribute("name"))) {
+                NodeList strings = array.getElementsByTagName("str");
+                for (int j = 0; j < strings.getLength(); j++) {
+                    values.add(strings.item(j).getTextContent());
+                }
+            }
+        }
+        return values;
     }
 
     private void checkListener(List<Element> elementList, String event, String canonicalName) {
@@ -0,0 +1,193 @@
+package eu.xenit.ass.fqwarmup.solrtemplate;
+
+import eu.xenit.ass.fqwarmup.solrtemplate.WarmupPlan.Finding;
+import eu.xenit.ass.fqwarmup.solrtemplate.WarmupPlan.Severity;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class WarmupPlanGeneratorTest {
+
+    private static final String SCHEMA = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+            + "<schema name=\"test\">"
+            + "<fieldType name=\"string\" class=\"solr.StrField\" docValues=\"true\"/>"
+            + "<fieldType name=\"plainString\" class=\"solr.StrField\"/>"
+            + "<fieldType name=\"text\" class=\"solr.TextField\">"
+            + "<analyzer><tokenizer class=\"solr.StandardTokenizerFactory\"/></analyzer>"
+            + "</fieldType>"
+            + "<fieldType name=\"keyword\" class=\"solr.TextField\" docValues=\"true\">"
+            + "<analyzer><tokenizer class=\"solr.KeywordTokenizerFactory\"/></analyzer>"
+            + "</fieldType>"
+            + "<field name=\"TYPE\" type=\"string\" indexed=\"true\"/>"
+            + "<field name=\"OWNER\" type=\"plainString\" indexed=\"true\"/>"
+            + "<field name=\"STORED\" type=\"string\" indexed=\"false\" docValues=\"false\"/>"
+            + "<field name=\"TAGS\" type=\"string\" multiValued=\"true\"/>"
+            + "<dynamicField name=\"text@*\" type=\"text\"/>"
+            + "<dynamicField name=\"sort@*\" type=\"keyword\"/>"
+            + "</schema>";
+
+    private static final String MODEL = "<?xml version=\"1.0\" encoding=\"UTF-8\" ?>"
+            + "<model name=\"acme:model\" xmlns=\"http://www.alfresco.org/model/dictionary/1.0\">"
+            + "<imports><import uri=\"http://www.alfresco.org/model/content/1.0\" prefix=\"cm\"/></imports>"
+            + "<namespaces><namespace uri=\"http://acme.com/model/1.0\" prefix=\"acme\"/></namespaces>"
+            + "<types><type name=\"acme:invoice\"><parent>cm:content</parent><properties>"
+            + "<property name=\"acme:number\"><type>d:text</type><index enabled=\"true\"><tokenised>FALSE</tokenised></index></property>"
+            + "<property name=\"acme:description\"><type>d:text</type></property>"
+            + "<property name=\"acme:amount\"><type>d:double</type></property>"
+            + "<property name=\"acme:scan\"><type>d:content</type></property>"
+            + "<property name=\"acme:secret\"><type>d:text</type><index enabled=\"false\"/></property>"
+            + "</properties></type></types>"
+            + "<aspects><aspect name=\"acme:archived\"/></aspects>"
+            + "</model>";
+
+    @Test
+    public void testSlowEntriesAreRejected() throws Exception {
+        WarmupPlan candidates = new WarmupPlan();
+        candidates.add(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, "{!afts}cm:name:*report");
+        candidates.add(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, "{!afts}cm:name:report*");
+        candidates.add(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, "{!lucene}OWNER:[* TO bob]");
+        candidates.add(WarmupPlan.SORT_WARMUP, WarmupPlan.SORTS, "text@title asc");
+        candidates.add(WarmupPlan.SORT_WARMUP, WarmupPlan.SORTS, "OWNER desc");
+        candidates.add(WarmupPlan.SORT_WARMUP, WarmupPlan.SORTS, "sort@title asc, score desc");
+        candidates.add(WarmupPlan.FACET_WARMUP, WarmupPlan.FACET_FIELDS, "OWNER");
+        candidates.add(WarmupPlan.FACET_WARMUP, WarmupPlan.FACET_FIELDS, "TYPE");
+
+        WarmupPlan plan = new WarmupPlanGenerator(parseSchema(), null, -1).generate(candidates);
+
+        Assertions.assertEquals(Arrays.asList("{!afts}cm:name:report*", "{!lucene}OWNER:[* TO bob]"),
+                plan.get(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES));
+        Assertions.assertEquals(Collections.singletonList("sort@title asc, score desc"),
+                plan.get(WarmupPlan.SORT_WARMUP, WarmupPlan.SORTS));
+        Assertions.assertEquals(Collections.singletonList("TYPE"), plan.get(WarmupPlan.FACET_WARMUP, WarmupPlan.FACET_FIELDS));
+
+        checkFinding(plan, "{!afts}cm:name:*report", Severity.SLOW, "leading wildcard");
+        checkFinding(plan, "text@title asc", Severity.SLOW, "tokenized");
+        checkFinding(plan, "OWNER desc", Severity.SLOW, "no doc values");
+        checkFinding(plan, "OWNER", Severity.SLOW, "no doc values");
+    }
+
+    @Test
+    public void testInvalidEntriesAreRejected() throws Exception {
+        WarmupPlan candidates = new WarmupPlan();
+        candidates.add(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, "{!term f=MISSING}x");
+        candidates.add(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, "{!lucene}STORED:x");
+        candidates.add(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, "{!afts}acme:secret:x");
+        candidates.add(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, "{!afts}@acme:unknown:x");
+        candidates.add(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, "{!afts}TYPE:\"acme:order\"");
+        // classes and properties of models that have not been exported cannot be checked
+        candidates.add(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, "{!afts}cm:title:x");
+        candidates.add(WarmupPlan.SORT_WARMUP, WarmupPlan.SORTS, "@acme:scan asc");
+        candidates.add(WarmupPlan.SORT_WARMUP, WarmupPlan.SORTS, "@acme:description asc");
+        candidates.add(WarmupPlan.SORT_WARMUP, WarmupPlan.SORTS, "TAGS asc");
+
+        WarmupPlan plan = new WarmupPlanGenerator(parseSchema(), parseModel(), -1).generate(candidates);
+
+        checkFinding(plan, "{!term f=MISSING}x", Severity.INVALID, "unknown field MISSING");
+        checkFinding(plan, "{!lucene}STORED:x", Severity.INVALID, "neither indexed nor has doc values");
+        checkFinding(plan, "{!afts}acme:secret:x", Severity.INVALID, "not indexed");
+        checkFinding(plan, "{!afts}@acme:unknown:x", Severity.INVALID, "unknown property acme:unknown");
+        checkFinding(plan, "{!afts}TYPE:\"acme:order\"", Severity.INVALID, "unknown type or aspect acme:order");
+        checkFinding(plan, "@acme:scan asc", Severity.INVALID, "d:content");
+        checkFinding(plan, "@acme:description asc", Severity.SLOW, "tokenised");
+        checkFinding(plan, "TAGS asc", Severity.INVALID, "multi-valued");
+        Assertions.assertTrue(plan.get(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES).contains("{!afts}cm:title:x"));
+    }
+
+    @Test
+    public void testModelEntriesAreOnlySuggested() throws Exception {
+        WarmupPlan candidates = new WarmupPlan();
+        candidates.add(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, "{!afts}ASPECT:\"acme:archived\"");
+        for (int i = 0; i < 4; i++) {
+            candidates.add(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, "{!afts}cm:name:report" + i);
+        }
+
+        WarmupPlan plan = new WarmupPlanGenerator(null, parseModel(), 4).generate(candidates);
+
+        // model entries neither end up in the listeners nor take the filter cache space of configured entries
+        Assertions.assertEquals(Arrays.asList("{!afts}ASPECT:\"acme:archived\"", "{!afts}cm:name:report0", "{!afts}cm:name:report1",
+                "{!afts}cm:name:report2"), plan.get(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES));
+        Assertions.assertTrue(plan.get(WarmupPlan.SORT_WARMUP, WarmupPlan.SORTS).isEmpty());
+        Assertions.assertEquals(Collections.singletonList("{!afts}TYPE:\"acme:invoice\""),
+                plan.getSuggestions(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES));
+        Assertions.assertEquals(Arrays.asList("@acme:number asc", "@acme:amount asc"),
+                plan.getSuggestions(WarmupPlan.SORT_WARMUP, WarmupPlan.SORTS));
+        Assertions.assertFalse(plan.toJson().contains("acme:invoice"));
+        Assertions.assertTrue(plan.suggestionsToJson().contains("acme:invoice"));
+        Assertions.assertEquals(1, plan.getFindings().size());
+    }
+
+    @Test
+    public void testFilterQueriesAreLimitedToFilterCache() throws Exception {
+        WarmupPlan candidates = WarmupPlan.createDefault();
+        for (int i = 0; i < 10; i++) {
+            candidates.add(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES, "{!afts}cm:name:report" + i);
+        }
+
+        // the default plan has 3 base queries and 5 facet queries
+        WarmupPlan plan = new WarmupPlanGenerator(null, null, 12).generate(candidates);
+
+        Assertions.assertEquals(Arrays.asList("{!afts}cm:name:report0", "{!afts}cm:name:report1", "{!afts}cm:name:report2",
+                "{!afts}cm:name:report3"), plan.get(WarmupPlan.FILTER_QUERY_WARMUP, WarmupPlan.FILTER_QUERIES));
+        Assertions.assertEquals(6, plan.getFindings().size());
+        plan.getFindings().forEach(finding -> Assertions.assertEquals(Severity.UNCACHEABLE, finding.getSeverity()));
+    }
+
+    @Test
+    public void testDefaultPlanIsValid() throws Exception {
+        WarmupPlan plan = new WarmupPlanGenerator(parseSchema(), null, 512).generate(WarmupPlan.createDefault());
+
+        Assertions.assertTrue(plan.getFindings().isEmpty());
+        Assertions.assertEquals(WarmupPlan.createDefault().toJson(), plan.toJson());
+    }
+
+    @Test
+    public void testGetFilterCacheSize() throws Exception {
+        Assertions.assertEquals(256, WarmupPlanGenerator.getFilterCacheSize(toStream(
+                "<config><query><filterCache class=\"solr.FastLRUCache\" size=\"256\" initialSize=\"256\"/></query></config>")));
+        Assertions.assertEquals(512, WarmupPlanGenerator.getFilterCacheSize(toStream(
+                "<config><query><filterCache class=\"solr.FastLRUCache\" size=\"${solr.filterCache.size:512}\"/></query></config>")));
+        Assertions.assertEquals(-1, WarmupPlanGenerator.getFilterCacheSize(toStream("<config><query/></config>")));
+    }
+
+    @Test
+    public void testToJson() {
+        WarmupPlan plan = new WarmupPlan();
+        plan.add(WarmupPlan.SORT_WARMUP, WarmupPlan.BASE_QUERIES, "{!afts}TYPE:\"cm:folder\"");
+        plan.add(WarmupPlan.SORT_WARMUP, WarmupPlan.SORTS, "@cm:name asc");
+
+        Assertions.assertEquals("{\n"
+                + "  \"sortWarmup\": {\n"
+                + "    \"baseQueries\": [\n"
+                + "      \"{!afts}TYPE:\\\"cm:folder\\\"\"\n"
+                + "    ],\n"
+                + "    \"sorts\": [\n"
+                + "      \"@cm:name asc\"\n"
+                + "    ]\n"
+                + "  }\n"
+                + "}\n", plan.toJson());
+    }
+
+    private static void checkFinding(WarmupPlan plan, String entry, Severity severity, String reason) {
+        Finding finding = plan.getFindings().stream().filter(f -> entry.equals(f.getEntry())).findFirst().orElse(null);
+        Assertions.assertNotNull(finding, "No finding for " + entry);
+        Assertions.assertEquals(severity, finding.getSeverity(), finding.toString());
+        Assertions.assertTrue(finding.getReason().contains(reason), finding.toString());
+    }
+
+    private static SolrSchema parseSchema() throws Exception {
+        return SolrSchema.parse(toStream(SCHEMA));
+    }
+
+    private static AlfrescoModel parseModel() throws Exception {
+        AlfrescoModel model = new AlfrescoModel();
+        model.parse(toStream(MODEL));
+        return model;
+    }
+
+    private static InputStream toStream(String xml) {
+        return new ByteArrayInputStream(xml.getBytes());
+    }
+}